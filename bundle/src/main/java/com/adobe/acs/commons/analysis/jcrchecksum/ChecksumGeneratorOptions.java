@@ -48,6 +48,10 @@ public interface ChecksumGeneratorOptions {
 
     String NODE_NAME_EXCLUDES = "excludeNodeNames";
 
+    String PARALLELISM = "parallelism";
+
+    String USE_CACHE = "useCache";
+
     /**
      * For a node to be checksumable, its primaryType must exists in getIncludedNodesTypes() and not exist in
      * getExcludedNodeTypes().
@@ -85,4 +89,20 @@ public interface ChecksumGeneratorOptions {
     default Set<String> getExcludedNodeNames() {
         return  Collections.EMPTY_SET;
     }
+
+    /**
+     * @return the number of aggregate nodes checksumed at the same time, each worker using its own session; 1 checksums
+     * every node on the caller's session
+     */
+    default int getParallelism() {
+        return 1;
+    }
+
+    /**
+     * @return true to reuse the digests of binaries computed by previous runs, for binaries whose content did not
+     * change since
+     */
+    default boolean isCacheEnabled() {
+        return false;
+    }
 }
\ No newline at end of file
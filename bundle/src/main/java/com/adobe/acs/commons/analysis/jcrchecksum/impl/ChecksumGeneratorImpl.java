@@ -25,8 +25,18 @@ import com.adobe.acs.commons.analysis.jcrchecksum.ChecksumGeneratorOptions;
 import com.adobe.acs.commons.analysis.jcrchecksum.impl.options.DefaultChecksumGeneratorOptions;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.api.JackrabbitValue;
 import org.apache.jackrabbit.vault.util.Text;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,28 +47,95 @@ import javax.jcr.PropertyIterator;
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
 import javax.jcr.Value;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Utility that generates checksums for JCR paths.  The checksum is calculated using a depth first traversal
  * and calculates an aggregate checksum on the nodes with the specified node types
  * (via {@link ChecksumGeneratorOptions}).
+ * <p>
+ * Aggregate nodes are independent of each other, so they can be checksumed in parallel, each worker reading with its
+ * own session. The checksum of a node only depends on its sub-tree, with unordered children sorted by name, so the
+ * result is the same whatever the order in which the workers complete. Worker sessions are opened with the
+ * {@value #SUBSERVICE_NAME} service user impersonating the caller, so they see the same content as the caller.
+ * </p>
+ * <p>
+ * The digests of binaries can be kept between runs, and restarts, keyed by the content identity of the binary. As that
+ * identity is derived from the content itself, a kept digest never goes stale, while everything else in the sub-tree
+ * is still read on each run.
+ * </p>
  */
 @Component
 public class ChecksumGeneratorImpl implements ChecksumGenerator {
     private static final Logger log = LoggerFactory.getLogger(ChecksumGeneratorImpl.class);
 
+    /** Upper bound of the parallelism, whatever the options ask for. */
+    static final int MAX_PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+    /** Number of aggregate nodes submitted to the workers at once, per worker. */
+    static final int TASKS_PER_WORKER = 64;
+
+    /** Number of binary digests kept between runs. */
+    static final int MAX_CACHED_DIGESTS = 100_000;
+
+    static final String SUBSERVICE_NAME = "checksum-generator";
+
+    static final String DIGEST_STORE_FILE = "binary-digests.properties";
+
+    private final Map<String, String> digestCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_CACHED_DIGESTS;
+                }
+            });
+
+    private final AtomicBoolean digestCacheChanged = new AtomicBoolean();
+
+    private File digestStoreFile;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+               policy = ReferencePolicy.DYNAMIC)
+    private volatile ResourceResolverFactory resourceResolverFactory;
+
+    @Activate
+    protected void activate(BundleContext bundleContext) {
+        digestStoreFile = bundleContext.getDataFile(DIGEST_STORE_FILE);
+        loadDigests();
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        storeDigests();
+    }
+
     /**
      * Convenience method for  generateChecksums(session, path, new DefaultChecksumGeneratorOptions()).
      *
@@ -95,32 +172,38 @@ public class ChecksumGeneratorImpl implements ChecksumGenerator {
             return new LinkedHashMap<>();
         }
 
-        return traverseTree(node, options);
+        final List<String> aggregatePaths = new ArrayList<>();
+        traverseTree(node, options, aggregatePaths);
+
+        final int parallelism = Math.min(Math.min(options.getParallelism(), MAX_PARALLELISM), aggregatePaths.size());
+        try {
+            if (parallelism > 1) {
+                return generateChecksumsInParallel(session, aggregatePaths, options, parallelism);
+            }
+
+            return generateChecksumsSequentially(session, aggregatePaths, options);
+        } finally {
+            if (options.isCacheEnabled()) {
+                storeDigests();
+            }
+        }
     }
 
     /**
      * Traverse the tree for candidate aggregate nodes.
      * @param node the current node being traversed
      * @param options the checksum generator options
-     * @return a map of paths and checksums
+     * @param aggregatePaths collects the paths of the aggregate nodes, in traversal order
      * @throws RepositoryException
-     * @throws IOException
      */
-    private Map<String, String> traverseTree(Node node, ChecksumGeneratorOptions options) throws
-            RepositoryException,
-            IOException {
-
-        final Map<String, String> checksums = new LinkedHashMap<>();
+    private void traverseTree(Node node, ChecksumGeneratorOptions options, List<String> aggregatePaths) throws
+            RepositoryException {
 
         if (isExcludedSubTree(node, options)) {
-            return checksums;
+            return;
         } else if (isChecksumable(node, options) && !isExcludedNodeName(node, options)) {
             // Tree-traversal has found a node to checksum (checksum will include all valid sub-tree nodes)
-            final String checksum = generatedNodeChecksum(node.getPath(), node, options);
-            if (checksum != null) {
-                checksums.put(node.getPath(), checksum);
-                log.debug("Top Level Node: {} ~> {}", node.getPath(), checksum);
-            }
+            aggregatePaths.add(node.getPath());
         } else {
             // Traverse the tree for checksum-able node systems
             NodeIterator children = node.getNodes();
@@ -128,13 +211,178 @@ public class ChecksumGeneratorImpl implements ChecksumGenerator {
             while (children.hasNext()) {
                 // Check each child with recursive logic; if child is checksum-able the call into traverseTree will
                 // handle this case
-                checksums.putAll(traverseTree(children.nextNode(), options));
+                traverseTree(children.nextNode(), options, aggregatePaths);
             }
         }
+    }
+
+    private void putChecksum(Map<String, String> checksums, String aggregatePath, String checksum) {
+        if (checksum != null) {
+            checksums.put(aggregatePath, checksum);
+            log.debug("Top Level Node: {} ~> {}", aggregatePath, checksum);
+        }
+    }
 
+    private Map<String, String> generateChecksumsSequentially(final Session session,
+                                                              final List<String> aggregatePaths,
+                                                              final ChecksumGeneratorOptions options)
+            throws RepositoryException, IOException {
+        final Map<String, String> checksums = new LinkedHashMap<>();
+        for (final String aggregatePath : aggregatePaths) {
+            final Node node = session.getNode(aggregatePath);
+            putChecksum(checksums, aggregatePath, generatedNodeChecksum(aggregatePath, node, options));
+        }
         return checksums;
     }
 
+    /**
+     * Checksums the aggregate nodes with a pool of workers, each reading with its own session. Results are collected
+     * in traversal order, so the output is the same as a single threaded run.
+     */
+    @SuppressWarnings("squid:S3776")
+    private Map<String, String> generateChecksumsInParallel(final Session session,
+                                                            final List<String> aggregatePaths,
+                                                            final ChecksumGeneratorOptions options,
+                                                            final int parallelism)
+            throws RepositoryException, IOException {
+
+        // Sessions are not thread-safe, and neither is opening them from the caller's session
+        final List<ResourceResolver> workerResolvers = new ArrayList<>();
+        final List<Session> workerSessions = openWorkerSessions(session, parallelism, workerResolvers);
+
+        if (workerSessions.isEmpty()) {
+            log.warn("No worker session could be opened for [ {} ], checksums are generated sequentially instead of "
+                    + "with a parallelism of {}", session.getUserID(), parallelism);
+            return generateChecksumsSequentially(session, aggregatePaths, options);
+        }
+
+        final Map<String, String> checksums = new LinkedHashMap<>();
+        final BlockingQueue<Session> idleSessions = new ArrayBlockingQueue<>(workerSessions.size(), false, workerSessions);
+        final ForkJoinPool pool = new ForkJoinPool(workerSessions.size());
+        final int batchSize = workerSessions.size() * TASKS_PER_WORKER;
+        try {
+            for (int start = 0; start < aggregatePaths.size(); start += batchSize) {
+                final List<String> batch = aggregatePaths.subList(start, Math.min(aggregatePaths.size(), start + batchSize));
+                final List<Callable<String>> tasks = new ArrayList<>(batch.size());
+                for (final String aggregatePath : batch) {
+                    tasks.add(() -> {
+                        final Session worker = idleSessions.take();
+                        try {
+                            return generatedNodeChecksum(aggregatePath, worker.getNode(aggregatePath), options);
+                        } finally {
+                            idleSessions.add(worker);
+                        }
+                    });
+                }
+
+                final List<Future<String>> results = pool.invokeAll(tasks);
+                for (int i = 0; i < batch.size(); i++) {
+                    putChecksum(checksums, batch.get(i), getResult(results.get(i)));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while generating checksums", e);
+        } finally {
+            pool.shutdownNow();
+            if (workerResolvers.isEmpty()) {
+                workerSessions.forEach(Session::logout);
+            } else {
+                workerResolvers.forEach(ResourceResolver::close);
+            }
+        }
+
+        return checksums;
+    }
+
+    private String getResult(Future<String> result) throws RepositoryException, IOException, InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RepositoryException) {
+                throw (RepositoryException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RepositoryException("Unable to generate checksum", cause);
+        }
+    }
+
+    /**
+     * Opens up to {@code count} worker sessions, from the service user resolvers if available, else by impersonating
+     * the caller from its own session.
+     * @param session the caller's session
+     * @param count the number of sessions wanted
+     * @param workerResolvers collects the resolvers owning the sessions, to be closed by the caller
+     * @return the sessions opened, possibly fewer than asked for
+     */
+    private List<Session> openWorkerSessions(final Session session,
+                                             final int count,
+                                             final List<ResourceResolver> workerResolvers) {
+        final List<Session> workerSessions = new ArrayList<>();
+        try {
+            while (workerSessions.size() < count) {
+                final ResourceResolver resolver = openWorkerResolver(session);
+                final Session worker = resolver == null ? null : resolver.adaptTo(Session.class);
+                if (worker == null) {
+                    if (resolver != null) {
+                        resolver.close();
+                    }
+                    break;
+                }
+                workerResolvers.add(resolver);
+                workerSessions.add(worker);
+            }
+        } catch (LoginException e) {
+            log.warn("Unable to open worker sessions with the [ {} ] service user impersonating [ {} ]",
+                    SUBSERVICE_NAME, session.getUserID(), e);
+        }
+
+        if (workerSessions.isEmpty()) {
+            try {
+                while (workerSessions.size() < count) {
+                    workerSessions.add(openWorkerSession(session));
+                }
+            } catch (RepositoryException | UnsupportedOperationException e) {
+                log.warn("Unable to open more than {} worker sessions by impersonating [ {} ]", workerSessions.size(),
+                        session.getUserID(), e);
+            }
+        } else if (workerSessions.size() < count) {
+            log.warn("Only {} of {} worker sessions could be opened for checksum generation", workerSessions.size(),
+                    count);
+        }
+        return workerSessions;
+    }
+
+    /**
+     * Opens a resolver for a worker, with the service user impersonating the caller so it sees the same content.
+     * @param session the caller's session
+     * @return a new resolver, closed by the caller, or null if no resource resolver factory is available
+     * @throws LoginException if the service user is not mapped or can't impersonate the caller
+     */
+    protected ResourceResolver openWorkerResolver(final Session session) throws LoginException {
+        final ResourceResolverFactory factory = resourceResolverFactory;
+        if (factory == null) {
+            return null;
+        }
+        final Map<String, Object> authInfo = new HashMap<>();
+        authInfo.put(ResourceResolverFactory.SUBSERVICE, SUBSERVICE_NAME);
+        authInfo.put(ResourceResolverFactory.USER_IMPERSONATION, session.getUserID());
+        return factory.getServiceResourceResolver(authInfo);
+    }
+
+    /**
+     * Opens a session for a worker by impersonating the caller, used when no service user resolver can be opened.
+     * @param session the caller's session
+     * @return a new session, logged out by the caller
+     * @throws RepositoryException if the session can't be opened
+     */
+    protected Session openWorkerSession(final Session session) throws RepositoryException {
+        return session.impersonate(new SimpleCredentials(session.getUserID(), new char[0]));
+    }
 
     /**
      * Ensures the node's primary type is included in the Included Node Types and NOT in the Excluded Node Types and NOT in the Excluded Node Names.
@@ -258,7 +506,7 @@ public class ChecksumGeneratorImpl implements ChecksumGenerator {
 
             for (final Value value : values) {
                 if (value.getType() == PropertyType.BINARY) {
-                    checksums.add(getBinaryChecksum(value));
+                    checksums.add(options.isCacheEnabled() ? getCachedBinaryChecksum(value) : getBinaryChecksum(value));
                 } else {
                     checksums.add(getStringChecksum(value));
                 }
@@ -339,6 +587,78 @@ public class ChecksumGeneratorImpl implements ChecksumGenerator {
         }
     }
 
+    /**
+     * Gets the checksum for a Binary value from the digest cache, computing and caching it if needed.
+     * @param value the Value
+     * @return the checksum
+     * @throws RepositoryException
+     * @throws IOException
+     */
+    private String getCachedBinaryChecksum(final Value value) throws RepositoryException, IOException {
+        final String contentIdentity = getContentIdentity(value);
+        if (contentIdentity == null) {
+            return getBinaryChecksum(value);
+        }
+
+        String checksum = digestCache.get(contentIdentity);
+        if (checksum == null) {
+            checksum = getBinaryChecksum(value);
+            digestCache.put(contentIdentity, checksum);
+            digestCacheChanged.set(true);
+        }
+        return checksum;
+    }
+
+    /**
+     * Gets the identity of a Binary value, which only changes along with its content.
+     * @param value the Value
+     * @return the content identity, or null if the repository does not provide one
+     */
+    protected String getContentIdentity(final Value value) {
+        return value instanceof JackrabbitValue ? ((JackrabbitValue) value).getContentIdentity() : null;
+    }
+
+    private void loadDigests() {
+        if (digestStoreFile == null || !digestStoreFile.isFile()) {
+            return;
+        }
+        final Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(digestStoreFile.toPath())) {
+            props.load(in);
+            for (final String contentIdentity : props.stringPropertyNames()) {
+                digestCache.put(contentIdentity, props.getProperty(contentIdentity));
+            }
+            log.debug("Loaded {} binary digests from {}", props.size(), digestStoreFile);
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Unable to read stored binary digests from {}, starting empty", digestStoreFile, e);
+            digestCache.clear();
+        }
+    }
+
+    private void storeDigests() {
+        if (digestStoreFile == null || !digestCacheChanged.getAndSet(false)) {
+            return;
+        }
+        final Properties props = new Properties();
+        synchronized (digestCache) {
+            props.putAll(digestCache);
+        }
+        try {
+            final File parent = digestStoreFile.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                Files.createDirectories(parent.toPath());
+            }
+            // Write next to the file and move it in place, so a restart never sees half a file
+            final File temp = new File(digestStoreFile.getPath() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+                props.store(out, "Binary digests by content identity");
+            }
+            Files.move(temp.toPath(), digestStoreFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Unable to store binary digests in {}", digestStoreFile, e);
+        }
+    }
+
     /**
      * Gets the checksum for a String value.
      * @param value the Value
@@ -440,4 +760,4 @@ public class ChecksumGeneratorImpl implements ChecksumGenerator {
 
         return true;
     }
-}
\ No newline at end of file
+}
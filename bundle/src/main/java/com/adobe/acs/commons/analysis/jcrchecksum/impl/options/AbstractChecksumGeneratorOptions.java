@@ -48,6 +48,10 @@ public abstract class AbstractChecksumGeneratorOptions implements ChecksumGenera
 
     protected Set<String> excludedSubTrees = new HashSet<String>();
 
+    protected int parallelism = 1;
+
+    protected boolean cacheEnabled = false;
+
 
     public void addIncludedNodeTypes(String... data) {
         if (data != null) {
@@ -110,6 +114,22 @@ public abstract class AbstractChecksumGeneratorOptions implements ChecksumGenera
         }
     }
 
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public boolean isCacheEnabled() {
+        return this.cacheEnabled;
+    }
+
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
     public String toString() {
         InfoWriter iw = new InfoWriter();
 
@@ -120,6 +140,8 @@ public abstract class AbstractChecksumGeneratorOptions implements ChecksumGenera
         iw.message("Node Name Excludes: {}", this.getExcludedNodeNames());
         iw.message("Sub Tree Excludes: {}", this.getExcludedSubTrees());
         iw.message("Sorted Properties: {}", this.getSortedProperties());
+        iw.message("Parallelism: {}", this.getParallelism());
+        iw.message("Cache Enabled: {}", this.isCacheEnabled());
 
         return iw.toString();
     }
@@ -20,6 +20,7 @@
 
 package com.adobe.acs.commons.analysis.jcrchecksum.impl.options;
 
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.osgi.annotation.versioning.ProviderType;
 
@@ -63,6 +64,8 @@ public class DefaultChecksumGeneratorOptions extends AbstractChecksumGeneratorOp
 
     public DefaultChecksumGeneratorOptions(SlingHttpServletRequest request) {
         this();
+        this.setParallelism(NumberUtils.toInt(request.getParameter(PARALLELISM), 1));
+        this.setCacheEnabled(Boolean.parseBoolean(request.getParameter(USE_CACHE)));
     }
 
 }
\ No newline at end of file
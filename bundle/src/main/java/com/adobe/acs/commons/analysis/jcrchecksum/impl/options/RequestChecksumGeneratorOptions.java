@@ -31,6 +31,7 @@ import java.util.Iterator;
 import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.Resource;
@@ -45,6 +46,8 @@ public class RequestChecksumGeneratorOptions extends AbstractChecksumGeneratorOp
         this.addExcludedNodeTypes(request.getParameterValues(NODE_TYPE_EXCLUDES));
         this.addExcludedProperties(request.getParameterValues(PROPERTY_EXCLUDES));
         this.addSortedProperties(request.getParameterValues(SORTED_PROPERTIES));
+        this.setParallelism(NumberUtils.toInt(request.getParameter(PARALLELISM), 1));
+        this.setCacheEnabled(Boolean.parseBoolean(request.getParameter(USE_CACHE)));
     }
 
     public static Set<String> getPaths(SlingHttpServletRequest request) throws IOException {
@@ -19,6 +19,7 @@
  */
 package com.adobe.acs.commons.data;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Array;
@@ -31,9 +32,14 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import org.apache.commons.lang3.StringUtils;
@@ -48,9 +54,14 @@ import org.osgi.annotation.versioning.ProviderType;
  * Simple abstraction of reading a single spreadsheet of values. Expects a
  * header row of named columns (case-sensitive) If provided, will also filter
  * data rows missing required columns to prevent processing errors.
+ * <p>
+ * Large files can be read in streaming mode, see
+ * {@link #streaming(boolean, InputStream, int, String...)}, where rows are
+ * read one at a time as they are consumed instead of being loaded up front.
+ * </p>
  */
 @ProviderType
-public class Spreadsheet {
+public class Spreadsheet implements Closeable {
 
     public static final String DEFAULT_DELIMITER = ",";
     public static final String ROW_NUMBER = "~~ROWNUM~~";
@@ -62,6 +73,9 @@ public class Spreadsheet {
     private List<String> headerRow;
     private final Map<String, String> delimiters;
     private boolean enableHeaderNameConversion = true;
+    private transient StreamingSheetReader streamingReader;
+    private transient List<StreamingSheetReader.SheetRow> sampleRows = Collections.emptyList();
+    private boolean streamed;
 
     /**
      * Simple constructor used for unit testing purposes
@@ -78,7 +92,7 @@ public class Spreadsheet {
         delimiters = new HashMap<>();
     }
 
-    public Spreadsheet(boolean convertHeaderNames, InputStream file, String... required) throws IOException {
+    private Spreadsheet(String[] required, boolean convertHeaderNames) {
         delimiters = new HashMap<>();
         this.enableHeaderNameConversion = convertHeaderNames;
         if (required == null || required.length == 0) {
@@ -86,6 +100,10 @@ public class Spreadsheet {
         } else {
             requiredColumns = Arrays.stream(required).map(this::convertHeaderName).collect(Collectors.toList());
         }
+    }
+
+    public Spreadsheet(boolean convertHeaderNames, InputStream file, String... required) throws IOException {
+        this(required, convertHeaderNames);
         parseInputFile(file);
     }
 
@@ -102,6 +120,44 @@ public class Spreadsheet {
         this(true, file, required);
     }
 
+    /**
+     * Open a spreadsheet in streaming mode: only the header row (and the type
+     * sample) is read here, data rows are read one at a time as the stream
+     * returned by {@link #getDataRowStream()} is consumed, which can only be
+     * done once. Memory use does not depend on the number of rows. The
+     * spreadsheet must be closed if its rows are not read to the end.
+     *
+     * @param convertHeaderNames If true, header names are converted
+     * @param file XLSX file, only the first sheet is read
+     * @param typeSampleSize Number of data rows read ahead to detect the type
+     * of columns without a type hint in their name, 0 keeps them as strings
+     * @param required Required columns, rows missing any of them are skipped
+     * @return Spreadsheet with its header read
+     * @throws IOException if the file couldn't be read
+     */
+    public static Spreadsheet streaming(boolean convertHeaderNames, InputStream file, int typeSampleSize, String... required) throws IOException {
+        Spreadsheet sheet = new Spreadsheet(required, convertHeaderNames);
+        sheet.openStream(file, typeSampleSize);
+        return sheet;
+    }
+
+    /**
+     * Open an uploaded spreadsheet in streaming mode.
+     *
+     * @param convertHeaderNames If true, header names are converted
+     * @param file Uploaded XLSX file
+     * @param typeSampleSize Number of data rows read ahead to detect column types
+     * @param required Required columns
+     * @return Spreadsheet with its header read
+     * @throws IOException if the file couldn't be read
+     * @see #streaming(boolean, InputStream, int, String...)
+     */
+    public static Spreadsheet streaming(boolean convertHeaderNames, RequestParameter file, int typeSampleSize, String... required) throws IOException {
+        Spreadsheet sheet = streaming(convertHeaderNames, file.getInputStream(), typeSampleSize, required);
+        sheet.fileName = file.getFileName();
+        return sheet;
+    }
+
     /**
      * Parse out the input file synchronously for easier unit test validation
      *
@@ -117,23 +173,89 @@ public class Spreadsheet {
         final Iterator<Row> rows = sheet.rowIterator();
 
         Row firstRow = rows.next();
-        headerRow = readRow(firstRow).stream()
+        readHeader(readRow(firstRow));
+
+        Iterable<Row> remainingRows = () -> rows;
+        dataRows = StreamSupport.stream(remainingRows.spliterator(), false)
+                .map(row -> buildRow(row.getRowNum(), readRow(row)))
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .collect(Collectors.toList());
+    }
+
+    private void openStream(InputStream file, int typeSampleSize) throws IOException {
+        streamingReader = new StreamingSheetReader(file);
+        try {
+            if (!streamingReader.hasNext()) {
+                throw new IOException("Spreadsheet has no header row");
+            }
+            List<Variant> header = streamingReader.next().getCells();
+            readHeader(header);
+            sampleRows = new ArrayList<>();
+            while (sampleRows.size() < typeSampleSize && streamingReader.hasNext()) {
+                sampleRows.add(streamingReader.next());
+            }
+            detectTypesFromSample(header);
+        } catch (IllegalStateException ex) {
+            close();
+            throw new IOException("Unable to read spreadsheet", ex);
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    private void readHeader(List<Variant> header) {
+        headerRow = header.stream()
                 .map(v -> v != null ? convertHeaderName(v.toString()) : null)
                 .collect(Collectors.toList());
-        headerTypes = readRow(firstRow).stream()
+        headerTypes = header.stream()
                 .map(Variant::toString)
                 .collect(Collectors.toMap(
                         this::convertHeaderName,
                         this::detectTypeFromName,
                         this::upgradeToArray
                 ));
+    }
 
-        Iterable<Row> remainingRows = () -> rows;
-        dataRows = StreamSupport.stream(remainingRows.spliterator(), false)
-                .map(this::buildRow)
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(Collectors.toList());
+    /**
+     * Columns without a type hint in their name get the type shared by all of
+     * their values in the sample, if any.
+     */
+    private void detectTypesFromSample(List<Variant> header) {
+        for (int i = 0; i < header.size(); i++) {
+            final int col = i;
+            String name = header.get(col) == null ? null : header.get(col).toString();
+            if (name == null || name.contains("@") || headerTypes.get(convertHeaderName(name)) != String.class) {
+                continue;
+            }
+            Set<Class> sampleTypes = sampleRows.stream()
+                    .map(StreamingSheetReader.SheetRow::getCells)
+                    .filter(cells -> cells.size() > col)
+                    .map(cells -> cells.get(col))
+                    .filter(Objects::nonNull)
+                    .map(Variant::getNativeType)
+                    .collect(Collectors.toSet());
+            headerTypes.put(convertHeaderName(name), getClassFromSample(sampleTypes));
+        }
+    }
+
+    private static Class getClassFromSample(Set<Class> sampleTypes) {
+        if (sampleTypes.size() == 2 && sampleTypes.contains(Long.class) && sampleTypes.contains(Double.class)) {
+            return Double.TYPE;
+        } else if (sampleTypes.size() != 1) {
+            return String.class;
+        }
+        Class type = sampleTypes.iterator().next();
+        if (type == Long.class) {
+            return Long.TYPE;
+        } else if (type == Double.class) {
+            return Double.TYPE;
+        } else if (type == Boolean.class) {
+            return Boolean.TYPE;
+        } else {
+            return type;
+        }
     }
 
     private List<Variant> readRow(Row row) {
@@ -151,10 +273,9 @@ public class Spreadsheet {
     }
 
     @SuppressWarnings("squid:S3776")
-    private Optional<Map<String, CompositeVariant>> buildRow(Row row) {
+    private Optional<Map<String, CompositeVariant>> buildRow(int rowNum, List<Variant> data) {
         Map<String, CompositeVariant> out = new LinkedHashMap<>();
-        out.put(ROW_NUMBER, new CompositeVariant(row.getRowNum()));
-        List<Variant> data = readRow(row);
+        out.put(ROW_NUMBER, new CompositeVariant(rowNum));
         boolean empty = true;
         for (int i = 0; i < data.size() && i < getHeaderRow().size(); i++) {
             String colName = getHeaderRow().get(i);
@@ -190,10 +311,11 @@ public class Spreadsheet {
     }
 
     /**
-     * @return the rowCount
+     * @return the rowCount, in streaming mode as declared by the sheet or as
+     * far as it has been read
      */
     public int getRowCount() {
-        return rowCount;
+        return streamingReader == null ? rowCount : streamingReader.getLastRowNum();
     }
 
     /**
@@ -204,20 +326,64 @@ public class Spreadsheet {
     }
 
     /**
+     * In streaming mode, this reads all remaining rows in memory.
+     *
      * @return the dataRows
      */
     public List<Map<String, CompositeVariant>> getDataRowsAsCompositeVariants() {
+        if (dataRows == null) {
+            try (Stream<Map<String, CompositeVariant>> rows = getDataRowStream()) {
+                dataRows = rows.collect(Collectors.toList());
+            }
+        }
         return dataRows;
     }
 
+    /**
+     * In streaming mode, rows are read as the stream is consumed and the
+     * stream can only be requested once. Closing the stream closes the
+     * spreadsheet.
+     *
+     * @return the data rows
+     */
+    public Stream<Map<String, CompositeVariant>> getDataRowStream() {
+        if (dataRows != null) {
+            return dataRows.stream();
+        }
+        if (streamed) {
+            throw new IllegalStateException("Rows of a streaming spreadsheet can only be read once");
+        }
+        streamed = true;
+        Stream<StreamingSheetReader.SheetRow> remainingRows = StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(streamingReader, Spliterator.ORDERED | Spliterator.NONNULL), false);
+        return Stream.concat(sampleRows.stream(), remainingRows)
+                .map(row -> buildRow(row.getRowNum(), row.getCells()))
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .onClose(this::close);
+    }
+
     public Long getRowNum(Map<String, CompositeVariant> row) {
         if (row.containsKey(ROW_NUMBER)) {
             return (Long) row.get(ROW_NUMBER).getValueAs(Long.class);
+        } else if (dataRows == null) {
+            return -1L;
         } else {
             return (long) dataRows.indexOf(row);
         }
     }
 
+    /**
+     * Release the file held in streaming mode, does nothing otherwise.
+     */
+    @Override
+    public void close() {
+        if (streamingReader != null) {
+            streamingReader.close();
+        }
+        sampleRows = Collections.emptyList();
+    }
+
     /**
      * @return the requiredColumns
      */
@@ -0,0 +1,288 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.xml.sax.SAXException;
+
+/**
+ * Reads the rows of the first sheet of an XLSX file one at a time, by pulling the events of the sheet XML instead of
+ * loading the workbook. Only the shared strings and styles are held in memory. The file is spooled to a temporary
+ * file first so that the zip entries can be read without inflating the whole package in memory.
+ */
+class StreamingSheetReader implements Iterator<StreamingSheetReader.SheetRow>, Closeable {
+
+    private static final String GENERAL_FORMAT = "General";
+
+    /**
+     * Cells of a row, indexed by column; missing or blank cells are null.
+     */
+    static final class SheetRow {
+
+        private final int rowNum;
+        private final List<Variant> cells;
+
+        SheetRow(int rowNum, List<Variant> cells) {
+            this.rowNum = rowNum;
+            this.cells = cells;
+        }
+
+        int getRowNum() {
+            return rowNum;
+        }
+
+        List<Variant> getCells() {
+            return cells;
+        }
+    }
+
+    private final DataFormatter dataFormatter = new DataFormatter();
+    private File spool;
+    private OPCPackage pkg;
+    private InputStream sheetData;
+    private XMLStreamReader xml;
+    private ReadOnlySharedStringsTable sharedStrings;
+    private StylesTable styles;
+    private int lastRowNum = -1;
+    private int lastReadRow = -1;
+    private SheetRow nextRow;
+
+    StreamingSheetReader(InputStream file) throws IOException {
+        try {
+            spool = File.createTempFile("spreadsheet", ".xlsx");
+            Files.copy(file, spool.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            pkg = OPCPackage.open(spool, PackageAccess.READ);
+            XSSFReader reader = new XSSFReader(pkg);
+            sharedStrings = new ReadOnlySharedStringsTable(pkg);
+            styles = reader.getStylesTable();
+            Iterator<InputStream> sheets = reader.getSheetsData();
+            if (!sheets.hasNext()) {
+                throw new IOException("Spreadsheet has no sheets");
+            }
+            sheetData = sheets.next();
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            xml = factory.createXMLStreamReader(sheetData);
+            nextRow = readRow();
+        } catch (OpenXML4JException | SAXException | XMLStreamException | RuntimeException ex) {
+            close();
+            throw new IOException("Unable to read spreadsheet", ex);
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return index of the last row according to the sheet dimension, or of the last row read so far if it is
+     * further down
+     */
+    int getLastRowNum() {
+        return Math.max(lastRowNum, lastReadRow);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextRow != null;
+    }
+
+    @Override
+    public SheetRow next() {
+        if (nextRow == null) {
+            throw new NoSuchElementException();
+        }
+        SheetRow row = nextRow;
+        try {
+            nextRow = readRow();
+        } catch (XMLStreamException | RuntimeException ex) {
+            close();
+            throw new IllegalStateException("Unable to read spreadsheet after row " + (row.getRowNum() + 1), ex);
+        }
+        if (nextRow == null) {
+            // Let go of the temporary file as soon as the last row is read
+            close();
+        }
+        return row;
+    }
+
+    @Override
+    public void close() {
+        nextRow = null;
+        try {
+            if (xml != null) {
+                xml.close();
+                xml = null;
+            }
+            if (sheetData != null) {
+                sheetData.close();
+                sheetData = null;
+            }
+        } catch (XMLStreamException | IOException ex) {
+            // Nothing left to read anyway
+        }
+        if (pkg != null) {
+            // Read-only packages are reverted rather than closed, closing means saving
+            pkg.revert();
+            pkg = null;
+        }
+        if (spool != null) {
+            try {
+                Files.deleteIfExists(spool.toPath());
+            } catch (IOException ex) {
+                spool.deleteOnExit();
+            }
+            spool = null;
+        }
+    }
+
+    private SheetRow readRow() throws XMLStreamException {
+        while (xml.hasNext()) {
+            if (xml.next() == XMLStreamConstants.START_ELEMENT) {
+                String name = xml.getLocalName();
+                if ("dimension".equals(name)) {
+                    readDimension(xml.getAttributeValue(null, "ref"));
+                } else if ("row".equals(name)) {
+                    return readCells();
+                }
+            }
+        }
+        return null;
+    }
+
+    private void readDimension(String ref) {
+        if (!StringUtils.isEmpty(ref)) {
+            String lastCell = ref.contains(":") ? StringUtils.substringAfter(ref, ":") : ref;
+            lastRowNum = new CellReference(lastCell).getRow();
+        }
+    }
+
+    private SheetRow readCells() throws XMLStreamException {
+        String rowRef = xml.getAttributeValue(null, "r");
+        int rowNum = rowRef == null ? lastReadRow + 1 : Integer.parseInt(rowRef) - 1;
+        lastReadRow = rowNum;
+        List<Variant> cells = new ArrayList<>();
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT && "c".equals(xml.getLocalName())) {
+                String cellRef = xml.getAttributeValue(null, "r");
+                int col = cellRef == null ? cells.size() : new CellReference(cellRef).getCol();
+                Variant val = readCell();
+                while (col > cells.size()) {
+                    cells.add(null);
+                }
+                cells.add(val == null || val.isEmpty() ? null : val);
+            } else if (event == XMLStreamConstants.END_ELEMENT && "row".equals(xml.getLocalName())) {
+                break;
+            }
+        }
+        return new SheetRow(rowNum, cells);
+    }
+
+    private Variant readCell() throws XMLStreamException {
+        String type = xml.getAttributeValue(null, "t");
+        String style = xml.getAttributeValue(null, "s");
+        String value = null;
+        StringBuilder inlineText = new StringBuilder();
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = xml.getLocalName();
+                if ("v".equals(name)) {
+                    value = xml.getElementText();
+                } else if ("t".equals(name)) {
+                    inlineText.append(xml.getElementText());
+                } else if ("rPh".equals(name)) {
+                    skipElement();
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && "c".equals(xml.getLocalName())) {
+                break;
+            }
+        }
+        return toVariant(type, style, value, inlineText.toString());
+    }
+
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private Variant toVariant(String type, String style, String value, String inlineText) {
+        switch (type == null ? "n" : type) {
+            case "s":
+                return value == null ? null : new Variant(sharedStrings.getEntryAt(Integer.parseInt(value)).trim());
+            case "inlineStr":
+                return new Variant(inlineText.trim());
+            case "str":
+                return value == null ? null : new Variant(value.trim());
+            case "b":
+                return value == null ? null : new Variant("1".equals(value));
+            case "e":
+                // Same as the user model, errors are blank cells
+                return null;
+            case "n":
+            default:
+                if (StringUtils.isEmpty(value)) {
+                    return null;
+                }
+                Variant number = new Variant();
+                int styleIndex = style == null ? 0 : Integer.parseInt(style);
+                if (styles != null && styleIndex < styles.getNumCellStyles()) {
+                    XSSFCellStyle cellStyle = styles.getStyleAt(styleIndex);
+                    number.setNumericValue(Double.parseDouble(value), cellStyle.getDataFormat(),
+                            StringUtils.defaultIfEmpty(cellStyle.getDataFormatString(), GENERAL_FORMAT), dataFormatter);
+                } else {
+                    number.setNumericValue(Double.parseDouble(value), 0, GENERAL_FORMAT, dataFormatter);
+                }
+                return number;
+        }
+    }
+}
@@ -127,6 +127,38 @@ public final class Variant {
         }
     }
 
+    /**
+     * Same as reading a numeric cell, for readers which only have the raw value and its format.
+     */
+    void setNumericValue(double number, int formatIndex, String formatString, DataFormatter dataFormatter) {
+        if (Math.floor(number) == number) {
+            setValue((long) number);
+        } else {
+            setValue(number);
+        }
+        if (DateUtil.isADateFormat(formatIndex, formatString) && DateUtil.isValidExcelDate(number)) {
+            setValue(DateUtil.getJavaDate(number));
+        }
+        setValue(dataFormatter.formatRawCellContents(number, formatIndex, formatString));
+    }
+
+    /**
+     * @return most specific type held by this value, String if it is empty
+     */
+    Class getNativeType() {
+        if (dateVal.isPresent()) {
+            return Date.class;
+        } else if (booleanVal.isPresent()) {
+            return Boolean.class;
+        } else if (doubleVal.isPresent()) {
+            return Double.class;
+        } else if (longVal.isPresent()) {
+            return Long.class;
+        } else {
+            return String.class;
+        }
+    }
+
     @SuppressWarnings("squid:S3776")
     public final <T> void setValue(T val) {
         if (val == null) {
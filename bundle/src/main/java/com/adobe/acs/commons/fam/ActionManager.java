@@ -20,6 +20,7 @@
 package com.adobe.acs.commons.fam;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 import javax.jcr.RepositoryException;
 import javax.management.openmbean.CompositeData;
@@ -39,6 +40,11 @@ import com.adobe.acs.commons.functions.CheckedConsumer;
 @ProviderType
 @SuppressWarnings("squid:S00112")
 public interface ActionManager {
+    /**
+     * Bind variable of paged queries holding the path of the last result of the previous page.
+     */
+    String LAST_PATH_VARIABLE = "lastPath";
+
     /**
      * Schedule an activity to occur for every node found by a given query.
      * Optionally, programmatic filters can be used to ignore query results that
@@ -55,12 +61,57 @@ public interface ActionManager {
      */
     int withQueryResults(final String queryStatement, final String language, final CheckedBiConsumer<ResourceResolver, String> callback, final CheckedBiFunction<ResourceResolver, String, Boolean>... filters) throws RepositoryException, PersistenceException, Exception;
 
+    /**
+     * Schedule an activity to occur for every node found by a given query, running the query one page at a time so
+     * that huge result sets are never held at once.
+     * If the statement uses the {@value #LAST_PATH_VARIABLE} bind variable, pages are read by keyset: the variable is
+     * bound to the path of the last result of the previous page (an empty string for the first page), so the statement
+     * should be ordered by path and only return paths after it, for instance
+     * <code>SELECT * FROM [dam:Asset] AS a WHERE ISDESCENDANTNODE(a, '/content/dam') AND a.[jcr:path] &gt; $lastPath ORDER BY a.[jcr:path]</code>.
+     * This is the safe choice when the callback changes which nodes the query returns.
+     * Otherwise pages are read by offset, which requires a stable order of the results.
+     * @param queryStatement Query string
+     * @param language Query language to use
+     * @param pageSize Number of results per page, 0 or less to read all results in one go
+     * @param callback Callback action to perform for every query result
+     * @param filters Optional filters return true if action should be taken
+     * @return Count of items found in query
+     * @throws RepositoryException
+     * @throws PersistenceException
+     * @throws Exception
+     */
+    int withQueryResults(final String queryStatement, final String language, final int pageSize, final CheckedBiConsumer<ResourceResolver, String> callback, final CheckedBiFunction<ResourceResolver, String, Boolean>... filters) throws RepositoryException, PersistenceException, Exception;
+
+    /**
+     * Limit the number of query results scheduled by withQueryResults which have not completed yet. Once the limit is
+     * reached, iterating the query results waits for some of them to complete, instead of queuing every result at once.
+     * When the results are scheduled from an action of this manager, that action is left out of the count, but it
+     * holds one of the threads of the task runner while it waits, so the runner needs more than one thread.
+     * @param maxInFlight Maximum number of pending results, 0 or less for no limit (the default)
+     */
+    void setMaxInFlight(int maxInFlight);
+
     /**
      * Perform action at some later time using a provided pooled resolver
      * @param action Action to perform
      */
     void deferredWithResolver(final CheckedConsumer<ResourceResolver> action);
 
+    /**
+     * Perform an action for every item of a stream at some later time, in batches of items sharing a single task and
+     * a single commit. Items are still counted individually in the statistics.
+     * If an action fails, the changes of its batch are reverted, the item is reported as failed and the other items
+     * of the batch are retried. If the commit fails, the batch is retried in halves until the items which cannot be
+     * committed are found. Either way the failure list reports the exact items which failed; actions may however run
+     * more than once, so they should only change content through the provided resolver.
+     * The in-flight limit (see setMaxInFlight) applies to the items of the batches.
+     * @param items Paths of the items to process, consumed by the calling thread
+     * @param batchSize Maximum number of items per batch
+     * @param action Action to perform for every item
+     * @return Count of items scheduled
+     */
+    int deferredWithBatches(final Stream<String> items, final int batchSize, final CheckedBiConsumer<ResourceResolver, String> action);
+
     /**
      * Perform action right now using a provided pooled resolver
      * @param action Action to perform
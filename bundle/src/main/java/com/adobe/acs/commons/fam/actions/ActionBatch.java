@@ -32,6 +32,8 @@ import org.slf4j.LoggerFactory;
 /**
  * Manage a queue of actions that are processed and committed in batches.
  * The number of actions processed in a batch is determined by the size of the queue.
+ * To process items in batches and still report failures for individual items, see
+ * {@link ActionManager#deferredWithBatches(java.util.stream.Stream, int, com.adobe.acs.commons.functions.CheckedBiConsumer)}.
  */
 public class ActionBatch extends LinkedBlockingQueue<CheckedConsumer<ResourceResolver>> {
 
@@ -21,16 +21,20 @@ package com.adobe.acs.commons.fam.impl;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.ValueFactory;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
@@ -77,11 +81,14 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
     private final AtomicInteger tasksFilteredOut = new AtomicInteger();
     private final AtomicInteger tasksSuccessful = new AtomicInteger();
     private final AtomicInteger tasksError = new AtomicInteger();
+    // Query results or batches still being scheduled; the manager is not complete before they are all scheduled
+    private final AtomicInteger iterations = new AtomicInteger();
     private final String name;
     private final AtomicLong started = new AtomicLong(0);
     private long finished;
     private int saveInterval;
     private int priority;
+    private volatile int maxInFlight;
 
     private final transient ResourceResolver baseResolver;
     private final transient List<ReusableResolver> resolvers = Collections.synchronizedList(new ArrayList<>());
@@ -93,6 +100,9 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
     private final transient List<CheckedConsumer<ResourceResolver>> successHandlers = new CopyOnWriteArrayList<>();
     private final transient List<CheckedBiConsumer<List<Failure>, ResourceResolver>> errorHandlers = new CopyOnWriteArrayList<>();
     private final transient List<Runnable> finishHandlers = new CopyOnWriteArrayList<>();
+    private final transient Object inFlightMonitor = new Object();
+    // Set while the thread runs a counted task of this manager, which is then left out of the in-flight count
+    private final transient ThreadLocal<Boolean> runningTask = new ThreadLocal<>();
 
     ActionManagerImpl(String name, ThrottledTaskRunner taskRunner, ResourceResolver resolver, int saveInterval) throws LoginException {
         this(name, taskRunner, resolver, saveInterval, ActionManagerConstants.DEFAULT_ACTION_PRIORITY);
@@ -160,9 +170,125 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
         }, this, priority);
     }
     
+    @Override
+    public int deferredWithBatches(
+            final Stream<String> items,
+            final int batchSize,
+            final CheckedBiConsumer<ResourceResolver, String> action) {
+        int scheduled = 0;
+        Iterator<String> iterator = items.iterator();
+        iterations.incrementAndGet();
+        try {
+            while (iterator.hasNext() && !isCancelled()) {
+                try {
+                    awaitInFlightCapacity();
+                } catch (InterruptedException ex) {
+                    LOG.warn("Interrupted while waiting to schedule batches, stopping after " + scheduled + " items");
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                final List<String> batch = new ArrayList<>();
+                while (iterator.hasNext() && batch.size() < Math.max(1, batchSize)) {
+                    batch.add(iterator.next());
+                }
+                tasksAdded.addAndGet(batch.size());
+                scheduled += batch.size();
+                taskRunner.scheduleWork(() -> runBatchAndLogErrors(batch, action), this, priority);
+            }
+        } finally {
+            logIterationEnd();
+        }
+        return scheduled;
+    }
+
+    @SuppressWarnings("squid:S1181")
+    private void runBatchAndLogErrors(List<String> batch, CheckedBiConsumer<ResourceResolver, String> action) {
+        started.compareAndSet(0, System.currentTimeMillis());
+        Actions.setCurrentActionManager(this);
+        // Items not counted as completed or failed yet
+        List<String> pending = new ArrayList<>(batch);
+        ReusableResolver resolver = null;
+        try {
+            resolver = getResourceResolver();
+            // Commit what earlier tasks left pending, so it is not reverted with a failed batch
+            List<String> pendingItems = new ArrayList<>(resolver.getPendingItems());
+            try {
+                resolver.commit();
+            } catch (PersistenceException ex) {
+                logPersistenceException(pendingItems, ex);
+            }
+            runBatch(resolver.getResolver(), batch, action, pending);
+        } catch (Throwable t) {
+            LOG.error("Fatal uncaught error in batch of action " + getName(), t);
+            if (resolver != null) {
+                revert(resolver.getResolver());
+            }
+            for (String item : pending) {
+                currentPath.set(item);
+                logError(new RuntimeException(t));
+            }
+        } finally {
+            Actions.setCurrentActionManager(null);
+        }
+    }
+
+    /**
+     * Run the action for every item and commit them at once. On failure, revert and narrow the batch down to the
+     * failing items. Items are removed from the pending list once they are counted as completed or failed.
+     */
+    private void runBatch(ResourceResolver resolver, List<String> batch, CheckedBiConsumer<ResourceResolver, String> action,
+            List<String> pending) {
+        int current = 0;
+        try {
+            for (; current < batch.size(); current++) {
+                currentPath.set(batch.get(current));
+                action.accept(resolver, batch.get(current));
+            }
+            if (resolver.hasChanges()) {
+                resolver.commit();
+            }
+            batch.forEach(item -> {
+                pending.remove(item);
+                logCompletetion();
+            });
+        } catch (Exception ex) {
+            revert(resolver);
+            if (current < batch.size()) {
+                // The action failed for this item, retry the others without it
+                currentPath.set(batch.get(current));
+                LOG.error("Error in action " + getName(), ex);
+                pending.remove(batch.get(current));
+                logError(ex);
+                List<String> others = new ArrayList<>(batch);
+                others.remove(current);
+                if (!others.isEmpty()) {
+                    runBatch(resolver, others, action, pending);
+                }
+            } else if (batch.size() == 1) {
+                currentPath.set(batch.get(0));
+                LOG.error("Error committing " + batch.get(0) + " in action " + getName(), ex);
+                pending.remove(batch.get(0));
+                logError(ex);
+            } else {
+                LOG.debug("Error committing a batch of {} items, retrying in halves", batch.size());
+                int half = batch.size() / 2;
+                runBatch(resolver, new ArrayList<>(batch.subList(0, half)), action, pending);
+                runBatch(resolver, new ArrayList<>(batch.subList(half, batch.size())), action, pending);
+            }
+        }
+    }
+
+    private void revert(ResourceResolver resolver) {
+        resolver.revert();
+        resolver.refresh();
+    }
+
     @SuppressWarnings("squid:S1181")
     private void runActionAndLogErrors(CheckedConsumer<ResourceResolver> action, Boolean closesResolver) {
         started.compareAndSet(0, System.currentTimeMillis());
+        // Restored afterwards, as task runners may run a task within another one
+        Boolean outerTask = runningTask.get();
+        runningTask.set(!closesResolver);
         try {
             withResolver(action);
             if (!closesResolver) {
@@ -187,6 +313,8 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
             if (!closesResolver) {
                 logError(new RuntimeException(t));
             }
+        } finally {
+            runningTask.set(outerTask);
         }
     }
 
@@ -211,43 +339,163 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
         }
     }
 
+    @Override
+    public int withQueryResults(
+            final String queryStatement,
+            final String language,
+            final CheckedBiConsumer<ResourceResolver, String> callback,
+            final CheckedBiFunction<ResourceResolver, String, Boolean>... filters
+    )
+            throws RepositoryException, PersistenceException, Exception {
+        iterations.incrementAndGet();
+        try {
+            withResolver((ResourceResolver resolver) -> {
+                try {
+                    Session session = resolver.adaptTo(Session.class);
+                    QueryManager queryManager = session.getWorkspace().getQueryManager();
+                    Query query = queryManager.createQuery(queryStatement, language);
+                    QueryResult results = query.execute();
+                    deferQueryResults(results.getNodes(), callback, filters);
+                } catch (RepositoryException ex) {
+                    LOG.error("Repository exception processing query " + queryStatement, ex);
+                }
+            });
+        } finally {
+            logIterationEnd();
+        }
+
+        return tasksAdded.get();
+    }
+
     @Override
     @SuppressWarnings("squid:S3776")
     public int withQueryResults(
             final String queryStatement,
             final String language,
+            final int pageSize,
             final CheckedBiConsumer<ResourceResolver, String> callback,
             final CheckedBiFunction<ResourceResolver, String, Boolean>... filters
     )
             throws RepositoryException, PersistenceException, Exception {
-        withResolver((ResourceResolver resolver) -> {
+        if (pageSize <= 0) {
+            return withQueryResults(queryStatement, language, callback, filters);
+        }
+        iterations.incrementAndGet();
+        try {
+            withResolver((ResourceResolver resolver) -> {
+                try {
+                    Session session = resolver.adaptTo(Session.class);
+                    QueryManager queryManager = session.getWorkspace().getQueryManager();
+                    ValueFactory valueFactory = session.getValueFactory();
+                    String lastPath = "";
+                    long offset = 0;
+                    int found;
+                    do {
+                        Query query = queryManager.createQuery(queryStatement, language);
+                        query.setLimit(pageSize);
+                        boolean keyset = Arrays.asList(query.getBindVariableNames()).contains(LAST_PATH_VARIABLE);
+                        if (keyset) {
+                            query.bindValue(LAST_PATH_VARIABLE, valueFactory.createValue(lastPath));
+                        } else {
+                            query.setOffset(offset);
+                        }
+                        QueryResult results = query.execute();
+                        QueryPage page = deferQueryResults(results.getNodes(), callback, filters);
+                        found = page.found;
+                        offset += found;
+                        if (page.lastPath != null) {
+                            lastPath = page.lastPath;
+                        }
+                        LOG.debug("Processed a page of {} results of query {}", found, queryStatement);
+                    } while (found == pageSize && !isCancelled() && !Thread.currentThread().isInterrupted());
+                } catch (RepositoryException ex) {
+                    LOG.error("Repository exception processing query " + queryStatement, ex);
+                }
+            });
+        } finally {
+            logIterationEnd();
+        }
+
+        return tasksAdded.get();
+    }
+
+    @Override
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Schedule the callback for every node of a query result, waiting for the in-flight window to have room first.
+     */
+    private QueryPage deferQueryResults(
+            final NodeIterator nodeIterator,
+            final CheckedBiConsumer<ResourceResolver, String> callback,
+            final CheckedBiFunction<ResourceResolver, String, Boolean>... filters)
+            throws RepositoryException {
+        QueryPage page = new QueryPage();
+        while (nodeIterator.hasNext()) {
+            final String nodePath = nodeIterator.nextNode().getPath();
+            page.found++;
+            page.lastPath = nodePath;
             try {
-                Session session = resolver.adaptTo(Session.class);
-                QueryManager queryManager = session.getWorkspace().getQueryManager();
-                Query query = queryManager.createQuery(queryStatement, language);
-                QueryResult results = query.execute();
-                for (NodeIterator nodeIterator = results.getNodes(); nodeIterator.hasNext();) {
-                    final String nodePath = nodeIterator.nextNode().getPath();
-                    LOG.info("Processing found result " + nodePath);
-                    deferredWithResolver((ResourceResolver r) -> {
-                        currentPath.set(nodePath);
-                        if (filters != null) {
-                            for (CheckedBiFunction<ResourceResolver, String, Boolean> filter : filters) {
-                                if (!filter.apply(r, nodePath)) {
-                                    logFilteredOutItem(nodePath);
-                                    return;
-                                }
-                            }
+                awaitInFlightCapacity();
+            } catch (InterruptedException ex) {
+                LOG.warn("Interrupted while waiting to process query results, stopping at " + nodePath);
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (isCancelled()) {
+                LOG.info("Action manager {} was cancelled, stopping at {}", getName(), nodePath);
+                break;
+            }
+            LOG.info("Processing found result " + nodePath);
+            deferredWithResolver((ResourceResolver r) -> {
+                currentPath.set(nodePath);
+                if (filters != null) {
+                    for (CheckedBiFunction<ResourceResolver, String, Boolean> filter : filters) {
+                        if (!filter.apply(r, nodePath)) {
+                            logFilteredOutItem(nodePath);
+                            return;
                         }
-                        callback.accept(r, nodePath);
-                    });
+                    }
                 }
-            } catch (RepositoryException ex) {
-                LOG.error("Repository exception processing query " + queryStatement, ex);
+                callback.accept(r, nodePath);
+            });
+        }
+        return page;
+    }
+
+    /**
+     * Block while the number of added tasks which have not completed yet reaches the in-flight limit. When called from
+     * a task of this manager, that task does not count, otherwise it would wait for itself.
+     */
+    private void awaitInFlightCapacity() throws InterruptedException {
+        if (maxInFlight <= 0) {
+            return;
+        }
+        final int callingTask = Boolean.TRUE.equals(runningTask.get()) ? 1 : 0;
+        synchronized (inFlightMonitor) {
+            while (!isCancelled() && tasksAdded.get() - tasksCompleted.get() - callingTask >= maxInFlight) {
+                // Timed wait, so a cancellation is noticed even without completions
+                inFlightMonitor.wait(COMPLETION_CHECK_INTERVAL);
             }
-        });
+        }
+    }
 
-        return tasksAdded.get();
+    private void signalInFlightCapacity() {
+        if (maxInFlight > 0) {
+            synchronized (inFlightMonitor) {
+                inFlightMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Number of results and last path of a page of query results
+     */
+    private static class QueryPage {
+        int found;
+        String lastPath;
     }
 
     @Override
@@ -342,12 +590,24 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
     private void logCompletetion() {
         tasksCompleted.incrementAndGet();
         tasksSuccessful.incrementAndGet();
+        signalInFlightCapacity();
         if (isComplete()) {
             finished = System.currentTimeMillis();
             performAutomaticCleanup();
         }
     }
 
+    /**
+     * Called once all the results or batches of an iteration got scheduled. Tasks which completed meanwhile did not
+     * trigger the cleanup, so trigger it here if they are all done.
+     */
+    private void logIterationEnd() {
+        if (iterations.decrementAndGet() == 0 && tasksAdded.get() > 0 && isComplete()) {
+            finished = System.currentTimeMillis();
+            performAutomaticCleanup();
+        }
+    }
+
     private void logError(Exception ex) {
         LOG.error("Caught exception in task: " + ex.getMessage(), ex);
         Failure fail = new Failure();
@@ -356,6 +616,7 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
         failures.add(fail);
         tasksCompleted.incrementAndGet();
         tasksError.incrementAndGet();
+        signalInFlightCapacity();
         if (isComplete()) {
             finished = System.currentTimeMillis();
             performAutomaticCleanup();
@@ -398,13 +659,13 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
     @Override
     @SuppressWarnings("squid:S2142")
     public boolean isComplete() {
-        if (tasksCompleted.get() == tasksAdded.get()) {
+        if (tasksCompleted.get() == tasksAdded.get() && iterations.get() == 0) {
             try {
                 Thread.sleep(HESITATION_DELAY);
             } catch (InterruptedException ex) {
                 // no-op
             }
-            return tasksCompleted.get() == tasksAdded.get();
+            return tasksCompleted.get() == tasksAdded.get() && iterations.get() == 0;
         } else {
             return false;
         }
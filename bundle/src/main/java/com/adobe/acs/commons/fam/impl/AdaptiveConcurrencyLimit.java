@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.fam.impl;
+
+/**
+ * Additive increase / multiplicative decrease (AIMD) limit of the number of tasks running at the same time.
+ * <p>
+ * The limit grows by one for every sample where all workers are busy and work is waiting in the queue, and shrinks
+ * by a constant ratio for every sample where the system is overloaded. The system is overloaded when the caller says
+ * so (CPU, heap or GC pressure) or when the recent task latency exceeds the long term latency by a tolerance factor;
+ * the long term latency is an exponential moving average of the recent latency, so it follows slow changes in the
+ * kind of work being run.
+ * </p>
+ */
+public class AdaptiveConcurrencyLimit {
+
+    /** Ratio applied to the limit when the system is overloaded. */
+    static final double BACKOFF_RATIO = 0.75;
+
+    /** Ratio of the recent to the long term latency above which the system is considered overloaded. */
+    static final double LATENCY_TOLERANCE = 2.0;
+
+    /** Weight of every sample in the long term latency. */
+    static final double LONG_TERM_SMOOTHING = 0.05;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private int limit;
+    private double longTermLatency = -1;
+
+    /**
+     * @param minLimit     lowest limit
+     * @param maxLimit     highest limit
+     * @param initialLimit limit before the first sample, bound to the lowest and highest limit
+     */
+    public AdaptiveConcurrencyLimit(int minLimit, int maxLimit, int initialLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        setLimit(initialLimit);
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Override the current limit, for instance when set by hand. It keeps adapting from there.
+     *
+     * @param newLimit new limit, bound to the lowest and highest limit
+     */
+    public final synchronized void setLimit(int newLimit) {
+        limit = Math.min(maxLimit, Math.max(minLimit, newLimit));
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Adjust the limit for a new sample.
+     *
+     * @param recentLatency average time taken by the recently completed tasks
+     * @param saturated     true if all workers are busy and more work is waiting
+     * @param overloaded    true if CPU, heap or GC pressure is too high
+     * @return the new limit
+     */
+    public synchronized int update(double recentLatency, boolean saturated, boolean overloaded) {
+        final boolean latencyIncreased = longTermLatency > 0 && recentLatency > longTermLatency * LATENCY_TOLERANCE;
+        if (longTermLatency < 0) {
+            longTermLatency = recentLatency;
+        } else {
+            longTermLatency += (recentLatency - longTermLatency) * LONG_TERM_SMOOTHING;
+        }
+
+        if (overloaded || latencyIncreased) {
+            setLimit((int) (limit * BACKOFF_RATIO));
+        } else if (saturated) {
+            setLimit(limit + 1);
+        }
+        return limit;
+    }
+}
@@ -26,6 +26,7 @@ import com.adobe.acs.commons.fam.mbean.ThrottledTaskRunnerMBean;
 import com.adobe.granite.jmx.annotation.AnnotatedStandardMBean;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
@@ -45,10 +46,13 @@ import javax.management.ReflectionException;
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.OpenDataException;
 import javax.management.openmbean.TabularDataSupport;
+import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -69,6 +73,8 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
         int DEFAULT_MAX_THREADS = 4;
         int DEFAULT_COOLDOWN_TIME = 100;
         int DEFAULT_TASK_TIMEOUT = 3600000;
+        double DEFAULT_ADAPTIVE_MAX_GC = 0.1;
+        int DEFAULT_ADAPTIVE_SAMPLE_INTERVAL = 1000;
 
         @AttributeDefinition(name = "Max threads", description = "Default is 4, recommended not to exceed the number of CPU cores", defaultValue = "" + DEFAULT_MAX_THREADS)
         int max_threads() default DEFAULT_MAX_THREADS;
@@ -84,6 +90,18 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
 
         @AttributeDefinition(name = "Watchdog time", description = "Maximum time allowed (in ms) per action before it is interrupted forcefully. Defaults to 1 hour.", defaultValue = "" + DEFAULT_TASK_TIMEOUT)
         int task_timeout() default DEFAULT_TASK_TIMEOUT;
+
+        @AttributeDefinition(name = "Adaptive concurrency", description = "Grow and shrink the number of threads from the task latency, queue, cpu, heap and GC pressure, starting from 'Max threads'. Threads do not wait for cpu/mem cooldown in this mode.", defaultValue = "false")
+        boolean adaptive_concurrency() default false;
+
+        @AttributeDefinition(name = "Adaptive max threads", description = "Highest number of threads in adaptive mode; 0 means twice the number of CPU cores", defaultValue = "0")
+        int adaptive_max_threads() default 0;
+
+        @AttributeDefinition(name = "Adaptive max GC %", description = "Range is 0..1, share of time spent in garbage collection above which the number of threads shrinks in adaptive mode; -1 means disable this check", defaultValue = "" + DEFAULT_ADAPTIVE_MAX_GC)
+        double adaptive_max_gc() default DEFAULT_ADAPTIVE_MAX_GC;
+
+        @AttributeDefinition(name = "Adaptive sample interval", description = "Time (in ms) between two adjustments of the number of threads in adaptive mode", defaultValue = "" + DEFAULT_ADAPTIVE_SAMPLE_INTERVAL)
+        int adaptive_sample_interval() default DEFAULT_ADAPTIVE_SAMPLE_INTERVAL;
     }
 
     private static final Logger LOG = LoggerFactory.getLogger(ThrottledTaskRunnerImpl.class);
@@ -98,6 +116,11 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
     private ObjectName memBeanName;
     private PriorityThreadPoolExecutor workerPool;
     private BlockingQueue<Runnable> workQueue;
+    private double maxGc;
+    private AdaptiveConcurrencyLimit adaptiveLimit;
+    private ScheduledExecutorService adaptiveController;
+    private long lastSampleTime = -1;
+    private long lastGcTime = -1;
 
     public ThrottledTaskRunnerImpl() throws NotCompliantMBeanException {
         super(ThrottledTaskRunnerMBean.class);
@@ -106,23 +129,29 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
     @Override
     public void scheduleWork(Runnable work) {
         TimedRunnable r = new TimedRunnable(work, this, taskTimeout, TimeUnit.MILLISECONDS, ActionManagerConstants.DEFAULT_ACTION_PRIORITY);
-        workerPool.submit(r);
+        submit(r);
     }
 
     public void scheduleWork(Runnable work, CancelHandler cancelHandler) {
         TimedRunnable r = new TimedRunnable(work, this, taskTimeout, TimeUnit.MILLISECONDS, cancelHandler, ActionManagerConstants.DEFAULT_ACTION_PRIORITY);
-        workerPool.submit(r);
+        submit(r);
     }
 
 
     @Override
     public void scheduleWork(Runnable work, int priority) {
         TimedRunnable r = new TimedRunnable(work, this, taskTimeout, TimeUnit.MILLISECONDS, priority);
-        workerPool.submit(r);
+        submit(r);
     }
 
     public void scheduleWork(Runnable work, CancelHandler cancelHandler, int priority) {
         TimedRunnable r = new TimedRunnable(work, this, taskTimeout, TimeUnit.MILLISECONDS, cancelHandler, priority);
+        submit(r);
+    }
+
+    private void submit(TimedRunnable r) {
+        // In adaptive mode the number of threads already follows the cpu/mem pressure
+        r.waitForCooldown = adaptiveLimit == null;
         workerPool.submit(r);
     }
 
@@ -211,7 +240,7 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
 
     @Override
     public int getMaxThreads() {
-        return maxThreads;
+        return adaptiveLimit != null ? adaptiveLimit.getLimit() : maxThreads;
     }
 
     private final Semaphore pollingLock = new Semaphore(1);
@@ -296,18 +325,79 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
 
     @Override
     public void setThreadPoolSize(int newSize) {
+        if (adaptiveLimit != null) {
+            // Keep adapting from the new size
+            adaptiveLimit.setLimit(newSize);
+            resizeThreadPool(adaptiveLimit.getLimit());
+            return;
+        }
         maxThreads = newSize;
         initThreadPool();
     }
 
+    /**
+     * Adjust the number of threads to the adaptive limit, from the latest statistics and cpu, heap and GC levels.
+     */
+    void adjustConcurrency() {
+        if (!isRunning()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long gcTime = getGcTime();
+        double gcLevel = lastSampleTime > 0 && now > lastSampleTime ? (double) (gcTime - lastGcTime) / (now - lastSampleTime) : 0;
+        lastSampleTime = now;
+        lastGcTime = gcTime;
+
+        boolean overloaded = maxGc > 0 && gcLevel >= maxGc;
+        try {
+            overloaded |= maxCpu > 0 && getCpuLevel() >= maxCpu;
+        } catch (InstanceNotFoundException | ReflectionException ex) {
+            LOG.error("OS MBean Instance not available (should not ever happen)", ex);
+        }
+        overloaded |= maxHeap > 0 && getMemoryUsage() >= maxHeap;
+        boolean saturated = workerPool.getActiveCount() >= adaptiveLimit.getLimit() && !workQueue.isEmpty();
+
+        int limit = adaptiveLimit.update(processingTime.getRollingMean(), saturated, overloaded);
+        if (limit != workerPool.getMaximumPoolSize()) {
+            LOG.debug("Adjusting thread pool size to {} (queue wait time {} ms, processing time {} ms, GC {})",
+                    limit, waitTime.getRollingMean(), processingTime.getRollingMean(), gcLevel);
+            resizeThreadPool(limit);
+        }
+    }
+
+    private static long getGcTime() {
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcTime += Math.max(0, gc.getCollectionTime());
+        }
+        return gcTime;
+    }
+
+    /**
+     * Resize the running pool in place. Threads above the new size finish their current task before they stop.
+     */
+    private void resizeThreadPool(int size) {
+        PriorityThreadPoolExecutor pool = workerPool;
+        if (pool == null || !isRunning()) {
+            return;
+        }
+        if (size > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        } else {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        }
+    }
+
     @SuppressWarnings("squid:S2142")
     private void initThreadPool() {
         if (workQueue == null) {
             workQueue = new PriorityBlockingQueue<>();
         }
 
-        // Terminate pool if the thread size has changed
-        if (workerPool != null && workerPool.getMaximumPoolSize() != maxThreads) {
+        // Terminate pool if the thread size has changed; adaptive pools are resized in place
+        if (workerPool != null && adaptiveLimit == null && workerPool.getMaximumPoolSize() != maxThreads) {
             try {
                 workerPool.awaitTermination(taskTimeout, TimeUnit.MILLISECONDS);
             } catch (InterruptedException ex) {
@@ -316,7 +406,8 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
             workerPool = null;
         }
         if (!isRunning()) {
-            workerPool = new PriorityThreadPoolExecutor(maxThreads, maxThreads, taskTimeout, TimeUnit.MILLISECONDS, workQueue);
+            int poolSize = getMaxThreads();
+            workerPool = new PriorityThreadPoolExecutor(poolSize, poolSize, taskTimeout, TimeUnit.MILLISECONDS, workQueue);
         }
     }
 
@@ -327,6 +418,7 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
         maxThreads = config.max_threads();
         cooldownWaitTime = config.cooldown_wait_time();
         taskTimeout = config.task_timeout();
+        maxGc = config.adaptive_max_gc();
 
         try {
             memBeanName = ObjectName.getInstance("java.lang:type=Memory");
@@ -335,6 +427,37 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
             LOG.error("Error getting OS MBean (shouldn't ever happen)", ex);
         }
 
+        if (config.adaptive_concurrency()) {
+            int adaptiveMaxThreads = config.adaptive_max_threads() > 0
+                    ? config.adaptive_max_threads() : 2 * Runtime.getRuntime().availableProcessors();
+            adaptiveLimit = new AdaptiveConcurrencyLimit(1, adaptiveMaxThreads, maxThreads);
+            adaptiveController = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ACS AEM Commons - Throttled Task Runner - Concurrency controller");
+                thread.setDaemon(true);
+                return thread;
+            });
+            int interval = Math.max(1, config.adaptive_sample_interval());
+            adaptiveController.scheduleWithFixedDelay(this::adjustConcurrencySafely, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
         initThreadPool();
     }
+
+    @SuppressWarnings("squid:S1181")
+    private void adjustConcurrencySafely() {
+        try {
+            adjustConcurrency();
+        } catch (Throwable ex) {
+            // An exception would cancel the next adjustments
+            LOG.error("Error adjusting the thread pool size", ex);
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (adaptiveController != null) {
+            adaptiveController.shutdownNow();
+            adaptiveController = null;
+        }
+    }
 }
@@ -39,6 +39,7 @@ public class TimedRunnable implements Runnable, Comparable {
     long executed = -1;
     long finished = -1;
     int priority;
+    boolean waitForCooldown = true;
     Runnable work;
     ThrottledTaskRunner runner;
     int timeout;
@@ -79,7 +80,9 @@ public class TimedRunnable implements Runnable, Comparable {
         Throwable error = null;
         try {
             started = System.currentTimeMillis();
-            runner.waitForLowCpuAndLowMemory();
+            if (waitForCooldown) {
+                runner.waitForLowCpuAndLowMemory();
+            }
             executed = System.currentTimeMillis();
             if (timeout > 0) {
                 watchDog.start();
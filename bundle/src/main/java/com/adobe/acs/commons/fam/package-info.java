@@ -17,7 +17,7 @@
  * limitations under the License.
  * #L%
  */
-@Version("3.0.0")
+@Version("3.1.0")
 package com.adobe.acs.commons.fam;
 
 import org.osgi.annotation.versioning.Version;
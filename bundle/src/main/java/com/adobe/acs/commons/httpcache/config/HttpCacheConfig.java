@@ -19,6 +19,7 @@
  */
 package com.adobe.acs.commons.httpcache.config;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -178,4 +179,60 @@ public interface HttpCacheConfig {
     default long getExpiryForUpdate() {
         return -1L;
     }
+
+    /**
+     * Whether concurrent cache misses for the same cache key are coalesced: the first request renders the response
+     * and fills the cache, the others wait for it and are served from the cache.
+     *
+     * @return true if request coalescing is enabled for this config.
+     */
+    default boolean isSingleFlightEnabled() {
+        return false;
+    }
+
+    /**
+     * Gets the maximum time a coalesced request waits for the response to be rendered by another request, before
+     * rendering it itself. Value is in miliseconds.
+     *
+     * @return the wait timeout
+     */
+    default long getSingleFlightTimeout() {
+        return 0L;
+    }
+
+    /**
+     * Gets how long an expired entry is still served while a single request re-renders it (stale-while-revalidate).
+     * Only honored by cache stores which keep expired entries around, that is the CAFFEINE and TIERED stores; the MEM,
+     * JCR and DISK stores never serve stale entries, see
+     * {@link com.adobe.acs.commons.httpcache.store.HttpCacheStore#supportsStaleness()}.
+     * Value is in miliseconds, 0 or lower disables it.
+     *
+     * @return the stale-while-revalidate window
+     */
+    default long getStaleWhileRevalidate() {
+        return 0L;
+    }
+
+    /**
+     * Gets how long an expired entry is still served once re-rendering it failed (stale-if-error). Counted from the
+     * expiry of the entry, this is the hard limit for serving it. Only honored by the cache stores honoring
+     * {@link #getStaleWhileRevalidate()}.
+     * Value is in miliseconds, 0 or lower disables it.
+     *
+     * @return the stale-if-error window
+     */
+    default long getStaleIfError() {
+        return 0L;
+    }
+
+    /**
+     * Gets the content codings of the pre-compressed variants stored along with the cached responses, like gzip or
+     * deflate. The variant to deliver is picked from the Accept-Encoding request header.
+     * Only honored by cache stores which support it.
+     *
+     * @return content codings, in order of preference.
+     */
+    default List<String> getPrecompressedEncodings() {
+        return Collections.emptyList();
+    }
 }
@@ -26,6 +26,7 @@ import com.adobe.acs.commons.httpcache.exception.HttpCacheKeyCreationException;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheRepositoryAccessException;
 import com.adobe.acs.commons.httpcache.keys.CacheKey;
 import com.adobe.acs.commons.httpcache.keys.CacheKeyFactory;
+import com.adobe.acs.commons.httpcache.util.ContentEncodingUtils;
 import com.adobe.acs.commons.httpcache.util.UserUtils;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
@@ -46,6 +47,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Locale;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -112,6 +114,11 @@ public class HttpCacheConfigImpl implements HttpCacheConfig {
     private long expiryOnCreate;
     private long expiryOnAccess;
     private long expiryOnUpdate;
+    private boolean singleFlightEnabled;
+    private long singleFlightTimeout;
+    private long staleWhileRevalidate;
+    private long staleIfError;
+    private List<String> precompressedEncodings;
     private String cacheConfigExtensionTarget;
     private String cacheKeyFactoryTarget;
 
@@ -140,6 +147,17 @@ public class HttpCacheConfigImpl implements HttpCacheConfig {
         expiryOnAccess = config.httpcache_config_expiry_on_access();
         expiryOnUpdate = config.httpcache_config_expiry_on_update();
 
+        // Request coalescing
+        singleFlightEnabled = config.httpcache_config_singleflight_enabled();
+        singleFlightTimeout = config.httpcache_config_singleflight_timeout();
+
+        // Serving of stale entries
+        staleWhileRevalidate = config.httpcache_config_stale_while_revalidate();
+        staleIfError = config.httpcache_config_stale_if_error();
+
+        // Pre-compressed variants
+        precompressedEncodings = toContentCodings(config.httpcache_config_precompressed_encodings());
+
         // Cache invalidation paths.
         cacheInvalidationPathPatterns = Arrays.asList(config.httpcache_config_invalidation_oak_paths());
         cacheInvalidationPathPatternsAsRegEx = compileToPatterns(cacheInvalidationPathPatterns);
@@ -309,6 +327,46 @@ public class HttpCacheConfigImpl implements HttpCacheConfig {
         return expiryOnUpdate;
     }
 
+    @Override
+    public boolean isSingleFlightEnabled() {
+        return singleFlightEnabled;
+    }
+
+    @Override
+    public long getSingleFlightTimeout() {
+        return singleFlightTimeout;
+    }
+
+    @Override
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    @Override
+    public long getStaleIfError() {
+        return staleIfError;
+    }
+
+    @Override
+    public List<String> getPrecompressedEncodings() {
+        return precompressedEncodings;
+    }
+
+    private static List<String> toContentCodings(String[] encodings) {
+        final List<String> contentCodings = new ArrayList<>();
+        for (String encoding : PropertiesUtil.toStringArray(encodings, new String[0])) {
+            final String contentCoding = StringUtils.trimToEmpty(encoding).toLowerCase(Locale.ROOT);
+            if (ContentEncodingUtils.isSupported(contentCoding)) {
+                if (!contentCodings.contains(contentCoding)) {
+                    contentCodings.add(contentCoding);
+                }
+            } else if (!contentCoding.isEmpty()) {
+                log.warn("Ignoring unsupported pre-compressed encoding [ {} ]", encoding);
+            }
+        }
+        return contentCodings;
+    }
+
     @Override
     public int getOrder() {
         return this.order;
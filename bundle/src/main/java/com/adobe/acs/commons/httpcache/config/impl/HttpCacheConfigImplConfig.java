@@ -53,6 +53,16 @@ public @interface HttpCacheConfigImplConfig {
 
     String PROP_CACHE_HANDLING_RULES_PID = "httpcache.config.cache.handling.rules.pid";
 
+    String PROP_SINGLE_FLIGHT_ENABLED = "httpcache.config.singleflight.enabled";
+
+    String PROP_SINGLE_FLIGHT_TIMEOUT = "httpcache.config.singleflight.timeout";
+
+    String PROP_STALE_WHILE_REVALIDATE = "httpcache.config.stale.while.revalidate";
+
+    String PROP_STALE_IF_ERROR = "httpcache.config.stale.if.error";
+
+    String PROP_PRECOMPRESSED_ENCODINGS = "httpcache.config.precompressed.encodings";
+
     String FILTER_SCOPE_REQUEST = "REQUEST";
 
     String FILTER_SCOPE_INCLUDE = "INCLUDE";
@@ -73,6 +83,12 @@ public @interface HttpCacheConfigImplConfig {
 
     long DEFAULT_EXPIRY_ON_UPDATE = 0L;
 
+    long DEFAULT_SINGLE_FLIGHT_TIMEOUT = 5000L;
+
+    long DEFAULT_STALE_WHILE_REVALIDATE = 0L;
+
+    long DEFAULT_STALE_IF_ERROR = 0L;
+
     int DEFAULT_ORDER = 1000;
 
     @AttributeDefinition(name = "Priority order",
@@ -167,4 +183,36 @@ public @interface HttpCacheConfigImplConfig {
     @AttributeDefinition(name = "Expiry on update",
             description = "Specifies a custom expiry on update. This refreshes the expiry of the entry if it's updated. Lower then 0 means no expiry on update.")
     long httpcache_config_expiry_on_update();
+
+    @AttributeDefinition(name = "Coalesce concurrent requests",
+            description = "Let a single request render a response missing from the cache, while concurrent requests "
+                    + "for the same cache key wait for it and are served from the cache.",
+            defaultValue = "false")
+    boolean httpcache_config_singleflight_enabled() default false;
+
+    @AttributeDefinition(name = "Coalesced request timeout",
+            description = "Maximum time in milliseconds a coalesced request waits for the response to be cached, "
+                    + "before rendering it itself. Defaults to 5000.",
+            defaultValue = "" + DEFAULT_SINGLE_FLIGHT_TIMEOUT)
+    long httpcache_config_singleflight_timeout() default DEFAULT_SINGLE_FLIGHT_TIMEOUT;
+
+    @AttributeDefinition(name = "Stale while revalidate",
+            description = "Time in milliseconds an expired entry is still served while a single request renders it "
+                    + "again. Requires a cache store which supports it, like the CAFFEINE store. 0 disables it.",
+            defaultValue = "" + DEFAULT_STALE_WHILE_REVALIDATE)
+    long httpcache_config_stale_while_revalidate() default DEFAULT_STALE_WHILE_REVALIDATE;
+
+    @AttributeDefinition(name = "Stale if error",
+            description = "Time in milliseconds, counted from its expiry, an expired entry is still served when "
+                    + "rendering it again failed. Requires a cache store which supports it, like the CAFFEINE store. "
+                    + "0 disables it.",
+            defaultValue = "" + DEFAULT_STALE_IF_ERROR)
+    long httpcache_config_stale_if_error() default DEFAULT_STALE_IF_ERROR;
+
+    @AttributeDefinition(name = "Pre-compressed encodings",
+            description = "Content codings of the compressed variants stored along with each cached response, in "
+                    + "order of preference. Supported: gzip, deflate. The variant is picked from the Accept-Encoding "
+                    + "request header on delivery. Requires a cache store which supports it, like the MEM, CAFFEINE "
+                    + "and JCR stores.")
+    String[] httpcache_config_precompressed_encodings() default {};
 }
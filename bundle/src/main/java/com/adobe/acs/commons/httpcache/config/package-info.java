@@ -18,7 +18,7 @@
  * #L%
  */
 
-@Version("2.2.0")
+@Version("2.3.0")
 package com.adobe.acs.commons.httpcache.config;
 
 import org.osgi.annotation.versioning.Version;
@@ -23,11 +23,14 @@ import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
 import com.adobe.acs.commons.httpcache.store.TempSink;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents response content to be cached.
@@ -49,6 +52,9 @@ public class CacheContent {
 
     private HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod;
 
+    /** Pre-compressed variants of the response content, keyed by content coding */
+    private final Map<String, EncodedVariant> encodedVariants = new LinkedHashMap<>();
+
     /**
      * Construct <code>CacheContent</code> using parameters. Prefer constructing an instance using <code>build</code>
      * method.
@@ -215,4 +221,49 @@ public class CacheContent {
     public HttpCacheServletResponseWrapper.ResponseWriteMethod getWriteMethod() {
         return writeMethod;
     }
+
+    /**
+     * Attach a pre-compressed variant of the response content.
+     *
+     * @param contentCoding content coding of the variant, like gzip.
+     * @param variant       opens the encoded content.
+     * @return this cache content.
+     */
+    public CacheContent addEncodedVariant(String contentCoding, EncodedVariant variant) {
+        encodedVariants.put(contentCoding, variant);
+        return this;
+    }
+
+    /**
+     * Get the content codings of the pre-compressed variants of the response content.
+     *
+     * @return content codings, in order of preference.
+     */
+    public Set<String> getEncodings() {
+        return encodedVariants.keySet();
+    }
+
+    /**
+     * Open the pre-compressed variant of the response content for the given content coding.
+     *
+     * @param contentCoding content coding, like gzip.
+     * @return the encoded content, null if there is no such variant.
+     * @throws IOException Failure when opening the variant.
+     */
+    public InputStream getEncodedInputDataStream(String contentCoding) throws IOException {
+        final EncodedVariant variant = encodedVariants.get(contentCoding);
+        return variant == null ? null : variant.open();
+    }
+
+    /**
+     * Pre-compressed variant of the response content, opened on delivery only.
+     */
+    @FunctionalInterface
+    public interface EncodedVariant {
+        /**
+         * @return the encoded content.
+         * @throws IOException Failure when opening the content.
+         */
+        InputStream open() throws IOException;
+    }
 }
@@ -28,6 +28,8 @@ import com.adobe.acs.commons.httpcache.exception.HttpCacheRepositoryAccessExcept
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 
+import java.util.Collection;
+
 /**
  * Access gateway and controlling module for http cache sub-system. Coordinates with cache store, cache handling rules,
  * cache configs and cache invalidators.
@@ -129,6 +131,22 @@ public interface HttpCacheEngine {
             cacheConfig) throws HttpCacheKeyCreationException, HttpCacheDataStreamException,
             HttpCachePersistenceException;
 
+    /**
+     * Give up caching the given response, typically because rendering it failed. Releases whatever the engine holds
+     * for the response, in place of {@link #cacheResponse(SlingHttpServletRequest, SlingHttpServletResponse,
+     * HttpCacheConfig)}.
+     *
+     * @param request
+     * @param response
+     * @param cacheConfig
+     */
+    default void abortResponse(SlingHttpServletRequest request, SlingHttpServletResponse response, HttpCacheConfig
+            cacheConfig) {
+        if (response instanceof HttpCacheServletResponseWrapper) {
+            ((HttpCacheServletResponseWrapper) response).abortCapture();
+        }
+    }
+
     /**
      * Check if the supplied JCR repository path has the potential to invalidate cache. This can be identified based on
      * the {@link HttpCacheConfig}.
@@ -147,4 +165,21 @@ public interface HttpCacheEngine {
      * @throws HttpCachePersistenceException
      */
     void invalidateCache(String path) throws HttpCachePersistenceException, HttpCacheKeyCreationException;
+
+    /**
+     * Invalidate the cache for a batch of JCR repository paths, the same way as {@link #invalidateCache(String)} does
+     * for each of them. Implementations gather the cache keys to invalidate so each cache store gets invalidated once
+     * for the whole batch.
+     *
+     * @param paths JCR repository paths.
+     * @throws HttpCachePersistenceException
+     */
+    default void invalidateCache(Collection<String> paths) throws HttpCachePersistenceException,
+            HttpCacheKeyCreationException {
+        for (String path : paths) {
+            if (isPathPotentialToInvalidate(path)) {
+                invalidateCache(path);
+            }
+        }
+    }
 }
@@ -19,6 +19,7 @@
  */
 package com.adobe.acs.commons.httpcache.engine;
 
+import com.adobe.acs.commons.httpcache.engine.impl.BoundedCaptureOutputStream;
 import com.adobe.acs.commons.httpcache.engine.impl.TeePrintWriter;
 import com.adobe.acs.commons.httpcache.engine.impl.TeeServletOutputStream;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
@@ -31,6 +32,7 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -52,13 +54,29 @@ public class HttpCacheServletResponseWrapper extends SlingHttpServletResponseWra
     private PrintWriter printWriter;
     private ServletOutputStream servletOutputStream;
     private final TempSink tempSink;
+    private final long captureLimit;
+    private BoundedCaptureOutputStream captureOutputStream;
+    private boolean captureAborted;
 
     private ResponseWriteMethod writeMethod;
 
     public HttpCacheServletResponseWrapper(SlingHttpServletResponse wrappedResponse, TempSink tempSink) throws
             IOException {
+        this(wrappedResponse, tempSink, -1L);
+    }
+
+    /**
+     * @param wrappedResponse the response to wrap.
+     * @param tempSink        sink receiving the copy of the response.
+     * @param captureLimit    maximum number of bytes to capture; larger responses are still delivered but not captured.
+     *                        A negative value means no limit.
+     * @throws IOException
+     */
+    public HttpCacheServletResponseWrapper(SlingHttpServletResponse wrappedResponse, TempSink tempSink,
+                                           long captureLimit) throws IOException {
         super(wrappedResponse);
         this.tempSink = tempSink;
+        this.captureLimit = captureLimit;
     }
 
 
@@ -68,8 +86,7 @@ public class HttpCacheServletResponseWrapper extends SlingHttpServletResponseWra
             throw new IllegalStateException("Cannot invoke getOutputStream() once getWriter() has been called.");
         } else if (this.servletOutputStream == null) {
             try {
-                this.servletOutputStream = new TeeServletOutputStream(super.getOutputStream(), tempSink
-                        .createOutputStream());
+                this.servletOutputStream = new TeeServletOutputStream(super.getOutputStream(), createCaptureOutputStream());
                 this.writeMethod = ResponseWriteMethod.OUTPUTSTREAM;
             } catch (HttpCacheDataStreamException e) {
                 log.error("Temp sink is unable to provide an output stream.");
@@ -87,7 +104,7 @@ public class HttpCacheServletResponseWrapper extends SlingHttpServletResponseWra
             throw new IllegalStateException("Cannot invoke getWriter() once getOutputStream() has been called.");
         } else if (this.printWriter == null) {
             try {
-                final Writer tempWriter = new OutputStreamWriter(tempSink.createOutputStream(), getResponse().getCharacterEncoding());
+                final Writer tempWriter = new OutputStreamWriter(createCaptureOutputStream(), getResponse().getCharacterEncoding());
                 this.printWriter = new TeePrintWriter(super.getWriter(), new PrintWriter(tempWriter));
                 this.writeMethod = ResponseWriteMethod.PRINTWRITER;
             } catch (HttpCacheDataStreamException e) {
@@ -108,10 +125,34 @@ public class HttpCacheServletResponseWrapper extends SlingHttpServletResponseWra
         }
     }
 
+    private OutputStream createCaptureOutputStream() throws HttpCacheDataStreamException {
+        captureOutputStream = new BoundedCaptureOutputStream(tempSink.createOutputStream(), tempSink, captureLimit);
+        return captureOutputStream;
+    }
+
     public TempSink getTempSink() {
         return tempSink;
     }
 
+    /**
+     * @return true if the response could not be captured completely, in which case it must not be cached.
+     */
+    public boolean isCaptureAborted() {
+        return captureAborted || (captureOutputStream != null && captureOutputStream.isAborted());
+    }
+
+    /**
+     * Give up capturing the response, dropping what has been captured so far. The response is still delivered.
+     */
+    public void abortCapture() {
+        captureAborted = true;
+        if (captureOutputStream != null) {
+            captureOutputStream.abort();
+        } else {
+            tempSink.discard();
+        }
+    }
+
     public ResponseWriteMethod getWriteMethod() {
         return writeMethod;
     }
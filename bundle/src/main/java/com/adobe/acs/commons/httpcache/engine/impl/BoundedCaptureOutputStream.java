@@ -0,0 +1,131 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl;
+
+import com.adobe.acs.commons.httpcache.store.TempSink;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Capture side of the response tee. Forwards bytes to the temp sink until the capture limit is exceeded; from then on
+ * the sink is discarded and further bytes are dropped, so the response is still delivered to the client but no longer
+ * captured for caching. A failure to write to the sink gives up the capture the same way, instead of failing the write
+ * to the client.
+ */
+public class BoundedCaptureOutputStream extends OutputStream {
+    private static final Logger log = LoggerFactory.getLogger(BoundedCaptureOutputStream.class);
+
+    private final OutputStream delegate;
+    private final TempSink tempSink;
+    private final long limit;
+    private long count;
+    private boolean aborted;
+
+    /**
+     * @param delegate output stream of the temp sink.
+     * @param tempSink the temp sink, discarded once the limit is exceeded.
+     * @param limit    maximum number of bytes to capture, or a negative value for no limit.
+     */
+    public BoundedCaptureOutputStream(OutputStream delegate, TempSink tempSink, long limit) {
+        this.delegate = delegate;
+        this.tempSink = tempSink;
+        this.limit = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (accept(1)) {
+            try {
+                delegate.write(b);
+            } catch (IOException e) {
+                abort(e);
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        if (accept(len)) {
+            try {
+                delegate.write(bytes, off, len);
+            } catch (IOException e) {
+                abort(e);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (!aborted) {
+            try {
+                delegate.flush();
+            } catch (IOException e) {
+                abort(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!aborted) {
+            delegate.close();
+        }
+    }
+
+    /**
+     * @return true if the capture was given up because the response exceeded the limit or could not be written.
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    private boolean accept(int len) {
+        if (aborted) {
+            return false;
+        }
+        count += len;
+        if (limit >= 0 && count > limit) {
+            log.debug("Response exceeds the capture limit of {} bytes, it will not be cached.", limit);
+            abort();
+            return false;
+        }
+        return true;
+    }
+
+    private void abort(IOException e) {
+        log.debug("Response could not be captured, it will not be cached.", e);
+        abort();
+    }
+
+    /**
+     * Give up the capture, dropping what has been captured so far.
+     */
+    public void abort() {
+        if (!aborted) {
+            aborted = true;
+            IOUtils.closeQuietly(delegate);
+            tempSink.discard();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable snapshot of the bound cache configs, narrowing down the configs which can accept a request URI or be
+ * invalidated by a JCR path without running the patterns of every config.
+ * <p>
+ * The literal prefix of each request URI and invalidation path pattern is indexed in a trie, so a lookup walks the
+ * trie along the URI or path and costs in proportion to its length. Configs with a pattern lacking a literal prefix
+ * (like <code>.*\.html</code>), or which don't expose their patterns, are candidates for every lookup. Candidates
+ * are returned in the order of the configs given to the snapshot, and still have to be checked with
+ * {@link HttpCacheConfig#accepts} or {@link HttpCacheConfig#canInvalidate}.
+ * </p>
+ */
+public final class CacheConfigMatcher {
+
+    private static final String METACHARACTERS = "\\.[]{}()*+?^$|";
+    private static final String QUANTIFIERS = "?*{";
+
+    private final List<HttpCacheConfig> configs;
+    private final PrefixTrie requestUriTrie;
+    private final PrefixTrie invalidationPathTrie;
+
+    /**
+     * @param configs the bound configs, sorted by {@link com.adobe.acs.commons.httpcache.config.impl.HttpCacheConfigComparator}.
+     */
+    public CacheConfigMatcher(List<HttpCacheConfig> configs) {
+        this.configs = Collections.unmodifiableList(new ArrayList<>(configs));
+        this.requestUriTrie = new PrefixTrie(this.configs, HttpCacheConfig::getRequestUriPatterns);
+        this.invalidationPathTrie = new PrefixTrie(this.configs, HttpCacheConfig::getJCRInvalidationPathPatterns);
+    }
+
+    /**
+     * @return all the configs of this snapshot, in order.
+     */
+    public List<HttpCacheConfig> getConfigs() {
+        return configs;
+    }
+
+    /**
+     * @param requestUri the request URI, as returned by the request.
+     * @return the configs whose request URI patterns may match the request URI, in order.
+     */
+    public List<HttpCacheConfig> getRequestCandidates(String requestUri) {
+        return candidates(requestUriTrie, requestUri);
+    }
+
+    /**
+     * @param path the JCR path.
+     * @return the configs whose invalidation path patterns may match the path, in order.
+     */
+    public List<HttpCacheConfig> getInvalidationCandidates(String path) {
+        return candidates(invalidationPathTrie, path);
+    }
+
+    private List<HttpCacheConfig> candidates(PrefixTrie trie, String value) {
+        if (value == null) {
+            return configs;
+        }
+        final BitSet matches = trie.lookup(value);
+        final List<HttpCacheConfig> candidates = new ArrayList<>(matches.cardinality());
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            candidates.add(configs.get(i));
+        }
+        return candidates;
+    }
+
+    /**
+     * Literal text every match of the pattern starts with, when it can be told from the pattern source.
+     *
+     * @return the literal prefix, possibly empty, or null if the pattern can't be narrowed down by a prefix.
+     */
+    static String literalPrefix(Pattern pattern) {
+        final String regex = pattern.pattern();
+        if (pattern.flags() != 0 || regex.indexOf('|') >= 0) {
+            // Case insensitive matching or alternatives defeat a single literal prefix.
+            return null;
+        }
+
+        final StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            int next = i + 1;
+            char literal = c;
+            if (c == '\\') {
+                if (next >= regex.length() || Character.isLetterOrDigit(regex.charAt(next))) {
+                    // Character classes, back references, quoting and such.
+                    break;
+                }
+                literal = regex.charAt(next);
+                next++;
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                break;
+            }
+
+            if (next < regex.length() && QUANTIFIERS.indexOf(regex.charAt(next)) >= 0) {
+                // The character is optional, so the prefix stops before it.
+                break;
+            }
+            prefix.append(literal);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Trie of the literal prefixes of the patterns, holding at each node the configs with a pattern of that prefix.
+     */
+    private static final class PrefixTrie {
+        private final Node root = new Node();
+        private final BitSet unindexed = new BitSet();
+
+        private PrefixTrie(List<HttpCacheConfig> configs, Function<HttpCacheConfig, List<Pattern>> patterns) {
+            for (int index = 0; index < configs.size(); index++) {
+                final List<Pattern> configPatterns = patterns.apply(configs.get(index));
+                if (configPatterns == null || configPatterns.isEmpty()) {
+                    unindexed.set(index);
+                    continue;
+                }
+                for (Pattern pattern : configPatterns) {
+                    final String prefix = literalPrefix(pattern);
+                    if (prefix == null || prefix.isEmpty()) {
+                        unindexed.set(index);
+                    } else {
+                        root.insert(prefix).configs.set(index);
+                    }
+                }
+            }
+        }
+
+        private BitSet lookup(String value) {
+            final BitSet matches = (BitSet) unindexed.clone();
+            Node node = root;
+            for (int i = 0; i < value.length() && node != null; i++) {
+                node = node.children.get(value.charAt(i));
+                if (node != null) {
+                    matches.or(node.configs);
+                }
+            }
+            return matches;
+        }
+    }
+
+    private static final class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        private final BitSet configs = new BitSet();
+
+        private Node insert(String prefix) {
+            Node node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+            }
+            return node;
+        }
+    }
+}
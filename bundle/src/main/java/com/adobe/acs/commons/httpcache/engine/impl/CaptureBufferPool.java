@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size, direct byte buffers used to capture responses off-heap. Released buffers are kept for reuse up
+ * to the configured number of buffers; buffers released beyond that are left to the garbage collector.
+ * <p>
+ * The total number of buffers, in use or pooled, is bounded by a budget. Once it is used up no buffer is handed out
+ * until others are released, and the capture asking for one has to be given up.
+ * </p>
+ */
+public class CaptureBufferPool {
+
+    /** Size of a single capture chunk. */
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final int maxPooled;
+    private final int maxAllocated;
+
+    /**
+     * @param maxPooled    maximum number of released chunks retained for reuse.
+     * @param maxAllocated maximum number of chunks allocated at any time, in use or pooled; raised to maxPooled if lower.
+     */
+    public CaptureBufferPool(int maxPooled, int maxAllocated) {
+        this.maxPooled = Math.max(0, maxPooled);
+        this.maxAllocated = Math.max(this.maxPooled, maxAllocated);
+    }
+
+    /**
+     * Get a cleared chunk, either from the pool or newly allocated.
+     *
+     * @return the chunk, or null if the budget of chunks is used up.
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        if (allocated.incrementAndGet() > maxAllocated) {
+            allocated.decrementAndGet();
+            return null;
+        }
+        try {
+            return ByteBuffer.allocateDirect(CHUNK_SIZE);
+        } catch (OutOfMemoryError e) {
+            // Direct memory is shared with the rest of the JVM, which may have used it up before the budget was
+            allocated.decrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Return a chunk to the pool. The caller must not use the chunk afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != CHUNK_SIZE) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            buffers.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+            allocated.decrementAndGet();
+        }
+    }
+
+    /**
+     * Get the number of chunks currently available in the pool.
+     */
+    public int getPooledCount() {
+        return pooled.get();
+    }
+
+    /**
+     * Get the number of chunks currently allocated, in use or pooled.
+     */
+    public int getAllocatedCount() {
+        return allocated.get();
+    }
+}
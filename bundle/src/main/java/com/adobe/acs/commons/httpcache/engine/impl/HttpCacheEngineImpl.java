@@ -20,14 +20,22 @@
 package com.adobe.acs.commons.httpcache.engine.impl;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Function;
@@ -75,6 +83,8 @@ import com.adobe.acs.commons.httpcache.exception.HttpCacheRepositoryAccessExcept
 import com.adobe.acs.commons.httpcache.keys.CacheKey;
 import com.adobe.acs.commons.httpcache.rule.HttpCacheHandlingRule;
 import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
+import com.adobe.acs.commons.httpcache.store.TempSink;
+import com.adobe.acs.commons.httpcache.util.ContentEncodingUtils;
 import com.adobe.granite.jmx.annotation.AnnotatedStandardMBean;
 
 /**
@@ -131,6 +141,9 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
     /** Thread safe list to contain the registered HttpCacheConfig references. */
     private CopyOnWriteArrayList<HttpCacheConfig> cacheConfigs = new CopyOnWriteArrayList<HttpCacheConfig>();
 
+    /** Snapshot of the registered HttpCacheConfigs for the lookups by request URI and invalidation path. */
+    private volatile CacheConfigMatcher cacheConfigMatcher = new CacheConfigMatcher(Collections.emptyList());
+
     /** Method name that binds cache store */
     static final String METHOD_NAME_TO_BIND_CACHE_STORE = "httpCacheStore";
     /** Thread safe hash map to contain the registered cache store references. */
@@ -160,10 +173,60 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
                 "com.adobe.acs.commons.httpcache.rule.impl.HonorCacheControlHeaders",
                 "com.adobe.acs.commons.httpcache.rule.impl.DoNotCacheZeroSizeResponse"
         };
+
+        @AttributeDefinition(name = "Capture responses off-heap",
+                description = "Capture responses in pooled chunks of direct memory instead of the temp sink of the "
+                        + "cache store, keeping the copy of the response off the heap until it is cached.",
+                defaultValue = "false")
+        boolean httpcache_engine_capture_offheap() default false;
+
+        @AttributeDefinition(name = "Capture limit in KB",
+                description = "Responses larger than this are delivered but not captured nor cached. "
+                        + "Default to -1; a value of 0 or less means no limit.",
+                defaultValue = "-1")
+        long httpcache_engine_capture_maxsize() default -1L;
+
+        @AttributeDefinition(name = "Capture pool size in MB",
+                description = "Amount of released off-heap capture chunks kept for reuse.",
+                defaultValue = "16")
+        int httpcache_engine_capture_poolsize() default 16;
+
+        @AttributeDefinition(name = "Capture budget in MB",
+                description = "Maximum amount of direct memory used by off-heap captures in progress and pooled chunks. "
+                        + "Responses that don't fit are delivered but not cached. Raised to the pool size if lower.",
+                defaultValue = "64")
+        int httpcache_engine_capture_budget() default 64;
     }
 
+    /** Kilobyte to byte */
+    private static final long KILOBYTE = 1024L;
+
+    /** Megabyte to byte */
+    private static final long MEGABYTE = 1024L * 1024L;
+
     private List<String> globalCacheHandlingRulesPid;
 
+    /** Pool of capture chunks, null if responses are captured into the temp sink of the cache store. */
+    private CaptureBufferPool captureBufferPool;
+
+    /** Maximum number of bytes captured per response, negative for no limit. */
+    private long captureLimit = -1L;
+
+    /** Coalesces concurrent cache misses of the cache configs with single-flight enabled. */
+    private final RequestCoalescer requestCoalescer = new RequestCoalescer();
+
+    /** Revalidations of the expired entries served stale. */
+    private final StaleRevalidationTracker staleRevalidationTracker = new StaleRevalidationTracker();
+
+    /** Cache configs serving stale entries, bound to a store which cannot, already warned about. */
+    private final Set<HttpCacheConfig> staleServingUnsupported = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Request attribute holding the {@link Lease}s of the cache misses being rendered, innermost first. Attributes are
+     * shared with the includes of the request, whose misses are nested within the one of the request.
+     */
+    static final String ATTR_LEASES = HttpCacheEngineImpl.class.getName() + ".leases";
+
     /** Thread safe list containing the OSGi configurations for the registered httpCacheConfigs. Used only for mbean.*/
     private final ConcurrentHashMap<HttpCacheConfig, Map<String, Object>> cacheConfigConfigs = new
             ConcurrentHashMap<HttpCacheConfig, Map<String, Object>>();
@@ -196,6 +259,7 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
 
         Collections.sort(tmp, new HttpCacheConfigComparator());
         this.cacheConfigs = tmp;
+        this.cacheConfigMatcher = new CacheConfigMatcher(tmp);
 
         this.cacheConfigConfigs.put(cacheConfig, configs);
 
@@ -220,7 +284,9 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
 
             // Remove the entry from the map.
             cacheConfigs.remove(cacheConfig);
+            cacheConfigMatcher = new CacheConfigMatcher(cacheConfigs);
             cacheConfigConfigs.remove(cacheConfig);
+            staleServingUnsupported.remove(cacheConfig);
 
             log.debug("Total number of cache configs after removal: {}", cacheConfigs.size());
             return;
@@ -303,6 +369,13 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
                 listIterator.remove();
             }
         }
+
+        captureLimit = config.httpcache_engine_capture_maxsize() <= 0 ? -1L
+                : config.httpcache_engine_capture_maxsize() * KILOBYTE;
+        captureBufferPool = config.httpcache_engine_capture_offheap()
+                ? new CaptureBufferPool((int) (config.httpcache_engine_capture_poolsize() * MEGABYTE / CaptureBufferPool.CHUNK_SIZE),
+                        (int) (config.httpcache_engine_capture_budget() * MEGABYTE / CaptureBufferPool.CHUNK_SIZE))
+                : null;
         log.info("HttpCacheEngineImpl activated.");
     }
 
@@ -346,9 +419,10 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
     public HttpCacheConfig getCacheConfig(SlingHttpServletRequest request, HttpCacheConfig.FilterScope filterScope) throws HttpCacheConfigConflictException, HttpCacheRepositoryAccessException {
 
         // Get the first accepting cache config based on the cache config order.
+        // Configs which can't match the request URI are left out of the lookup.
         HttpCacheConfig bestCacheConfig = null;
 
-        for (HttpCacheConfig cacheConfig : cacheConfigs) {
+        for (HttpCacheConfig cacheConfig : cacheConfigMatcher.getRequestCandidates(request.getRequestURI())) {
             if (bestCacheConfig != null) {
                 // A matching HttpCacheConfig has been found, so check for order + acceptance conflicts
                 if (bestCacheConfig.getOrder() == cacheConfig.getOrder()) {
@@ -377,7 +451,114 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
             HttpCacheKeyCreationException, HttpCachePersistenceException {
 
         // Build a cache key and do a lookup in the configured cache store.
-        return getCacheStore(cacheConfig).contains(cacheConfig.buildCacheKey(request));
+        final HttpCacheStore cacheStore = getCacheStore(cacheConfig);
+        final CacheKey cacheKey = cacheConfig.buildCacheKey(request);
+        boolean cacheHit = cacheStore.contains(cacheKey);
+        if (cacheHit && isStaleServingEnabled(cacheConfig) && isStalenessSupported(cacheStore, cacheConfig)) {
+            final long staleness = cacheStore.getStaleness(cacheKey);
+            if (staleness > 0) {
+                if (staleness > cacheConfig.getStaleWhileRevalidate() && staleness > cacheConfig.getStaleIfError()) {
+                    // Expired beyond what may ever be served, treat it as a miss.
+                    staleRevalidationTracker.forget(cacheKey);
+                    cacheHit = false;
+                } else if (staleRevalidationTracker.tryRevalidate(cacheKey,
+                        Math.max(cacheConfig.getStaleWhileRevalidate(), cacheConfig.getStaleIfError()) - staleness)) {
+                    // This request re-renders the entry, the concurrent ones are served the stale entry if allowed.
+                    log.debug("Revalidating the expired cache entry - {}", request.getRequestURI());
+                    return miss(request, new Lease(cacheKey, null));
+                } else if (isServableStale(cacheKey, cacheConfig, staleness)) {
+                    staleRevalidationTracker.recordStaleHit();
+                    return true;
+                } else {
+                    cacheHit = false;
+                }
+            }
+        }
+        if (cacheHit) {
+            return true;
+        }
+        if (!cacheConfig.isSingleFlightEnabled()) {
+            return miss(request, new Lease(null, null));
+        }
+
+        // Only one request renders the missing response, concurrent ones wait for it to be cached.
+        final long timeout = cacheConfig.getSingleFlightTimeout();
+        final RequestCoalescer.Flight flight = requestCoalescer.join(cacheKey, timeout);
+        if (flight.isLeader()) {
+            if (cacheStore.contains(cacheKey)) {
+                // Filled while joining.
+                requestCoalescer.release(flight);
+                return true;
+            }
+            return miss(request, new Lease(cacheKey, flight));
+        }
+
+        if (requestCoalescer.await(flight, timeout) && cacheStore.contains(cacheKey)) {
+            requestCoalescer.recordHit();
+            return true;
+        }
+        log.debug("Coalesced request rendering the response itself - {}", request.getRequestURI());
+        return miss(request, new Lease(null, null));
+    }
+
+    /**
+     * Record what the request holds while rendering a missing response, released once it is cached or aborted. Every
+     * miss gets its lease, so that the release of an include never takes the lease of its enclosing request.
+     *
+     * @return false, the request is not a cache hit
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean miss(SlingHttpServletRequest request, Lease lease) {
+        Object leases = request.getAttribute(ATTR_LEASES);
+        if (!(leases instanceof Deque)) {
+            leases = new ArrayDeque<Lease>();
+            request.setAttribute(ATTR_LEASES, leases);
+        }
+        ((Deque<Lease>) leases).push(lease);
+        return false;
+    }
+
+    private static boolean isStaleServingEnabled(HttpCacheConfig cacheConfig) {
+        return cacheConfig.getStaleWhileRevalidate() > 0 || cacheConfig.getStaleIfError() > 0;
+    }
+
+    private boolean isStalenessSupported(HttpCacheStore cacheStore, HttpCacheConfig cacheConfig) {
+        if (cacheStore.supportsStaleness()) {
+            return true;
+        }
+        if (staleServingUnsupported.add(cacheConfig)) {
+            log.warn("Cache store {} never serves stale entries, the stale windows of the cache config for {} are ignored.",
+                    cacheConfig.getCacheStoreName(), cacheConfig.getRequestUriPatterns());
+        }
+        return false;
+    }
+
+    /**
+     * An expired entry is served within the stale-while-revalidate window, and within the stale-if-error window once
+     * re-rendering it failed.
+     */
+    private boolean isServableStale(CacheKey cacheKey, HttpCacheConfig cacheConfig, long staleness) {
+        return staleness <= cacheConfig.getStaleWhileRevalidate()
+                || (staleness <= cacheConfig.getStaleIfError() && staleRevalidationTracker.hasFailed(cacheKey));
+    }
+
+    /**
+     * Release the flight led by the request, if any, waking up the coalesced requests, and complete the revalidation
+     * of a stale entry performed by the request. Does nothing once released.
+     */
+    @SuppressWarnings("unchecked")
+    private void releaseLease(SlingHttpServletRequest request, boolean cached) {
+        final Object leases = request.getAttribute(ATTR_LEASES);
+        if (leases instanceof Deque) {
+            // Misses complete in the reverse order they happened, the innermost first
+            final Lease lease = ((Deque<Lease>) leases).poll();
+            if (((Deque<Lease>) leases).isEmpty()) {
+                request.removeAttribute(ATTR_LEASES);
+            }
+            if (lease != null) {
+                lease.release(cached);
+            }
+        }
     }
 
     @Override
@@ -385,13 +566,18 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
                                        HttpCacheConfig cacheConfig) throws HttpCacheKeyCreationException,
             HttpCacheDataStreamException, HttpCachePersistenceException {
         // Get the cached content from cache
-        CacheContent cacheContent = getCacheStore(cacheConfig).getIfPresent(cacheConfig.buildCacheKey(request));
+        CacheContent cacheContent = getCacheStore(cacheConfig).getIfPresent(cacheConfig.buildCacheKey(request),
+                cacheConfig);
         if (!isRequestDeliverableFromCacheAccordingToHandlingRules(request, response, cacheConfig, cacheContent)){
             return false;
         }
 
-        prepareCachedResponse(response, cacheContent);
-        return executeCacheContentDeliver(request, response, cacheContent);
+        // Pick the pre-compressed variant accepted by the client, if any.
+        final String contentCoding = ContentEncodingUtils.selectEncoding(
+                request.getHeader(ContentEncodingUtils.HEADER_ACCEPT_ENCODING), cacheContent.getEncodings());
+
+        prepareCachedResponse(response, cacheContent, contentCoding);
+        return executeCacheContentDeliver(request, response, cacheContent, contentCoding);
     }
 
 
@@ -401,9 +587,13 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
             response, HttpCacheConfig cacheConfig) throws HttpCacheDataStreamException,
             HttpCacheKeyCreationException, HttpCachePersistenceException {
         // Wrap the response to get the copy of the stream.
-        // Temp sink for the duplicate stream is chosen based on the cache store configured at cache config.
+        // Temp sink for the duplicate stream is chosen based on the cache store configured at cache config, unless
+        // responses are captured off-heap.
+        final TempSink tempSink = captureBufferPool != null
+                ? new OffHeapTempSink(captureBufferPool)
+                : getCacheStore(cacheConfig).createTempSink();
         try {
-            return new HttpCacheServletResponseWrapper(response, getCacheStore(cacheConfig).createTempSink());
+            return new HttpCacheServletResponseWrapper(response, tempSink, captureLimit);
         } catch (IOException e) {
             throw new HttpCacheDataStreamException(e);
         }
@@ -416,37 +606,78 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
 
         // TODO - This can be made asynchronous to avoid performance penalty on response cache.
 
+        if (!(response instanceof HttpCacheServletResponseWrapper)) {
+            releaseLease(request, false);
+            throw new HttpCacheDataStreamException("Response for the URI was not captured - " + request.getRequestURI());
+        }
+
         CacheContent cacheContent = null;
+        boolean cached = false;
         try {
             // Construct the cache content.
-            HttpCacheServletResponseWrapper responseWrapper = null;
-            if (response instanceof HttpCacheServletResponseWrapper) {
-                responseWrapper = (HttpCacheServletResponseWrapper) response;
-            } else {
-                throw new AssertionError("Programming error.");
+            final HttpCacheServletResponseWrapper responseWrapper = (HttpCacheServletResponseWrapper) response;
+            final CacheKey cacheKey = cacheConfig.buildCacheKey(request);
+            if (responseWrapper.isCaptureAborted()) {
+                log.debug("Response for the URI not cached as it could not be captured - {}", request.getRequestURI());
+                return;
             }
-            CacheKey cacheKey = cacheConfig.buildCacheKey(request);
             cacheContent = new CacheContent().build(responseWrapper);
 
             // Persist in cache.
             if (isRequestCachableAccordingToHandlingRules(request, response, cacheConfig, cacheContent)) {
-                getCacheStore(cacheConfig).put(cacheKey, cacheContent);
+                getCacheStore(cacheConfig).put(cacheKey, cacheContent, cacheConfig);
+                cached = true;
                 log.debug("Response for the URI cached - {}", request.getRequestURI());
             }
         } finally {
             // Close the temp sink input stream.
             if (null != cacheContent) {
                 IOUtils.closeQuietly(cacheContent.getInputDataStream());
+            } else {
+                // Nothing got read from the temp sink, release what it holds.
+                ((HttpCacheServletResponseWrapper) response).abortCapture();
             }
+            // Coalesced requests can now go for the cache, or render the response themselves.
+            releaseLease(request, cached);
         }
 
     }
 
+    @Override
+    public void abortResponse(SlingHttpServletRequest request, SlingHttpServletResponse response,
+                              HttpCacheConfig cacheConfig) {
+        HttpCacheEngine.super.abortResponse(request, response, cacheConfig);
+        releaseLease(request, false);
+    }
+
+    /**
+     * What a request rendering a missing or stale response holds until it is cached or given up: the flight other
+     * requests wait on, and the revalidation of the stale entry, either of which may be absent.
+     */
+    private final class Lease {
+        private final CacheKey cacheKey;
+        private final RequestCoalescer.Flight flight;
+
+        private Lease(CacheKey cacheKey, RequestCoalescer.Flight flight) {
+            this.cacheKey = cacheKey;
+            this.flight = flight;
+        }
+
+        private void release(boolean cached) {
+            if (flight != null) {
+                requestCoalescer.release(flight);
+            }
+            if (cacheKey != null) {
+                staleRevalidationTracker.complete(cacheKey, cached);
+            }
+        }
+    }
+
     @Override
     public boolean isPathPotentialToInvalidate(String path) {
 
         // Check all the configs to see if this path is of interest.
-        for (HttpCacheConfig config : cacheConfigs) {
+        for (HttpCacheConfig config : cacheConfigMatcher.getInvalidationCandidates(path)) {
             if (config.canInvalidate(path)) {
                 return true;
             }
@@ -457,13 +688,28 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
 
     @Override
     public void invalidateCache(String path) throws HttpCachePersistenceException, HttpCacheKeyCreationException {
-        // Find out all the cache config which has this path applicable for invalidation.
-        for (HttpCacheConfig cacheConfig : cacheConfigs) {
-            if (cacheConfig.canInvalidate(path)) {
-                // Execute custom rules.
-                executeCustomRuleInvalidations(path, cacheConfig);
+        invalidateCache(Collections.singletonList(path));
+    }
+
+    @Override
+    public void invalidateCache(Collection<String> paths) throws HttpCachePersistenceException,
+            HttpCacheKeyCreationException {
+        // Keys to invalidate are gathered per cache store, so each store is invalidated once for the whole batch.
+        final Map<HttpCacheStore, Set<CacheKey>> invalidations = new LinkedHashMap<>();
+
+        for (String path : paths) {
+            // Find out all the cache config which has this path applicable for invalidation.
+            for (HttpCacheConfig cacheConfig : cacheConfigMatcher.getInvalidationCandidates(path)) {
+                if (cacheConfig.canInvalidate(path)) {
+                    // Execute custom rules.
+                    executeCustomRuleInvalidations(path, cacheConfig, invalidations);
+                }
             }
         }
+
+        for (Map.Entry<HttpCacheStore, Set<CacheKey>> invalidation : invalidations.entrySet()) {
+            invalidation.getKey().invalidate(invalidation.getValue());
+        }
     }
 
 
@@ -553,6 +799,41 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
         return tabularData;
     }
 
+    @Override
+    public long getCoalescedRequestCount() {
+        return requestCoalescer.getCoalescedRequests();
+    }
+
+    @Override
+    public long getCoalescedHitCount() {
+        return requestCoalescer.getCoalescedHits();
+    }
+
+    @Override
+    public long getCoalescedTimeoutCount() {
+        return requestCoalescer.getTimeouts();
+    }
+
+    @Override
+    public int getInFlightRenderCount() {
+        return requestCoalescer.getInFlight();
+    }
+
+    @Override
+    public long getStaleHitCount() {
+        return staleRevalidationTracker.getStaleHits();
+    }
+
+    @Override
+    public long getStaleRevalidationCount() {
+        return staleRevalidationTracker.getRevalidations();
+    }
+
+    @Override
+    public long getFailedStaleRevalidationCount() {
+        return staleRevalidationTracker.getFailedRevalidations();
+    }
+
     @Override
     public TabularData getRegisteredPersistenceStores() throws OpenDataException {
         // @formatter:off
@@ -608,10 +889,14 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
         return true;
     }
 
-    private void prepareCachedResponse(SlingHttpServletResponse response, CacheContent cacheContent) {
+    private void prepareCachedResponse(SlingHttpServletResponse response, CacheContent cacheContent, String contentCoding) {
         response.setStatus(cacheContent.getStatus());
         // Spool header info into the servlet response.
         for (String headerName : cacheContent.getHeaders().keySet()) {
+            if (contentCoding != null && ContentEncodingUtils.HEADER_CONTENT_LENGTH.equalsIgnoreCase(headerName)) {
+                // Length of the identity encoded content.
+                continue;
+            }
             for (String headerValue : cacheContent.getHeaders().get(headerName)) {
                 response.setHeader(headerName, headerValue);
             }
@@ -620,12 +905,28 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
         // Spool other attributes to the servlet response.
         response.setContentType(cacheContent.getContentType());
         response.setCharacterEncoding(cacheContent.getCharEncoding());
+
+        if (!cacheContent.getEncodings().isEmpty()) {
+            varyOnAcceptEncoding(response);
+        }
     }
 
-    private boolean executeCacheContentDeliver(SlingHttpServletRequest request, SlingHttpServletResponse response, CacheContent cacheContent) throws HttpCacheDataStreamException {
+    private void varyOnAcceptEncoding(SlingHttpServletResponse response) {
+        final String vary = response.getHeader(ContentEncodingUtils.HEADER_VARY);
+        if (StringUtils.isBlank(vary)) {
+            response.setHeader(ContentEncodingUtils.HEADER_VARY, ContentEncodingUtils.HEADER_ACCEPT_ENCODING);
+        } else if (!"*".equals(vary.trim())
+                && !StringUtils.containsIgnoreCase(vary, ContentEncodingUtils.HEADER_ACCEPT_ENCODING)) {
+            response.setHeader(ContentEncodingUtils.HEADER_VARY, vary + ", " + ContentEncodingUtils.HEADER_ACCEPT_ENCODING);
+        }
+    }
+
+    private boolean executeCacheContentDeliver(SlingHttpServletRequest request, SlingHttpServletResponse response, CacheContent cacheContent, String contentCoding) throws HttpCacheDataStreamException {
         // Copy the cached data into the servlet output stream.
         try {
-            serveCacheContentIntoResponse(response, cacheContent);
+            if (contentCoding == null || !serveEncodedCacheContentIntoResponse(response, cacheContent, contentCoding)) {
+                serveCacheContentIntoResponse(response, cacheContent);
+            }
 
             if (log.isDebugEnabled()) {
                 log.debug("Response delivered from cache for the url [ {} ]", request.getRequestURI());
@@ -636,6 +937,31 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
         }
     }
 
+    /**
+     * Serve the pre-compressed variant of the cached data, unless only the writer of the response is available.
+     *
+     * @return true if the variant got served.
+     */
+    private boolean serveEncodedCacheContentIntoResponse(SlingHttpServletResponse response, CacheContent cacheContent,
+                                                         String contentCoding) throws IOException {
+        try (InputStream encodedInputStream = cacheContent.getEncodedInputDataStream(contentCoding)) {
+            if (encodedInputStream == null) {
+                return false;
+            }
+            final OutputStream outputStream;
+            try {
+                outputStream = response.getOutputStream();
+            } catch (IllegalStateException ex) {
+                // The writer has already been obtained, fall back to the identity encoded data.
+                return false;
+            }
+            response.setHeader(ContentEncodingUtils.HEADER_CONTENT_ENCODING, contentCoding);
+            IOUtils.copy(encodedInputStream, outputStream);
+        }
+        IOUtils.closeQuietly(cacheContent.getInputDataStream());
+        return true;
+    }
+
     private void serveCacheContentIntoResponse(SlingHttpServletResponse response, CacheContent cacheContent)
             throws IOException {
         if(HttpCacheServletResponseWrapper.ResponseWriteMethod.OUTPUTSTREAM.equals(cacheContent.getWriteMethod())){
@@ -650,13 +976,15 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
         }
     }
 
-    private void executeCustomRuleInvalidations(String path, HttpCacheConfig cacheConfig) throws HttpCachePersistenceException, HttpCacheKeyCreationException {
+    private void executeCustomRuleInvalidations(String path, HttpCacheConfig cacheConfig,
+            Map<HttpCacheStore, Set<CacheKey>> invalidations) throws HttpCachePersistenceException, HttpCacheKeyCreationException {
         for (final Map.Entry<String, HttpCacheHandlingRule> entry : cacheHandlingRules.entrySet()) {
             // Apply rule if it's a configured global or cache-config tied rule.
             if (globalCacheHandlingRulesPid.contains(entry.getKey()) || cacheConfig.acceptsRule(entry.getKey())) {
                 HttpCacheHandlingRule rule = entry.getValue();
                 if (rule.onCacheInvalidate(path)) {
-                    getCacheStore(cacheConfig).invalidate(cacheConfig.buildCacheKey(path));
+                    invalidations.computeIfAbsent(getCacheStore(cacheConfig), store -> new LinkedHashSet<>())
+                            .add(cacheConfig.buildCacheKey(path));
                 } else {
                     log.debug("Cache invalidation rejected for path {} per custom rule {}", path, rule
                             .getClass().getName());
@@ -38,5 +38,26 @@ public interface HttpCacheEngineMBean {
 
     @Description("Registered Persistence Stores")
     TabularData getRegisteredPersistenceStores() throws OpenDataException;
+
+    @Description("Number of cache misses which waited for a concurrent request rendering the same response")
+    long getCoalescedRequestCount();
+
+    @Description("Number of coalesced requests served from the cache entry filled by the concurrent request")
+    long getCoalescedHitCount();
+
+    @Description("Number of coalesced requests which stopped waiting and rendered the response themselves")
+    long getCoalescedTimeoutCount();
+
+    @Description("Number of responses currently rendered while concurrent requests may wait for them")
+    int getInFlightRenderCount();
+
+    @Description("Number of requests served an expired cache entry while it is re-rendered, or after re-rendering it failed")
+    long getStaleHitCount();
+
+    @Description("Number of re-renderings of expired cache entries started")
+    long getStaleRevalidationCount();
+
+    @Description("Number of re-renderings of expired cache entries which failed")
+    long getFailedStaleRevalidationCount();
 }
 
@@ -0,0 +1,183 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl;
+
+import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
+import com.adobe.acs.commons.httpcache.store.TempSink;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TempSink capturing the response into chunks of direct memory taken from a {@link CaptureBufferPool}, keeping the
+ * captured copy of the response off the heap until a cache store reads it.
+ * <p>
+ * The sink can be read once; the chunks go back to the pool when that input stream is closed, or when the sink is
+ * discarded. Writes fail with an IOException once the pool has no chunk left to hand out.
+ * </p>
+ */
+public class OffHeapTempSink implements TempSink {
+
+    private final CaptureBufferPool pool;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private OutputStream outputStream;
+    private long length;
+    private boolean released;
+
+    public OffHeapTempSink(CaptureBufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public OutputStream createOutputStream() throws HttpCacheDataStreamException {
+        if (released) {
+            throw new HttpCacheDataStreamException("Temp sink has already been released.");
+        }
+        if (null == outputStream) {
+            outputStream = new ChunkOutputStream();
+        }
+        return outputStream;
+    }
+
+    @Override
+    public InputStream createInputStream() throws HttpCacheDataStreamException {
+        if (released) {
+            throw new HttpCacheDataStreamException("Temp sink has already been released.");
+        }
+        if (chunks.isEmpty()) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        return new ChunkInputStream();
+    }
+
+    @Override
+    public long length() {
+        if (null == outputStream || released) {
+            return -1;
+        }
+        return length;
+    }
+
+    @Override
+    public void discard() {
+        release();
+    }
+
+    private void release() {
+        if (!released) {
+            released = true;
+            for (ByteBuffer chunk : chunks) {
+                pool.release(chunk);
+            }
+            chunks.clear();
+        }
+    }
+
+    private class ChunkOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            current().put((byte) b);
+            length++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            int offset = off;
+            int remaining = len;
+            while (remaining > 0) {
+                final ByteBuffer chunk = current();
+                final int count = Math.min(remaining, chunk.remaining());
+                chunk.put(bytes, offset, count);
+                offset += count;
+                remaining -= count;
+                length += count;
+            }
+        }
+
+        private ByteBuffer current() throws IOException {
+            if (released) {
+                throw new IOException("Temp sink has already been released.");
+            }
+            ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = pool.acquire();
+                if (chunk == null) {
+                    throw new IOException("Off-heap capture budget is used up.");
+                }
+                chunks.add(chunk);
+            }
+            return chunk;
+        }
+    }
+
+    private class ChunkInputStream extends InputStream {
+        private int index = -1;
+        private ByteBuffer chunk;
+
+        @Override
+        public int read() throws IOException {
+            final ByteBuffer current = next();
+            return current == null ? -1 : current.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final ByteBuffer current = next();
+            if (current == null) {
+                return -1;
+            }
+            final int count = Math.min(len, current.remaining());
+            current.get(bytes, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return chunk == null || released ? 0 : chunk.remaining();
+        }
+
+        private ByteBuffer next() throws IOException {
+            if (released) {
+                throw new IOException("Temp sink has already been released.");
+            }
+            while (chunk == null || !chunk.hasRemaining()) {
+                if (++index >= chunks.size()) {
+                    return null;
+                }
+                chunk = chunks.get(index).duplicate();
+                chunk.flip();
+            }
+            return chunk;
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+}
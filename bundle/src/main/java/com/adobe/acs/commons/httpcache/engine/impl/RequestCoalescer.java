@@ -0,0 +1,149 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl;
+
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the cache keys currently being rendered, so concurrent cache misses for the same key can wait for the
+ * first request to fill the cache instead of rendering the same response again (single-flight).
+ * <p>
+ * A flight which is not released within the wait timeout is considered abandoned and can be taken over by the next
+ * request, so a lost release never blocks a key for good.
+ * </p>
+ */
+public class RequestCoalescer {
+
+    private final ConcurrentMap<CacheKey, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalescedRequests = new AtomicLong();
+    private final AtomicLong coalescedHits = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Join the flight for the given key.
+     *
+     * @param key     the key missing from the cache.
+     * @param timeout wait timeout in milliseconds, used to detect abandoned flights.
+     * @return the flight; {@link Flight#isLeader()} tells if the caller has to render the response.
+     */
+    public Flight join(CacheKey key, long timeout) {
+        final Flight flight = new Flight(key, Thread.currentThread());
+        while (true) {
+            final Flight current = flights.putIfAbsent(key, flight);
+            if (current == null) {
+                return flight;
+            }
+            if (!current.isAbandoned(timeout)) {
+                return current;
+            }
+            if (flights.replace(key, current, flight)) {
+                return flight;
+            }
+        }
+    }
+
+    /**
+     * Wait for the leader of the flight to release it.
+     *
+     * @return true if the flight got released in time.
+     */
+    public boolean await(Flight flight, long timeout) {
+        coalescedRequests.incrementAndGet();
+        boolean released;
+        try {
+            released = flight.latch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            released = false;
+        }
+        if (!released) {
+            timeouts.incrementAndGet();
+        }
+        return released;
+    }
+
+    /**
+     * Record that a coalesced request got served from the entry filled by the leader.
+     */
+    public void recordHit() {
+        coalescedHits.incrementAndGet();
+    }
+
+    /**
+     * Release the flight, waking up the requests waiting for it. Only the leader releases a flight.
+     */
+    public void release(Flight flight) {
+        flights.remove(flight.key, flight);
+        flight.latch.countDown();
+    }
+
+    /** @return number of requests which waited for another request to render their response. */
+    public long getCoalescedRequests() {
+        return coalescedRequests.get();
+    }
+
+    /** @return number of coalesced requests served from the cache entry filled by the leader. */
+    public long getCoalescedHits() {
+        return coalescedHits.get();
+    }
+
+    /** @return number of coalesced requests which gave up waiting. */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /** @return number of keys currently being rendered. */
+    public int getInFlight() {
+        return flights.size();
+    }
+
+    /**
+     * Rendering of a cache key by a leader request.
+     */
+    public static final class Flight {
+        private final CacheKey key;
+        private final Thread leader;
+        private final long startedAt = System.currentTimeMillis();
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private Flight(CacheKey key, Thread leader) {
+            this.key = key;
+            this.leader = leader;
+        }
+
+        /**
+         * @return true if the current thread leads this flight.
+         */
+        public boolean isLeader() {
+            return leader == Thread.currentThread();
+        }
+
+        private boolean isAbandoned(long timeout) {
+            return System.currentTimeMillis() - startedAt > timeout;
+        }
+    }
+}
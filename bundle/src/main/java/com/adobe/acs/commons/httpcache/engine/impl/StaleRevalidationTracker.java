@@ -0,0 +1,185 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl;
+
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the stale cache entries being re-rendered, so only one request re-renders a stale entry while the
+ * others are served the stale copy (stale-while-revalidate), and of the entries which could not be re-rendered, which
+ * keep being served stale (stale-if-error).
+ * <p>
+ * A revalidation which neither completes nor fails within the retry interval is considered abandoned and can be taken
+ * over by the next request. After a failed revalidation, the next attempt is made once the retry interval elapsed; the
+ * entry is no longer known to have failed while that attempt runs.
+ * </p>
+ * <p>
+ * Each revalidation is only kept as long as its entry may be served stale. Revalidations of entries which are not
+ * requested anymore are swept every {@value #SWEEP_INTERVAL} revalidations started.
+ * </p>
+ */
+public class StaleRevalidationTracker {
+
+    /** Default time in miliseconds after which an abandoned or failed revalidation is attempted again. */
+    public static final long DEFAULT_RETRY_INTERVAL = 10000L;
+
+    /** Number of revalidations started between two sweeps of the ones past the stale window of their entry. */
+    static final int SWEEP_INTERVAL = 1000;
+
+    private final ConcurrentMap<CacheKey, Revalidation> revalidations = new ConcurrentHashMap<>();
+
+    private final long retryInterval;
+
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public StaleRevalidationTracker() {
+        this(DEFAULT_RETRY_INTERVAL);
+    }
+
+    public StaleRevalidationTracker(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Try to become the request re-rendering the stale entry of the given key.
+     *
+     * @param servableFor how long the stale entry may still be served, in miliseconds.
+     * @return true if the current thread has to re-render the entry, false if it can be served stale.
+     */
+    public boolean tryRevalidate(CacheKey key, long servableFor) {
+        final long now = System.currentTimeMillis();
+        final Revalidation revalidation = new Revalidation(Thread.currentThread(), false, now, now + servableFor);
+        while (true) {
+            final Revalidation current = revalidations.putIfAbsent(key, revalidation);
+            if (current == null) {
+                onStarted(now);
+                return true;
+            }
+            if (current.isOwner()) {
+                return true;
+            }
+            if (!current.isRetryDue(now, retryInterval)) {
+                return false;
+            }
+            if (revalidations.replace(key, current, revalidation)) {
+                onStarted(now);
+                return true;
+            }
+        }
+    }
+
+    private void onStarted(long now) {
+        if (started.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            revalidations.values().removeIf(revalidation -> revalidation.expiresAt < now);
+        }
+    }
+
+    /**
+     * @return true if the last revalidation of the entry for the given key failed.
+     */
+    public boolean hasFailed(CacheKey key) {
+        final Revalidation revalidation = revalidations.get(key);
+        return revalidation != null && revalidation.failed;
+    }
+
+    /**
+     * Complete the revalidation of the given key, if it is performed by the current thread.
+     *
+     * @param refreshed true if the entry got re-rendered and cached.
+     */
+    public void complete(CacheKey key, boolean refreshed) {
+        final Revalidation revalidation = revalidations.get(key);
+        if (revalidation == null || !revalidation.isOwner()) {
+            return;
+        }
+        if (refreshed) {
+            revalidations.remove(key, revalidation);
+        } else if (revalidations.replace(key, revalidation, new Revalidation(null, true, System.currentTimeMillis(),
+                revalidation.expiresAt))) {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forget about the given key, once its entry is no longer served stale.
+     */
+    public void forget(CacheKey key) {
+        revalidations.remove(key);
+    }
+
+    /**
+     * Record that a request got served a stale entry.
+     */
+    public void recordStaleHit() {
+        staleHits.incrementAndGet();
+    }
+
+    /** @return number of requests served a stale entry. */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /** @return number of revalidations of stale entries started. */
+    public long getRevalidations() {
+        return started.get();
+    }
+
+    /** @return number of revalidations of stale entries which failed. */
+    public long getFailedRevalidations() {
+        return failed.get();
+    }
+
+    /** @return number of entries whose revalidation is running or failed. */
+    int size() {
+        return revalidations.size();
+    }
+
+    /**
+     * Revalidation of a stale entry by a request, or failure of the last one when no request owns it.
+     */
+    private static final class Revalidation {
+        private final Thread owner;
+        private final boolean failed;
+        private final long startedAt;
+        /** Time the entry can no longer be served stale, from which this is no longer needed. */
+        private final long expiresAt;
+
+        private Revalidation(Thread owner, boolean failed, long startedAt, long expiresAt) {
+            this.owner = owner;
+            this.failed = failed;
+            this.startedAt = startedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isOwner() {
+            return owner == Thread.currentThread();
+        }
+
+        private boolean isRetryDue(long now, long retryInterval) {
+            return now - startedAt > retryInterval;
+        }
+    }
+}
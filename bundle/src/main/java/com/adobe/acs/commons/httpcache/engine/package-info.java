@@ -18,7 +18,7 @@
  * #L%
  */
 
-@Version("3.3.0")
+@Version("3.4.0")
 package com.adobe.acs.commons.httpcache.engine;
 
 import org.osgi.annotation.versioning.Version;
@@ -55,50 +55,61 @@ public abstract class AbstractHttpCacheFilter implements Filter {
 
         HttpCacheConfig cacheConfig = null;
         boolean isResponseCacheable = false;
+        // Once the engine reported a miss, it may hold resources for this request until it is cached or aborted.
+        boolean isResponsePending = false;
 
         try {
-            // Get the first accepting cache config, or null if no accepting cacheConfigs can be found.
-            cacheConfig = cacheEngine.getCacheConfig(slingRequest, filterScope);
-
-            // Check if the url is cache-able as per configs and rules.
-            // An accepting cacheConfig must exist and all cache rules must be met.
-            if (cacheConfig != null && cacheEngine.isRequestCacheable(slingRequest, cacheConfig)) {
-                // Check if cached response available for this request.
-                if (cacheEngine.isCacheHit(slingRequest, cacheConfig)) {
-                    // Deliver the response from cache.
-                    if (cacheEngine.deliverCacheContent(slingRequest, slingResponse, cacheConfig)) {
-                        if (log.isDebugEnabled()) {
-                            log.debug("Delivered cached request [ {} ] in {} ms", slingRequest.getResource().getPath(),
-                                    System.currentTimeMillis() - start);
+            try {
+                // Get the first accepting cache config, or null if no accepting cacheConfigs can be found.
+                cacheConfig = cacheEngine.getCacheConfig(slingRequest, filterScope);
+
+                // Check if the url is cache-able as per configs and rules.
+                // An accepting cacheConfig must exist and all cache rules must be met.
+                if (cacheConfig != null && cacheEngine.isRequestCacheable(slingRequest, cacheConfig)) {
+                    // Check if cached response available for this request.
+                    if (cacheEngine.isCacheHit(slingRequest, cacheConfig)) {
+                        // Deliver the response from cache.
+                        if (cacheEngine.deliverCacheContent(slingRequest, slingResponse, cacheConfig)) {
+                            if (log.isDebugEnabled()) {
+                                log.debug("Delivered cached request [ {} ] in {} ms", slingRequest.getResource().getPath(),
+                                        System.currentTimeMillis() - start);
+                            }
+                            return;
                         }
-                        return;
+                    } else {
+                        isResponsePending = true;
+                        // Wrap the response
+                        slingResponse = cacheEngine.wrapResponse(slingRequest, slingResponse, cacheConfig);
+                        // Mark the request as cacheable once processed.
+                        isResponseCacheable = true;
                     }
-                } else {
-                    // Mark the request as cacheable once processed.
-                    isResponseCacheable = true;
-                    // Wrap the response
-                    slingResponse = cacheEngine.wrapResponse(slingRequest, slingResponse, cacheConfig);
                 }
+            } catch (HttpCacheException e) {
+                log.error("HttpCache exception while dealing with request. Passed on the control to filter chain.", e);
             }
-        } catch (HttpCacheException e) {
-            log.error("HttpCache exception while dealing with request. Passed on the control to filter chain.", e);
-        }
 
-        // Pass on the request to filter chain.
-        chain.doFilter(request, slingResponse);
+            // Pass on the request to filter chain. Only a response which completed successfully may be cached.
+            chain.doFilter(request, slingResponse);
 
-        try {
-            // If the request has the attribute marked, cache the response.
-            if (isResponseCacheable) {
-                cacheEngine.cacheResponse(slingRequest, slingResponse, cacheConfig);
-            }
+            try {
+                // If the request has the attribute marked, cache the response.
+                if (isResponseCacheable) {
+                    // Released by the engine, whether the response gets cached or not.
+                    isResponsePending = false;
+                    cacheEngine.cacheResponse(slingRequest, slingResponse, cacheConfig);
+                }
 
-            if (log.isTraceEnabled()) {
-                log.trace("Delivered un-cached request [ {} ] in {} ms",  slingRequest.getResource().getPath(),
-                        System.currentTimeMillis() - start);
+                if (log.isTraceEnabled()) {
+                    log.trace("Delivered un-cached request [ {} ] in {} ms",  slingRequest.getResource().getPath(),
+                            System.currentTimeMillis() - start);
+                }
+            } catch (HttpCacheException e) {
+                log.error("HttpCache exception while dealing with response. Returned the filter chain response", e);
+            }
+        } finally {
+            if (isResponsePending) {
+                cacheEngine.abortResponse(slingRequest, slingResponse, cacheConfig);
             }
-        } catch (HttpCacheException e) {
-            log.error("HttpCache exception while dealing with response. Returned the filter chain response", e);
         }
     }
 
@@ -28,8 +28,10 @@ import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.event.jobs.Job;
 import org.apache.sling.event.jobs.consumer.JobConsumer;
+import org.apache.sling.event.jobs.consumer.JobConsumer.AsyncHandler;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
@@ -39,8 +41,15 @@ import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Map;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ACS AEM Commons - HTTP Cache - Cache invalidation job consumer
@@ -48,6 +57,11 @@ import java.util.Map;
  *
  * Sling job consumer consuming the job created for invalidating cache. For creating an invalidation job for this
  * consumer, make use of the topic and associated constants defined at {@link CacheInvalidationJobConstants}
+ *
+ * With a batch window set, the paths of the jobs are collected for the duration of the window and invalidated in one
+ * batch, so the cache stores get invalidated once per batch rather than once per changed path. Batched jobs are
+ * processed asynchronously and only reported as done once their batch got invalidated, so Sling retries them if the
+ * instance stops in between.
  */
 @Component(service=JobConsumer.class,
            immediate = true, property= {
@@ -67,8 +81,31 @@ public class HttpCacheInvalidationJobConsumer implements JobConsumer {
                 defaultValue = ""+DEFAULT_REFERENCES)
         boolean httpcache_config_invalidation_references() default DEFAULT_REFERENCES;
 
+        long DEFAULT_BATCH_WINDOW = 0L;
+        @AttributeDefinition(name = "Batch window",
+                description = "Time in milliseconds during which the invalidated paths are collected to be invalidated"
+                        + " in one batch. 0 invalidates the path of each job as the job is processed.",
+                defaultValue = ""+DEFAULT_BATCH_WINDOW)
+        long httpcache_config_invalidation_batch_window() default DEFAULT_BATCH_WINDOW;
+
+        int DEFAULT_BATCH_SIZE = 1000;
+        @AttributeDefinition(name = "Batch size",
+                description = "Number of collected paths which triggers the invalidation of the batch before the end"
+                        + " of the batch window.",
+                defaultValue = ""+DEFAULT_BATCH_SIZE)
+        int httpcache_config_invalidation_batch_size() default DEFAULT_BATCH_SIZE;
+
     }
     private boolean invalidateRefs;
+    private long batchWindow;
+    private int batchSize;
+
+    /** Paths collected for the next batch, guarded by this. */
+    private final Set<String> pendingPaths = new LinkedHashSet<>();
+    /** Jobs of the paths collected for the next batch, guarded by this. */
+    private final List<AsyncHandler> pendingJobs = new ArrayList<>();
+    private ScheduledFuture<?> scheduledBatch;
+    private ScheduledExecutorService batchExecutor;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY,
             policy = ReferencePolicy.DYNAMIC)
@@ -80,6 +117,29 @@ public class HttpCacheInvalidationJobConsumer implements JobConsumer {
     @Activate
     protected void activate(Config config) {
         invalidateRefs = config.httpcache_config_invalidation_references();
+        batchWindow = Math.max(0L, config.httpcache_config_invalidation_batch_window());
+        batchSize = Math.max(1, config.httpcache_config_invalidation_batch_size());
+
+        if (batchWindow > 0) {
+            batchExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "ACS AEM Commons - HTTP Cache - Invalidation batch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        synchronized (this) {
+            if (batchExecutor != null) {
+                batchExecutor.shutdownNow();
+                batchExecutor = null;
+            }
+        }
+        // Don't lose the paths collected so far. Without an engine to invalidate them, their jobs are failed and
+        // retried by Sling.
+        invalidateBatch();
     }
 
     @Override
@@ -92,6 +152,13 @@ public class HttpCacheInvalidationJobConsumer implements JobConsumer {
             return JobResult.CANCEL;
         }
 
+        final AsyncHandler asyncHandler = (AsyncHandler) job.getProperty(JobConsumer.PROPERTY_JOB_ASYNC_HANDLER);
+        if (batchWindow > 0 && asyncHandler != null) {
+            addToBatch(path, asyncHandler);
+            log.trace("Invalidation job for the path {} added to the batch.", path);
+            return JobResult.ASYNC;
+        }
+
         invalidate(path);
 
         if(invalidateRefs) {
@@ -102,18 +169,108 @@ public class HttpCacheInvalidationJobConsumer implements JobConsumer {
         return JobResult.OK;
     }
 
+    /**
+     * Collect the path for the next batch, scheduling the batch at the end of the batch window. A full batch gets
+     * invalidated right away.
+     *
+     * @param path         the resource to invalidate
+     * @param asyncHandler reports the job as done once its batch got invalidated
+     */
+    void addToBatch(String path, AsyncHandler asyncHandler) {
+        synchronized (this) {
+            if (batchExecutor == null) {
+                // Deactivated, let Sling retry the job.
+                asyncHandler.failed();
+                return;
+            }
+            pendingPaths.add(path);
+            pendingJobs.add(asyncHandler);
+            final boolean full = pendingPaths.size() >= batchSize;
+            if (full || scheduledBatch == null) {
+                if (scheduledBatch != null) {
+                    scheduledBatch.cancel(false);
+                }
+                // The job is only reported as done from the batch thread, after process returned.
+                scheduledBatch = batchExecutor.schedule(this::invalidateBatch, full ? 0L : batchWindow,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Invalidate the paths collected so far, along with their references if configured to, then report their jobs as
+     * done, or as failed so Sling retries them.
+     */
+    void invalidateBatch() {
+        final List<String> paths;
+        final List<AsyncHandler> jobs;
+        synchronized (this) {
+            if (scheduledBatch != null) {
+                scheduledBatch.cancel(false);
+                scheduledBatch = null;
+            }
+            paths = new ArrayList<>(pendingPaths);
+            pendingPaths.clear();
+            jobs = new ArrayList<>(pendingJobs);
+            pendingJobs.clear();
+        }
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        log.debug("invalidating a batch of {} paths", paths.size());
+        final boolean invalidated = invalidate(paths);
+
+        if (invalidated && invalidateRefs) {
+            invalidate(findReferences(paths));
+        }
+
+        for (AsyncHandler job : jobs) {
+            if (invalidated) {
+                job.ok();
+            } else {
+                job.failed();
+            }
+        }
+    }
+
+    /**
+     * Invalidate the cache for the given paths at once.
+     *
+     * @param paths the resources to invalidate
+     * @return false if the cache could not be invalidated
+     */
+    boolean invalidate(Collection<String> paths) {
+        final HttpCacheEngine engine = httpCacheEngine;
+        if (engine == null) {
+            log.debug("No HTTP cache engine, not invalidating a batch of {} paths", paths.size());
+            return false;
+        }
+        if (paths.isEmpty()) {
+            return true;
+        }
+        try {
+            engine.invalidateCache(paths);
+            return true;
+        } catch (HttpCacheException e) {
+            log.debug("Failed to invalidate the cache for a batch of {} paths", paths.size(), e);
+            return false;
+        }
+    }
+
     /**
      * Invalidate the cache for the given path
      *
      * @param path the resource to invalidate
      */
     void invalidate(String path){
+        final HttpCacheEngine engine = httpCacheEngine;
         // Check if the path in the job is applicable for the set cache configs.
-        if (httpCacheEngine.isPathPotentialToInvalidate(path)) {
+        if (engine != null && engine.isPathPotentialToInvalidate(path)) {
             // Invalidate the cache.
             try{
                 log.debug("invalidating {}", path);
-                httpCacheEngine.invalidateCache(path);
+                engine.invalidateCache(path);
             } catch (HttpCacheException e){
                 log.debug("Job with the payload path - {} has invalidated the cache", path);
             }
@@ -139,4 +296,24 @@ public class HttpCacheInvalidationJobConsumer implements JobConsumer {
             log.debug("failed to invalidate references of {}", path);
         }
     }
+
+    /**
+     * Searches for the pages referencing any of the given paths, with a single resource resolver.
+     *
+     * @param paths the paths to search for
+     * @return the paths of the referencing pages
+     */
+    Collection<String> findReferences(Collection<String> paths) {
+        final Set<String> refPaths = new LinkedHashSet<>();
+        try (ResourceResolver adminResolver = resolverFactory.getServiceResourceResolver(null)){
+            for (String path : paths) {
+                for (ReferenceSearch.Info info : new ReferenceSearch().search(adminResolver, path).values()) {
+                    refPaths.add(info.getPage().getPath());
+                }
+            }
+        } catch (Exception e){
+            log.debug("failed to search the references of a batch of {} paths", paths.size());
+        }
+        return refPaths;
+    }
 }
@@ -24,6 +24,8 @@ import com.adobe.acs.commons.httpcache.engine.CacheContent;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
 import com.adobe.acs.commons.httpcache.keys.CacheKey;
 
+import java.util.Collection;
+
 /**
  * Data store for persisting cache items. Data store implementation could be in-memory, disk or even JCR repository.
  * Multiple implementation of this cache store can be present at any time and they can work in conjunction.
@@ -40,6 +42,8 @@ public interface HttpCacheStore {
     String VALUE_JCR_CACHE_STORE_TYPE = "JCR";
     /** Value representing EHCache type of cache store for the key {@link #KEY_CACHE_STORE_TYPE} */
     String VALUE_CAFFEINE_MEMORY_STORE_TYPE = "CAFFEINE";
+    /** Value representing the tiered in-memory / lower tier cache store for the key {@link #KEY_CACHE_STORE_TYPE} */
+    String VALUE_TIERED_CACHE_STORE_TYPE = "TIERED";
 
     String PN_TTL = "httpcache.cachestore.ttl";
     String PN_MAXSIZE = "httpcache.cachestore.maxsize";
@@ -52,6 +56,19 @@ public interface HttpCacheStore {
      */
     void put(CacheKey key, CacheContent content) throws HttpCacheDataStreamException;
 
+    /**
+     * Put an item into the cache, recording the cache config which produced it. Stores which index their entries by
+     * config can use it to invalidate the entries of a config without matching every key against it.
+     *
+     * @param key         Object holding the key attributes.
+     * @param content     Object holding the content which needs to be cached.
+     * @param cacheConfig Cache config which produced the key.
+     * @throws HttpCacheDataStreamException Failure when reading the input stream.
+     */
+    default void put(CacheKey key, CacheContent content, HttpCacheConfig cacheConfig) throws HttpCacheDataStreamException {
+        put(key, content);
+    }
+
     /**
      * Check if there is an entry in cache for the given key.
      *
@@ -68,6 +85,40 @@ public interface HttpCacheStore {
      */
     CacheContent getIfPresent(CacheKey key);
 
+    /**
+     * Get the Cache item given a key, knowing the cache config which produced the key. Stores which move entries
+     * around, like between the tiers of a tiered store, use it to keep the config of the entry.
+     *
+     * @param key         Object holding the key attributes.
+     * @param cacheConfig Cache config which produced the key.
+     * @return Object holding the content which needs to be cached. Null if key not present.
+     */
+    default CacheContent getIfPresent(CacheKey key, HttpCacheConfig cacheConfig) {
+        return getIfPresent(key);
+    }
+
+    /**
+     * Get for how long the entry for the given key has been expired. Stores supporting stale entries keep an entry
+     * past its expiry for the stale grace period of its cache config, see
+     * {@link HttpCacheConfig#getStaleWhileRevalidate()} and {@link HttpCacheConfig#getStaleIfError()}.
+     *
+     * @param key
+     * @return miliseconds since the entry expired, 0 if the entry is fresh or not present.
+     */
+    default long getStaleness(CacheKey key) {
+        return 0L;
+    }
+
+    /**
+     * Whether the store keeps entries past their expiry and reports it through {@link #getStaleness(CacheKey)}. Stale
+     * entries are never served from stores which don't, whatever the stale windows of the cache config.
+     *
+     * @return true if expired entries can be served stale from this store.
+     */
+    default boolean supportsStaleness() {
+        return false;
+    }
+
     /**
      * Get the number of entries in the cache.
      *
@@ -83,6 +134,28 @@ public interface HttpCacheStore {
      */
     void invalidate(CacheKey key);
 
+    /**
+     * Remove the entry of exactly the given cache key, where {@link #invalidate(CacheKey)} drops every entry the key
+     * invalidates. Defaults to {@link #invalidate(CacheKey)} for stores looking up their entries by key anyway.
+     *
+     * @param key the key of the entry to remove.
+     */
+    default void remove(CacheKey key) {
+        invalidate(key);
+    }
+
+    /**
+     * Invalidate the given cache keys at once. Stores override this to invalidate a batch of keys with a single pass
+     * over their entries or a single repository save.
+     *
+     * @param keys the keys to invalidate.
+     */
+    default void invalidate(Collection<CacheKey> keys) {
+        for (CacheKey key : keys) {
+            invalidate(key);
+        }
+    }
+
     /**
      * Invalidate all the cached items applicable for the given cache config.
      *
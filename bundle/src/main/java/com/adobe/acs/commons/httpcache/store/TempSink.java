@@ -50,4 +50,12 @@ public interface TempSink {
      * @return Length of sink in bytes or -1 if unknown.
      */
     long length();
+
+    /**
+     * Discard the content written to the sink, for instance when the response turns out not to be cacheable. Sinks
+     * holding resources beyond the heap are expected to release them.
+     */
+    default void discard() {
+        // Nothing to release by default.
+    }
 }
@@ -37,6 +37,34 @@ public class CacheExpiryPolicy implements Expiry<CacheKey, MemCachePersistenceOb
     @Override
     public long expireAfterCreate(
             CacheKey key, MemCachePersistenceObject value, long currentTime) {
+        final long lifetime = getLifetime(key, value);
+        if (lifetime != Long.MAX_VALUE && value.getStaleGracePeriod() > 0) {
+            // Keep the entry around once expired, to serve it stale.
+            return lifetime + value.getStaleGracePeriod() * NANOSECOND_MODIFIER;
+        }
+        return lifetime;
+    }
+
+    @Override
+    public long expireAfterUpdate(
+            CacheKey key, MemCachePersistenceObject value, long currentTime, long currentDuration) {
+        if (key.getExpiryForUpdate() > 0) {
+            return key.getExpiryForUpdate() * NANOSECOND_MODIFIER;
+        }
+        if (value.getStaleGracePeriod() > 0) {
+            // A stale entry replaced by a re-rendered one starts a new lifetime.
+            return expireAfterCreate(key, value, currentTime);
+        }
+        return currentDuration;
+    }
+
+    /**
+     * Gets the lifetime of a new entry for the given key.
+     *
+     * @param key the cache key
+     * @return the lifetime in nanoseconds, Long.MAX_VALUE if the entry doesn't expire.
+     */
+    public long getLifetime(CacheKey key) {
         long customExpiryTime = key.getExpiryForCreation();
         if (customExpiryTime > 0) {
             return customExpiryTime * NANOSECOND_MODIFIER;
@@ -49,13 +77,17 @@ public class CacheExpiryPolicy implements Expiry<CacheKey, MemCachePersistenceOb
         }
     }
 
-    @Override
-    public long expireAfterUpdate(
-            CacheKey key, MemCachePersistenceObject value, long currentTime, long currentDuration) {
-        if (key.getExpiryForUpdate() > 0) {
-            return key.getExpiryForUpdate() * NANOSECOND_MODIFIER;
+    /**
+     * Gets the lifetime left to a new entry, which is shorter than the one of its key if the entry carries an earlier
+     * expiry, like an entry moved in from another store.
+     */
+    private long getLifetime(CacheKey key, MemCachePersistenceObject value) {
+        final long lifetime = getLifetime(key);
+        if (value.getExpiresOn() <= 0) {
+            return lifetime;
         }
-        return currentDuration;
+        final long remaining = Math.max(0L, value.getExpiresOn() - System.currentTimeMillis()) * NANOSECOND_MODIFIER;
+        return Math.min(lifetime, remaining);
     }
 
     @Override
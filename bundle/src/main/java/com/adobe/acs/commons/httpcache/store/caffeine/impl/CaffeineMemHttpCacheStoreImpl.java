@@ -26,6 +26,7 @@ import com.adobe.acs.commons.httpcache.exception.HttpCacheKeyCreationException;
 import com.adobe.acs.commons.httpcache.keys.CacheKey;
 import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
 import com.adobe.acs.commons.httpcache.store.TempSink;
+import com.adobe.acs.commons.httpcache.store.mem.impl.MemCacheKeyIndex;
 import com.adobe.acs.commons.httpcache.store.mem.impl.MemCacheMBean;
 import com.adobe.acs.commons.httpcache.store.mem.impl.MemCachePersistenceObject;
 import com.adobe.acs.commons.httpcache.store.mem.impl.MemTempSinkImpl;
@@ -33,7 +34,6 @@ import com.adobe.acs.commons.util.impl.AbstractCacheMBean;
 import com.adobe.acs.commons.util.impl.exception.CacheMBeanException;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.Expiry;
 import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.github.benmanes.caffeine.cache.RemovalListener;
 import com.github.benmanes.caffeine.cache.Weigher;
@@ -49,8 +49,9 @@ import javax.management.openmbean.OpenType;
 import javax.management.openmbean.SimpleType;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Set;
 
 /**
  * In-memory cache store implementation. Uses Caffeine Cache.
@@ -66,16 +67,31 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
     /** Cache - Uses Caffeine cache */
     private final Cache<CacheKey, MemCachePersistenceObject> cache;
 
-    private final Expiry<CacheKey, MemCachePersistenceObject> expiryPolicy;
+    /** Reverse index of the cached keys, used to look up the keys affected by an invalidation. */
+    private final MemCacheKeyIndex<MemCachePersistenceObject> index = new MemCacheKeyIndex<>();
+
+    private final CacheExpiryPolicy expiryPolicy;
     private final long ttl;
     private final long maxSizeInMb;
+    private final EvictionListener evictionListener;
 
     public CaffeineMemHttpCacheStoreImpl(Config config) throws NotCompliantMBeanException {
+        this(config.httpcache_cachestore_caffeinecache_ttl(), config.httpcache_cachestore_caffeinecache_maxsize(), null);
+    }
+
+    /**
+     * @param ttl              TTL for all entries in seconds, -1 meaning no TTL.
+     * @param maxSizeInMb      maximum size of the store in MB.
+     * @param evictionListener notified of the entries evicted for size, may be null.
+     */
+    public CaffeineMemHttpCacheStoreImpl(long ttl, long maxSizeInMb, EvictionListener evictionListener)
+            throws NotCompliantMBeanException {
         super(MemCacheMBean.class);
         // Read config and populate values.
-        expiryPolicy = new CacheExpiryPolicy(config.httpcache_cachestore_caffeinecache_ttl());
-        this.ttl = config.httpcache_cachestore_caffeinecache_ttl();
-        this.maxSizeInMb = config.httpcache_cachestore_caffeinecache_maxsize();
+        expiryPolicy = new CacheExpiryPolicy(ttl);
+        this.ttl = ttl;
+        this.maxSizeInMb = maxSizeInMb;
+        this.evictionListener = evictionListener;
 
         // Initializing the cache.
         // If cache is present, invalidate all and reinitialize the cache.
@@ -89,7 +105,7 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
                 .maximumWeight(maxSizeInMb * MEGABYTE)
                 .weigher(new MemCacheEntryWeigher())
                 .expireAfter(expiryPolicy)
-                .removalListener(new MemCacheEntryRemovalListener())
+                .removalListener(new MemCacheEntryRemovalListener(index, evictionListener))
                 .recordStats()
                 .build();
     }
@@ -142,12 +158,37 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
 
 
     /**
-     * Removal listener for cache entry items.
+     * Listener notified of the entries evicted from the store to keep it within its maximum size.
+     */
+    @FunctionalInterface
+    public interface EvictionListener {
+        /**
+         * @param key   the evicted key.
+         * @param value the evicted value.
+         * @param owner the cache config which produced the key, null if unknown.
+         */
+        void onEviction(CacheKey key, MemCachePersistenceObject value, HttpCacheConfig owner);
+    }
+
+    /**
+     * Removal listener for cache entry items. Keeps the key index in line with the cache.
      */
     private static class MemCacheEntryRemovalListener implements RemovalListener<CacheKey, MemCachePersistenceObject> {
+        private final MemCacheKeyIndex<MemCachePersistenceObject> index;
+        private final EvictionListener evictionListener;
+
+        MemCacheEntryRemovalListener(MemCacheKeyIndex<MemCachePersistenceObject> index, EvictionListener evictionListener) {
+            this.index = index;
+            this.evictionListener = evictionListener;
+        }
+
         @Override
         public void onRemoval(CacheKey cacheKey, MemCachePersistenceObject memCachePersistenceObject, RemovalCause removalCause) {
-            //do nothing as of now
+            if (evictionListener != null && removalCause == RemovalCause.SIZE) {
+                // Notified before the key leaves the index, so its owner is still known.
+                evictionListener.onEviction(cacheKey, memCachePersistenceObject, index.getOwner(cacheKey));
+            }
+            index.remove(cacheKey, memCachePersistenceObject);
         }
     }
 
@@ -158,17 +199,54 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
 
         @Override
         public int weigh(CacheKey memCacheKey, MemCachePersistenceObject memCachePersistenceObject) {
-            // Size of the byte array.
-            return memCachePersistenceObject.getBytes().length;
+            // Size of the byte arrays.
+            return memCachePersistenceObject.getStoredLength();
         }
     }
 
     //-------------------------<CacheStore interface specific implementation>
     @Override
     public void put(CacheKey key, CacheContent content) throws HttpCacheDataStreamException {
-        cache.put(key, new MemCachePersistenceObject().buildForCaching(content.getStatus(), content.getCharEncoding(),
-                content.getContentType(), content.getHeaders(), content.getInputDataStream(), content.getWriteMethod()));
+        put(key, content, null);
+    }
 
+    @Override
+    public void put(CacheKey key, CacheContent content, HttpCacheConfig cacheConfig) throws HttpCacheDataStreamException {
+        put(key, content, cacheConfig, 0L);
+    }
+
+    /**
+     * Put an entry which expires at the given time, instead of after the TTL of the store or of its key. Used to keep
+     * the expiry of an entry moved in from another store.
+     *
+     * @param expiresOn time the entry expires, in miliseconds since the epoch; 0 to apply the TTL.
+     */
+    public void put(CacheKey key, CacheContent content, HttpCacheConfig cacheConfig, long expiresOn)
+            throws HttpCacheDataStreamException {
+        // Size the body upfront when the temp sink knows its length.
+        final long length = content.getTempSink() == null ? -1L : content.getTempSink().length();
+        final MemCachePersistenceObject value = new MemCachePersistenceObject().buildForCaching(content.getStatus(),
+                content.getCharEncoding(), content.getContentType(), content.getHeaders(), content.getInputDataStream(),
+                length, content.getWriteMethod());
+        if (null != cacheConfig) {
+            value.addEncodedVariants(cacheConfig.getPrecompressedEncodings());
+        }
+        final long staleGracePeriod = getStaleGracePeriod(cacheConfig);
+        final long lifetime = expiryPolicy.getLifetime(key);
+        if (expiresOn > 0) {
+            value.setExpiresOn(expiresOn);
+        } else if (lifetime != Long.MAX_VALUE) {
+            value.setExpiresOn(System.currentTimeMillis() + lifetime / NANOSECOND_MODIFIER);
+        }
+        if (staleGracePeriod > 0 && value.getExpiresOn() > 0) {
+            value.setStaleGracePeriod(value.getExpiresOn(), staleGracePeriod);
+        }
+        // Indexed while the cache holds the lock of the entry, so an invalidation or eviction can't run in between.
+        // The removal notification of a replaced value is then ignored by the index.
+        cache.asMap().compute(key, (k, previous) -> {
+            index.add(k, value, cacheConfig);
+            return value;
+        });
     }
 
     @Override
@@ -179,6 +257,27 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
         return true;
     }
 
+    @Override
+    public boolean supportsStaleness() {
+        return true;
+    }
+
+    @Override
+    public long getStaleness(CacheKey key) {
+        final MemCachePersistenceObject value = cache.getIfPresent(key);
+        if (null == value) {
+            return 0L;
+        }
+        return value.getStaleness(System.currentTimeMillis());
+    }
+
+    private static long getStaleGracePeriod(HttpCacheConfig cacheConfig) {
+        if (null == cacheConfig) {
+            return 0L;
+        }
+        return Math.max(0L, Math.max(cacheConfig.getStaleWhileRevalidate(), cacheConfig.getStaleIfError()));
+    }
+
     @Override
     public CacheContent getIfPresent(CacheKey key) {
         MemCachePersistenceObject value = cache.getIfPresent(key);
@@ -189,8 +288,11 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
         // Increment hit count
         value.incrementHitCount();
 
-        return new CacheContent(value.getStatus(), value.getCharEncoding(), value.getContentType(), value.getHeaders(), new
-                ByteArrayInputStream(value.getBytes()));
+        final CacheContent content = new CacheContent(value.getStatus(), value.getCharEncoding(), value.getContentType(),
+                value.getHeaders(), new ByteArrayInputStream(value.getBytes()));
+        value.getEncodedBytes().forEach((contentCoding, encoded) ->
+                content.addEncodedVariant(contentCoding, () -> new ByteArrayInputStream(encoded)));
+        return content;
     }
 
     @Override
@@ -200,19 +302,29 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
 
     @Override
     public void invalidate(CacheKey invalidationKey) {
-        final ConcurrentMap<CacheKey, MemCachePersistenceObject> cacheAsMap = cache.asMap();
-
-        for (CacheKey key : cacheAsMap.keySet()) {
+        for (CacheKey key : index.getInvalidationCandidates(invalidationKey)) {
             if (key.isInvalidatedBy(invalidationKey)) {
                 cache.invalidate(key);
             }
         }
     }
 
+    @Override
+    public void remove(CacheKey key) {
+        cache.invalidate(key);
+    }
+
+    @Override
+    public void invalidate(Collection<CacheKey> invalidationKeys) {
+        cache.invalidateAll(index.getInvalidatedKeys(invalidationKeys));
+    }
+
     @Override
     public void invalidate(HttpCacheConfig cacheConfig) {
-        ConcurrentMap<CacheKey, MemCachePersistenceObject> cacheAsMap = cache.asMap();
-        for (CacheKey key : cacheAsMap.keySet()) {
+        // Only match the keys produced by the config and those of unknown origin, other configs' keys are left alone.
+        final Set<CacheKey> candidates = index.getKeysOwnedBy(cacheConfig);
+        candidates.addAll(index.getKeysWithoutOwner());
+        for (CacheKey key : candidates) {
             // Match the cache key with cache config.
             try {
                 if (cacheConfig.knows(key)) {
@@ -0,0 +1,203 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.disk.impl;
+
+import com.adobe.acs.commons.httpcache.engine.CacheContent;
+import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import com.adobe.acs.commons.util.DynamicObjectInputStream;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory handle of an entry of the disk cache store. Holds the response metadata and the location of the body in
+ * its segment; the body itself stays off-heap in the mapped segment.
+ */
+class DiskCacheEntry {
+
+    private final CacheKey key;
+    private final int status;
+    private final String charEncoding;
+    private final String contentType;
+    private final Map<String, List<String>> headers;
+    private final HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod;
+
+    private DiskCacheSegment segment;
+    private int recordOffset;
+    private long bodyLength;
+    private long expiresOn;
+
+    private DiskCacheEntry(CacheKey key, int status, String charEncoding, String contentType,
+                           Map<String, List<String>> headers, HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod) {
+        this.key = key;
+        this.status = status;
+        this.charEncoding = charEncoding;
+        this.contentType = contentType;
+        this.headers = headers;
+        this.writeMethod = writeMethod;
+    }
+
+    /**
+     * Create an entry for the given content. Sling Tracer headers are not kept, matching the in-memory stores.
+     */
+    static DiskCacheEntry forContent(CacheKey key, CacheContent content) {
+        final Map<String, List<String>> headers = new HashMap<>();
+        if (content.getHeaders() != null) {
+            for (Map.Entry<String, List<String>> entry : content.getHeaders().entrySet()) {
+                if (!"Sling-Tracer-Protocol-Version".equals(entry.getKey()) && !"Sling-Tracer-Request-Id".equals(entry.getKey())) {
+                    headers.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+                }
+            }
+        }
+        return new DiskCacheEntry(key, content.getStatus(), content.getCharEncoding(), content.getContentType(), headers,
+                content.getWriteMethod());
+    }
+
+    /**
+     * Read an entry back from the metadata of a record.
+     */
+    static DiskCacheEntry read(DiskCacheSegment segment, int recordOffset, ClassLoader classLoader)
+            throws IOException, ClassNotFoundException {
+        try (DataInputStream in = new DataInputStream(segment.openMetadata(recordOffset))) {
+            final byte[] keyBytes = new byte[in.readInt()];
+            in.readFully(keyBytes);
+            final CacheKey key;
+            try (DynamicObjectInputStream keyStream = new DynamicObjectInputStream(
+                    new ByteArrayInputStream(keyBytes), classLoader)) {
+                key = (CacheKey) keyStream.readObject();
+            }
+
+            final int status = in.readInt();
+            final String charEncoding = readNullableString(in);
+            final String contentType = readNullableString(in);
+            final String writeMethodName = readNullableString(in);
+
+            final int headerCount = in.readInt();
+            final Map<String, List<String>> headers = new HashMap<>(headerCount);
+            for (int i = 0; i < headerCount; i++) {
+                final String name = in.readUTF();
+                final int valueCount = in.readInt();
+                final List<String> values = new ArrayList<>(valueCount);
+                for (int j = 0; j < valueCount; j++) {
+                    values.add(in.readUTF());
+                }
+                headers.put(name, values);
+            }
+
+            final DiskCacheEntry entry = new DiskCacheEntry(key, status, charEncoding, contentType, headers,
+                    writeMethodName == null ? null : HttpCacheServletResponseWrapper.ResponseWriteMethod.valueOf(writeMethodName));
+            entry.setLocation(segment, recordOffset, segment.getBodyLength(recordOffset), segment.getExpiresOn(recordOffset));
+            return entry;
+        }
+    }
+
+    /**
+     * Serialize the metadata of this entry for storage in front of the body.
+     */
+    byte[] toMetadata() throws IOException {
+        final ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream keyStream = new ObjectOutputStream(keyBytes)) {
+            keyStream.writeObject(key);
+        }
+
+        final ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(metadata)) {
+            out.writeInt(keyBytes.size());
+            keyBytes.writeTo(out);
+            out.writeInt(status);
+            writeNullableString(out, charEncoding);
+            writeNullableString(out, contentType);
+            writeNullableString(out, writeMethod == null ? null : writeMethod.name());
+
+            out.writeInt(headers.size());
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                out.writeUTF(header.getKey());
+                out.writeInt(header.getValue().size());
+                for (String value : header.getValue()) {
+                    out.writeUTF(StringUtils.defaultString(value));
+                }
+            }
+        }
+        return metadata.toByteArray();
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    void setLocation(DiskCacheSegment segment, int recordOffset, long bodyLength, long expiresOn) {
+        this.segment = segment;
+        this.recordOffset = recordOffset;
+        this.bodyLength = bodyLength;
+        this.expiresOn = expiresOn;
+    }
+
+    CacheKey getKey() {
+        return key;
+    }
+
+    DiskCacheSegment getSegment() {
+        return segment;
+    }
+
+    int getRecordOffset() {
+        return recordOffset;
+    }
+
+    long getBodyLength() {
+        return bodyLength;
+    }
+
+    boolean isExpired(long now) {
+        return expiresOn > 0 && expiresOn <= now;
+    }
+
+    /**
+     * Build the cache content for this entry. The body is streamed from the mapped segment.
+     */
+    CacheContent toCacheContent() {
+        final Map<String, List<String>> headersCopy = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            headersCopy.put(header.getKey(), new ArrayList<>(header.getValue()));
+        }
+
+        final InputStream body = segment.openBody(segment.getBodyOffset(recordOffset), bodyLength);
+        return new CacheContent(status, charEncoding, contentType, headersCopy, body,
+                writeMethod == null ? HttpCacheServletResponseWrapper.ResponseWriteMethod.PRINTWRITER : writeMethod);
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.disk.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A fixed-capacity, append-only segment file of the disk cache store which is read and written through a
+ * memory-mapped buffer.
+ * <p>
+ * Record layout: <code>int magic | int metadataLength | long bodyLength | long expiresOn | metadata | body</code>.
+ * The magic number is written last, so a record interrupted by a crash is never picked up on restart.
+ * </p>
+ * <p>
+ * Every segment is accompanied by a compact index file made of 5 byte operations (<code>byte op | int offset</code>)
+ * recording which records got added and which got invalidated. The index is replayed on activation to restore the
+ * live entries; if it is missing it is rebuilt by scanning the record headers of the segment.
+ * </p>
+ */
+class DiskCacheSegment implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(DiskCacheSegment.class);
+
+    static final String DATA_EXTENSION = ".seg";
+    static final String INDEX_EXTENSION = ".idx";
+
+    static final int HEADER_LENGTH = 24;
+
+    static final int COPY_BUFFER_SIZE = 8192;
+
+    private static final int MAGIC = 0xACC5D15C;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int INDEX_OP_LENGTH = 5;
+
+    private final int id;
+    private final File dataFile;
+    private final File indexFile;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer buffer;
+
+    /** Position where the next record will be appended. Only mutated under the store's write lock. */
+    private volatile int writePosition;
+    /** Position of the body currently being appended. */
+    private int cursor;
+
+    private DiskCacheSegment(int id, File dataFile, File indexFile, MappedByteBuffer buffer) throws IOException {
+        this.id = id;
+        this.dataFile = dataFile;
+        this.indexFile = indexFile;
+        this.buffer = buffer;
+        this.indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Create a new, empty segment of the given capacity.
+     */
+    static DiskCacheSegment create(File directory, int id, int capacity) throws IOException {
+        final File dataFile = new File(directory, fileName(id, DATA_EXTENSION));
+        final File indexFile = new File(directory, fileName(id, INDEX_EXTENSION));
+
+        final MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+            file.setLength(capacity);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Unable to clear stale index file " + indexFile);
+        }
+
+        return new DiskCacheSegment(id, dataFile, indexFile, buffer);
+    }
+
+    /**
+     * Open an existing segment, positioning the write position after its last complete record.
+     */
+    static DiskCacheSegment open(File directory, int id) throws IOException {
+        final File dataFile = new File(directory, fileName(id, DATA_EXTENSION));
+        final File indexFile = new File(directory, fileName(id, INDEX_EXTENSION));
+
+        final MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        }
+
+        final DiskCacheSegment segment = new DiskCacheSegment(id, dataFile, indexFile, buffer);
+        int position = 0;
+        while (segment.isRecordAt(position)) {
+            position = segment.getRecordEnd(position);
+        }
+        segment.writePosition = position;
+        return segment;
+    }
+
+    static String fileName(int id, String extension) {
+        return String.format("%010d%s", id, extension);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int getCapacity() {
+        return buffer.capacity();
+    }
+
+    int getWritePosition() {
+        return writePosition;
+    }
+
+    //-------------------------<Writing>
+
+    /**
+     * Start a record by writing its metadata.
+     *
+     * @return the record offset, or -1 when the metadata does not fit in this segment.
+     */
+    int beginRecord(byte[] metadata) {
+        final int offset = writePosition;
+        if ((long) offset + HEADER_LENGTH + metadata.length > buffer.capacity()) {
+            return -1;
+        }
+
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.putInt(0);
+        view.putInt(metadata.length);
+        view.putLong(0L);
+        view.putLong(0L);
+        view.put(metadata);
+        cursor = view.position();
+        return offset;
+    }
+
+    /**
+     * Append bytes to the body of the record in progress.
+     *
+     * @return false if the bytes do not fit in this segment; nothing is written in that case.
+     */
+    boolean writeBody(byte[] bytes, int offset, int length) {
+        if ((long) cursor + length > buffer.capacity()) {
+            return false;
+        }
+
+        final ByteBuffer view = buffer.duplicate();
+        view.position(cursor);
+        view.put(bytes, offset, length);
+        cursor += length;
+        return true;
+    }
+
+    /**
+     * Copy the body bytes written so far for the record in progress into the record in progress of another segment.
+     *
+     * @return false if the bytes do not fit in the target segment.
+     */
+    boolean transferBodyTo(int recordOffset, DiskCacheSegment target) {
+        final int bodyOffset = getBodyOffset(recordOffset);
+        final ByteBuffer view = buffer.duplicate();
+        view.position(bodyOffset);
+        view.limit(cursor);
+
+        final byte[] chunk = new byte[COPY_BUFFER_SIZE];
+        while (view.hasRemaining()) {
+            final int length = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, length);
+            if (!target.writeBody(chunk, 0, length)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Complete the record in progress, making it visible to restarts.
+     *
+     * @return the length of the body.
+     */
+    long commitRecord(int recordOffset, long expiresOn) throws IOException {
+        final int metadataLength = buffer.getInt(recordOffset + 4);
+        final long bodyLength = (long) cursor - recordOffset - HEADER_LENGTH - metadataLength;
+
+        buffer.putLong(recordOffset + 8, bodyLength);
+        buffer.putLong(recordOffset + 16, expiresOn);
+        buffer.putInt(recordOffset, MAGIC);
+        writePosition = cursor;
+
+        appendIndexOperation(OP_PUT, recordOffset);
+        return bodyLength;
+    }
+
+    /**
+     * Drop the record in progress. It will be overwritten by the next record.
+     */
+    void abortRecord() {
+        cursor = writePosition;
+    }
+
+    /**
+     * Record that the entry at the given offset has been invalidated.
+     */
+    void markRemoved(int recordOffset) {
+        if (!indexChannel.isOpen()) {
+            // The segment has been evicted, nothing left to record.
+            return;
+        }
+        try {
+            appendIndexOperation(OP_REMOVE, recordOffset);
+        } catch (IOException e) {
+            log.warn("Unable to record the invalidation of entry {} in disk cache segment {}", recordOffset, id, e);
+        }
+    }
+
+    private synchronized void appendIndexOperation(byte op, int recordOffset) throws IOException {
+        final ByteBuffer operation = ByteBuffer.allocate(INDEX_OP_LENGTH);
+        operation.put(op).putInt(recordOffset).flip();
+        while (operation.hasRemaining()) {
+            indexChannel.write(operation);
+        }
+    }
+
+    //-------------------------<Reading>
+
+    boolean isRecordAt(int offset) {
+        return offset >= 0
+                && offset + HEADER_LENGTH <= buffer.capacity()
+                && buffer.getInt(offset) == MAGIC
+                && getRecordEndAsLong(offset) <= buffer.capacity();
+    }
+
+    int getMetadataLength(int recordOffset) {
+        return buffer.getInt(recordOffset + 4);
+    }
+
+    long getBodyLength(int recordOffset) {
+        return buffer.getLong(recordOffset + 8);
+    }
+
+    long getExpiresOn(int recordOffset) {
+        return buffer.getLong(recordOffset + 16);
+    }
+
+    int getBodyOffset(int recordOffset) {
+        return recordOffset + HEADER_LENGTH + getMetadataLength(recordOffset);
+    }
+
+    private int getRecordEnd(int recordOffset) {
+        return (int) getRecordEndAsLong(recordOffset);
+    }
+
+    private long getRecordEndAsLong(int recordOffset) {
+        return (long) recordOffset + HEADER_LENGTH + getMetadataLength(recordOffset) + getBodyLength(recordOffset);
+    }
+
+    /**
+     * Get a stream over the metadata of the record.
+     */
+    InputStream openMetadata(int recordOffset) {
+        return new ByteBufferInputStream(slice(recordOffset + HEADER_LENGTH, getMetadataLength(recordOffset)));
+    }
+
+    /**
+     * Get a stream over the body of the record. The stream reads directly from the mapped segment.
+     */
+    InputStream openBody(int bodyOffset, long bodyLength) {
+        return new ByteBufferInputStream(slice(bodyOffset, (int) bodyLength));
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    /**
+     * Determine the offsets of the records of this segment that were not invalidated. Replays the index file, or
+     * rebuilds it from the record headers if it is missing or unreadable.
+     */
+    Set<Integer> readLiveRecordOffsets() throws IOException {
+        final Set<Integer> offsets = new LinkedHashSet<>();
+
+        if (indexFile.length() > 0 && indexFile.length() % INDEX_OP_LENGTH == 0) {
+            final ByteBuffer index = ByteBuffer.allocate((int) indexFile.length());
+            try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                while (index.hasRemaining() && channel.read(index) >= 0) {
+                    // keep reading
+                }
+            }
+            index.flip();
+
+            while (index.hasRemaining()) {
+                final byte op = index.get();
+                final int offset = index.getInt();
+                if (op == OP_PUT && offset < writePosition && isRecordAt(offset)) {
+                    offsets.add(offset);
+                } else if (op == OP_REMOVE) {
+                    offsets.remove(offset);
+                }
+            }
+        } else {
+            log.info("Rebuilding index of disk cache segment {}", dataFile);
+            indexChannel.truncate(0);
+
+            int offset = 0;
+            while (offset < writePosition) {
+                offsets.add(offset);
+                appendIndexOperation(OP_PUT, offset);
+                offset = getRecordEnd(offset);
+            }
+        }
+
+        return offsets;
+    }
+
+    //-------------------------<Lifecycle>
+
+    @Override
+    public void close() {
+        try {
+            indexChannel.close();
+        } catch (IOException e) {
+            log.debug("Unable to close index of disk cache segment {}", dataFile, e);
+        }
+    }
+
+    /**
+     * Close the segment and remove its files. Streams already handed out keep reading from the mapping.
+     */
+    void delete() {
+        close();
+        if (!dataFile.delete() || !indexFile.delete()) {
+            log.warn("Unable to delete all files of disk cache segment {}", dataFile);
+        }
+    }
+}
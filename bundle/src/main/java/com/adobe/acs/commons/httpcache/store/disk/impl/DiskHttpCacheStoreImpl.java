@@ -22,66 +22,426 @@ package com.adobe.acs.commons.httpcache.store.disk.impl;
 import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
 import com.adobe.acs.commons.httpcache.engine.CacheContent;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
+import com.adobe.acs.commons.httpcache.exception.HttpCacheKeyCreationException;
 import com.adobe.acs.commons.httpcache.keys.CacheKey;
 import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
 import com.adobe.acs.commons.httpcache.store.TempSink;
-import org.apache.commons.lang.NotImplementedException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.commons.classloader.DynamicClassLoaderManager;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ACS AEM Commons - HTTP Cache - Disk based cache store implementation.
+ * <p>
+ * Response bodies are appended to fixed-size segment files which are memory-mapped, so cached content lives in the
+ * OS page cache rather than on the heap and is streamed from the mapping on delivery. Each segment carries a compact
+ * index which is replayed on activation, so the cache survives restarts. When the store reaches its maximum size the
+ * oldest segment is dropped as a whole.
+ * </p>
  */
-
-// TODO - Placeholder component. To be implemented.
-@Component(service=HttpCacheStore.class, 
-      property= {
-      HttpCacheStore.KEY_CACHE_STORE_TYPE + "=" + HttpCacheStore.VALUE_DISK_CACHE_STORE_TYPE
-})
+@Component(service = HttpCacheStore.class,
+        property = {
+                HttpCacheStore.KEY_CACHE_STORE_TYPE + "=" + HttpCacheStore.VALUE_DISK_CACHE_STORE_TYPE,
+                "webconsole.configurationFactory.nameHint" + "=" + "TTL: {httpcache.cachestore.diskcache.ttl}, "
+                        + "Max size in MB: {httpcache.cachestore.diskcache.maxsize}"
+        })
+@Designate(ocd = DiskHttpCacheStoreImpl.Config.class)
 public class DiskHttpCacheStoreImpl implements HttpCacheStore {
+
+    @ObjectClassDefinition(name = "ACS AEM Commons - HTTP Cache - Disk cache store.",
+            description = "Cache data store implementation for memory-mapped disk storage.")
+    public @interface Config {
+
+        String DEFAULT_PATH = "";
+
+        long DEFAULT_TTL = -1L; // Defaults to -1 meaning no TTL.
+
+        long DEFAULT_MAX_SIZE_IN_MB = 1024L;
+
+        int DEFAULT_SEGMENT_SIZE_IN_MB = 64;
+
+        @AttributeDefinition(name = "Directory",
+                description = "Directory holding the cache segments. If relative, relative to ${sling.home}. "
+                        + "Defaults to the bundle's data area.",
+                defaultValue = DEFAULT_PATH)
+        String httpcache_cachestore_diskcache_path() default DEFAULT_PATH;
+
+        @AttributeDefinition(name = "TTL",
+                description = "TTL for all entries in this cache in seconds. Default to -1 meaning no TTL.",
+                defaultValue = "" + DEFAULT_TTL)
+        long httpcache_cachestore_diskcache_ttl() default DEFAULT_TTL;
+
+        @AttributeDefinition(name = "Maximum size of this store in MB",
+                description = "Default to 1024MB. If cache size goes beyond this size, the oldest segment is evicted "
+                        + "from the cache",
+                defaultValue = "" + DEFAULT_MAX_SIZE_IN_MB)
+        long httpcache_cachestore_diskcache_maxsize() default DEFAULT_MAX_SIZE_IN_MB;
+
+        @AttributeDefinition(name = "Segment size in MB",
+                description = "Size of a single segment file. Responses larger than this are not cached. Default to 64MB.",
+                defaultValue = "" + DEFAULT_SEGMENT_SIZE_IN_MB)
+        int httpcache_cachestore_diskcache_segmentsize() default DEFAULT_SEGMENT_SIZE_IN_MB;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(DiskHttpCacheStoreImpl.class);
+
+    /** Megabyte to byte */
+    private static final long MEGABYTE = 1024L * 1024L;
+
+    private static final String DEFAULT_DATA_DIRECTORY = "httpcache";
+    private static final String TEMP_DIRECTORY = "tmp";
+
+    @Reference
+    private DynamicClassLoaderManager dynamicClassLoaderManager;
+
+    private final ConcurrentMap<CacheKey, DiskCacheEntry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, DiskCacheSegment> segments = new ConcurrentSkipListMap<>();
+    private final Object writeLock = new Object();
+
+    private File directory;
+    private File tempDirectory;
+    private long ttl;
+    private int segmentSize;
+    private int maxSegments;
+    private DiskCacheSegment activeSegment;
+
+    @Activate
+    protected void activate(BundleContext bundleContext, Config config) throws IOException {
+        final String path = config.httpcache_cachestore_diskcache_path();
+        File dir;
+        if (StringUtils.isBlank(path)) {
+            dir = bundleContext.getDataFile(DEFAULT_DATA_DIRECTORY);
+        } else {
+            dir = new File(path);
+            if (!dir.isAbsolute()) {
+                dir = new File(bundleContext.getProperty("sling.home"), path);
+            }
+        }
+
+        this.ttl = config.httpcache_cachestore_diskcache_ttl();
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(1, config.httpcache_cachestore_diskcache_segmentsize()) * MEGABYTE);
+        this.maxSegments = (int) Math.max(2, config.httpcache_cachestore_diskcache_maxsize() * MEGABYTE / segmentSize);
+
+        open(dir);
+        log.info("DiskHttpCacheStoreImpl activated with {} entries restored from {}.", entries.size(), directory);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        synchronized (writeLock) {
+            for (DiskCacheSegment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+            entries.clear();
+            activeSegment = null;
+        }
+        log.info("DiskHttpCacheStoreImpl deactivated.");
+    }
+
+    /**
+     * Open the store directory and restore the entries of all existing segments.
+     */
+    private void open(File dir) throws IOException {
+        this.directory = dir;
+        this.tempDirectory = new File(dir, TEMP_DIRECTORY);
+        FileUtils.forceMkdir(directory);
+        // Temp sinks of requests in flight during shutdown are of no use anymore.
+        FileUtils.deleteDirectory(tempDirectory);
+        FileUtils.forceMkdir(tempDirectory);
+
+        final ClassLoader classLoader = dynamicClassLoaderManager.getDynamicClassLoader();
+        final long now = System.currentTimeMillis();
+
+        // Segment ids grow monotonically, restore them oldest first.
+        final SortedSet<Integer> ids = new TreeSet<>();
+        final String[] dataFiles = directory.list((d, name) -> name.endsWith(DiskCacheSegment.DATA_EXTENSION));
+        for (String dataFile : dataFiles == null ? new String[0] : dataFiles) {
+            final String id = StringUtils.substringBefore(dataFile, DiskCacheSegment.DATA_EXTENSION);
+            if (StringUtils.isNumeric(id)) {
+                ids.add(Integer.parseInt(id));
+            }
+        }
+
+        for (int id : ids) {
+            final File dataFile = new File(directory, DiskCacheSegment.fileName(id, DiskCacheSegment.DATA_EXTENSION));
+            try {
+                final DiskCacheSegment segment = DiskCacheSegment.open(directory, id);
+                segments.put(id, segment);
+                restoreEntries(segment, classLoader, now);
+            } catch (IOException e) {
+                log.warn("Unable to open disk cache segment {}, discarding it.", dataFile, e);
+                FileUtils.deleteQuietly(dataFile);
+                FileUtils.deleteQuietly(new File(directory, DiskCacheSegment.fileName(id, DiskCacheSegment.INDEX_EXTENSION)));
+            }
+        }
+    }
+
+    private void restoreEntries(DiskCacheSegment segment, ClassLoader classLoader, long now) throws IOException {
+        for (Integer offset : segment.readLiveRecordOffsets()) {
+            try {
+                final DiskCacheEntry entry = DiskCacheEntry.read(segment, offset, classLoader);
+                if (entry.isExpired(now)) {
+                    segment.markRemoved(offset);
+                    continue;
+                }
+                // Segments are restored oldest first, so later writes of the same key win.
+                final DiskCacheEntry previous = entries.put(entry.getKey(), entry);
+                if (previous != null) {
+                    previous.getSegment().markRemoved(previous.getRecordOffset());
+                }
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                log.debug("Unable to restore disk cache entry at {} of segment {}", offset, segment.getId(), e);
+                segment.markRemoved(offset);
+            }
+        }
+    }
+
+    //-------------------------<CacheStore interface specific implementation>
     @Override
     public void put(CacheKey key, CacheContent content) throws HttpCacheDataStreamException {
-        throw new NotImplementedException();
+        final DiskCacheEntry entry = DiskCacheEntry.forContent(key, content);
+
+        try {
+            final byte[] metadata = entry.toMetadata();
+            if (DiskCacheSegment.HEADER_LENGTH + metadata.length > segmentSize) {
+                log.debug("Cache entry metadata for {} exceeds the segment size and is not cached.", key);
+                return;
+            }
+
+            synchronized (writeLock) {
+                if (!append(entry, metadata, content.getInputDataStream())) {
+                    log.debug("Response for {} exceeds the segment size of the disk cache and is not cached.", key);
+                    return;
+                }
+
+                // Published under the write lock so a concurrent eviction or clear cannot be missed.
+                final DiskCacheEntry previous = entries.put(key, entry);
+                if (previous != null) {
+                    previous.getSegment().markRemoved(previous.getRecordOffset());
+                }
+            }
+        } catch (IOException e) {
+            throw new HttpCacheDataStreamException("Unable to write cache entry to disk", e);
+        }
+    }
+
+    /**
+     * Append an entry to the active segment, rolling over to a new segment when it runs full. Must be called while
+     * holding the write lock.
+     *
+     * @return false if the entry does not fit in a single segment.
+     */
+    private boolean append(DiskCacheEntry entry, byte[] metadata, InputStream body) throws IOException {
+        DiskCacheSegment segment = getActiveSegment();
+        int recordOffset = segment.beginRecord(metadata);
+        if (recordOffset < 0) {
+            segment = rollOver();
+            recordOffset = segment.beginRecord(metadata);
+        }
+
+        final byte[] chunk = new byte[DiskCacheSegment.COPY_BUFFER_SIZE];
+        int read;
+        while ((read = body.read(chunk)) != -1) {
+            if (!segment.writeBody(chunk, 0, read)) {
+                if (recordOffset == 0) {
+                    // The record already spans a complete segment
+                    segment.abortRecord();
+                    return false;
+                }
+
+                // Move the partial record over to a fresh segment.
+                final DiskCacheSegment next = rollOver();
+                final int nextRecordOffset = next.beginRecord(metadata);
+                final boolean moved = segment.transferBodyTo(recordOffset, next) && next.writeBody(chunk, 0, read);
+                segment.abortRecord();
+                segment = next;
+                recordOffset = nextRecordOffset;
+                if (!moved) {
+                    segment.abortRecord();
+                    return false;
+                }
+            }
+        }
+
+        final long expiresOn = getExpiresOn(entry.getKey());
+        final long bodyLength = segment.commitRecord(recordOffset, expiresOn);
+        entry.setLocation(segment, recordOffset, bodyLength, expiresOn);
+        return true;
+    }
+
+    private long getExpiresOn(CacheKey key) {
+        if (key.getExpiryForCreation() > 0) {
+            return System.currentTimeMillis() + key.getExpiryForCreation();
+        } else if (ttl > 0) {
+            return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl);
+        }
+        return 0L;
+    }
+
+    private DiskCacheSegment getActiveSegment() throws IOException {
+        if (activeSegment == null) {
+            final Map.Entry<Integer, DiskCacheSegment> last = segments.lastEntry();
+            if (last != null && last.getValue().getCapacity() == segmentSize) {
+                activeSegment = last.getValue();
+            } else {
+                activeSegment = rollOver();
+            }
+        }
+        return activeSegment;
+    }
+
+    /**
+     * Start a new segment, evicting the oldest segments when the store is full.
+     */
+    private DiskCacheSegment rollOver() throws IOException {
+        while (segments.size() >= maxSegments) {
+            evict(segments.firstEntry().getValue());
+        }
+
+        final int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        activeSegment = DiskCacheSegment.create(directory, id, segmentSize);
+        segments.put(id, activeSegment);
+        log.debug("Disk cache store rolled over to segment {}", id);
+        return activeSegment;
+    }
+
+    private void evict(DiskCacheSegment segment) {
+        entries.values().removeIf(entry -> entry.getSegment() == segment);
+        segments.remove(segment.getId());
+        segment.delete();
+        log.debug("Evicted disk cache segment {}", segment.getId());
     }
 
     @Override
     public boolean contains(CacheKey key) {
-        throw new NotImplementedException();
+        return getLiveEntry(key) != null;
     }
 
     @Override
     public CacheContent getIfPresent(CacheKey key) {
-        throw new NotImplementedException();
+        final DiskCacheEntry entry = getLiveEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        return entry.toCacheContent();
+    }
+
+    private DiskCacheEntry getLiveEntry(CacheKey key) {
+        final DiskCacheEntry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            remove(entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private void remove(DiskCacheEntry entry) {
+        if (entries.remove(entry.getKey(), entry)) {
+            entry.getSegment().markRemoved(entry.getRecordOffset());
+        }
     }
 
     @Override
     public long size() {
-        throw new NotImplementedException();
+        return entries.size();
     }
 
     @Override
-    public void invalidate(CacheKey key) {
-        throw new NotImplementedException();
+    public void invalidate(CacheKey invalidationKey) {
+        for (DiskCacheEntry entry : entries.values()) {
+            if (entry.getKey().isInvalidatedBy(invalidationKey)) {
+                remove(entry);
+            }
+        }
+    }
+
+    @Override
+    public void remove(CacheKey key) {
+        final DiskCacheEntry entry = entries.get(key);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    @Override
+    public void invalidate(Collection<CacheKey> invalidationKeys) {
+        // A single pass over the entries for the whole batch.
+        for (DiskCacheEntry entry : entries.values()) {
+            for (CacheKey invalidationKey : invalidationKeys) {
+                if (entry.getKey().isInvalidatedBy(invalidationKey)) {
+                    remove(entry);
+                    break;
+                }
+            }
+        }
     }
 
     @Override
     public void invalidate(HttpCacheConfig cacheConfig) {
-        throw new NotImplementedException();
+        final Iterator<DiskCacheEntry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            final DiskCacheEntry entry = iterator.next();
+            // Match the cache key with cache config.
+            try {
+                if (cacheConfig.knows(entry.getKey())) {
+                    // If matches, invalidate that particular key.
+                    remove(entry);
+                }
+            } catch (HttpCacheKeyCreationException e) {
+                log.error("Could not invalidate HTTP cache. Falling back to full cache invalidation.", e);
+                this.invalidateAll();
+                return;
+            }
+        }
     }
 
     @Override
     public void invalidateAll() {
-        throw new NotImplementedException();
+        synchronized (writeLock) {
+            entries.clear();
+            for (DiskCacheSegment segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            activeSegment = null;
+        }
     }
 
     @Override
     public TempSink createTempSink() {
-        throw new NotImplementedException();
+        return new DiskTempSinkImpl(tempDirectory);
     }
 
     @Override
     public String getStoreType() {
         return HttpCacheStore.VALUE_DISK_CACHE_STORE_TYPE;
     }
-
-
 }
@@ -0,0 +1,107 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.disk.impl;
+
+import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
+import com.adobe.acs.commons.httpcache.store.TempSink;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * TempSink implementation for the disk cache store. Spools the response into a temporary file, which is removed once
+ * the input stream is closed.
+ */
+public class DiskTempSinkImpl implements TempSink {
+    private static final Logger log = LoggerFactory.getLogger(DiskTempSinkImpl.class);
+
+    static final String TEMP_FILE_PREFIX = "sink-";
+
+    private final File directory;
+    private File file;
+    private OutputStream outputStream;
+
+    public DiskTempSinkImpl(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public OutputStream createOutputStream() throws HttpCacheDataStreamException {
+        if (null == outputStream) {
+            try {
+                file = File.createTempFile(TEMP_FILE_PREFIX, ".tmp", directory);
+                outputStream = new BufferedOutputStream(new FileOutputStream(file));
+            } catch (IOException e) {
+                throw new HttpCacheDataStreamException("Unable to create temp sink file", e);
+            }
+        }
+        return outputStream;
+    }
+
+    @Override
+    public InputStream createInputStream() throws HttpCacheDataStreamException {
+        if (null == file) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        try {
+            outputStream.close();
+            return new FilterInputStream(new FileInputStream(file)) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    if (!file.delete()) {
+                        log.debug("Unable to delete temp sink file {}", file);
+                    }
+                }
+            };
+        } catch (IOException e) {
+            throw new HttpCacheDataStreamException("Unable to read temp sink file", e);
+        }
+    }
+
+    @Override
+    public long length() {
+        if (null == file || !file.exists()) {
+            return -1;
+        }
+        return file.length();
+    }
+
+    @Override
+    public void discard() {
+        if (null != outputStream) {
+            IOUtils.closeQuietly(outputStream);
+        }
+        if (null != file && file.exists() && !file.delete()) {
+            log.debug("Unable to delete temp sink file {}", file);
+        }
+    }
+}
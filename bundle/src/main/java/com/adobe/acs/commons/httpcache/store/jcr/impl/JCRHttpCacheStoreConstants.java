@@ -24,6 +24,7 @@ public class JCRHttpCacheStoreConstants
     public static final String ROOT_NODE_NAME = "root";
 
     public static final String PATH_CONTENTS = "contents";
+    public static final String PATH_ENCODED_CONTENTS = "encoded-contents";
     public static final String PATH_HEADERS = "headers";
     public static final String PATH_ENTRY       = "entry";
 
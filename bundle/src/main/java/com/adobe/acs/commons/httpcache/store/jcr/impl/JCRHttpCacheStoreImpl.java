@@ -64,7 +64,9 @@ import javax.management.openmbean.OpenDataException;
 import javax.management.openmbean.OpenType;
 import javax.management.openmbean.SimpleType;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -167,6 +169,12 @@ public class JCRHttpCacheStoreImpl extends AbstractJCRCacheMBean<CacheKey, Cache
 
     @Override
     public void put(final CacheKey key, final CacheContent content) throws HttpCacheDataStreamException {
+        put(key, content, null);
+    }
+
+    @Override
+    public void put(final CacheKey key, final CacheContent content, final HttpCacheConfig cacheConfig) throws HttpCacheDataStreamException {
+        final List<String> encodings = (cacheConfig == null) ? Collections.emptyList() : cacheConfig.getPrecompressedEncodings();
         final long currentTime = System.currentTimeMillis();
         incrementLoadCount();
 
@@ -178,7 +186,7 @@ public class JCRHttpCacheStoreImpl extends AbstractJCRCacheMBean<CacheKey, Cache
 
             long expiryTime = (key.getExpiryForCreation() > 0) ? key.getExpiryForCreation() : config.httpcache_config_jcr_expiretimeinmiliseconds();
 
-            new EntryNodeWriter(session, entryNode, key, content,expiryTime).write();
+            new EntryNodeWriter(session, entryNode, key, content, expiryTime, encodings).write();
             session.save();
 
             incrementLoadSuccessCount();
@@ -268,6 +276,29 @@ public class JCRHttpCacheStoreImpl extends AbstractJCRCacheMBean<CacheKey, Cache
         });
     }
 
+    @Override
+    public void invalidate(final Collection<CacheKey> keys) {
+        withSession((Session session) -> {
+            // All the entries of the batch are removed with a single save.
+            int removed = 0;
+            for (CacheKey key : keys) {
+                final Node bucketNode = new BucketNodeFactory(session, key, config).getBucketNode();
+                if (bucketNode != null) {
+                    final Node entryNode = new BucketNodeHandler(bucketNode, dclm).getEntryIfExists(key);
+                    if (entryNode != null) {
+                        entryNode.remove();
+                        removed++;
+                    }
+                }
+            }
+
+            if (removed > 0) {
+                session.save();
+                incrementEvictionCount(removed);
+            }
+        });
+    }
+
     @Override
     public void invalidate(final HttpCacheConfig cacheConfig) {
         withSession((Session session) -> {
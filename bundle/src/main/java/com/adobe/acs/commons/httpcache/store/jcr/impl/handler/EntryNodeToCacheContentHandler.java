@@ -19,9 +19,11 @@
  */
 package com.adobe.acs.commons.httpcache.store.jcr.impl.handler;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -48,6 +50,7 @@ public class EntryNodeToCacheContentHandler
     private int status;
     private InputStream inputStream;
     private final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+    private final Map<String, Binary> encodedBinaries = new LinkedHashMap<String, Binary>();
     private Binary binary;
     private HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod = HttpCacheServletResponseWrapper.ResponseWriteMethod.OUTPUTSTREAM;
 
@@ -62,6 +65,7 @@ public class EntryNodeToCacheContentHandler
             retrieveHeaders();
             retrieveProperties();
             inputStream = retrieveInputStream();
+            retrieveEncodedBinaries();
         }
     }
 
@@ -91,7 +95,7 @@ public class EntryNodeToCacheContentHandler
 
     public CacheContent get() throws RepositoryException
     {
-        return new CacheContent(
+        final CacheContent content = new CacheContent(
             status,
             charEncoding,
             contentType,
@@ -99,6 +103,12 @@ public class EntryNodeToCacheContentHandler
             inputStream,
             writeMethod
         );
+        for(Map.Entry<String, Binary> encoded : encodedBinaries.entrySet()){
+            final Binary encodedBinary = encoded.getValue();
+            // Only the variant picked for the response gets opened.
+            content.addEncodedVariant(encoded.getKey(), () -> openStream(encodedBinary));
+        }
+        return content;
     }
 
     public Binary getBinary(){
@@ -152,4 +162,30 @@ public class EntryNodeToCacheContentHandler
 
     }
 
+    private static InputStream openStream(Binary encodedBinary) throws IOException
+    {
+        try {
+            return encodedBinary.getStream();
+        } catch (RepositoryException e) {
+            throw new IOException("Unable to open the encoded content", e);
+        }
+    }
+
+    /**
+     * Get the binaries of the pre-compressed variants of the content, while the session is live.
+     */
+    private void retrieveEncodedBinaries() throws RepositoryException
+    {
+        if(entryNode.hasNode(JCRHttpCacheStoreConstants.PATH_ENCODED_CONTENTS)){
+            final PropertyIterator propertyIterator = entryNode.getNode(JCRHttpCacheStoreConstants.PATH_ENCODED_CONTENTS).getProperties();
+
+            while(propertyIterator.hasNext()){
+                final Property property = propertyIterator.nextProperty();
+                if(!isNativeProperty(property.getName())){
+                    encodedBinaries.put(property.getName(), property.getBinary());
+                }
+            }
+        }
+    }
+
 }
@@ -22,6 +22,7 @@ package com.adobe.acs.commons.httpcache.store.jcr.impl.writer;
 import com.adobe.acs.commons.httpcache.engine.CacheContent;
 import com.adobe.acs.commons.httpcache.keys.CacheKey;
 import com.adobe.acs.commons.httpcache.store.jcr.impl.JCRHttpCacheStoreConstants;
+import com.adobe.acs.commons.httpcache.util.ContentEncodingUtils;
 import com.day.cq.commons.jcr.JcrConstants;
 import org.apache.jackrabbit.commons.JcrUtils;
 
@@ -32,8 +33,10 @@ import javax.jcr.Session;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectOutputStream;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -49,13 +52,20 @@ public class EntryNodeWriter
     private final CacheKey cacheKey;
     private final CacheContent cacheContent;
     private final long expireTimeInMilliSeconds;
+    private final List<String> encodings;
+    private Binary binary;
 
     public EntryNodeWriter(Session session, Node entryNode, CacheKey cacheKey, CacheContent cacheContent, long expireTimeInMilliSeconds){
+        this(session, entryNode, cacheKey, cacheContent, expireTimeInMilliSeconds, Collections.emptyList());
+    }
+
+    public EntryNodeWriter(Session session, Node entryNode, CacheKey cacheKey, CacheContent cacheContent, long expireTimeInMilliSeconds, List<String> encodings){
         this.session = session;
         this.entryNode = entryNode;
         this.cacheKey = cacheKey;
         this.cacheContent = cacheContent;
         this.expireTimeInMilliSeconds = expireTimeInMilliSeconds;
+        this.encodings = encodings;
     }
 
     /**
@@ -69,6 +79,7 @@ public class EntryNodeWriter
         populateMetaData();
         populateHeaders();
         populateBinaryContent();
+        populateEncodedContents();
 
         //if we the expire time is set, set it on the node
         if(expireTimeInMilliSeconds > 0){
@@ -104,11 +115,40 @@ public class EntryNodeWriter
 
         final Node jcrContent = JcrUtils.getOrCreateByPath(contents, JcrConstants.JCR_CONTENT, false, JcrConstants.NT_RESOURCE, JcrConstants.NT_RESOURCE, false);
         //save input stream to node
-        final Binary binary = session.getValueFactory().createBinary(cacheContent.getInputDataStream());
+        binary = session.getValueFactory().createBinary(cacheContent.getInputDataStream());
         jcrContent.setProperty(JcrConstants.JCR_DATA, binary);
         jcrContent.setProperty(JcrConstants.JCR_MIMETYPE, cacheContent.getContentType());
     }
 
+    /**
+     * Save the pre-compressed variants of the binary content into binary properties named after their content coding,
+     * under the encoded contents node of the cache entry node.
+     * @throws RepositoryException
+     */
+    private void populateEncodedContents() throws RepositoryException, IOException
+    {
+        if(entryNode.hasNode(JCRHttpCacheStoreConstants.PATH_ENCODED_CONTENTS)){
+            // Drop the variants of the previous content.
+            entryNode.getNode(JCRHttpCacheStoreConstants.PATH_ENCODED_CONTENTS).remove();
+        }
+
+        if(binary == null || encodings.isEmpty() || !ContentEncodingUtils.isEncodable(cacheContent.getHeaders())){
+            return;
+        }
+
+        final Node encodedContents = JcrUtils.getOrCreateByPath(entryNode, JCRHttpCacheStoreConstants.PATH_ENCODED_CONTENTS, false, OAK_UNSTRUCTURED, OAK_UNSTRUCTURED, false);
+        for(String encoding : encodings){
+            final byte[] encoded;
+            try(InputStream inputStream = binary.getStream()){
+                encoded = ContentEncodingUtils.encode(inputStream, binary.getSize(), encoding);
+            }
+            if(encoded != null){
+                final Binary encodedBinary = session.getValueFactory().createBinary(new ByteArrayInputStream(encoded));
+                encodedContents.setProperty(encoding, encodedBinary);
+            }
+        }
+    }
+
     /**
      * Save the headers into a headers node under the cache entry node.
      * @throws RepositoryException
@@ -0,0 +1,228 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.mem.impl;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.keys.AbstractCacheKey;
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reverse index over the keys of an in-memory cache store, so invalidations only have to look at the affected keys
+ * instead of every key in the cache.
+ * <p>
+ * Keys are indexed by their hierarchy resource path and by the cache config which produced them. Keys which
+ * cannot be indexed by path (keys with a custom {@link CacheKey#isInvalidatedBy(CacheKey)} or without a path) are kept
+ * aside and always returned as candidates, so the store can fall back to matching them one by one.
+ * </p>
+ * <p>
+ * The index is maintained from the store's put, while the cache holds the lock of the entry, and from its removal
+ * listener. Removals only apply to the value they were
+ * issued for, so a late removal notification never drops a key which got cached again in the meantime. The index may
+ * therefore briefly hold keys which are no longer cached, but never misses a cached key; callers must treat the
+ * returned keys as candidates only.
+ * </p>
+ *
+ * @param <V> type of the cached values.
+ */
+public class MemCacheKeyIndex<V> {
+
+    private final ConcurrentMap<CacheKey, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<CacheKey>> keysByPath = new ConcurrentHashMap<>();
+    private final Set<CacheKey> keysWithoutPath = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<HttpCacheConfig, Set<CacheKey>> keysByOwner = new ConcurrentHashMap<>();
+    private final Set<CacheKey> keysWithoutOwner = ConcurrentHashMap.newKeySet();
+
+    /** Memoizes per key class whether its invalidation semantics are the path equality of AbstractCacheKey. */
+    private final Map<Class<?>, Boolean> pathIndexableClasses = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Record that the given value got cached for the key.
+     *
+     * @param key   the cache key.
+     * @param value the value now cached for the key.
+     * @param owner the cache config which produced the key, or null if unknown.
+     */
+    public void add(CacheKey key, V value, HttpCacheConfig owner) {
+        final String path = isPathIndexable(key) ? key.getHierarchyResourcePath() : null;
+        final Entry<V> entry = new Entry<>(value, path, owner);
+
+        entries.compute(key, (k, previous) -> {
+            if (previous != null) {
+                unlink(k, previous);
+            }
+            link(k, entry);
+            return entry;
+        });
+    }
+
+    /**
+     * Record that the given value got removed from the cache for the key. Ignored if the key has been cached again
+     * with another value since.
+     */
+    public void remove(CacheKey key, V value) {
+        entries.computeIfPresent(key, (k, current) -> {
+            if (current.value != value) {
+                return current;
+            }
+            unlink(k, current);
+            return null;
+        });
+    }
+
+    /**
+     * Get the keys which might be invalidated by the given invalidation key.
+     */
+    public Collection<CacheKey> getInvalidationCandidates(CacheKey invalidationKey) {
+        final List<CacheKey> candidates = new ArrayList<>(keysWithoutPath);
+        final String path = invalidationKey.getHierarchyResourcePath();
+        if (path != null) {
+            final Set<CacheKey> keys = keysByPath.get(path);
+            if (keys != null) {
+                candidates.addAll(keys);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Get the keys invalidated by any of the given invalidation keys. Keys sharing a path are looked up once, and the
+     * keys which cannot be indexed by path are matched in a single pass over them.
+     */
+    public Set<CacheKey> getInvalidatedKeys(Collection<CacheKey> invalidationKeys) {
+        final Set<CacheKey> invalidated = new HashSet<>();
+        final Set<String> paths = new HashSet<>();
+        for (CacheKey invalidationKey : invalidationKeys) {
+            final String path = invalidationKey.getHierarchyResourcePath();
+            if (path != null && paths.add(path)) {
+                final Set<CacheKey> keys = keysByPath.get(path);
+                if (keys != null) {
+                    invalidated.addAll(keys);
+                }
+            }
+        }
+
+        for (CacheKey key : keysWithoutPath) {
+            for (CacheKey invalidationKey : invalidationKeys) {
+                if (key.isInvalidatedBy(invalidationKey)) {
+                    invalidated.add(key);
+                    break;
+                }
+            }
+        }
+        return invalidated;
+    }
+
+    /**
+     * Get a copy of the keys produced by the given cache config.
+     */
+    public Set<CacheKey> getKeysOwnedBy(HttpCacheConfig owner) {
+        final Set<CacheKey> keys = keysByOwner.get(owner);
+        return keys == null ? new HashSet<>() : new HashSet<>(keys);
+    }
+
+    /**
+     * Get a copy of the keys whose cache config is unknown; callers have to match them against a config one by one.
+     */
+    public Set<CacheKey> getKeysWithoutOwner() {
+        return new HashSet<>(keysWithoutOwner);
+    }
+
+    /**
+     * Get the cache config which produced the given key.
+     *
+     * @return the owning cache config, or null if unknown or if the key isn't indexed.
+     */
+    public HttpCacheConfig getOwner(CacheKey key) {
+        final Entry<V> entry = entries.get(key);
+        return entry == null ? null : entry.owner;
+    }
+
+    /**
+     * Get the number of indexed keys.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void link(CacheKey key, Entry<V> entry) {
+        if (entry.path == null) {
+            keysWithoutPath.add(key);
+        } else {
+            keysByPath.computeIfAbsent(entry.path, p -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        if (entry.owner == null) {
+            keysWithoutOwner.add(key);
+        } else {
+            keysByOwner.computeIfAbsent(entry.owner, o -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+    }
+
+    private void unlink(CacheKey key, Entry<V> entry) {
+        if (entry.path == null) {
+            keysWithoutPath.remove(key);
+        } else {
+            keysByPath.computeIfPresent(entry.path, (p, keys) -> keys.remove(key) && keys.isEmpty() ? null : keys);
+        }
+        if (entry.owner == null) {
+            keysWithoutOwner.remove(key);
+        } else {
+            keysByOwner.computeIfPresent(entry.owner, (o, keys) -> keys.remove(key) && keys.isEmpty() ? null : keys);
+        }
+    }
+
+    private boolean isPathIndexable(CacheKey key) {
+        if (!(key instanceof AbstractCacheKey) || key.getHierarchyResourcePath() == null) {
+            return false;
+        }
+        return pathIndexableClasses.computeIfAbsent(key.getClass(), MemCacheKeyIndex::usesPathEquality);
+    }
+
+    private static boolean usesPathEquality(Class<?> keyClass) {
+        try {
+            return AbstractCacheKey.class.equals(keyClass.getMethod("isInvalidatedBy", CacheKey.class).getDeclaringClass())
+                    && AbstractCacheKey.class.equals(keyClass.getMethod("getHierarchyResourcePath").getDeclaringClass());
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final String path;
+        private final HttpCacheConfig owner;
+
+        private Entry(V value, String path, HttpCacheConfig owner) {
+            this.value = value;
+            this.path = path;
+            this.owner = owner;
+        }
+    }
+}
@@ -21,17 +21,21 @@ package com.adobe.acs.commons.httpcache.store.mem.impl;
 
 import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
+import com.adobe.acs.commons.httpcache.util.ContentEncodingUtils;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
 import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -50,7 +54,13 @@ public class MemCachePersistenceObject implements Serializable {
     Multimap<String, String> headers;
     /** Byte array to hold the data from the stream */
     private byte[] bytes;
+    /** Pre-compressed variants of the data, keyed by content coding */
+    private final LinkedHashMap<String, byte[]> encodedBytes = new LinkedHashMap<>();
     private HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod;
+    /** Time the entry expires, in miliseconds since the epoch. 0 if the entry doesn't expire. */
+    private long expiresOn;
+    /** Time the entry is kept once expired, in miliseconds. */
+    private long staleGracePeriod;
 
     AtomicInteger count = new AtomicInteger(0);
 
@@ -73,6 +83,18 @@ public class MemCachePersistenceObject implements Serializable {
      */
     public MemCachePersistenceObject buildForCaching(int status, String charEncoding, String contentType, Map<String,
             List<String>> headers, InputStream dataInputStream, HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod) throws HttpCacheDataStreamException {
+        return buildForCaching(status, charEncoding, contentType, headers, dataInputStream, -1L, writeMethod);
+    }
+
+    /**
+     * Construct a Mem cache value suitable for caching, reading the body straight into an array of the expected size.
+     *
+     * @param expectedLength length of the data stream if known upfront, -1 otherwise.
+     * @throws HttpCacheDataStreamException
+     */
+    public MemCachePersistenceObject buildForCaching(int status, String charEncoding, String contentType, Map<String,
+            List<String>> headers, InputStream dataInputStream, long expectedLength,
+            HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod) throws HttpCacheDataStreamException {
 
         this.status = status;
         this.charEncoding = charEncoding;
@@ -92,7 +114,7 @@ public class MemCachePersistenceObject implements Serializable {
 
         // Read input stream and place it in a byte array.
         try {
-            this.bytes = IOUtils.toByteArray(dataInputStream);
+            this.bytes = readBytes(dataInputStream, expectedLength);
         } catch (IOException e) {
             throw new HttpCacheDataStreamException("Unable to get byte array out of stream", e);
         }
@@ -100,6 +122,29 @@ public class MemCachePersistenceObject implements Serializable {
         return this;
     }
 
+    private static byte[] readBytes(InputStream dataInputStream, long expectedLength) throws IOException {
+        if (expectedLength < 0 || expectedLength > Integer.MAX_VALUE) {
+            return IOUtils.toByteArray(dataInputStream);
+        }
+
+        final byte[] bytes = new byte[(int) expectedLength];
+        final int read = IOUtils.read(dataInputStream, bytes);
+        if (read < bytes.length) {
+            return Arrays.copyOf(bytes, read);
+        }
+        final int next = dataInputStream.read();
+        if (next == -1) {
+            return bytes;
+        }
+
+        // More data than announced, fall back to reading the remainder.
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 2);
+        out.write(bytes);
+        out.write(next);
+        IOUtils.copy(dataInputStream, out);
+        return out.toByteArray();
+    }
+
     /**
      * Get response status
      * @return the status code
@@ -154,6 +199,50 @@ public class MemCachePersistenceObject implements Serializable {
     }
 
 
+    /**
+     * Store pre-compressed variants of the data for the given content codings. Variants which are not smaller than
+     * the data are left out, as are all variants if the response is already encoded.
+     *
+     * @param contentCodings content codings, in order of preference.
+     * @throws HttpCacheDataStreamException
+     */
+    public MemCachePersistenceObject addEncodedVariants(Collection<String> contentCodings) throws HttpCacheDataStreamException {
+        if (contentCodings.isEmpty() || !ContentEncodingUtils.isEncodable(getHeaders())) {
+            return this;
+        }
+        for (String contentCoding : contentCodings) {
+            try {
+                final byte[] encoded = ContentEncodingUtils.encode(bytes, contentCoding);
+                if (encoded != null) {
+                    encodedBytes.put(contentCoding, encoded);
+                }
+            } catch (IOException e) {
+                throw new HttpCacheDataStreamException("Unable to encode the data with " + contentCoding, e);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Get the pre-compressed variants of the data.
+     *
+     * @return byte arrays keyed by content coding.
+     */
+    public Map<String, byte[]> getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /**
+     * @return number of bytes held by this entry, the data and its pre-compressed variants.
+     */
+    public int getStoredLength() {
+        long length = bytes.length;
+        for (byte[] encoded : encodedBytes.values()) {
+            length += encoded.length;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, length);
+    }
+
     /**
      * Increments the hit for this cache entry.
      */
@@ -171,4 +260,47 @@ public class MemCachePersistenceObject implements Serializable {
     public HttpCacheServletResponseWrapper.ResponseWriteMethod getWriteMethod() {
         return writeMethod;
     }
+
+    /**
+     * @param expiresOn time the entry expires, in miliseconds since the epoch. 0 if the entry doesn't expire.
+     */
+    public void setExpiresOn(long expiresOn) {
+        this.expiresOn = expiresOn;
+    }
+
+    /**
+     * @return time the entry expires, in miliseconds since the epoch. 0 if the entry doesn't expire.
+     */
+    public long getExpiresOn() {
+        return expiresOn;
+    }
+
+    /**
+     * Keep the entry for the given grace period once it expired, so it can still be served as a stale entry.
+     *
+     * @param expiresOn        time the entry expires, in miliseconds since the epoch.
+     * @param staleGracePeriod time the entry is kept once expired, in miliseconds.
+     */
+    public void setStaleGracePeriod(long expiresOn, long staleGracePeriod) {
+        this.expiresOn = expiresOn;
+        this.staleGracePeriod = staleGracePeriod;
+    }
+
+    /**
+     * @return time the entry is kept once expired, in miliseconds. 0 if it is dropped on expiry.
+     */
+    public long getStaleGracePeriod() {
+        return staleGracePeriod;
+    }
+
+    /**
+     * @param now current time in miliseconds since the epoch.
+     * @return miliseconds since this entry expired, 0 if it is fresh or not kept once expired.
+     */
+    public long getStaleness(long now) {
+        if (staleGracePeriod <= 0 || now <= expiresOn) {
+            return 0L;
+        }
+        return now - expiresOn;
+    }
 }
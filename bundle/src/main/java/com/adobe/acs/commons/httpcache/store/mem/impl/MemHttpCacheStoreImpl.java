@@ -52,8 +52,9 @@ import javax.management.openmbean.OpenType;
 import javax.management.openmbean.SimpleType;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -98,6 +99,9 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
     /** Cache - Uses Google Guava's cache */
     private Cache<CacheKey, MemCachePersistenceObject> cache;
 
+    /** Reverse index of the cached keys, used to look up the keys affected by an invalidation. */
+    private MemCacheKeyIndex<MemCachePersistenceObject> index;
+
     @Activate
     protected void activate(Config config) {
         this.config = config;
@@ -109,13 +113,14 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
             cache.invalidateAll();
             log.info("Mem cache already present. Invalidating the cache and re-initializing it.");
         }
+        index = new MemCacheKeyIndex<>();
         if (this.config.httpcache_cachestore_memcache_ttl() != Config.DEFAULT_TTL) {
             // If ttl is present, attach it to guava cache configuration.
             cache = CacheBuilder.newBuilder()
                     .maximumWeight(this.config.httpcache_cachestore_memcache_maxsize() * MEGABYTE)
                     .weigher(new MemCacheEntryWeigher())
                     .expireAfterWrite(this.config.httpcache_cachestore_memcache_ttl(), TimeUnit.SECONDS)
-                    .removalListener(new MemCacheEntryRemovalListener())
+                    .removalListener(new MemCacheEntryRemovalListener(index))
                     .recordStats()
                     .build();
         } else {
@@ -123,7 +128,7 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
             cache = CacheBuilder.newBuilder()
                     .maximumWeight(this.config.httpcache_cachestore_memcache_maxsize() * MEGABYTE)
                     .weigher(new MemCacheEntryWeigher())
-                    .removalListener(new MemCacheEntryRemovalListener())
+                    .removalListener(new MemCacheEntryRemovalListener(index))
                     .recordStats()
                     .build();
         }
@@ -138,15 +143,22 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
     }
 
     /**
-     * Removal listener for cache entry items.
+     * Removal listener for cache entry items. Keeps the key index in line with the cache.
      */
     private static class MemCacheEntryRemovalListener implements RemovalListener<CacheKey, MemCachePersistenceObject> {
         private static final Logger log = LoggerFactory.getLogger(MemCacheEntryRemovalListener.class);
 
+        private final MemCacheKeyIndex<MemCachePersistenceObject> index;
+
+        MemCacheEntryRemovalListener(MemCacheKeyIndex<MemCachePersistenceObject> index) {
+            this.index = index;
+        }
+
         @Override
         public void onRemoval(RemovalNotification<CacheKey, MemCachePersistenceObject> removalNotification) {
-            log.debug("Mem cache entry for uri {} removed due to {}", removalNotification.getKey().toString(),
+            log.debug("Mem cache entry for uri {} removed due to {}", removalNotification.getKey(),
                     removalNotification.getCause().name());
+            index.remove(removalNotification.getKey(), removalNotification.getValue());
         }
     }
 
@@ -157,16 +169,33 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
 
         @Override
         public int weigh(CacheKey memCacheKey, MemCachePersistenceObject memCachePersistenceObject) {
-            // Size of the byte array.
-            return memCachePersistenceObject.getBytes().length;
+            // Size of the byte arrays.
+            return memCachePersistenceObject.getStoredLength();
         }
     }
 
     //-------------------------<CacheStore interface specific implementation>
     @Override
     public void put(CacheKey key, CacheContent content) throws HttpCacheDataStreamException {
-        cache.put(key, new MemCachePersistenceObject().buildForCaching(content.getStatus(), content.getCharEncoding(),
-                content.getContentType(), content.getHeaders(), content.getInputDataStream(), content.getWriteMethod()));
+        put(key, content, null);
+    }
+
+    @Override
+    public void put(CacheKey key, CacheContent content, HttpCacheConfig cacheConfig) throws HttpCacheDataStreamException {
+        // Size the body upfront when the temp sink knows its length.
+        final long length = content.getTempSink() == null ? -1L : content.getTempSink().length();
+        final MemCachePersistenceObject value = new MemCachePersistenceObject().buildForCaching(content.getStatus(),
+                content.getCharEncoding(), content.getContentType(), content.getHeaders(), content.getInputDataStream(),
+                length, content.getWriteMethod());
+        if (null != cacheConfig) {
+            value.addEncodedVariants(cacheConfig.getPrecompressedEncodings());
+        }
+        // Indexed while the cache holds the lock of the entry, so an invalidation or eviction can't run in between.
+        // The removal notification of a replaced value is then ignored by the index.
+        cache.asMap().compute(key, (k, previous) -> {
+            index.add(k, value, cacheConfig);
+            return value;
+        });
     }
 
     @Override
@@ -187,8 +216,11 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
         // Increment hit count
         value.incrementHitCount();
 
-        return new CacheContent(value.getStatus(), value.getCharEncoding(), value.getContentType(), value.getHeaders(), new
-                ByteArrayInputStream(value.getBytes()), value.getWriteMethod());
+        final CacheContent content = new CacheContent(value.getStatus(), value.getCharEncoding(), value.getContentType(),
+                value.getHeaders(), new ByteArrayInputStream(value.getBytes()), value.getWriteMethod());
+        value.getEncodedBytes().forEach((contentCoding, encoded) ->
+                content.addEncodedVariant(contentCoding, () -> new ByteArrayInputStream(encoded)));
+        return content;
     }
 
     @Override
@@ -198,19 +230,29 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
 
     @Override
     public void invalidate(CacheKey invalidationKey) {
-        final ConcurrentMap<CacheKey, MemCachePersistenceObject> cacheAsMap = cache.asMap();
-
-        for (CacheKey key : cacheAsMap.keySet()) {
+        for (CacheKey key : index.getInvalidationCandidates(invalidationKey)) {
             if (key.isInvalidatedBy(invalidationKey)) {
                 cache.invalidate(key);
             }
         }
     }
 
+    @Override
+    public void remove(CacheKey key) {
+        cache.invalidate(key);
+    }
+
+    @Override
+    public void invalidate(Collection<CacheKey> invalidationKeys) {
+        cache.invalidateAll(index.getInvalidatedKeys(invalidationKeys));
+    }
+
     @Override
     public void invalidate(HttpCacheConfig cacheConfig) {
-        ConcurrentMap<CacheKey, MemCachePersistenceObject> cacheAsMap = cache.asMap();
-        for (CacheKey key : cacheAsMap.keySet()) {
+        // Only match the keys produced by the config and those of unknown origin, other configs' keys are left alone.
+        final Set<CacheKey> candidates = index.getKeysOwnedBy(cacheConfig);
+        candidates.addAll(index.getKeysWithoutOwner());
+        for (CacheKey key : candidates) {
             // Match the cache key with cache config.
             try {
                 if (cacheConfig.knows(key)) {
@@ -64,4 +64,10 @@ public class MemTempSinkImpl implements TempSink {
         }
         return sink.length;
     }
+
+    @Override
+    public void discard() {
+        byteArrayOutputStream = null;
+        sink = null;
+    }
 }
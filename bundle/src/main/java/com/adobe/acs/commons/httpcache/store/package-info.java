@@ -18,7 +18,7 @@
  * #L%
  */
 
-@Version("2.0.0")
+@Version("2.1.0")
 package com.adobe.acs.commons.httpcache.store;
 
 import org.osgi.annotation.versioning.Version;
@@ -0,0 +1,61 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.tiered.impl;
+
+import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "ACS AEM Commons - HTTP Cache - Tiered cache store.",
+        description = "Cache store keeping hot entries in a bounded Caffeine in-memory tier, and demoting the entries "
+                + "evicted from it to a lower tier store like the JCR or DISK store.")
+public @interface Config {
+
+    long DEFAULT_TTL = -1L; // Defaults to -1 meaning no TTL.
+
+    long DEFAULT_MAX_SIZE_IN_MB = 10L;
+
+    int DEFAULT_WORKERS = 2;
+
+    String DEFAULT_LOWER_TIER_TARGET = "(" + HttpCacheStore.KEY_CACHE_STORE_TYPE + "="
+            + HttpCacheStore.VALUE_JCR_CACHE_STORE_TYPE + ")";
+
+    @AttributeDefinition(name = "TTL",
+            description = "TTL for all entries of the in-memory tier in seconds. Default to -1 meaning no TTL.",
+            defaultValue = "" + DEFAULT_TTL)
+    long httpcache_cachestore_tiered_ttl() default DEFAULT_TTL;
+
+    @AttributeDefinition(name = "Maximum size of the in-memory tier in MB",
+            description = "Default to 10MB. If the in-memory tier grows beyond this size, least used entries are "
+                    + "demoted to the lower tier.",
+            defaultValue = "" + DEFAULT_MAX_SIZE_IN_MB)
+    long httpcache_cachestore_tiered_maxsize() default DEFAULT_MAX_SIZE_IN_MB;
+
+    @AttributeDefinition(name = "Transfer threads",
+            description = "Number of threads demoting entries to the lower tier and promoting lower tier hits.",
+            defaultValue = "" + DEFAULT_WORKERS)
+    int httpcache_cachestore_tiered_workers() default DEFAULT_WORKERS;
+
+    @AttributeDefinition(name = "Lower tier",
+            description = "Service filter selecting the lower tier cache store, "
+                    + "like (httpcache.cachestore.type=JCR) or (httpcache.cachestore.type=DISK).",
+            defaultValue = DEFAULT_LOWER_TIER_TARGET)
+    String lowerTier_target() default DEFAULT_LOWER_TIER_TARGET;
+}
@@ -0,0 +1,411 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.tiered.impl;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.engine.CacheContent;
+import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
+import com.adobe.acs.commons.httpcache.exception.HttpCacheKeyCreationException;
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
+import com.adobe.acs.commons.httpcache.store.TempSink;
+import com.adobe.acs.commons.httpcache.store.caffeine.impl.CaffeineMemHttpCacheStoreImpl;
+import com.adobe.acs.commons.httpcache.store.mem.impl.MemCachePersistenceObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.NotCompliantMBeanException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Cache store made of a bounded in-memory tier (L1) in front of a larger lower tier (L2), like the JCR or the DISK
+ * store.
+ * <p>
+ * Entries are cached in L1. Entries evicted from L1 to keep it within its maximum size are demoted to L2, and hits
+ * in L2 are promoted back to L1; both happen asynchronously, so requests never wait for the lower tier to be written.
+ * L2 keeps its copy of a promoted entry, so an entry evicted again from L1 is simply rewritten. Entries keep the expiry
+ * they got when first cached in L1 as they move between the tiers: L2 copies past it are skipped and removed, and
+ * promoted entries expire from L1 at that time. Invalidations are applied to both tiers. Demotions and promotions which overlap with an invalidation of their key are dropped or rolled
+ * back, so they never bring back invalidated content.
+ * </p>
+ */
+public class TieredHttpCacheStoreImpl implements HttpCacheStore {
+    private static final Logger log = LoggerFactory.getLogger(TieredHttpCacheStoreImpl.class);
+
+    /** Maximum number of demotions and promotions waiting for a worker; further ones are rejected and dropped. */
+    static final int MAX_PENDING_TRANSFERS = 1000;
+
+    /** Number of demotions between two sweeps of the expiries of L2 copies which have passed. */
+    static final int EXPIRY_SWEEP_INTERVAL = 1000;
+
+    private final CaffeineMemHttpCacheStoreImpl upperTier;
+    private final HttpCacheStore lowerTier;
+    private final ExecutorService transfers;
+
+    /** Keys being promoted, so concurrent L2 hits promote an entry once. */
+    private final Set<CacheKey> promotions = ConcurrentHashMap.newKeySet();
+
+    /** Demotions and promotions not done yet, flagged by the invalidations of their key which overlap with them. */
+    private final Set<Transfer> pendingTransfers = ConcurrentHashMap.newKeySet();
+
+    /** Expiry the L2 copies got in L1, for those which expire. */
+    private final ConcurrentMap<CacheKey, Expiry> lowerTierExpiries = new ConcurrentHashMap<>();
+
+    private final AtomicLong demoted = new AtomicLong();
+    private final AtomicLong promoted = new AtomicLong();
+    private final AtomicLong lowerTierHits = new AtomicLong();
+
+    /**
+     * @param ttl         TTL of the L1 entries in seconds, -1 meaning no TTL.
+     * @param maxSizeInMb maximum size of L1 in MB.
+     * @param lowerTier   the L2 store.
+     * @param workers     number of threads demoting and promoting entries.
+     */
+    public TieredHttpCacheStoreImpl(long ttl, long maxSizeInMb, HttpCacheStore lowerTier, int workers)
+            throws NotCompliantMBeanException {
+        this.lowerTier = lowerTier;
+        this.upperTier = new CaffeineMemHttpCacheStoreImpl(ttl, maxSizeInMb, this::demote);
+        this.transfers = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(MAX_PENDING_TRANSFERS), runnable -> {
+                    final Thread thread = new Thread(runnable, "ACS AEM Commons - HTTP Cache - Tiered store transfer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * @return the L1 store, exposed over JMX.
+     */
+    CaffeineMemHttpCacheStoreImpl getUpperTier() {
+        return upperTier;
+    }
+
+    /**
+     * Stop the transfers between the tiers. Pending ones are dropped.
+     */
+    void close() {
+        transfers.shutdownNow();
+    }
+
+    //-------------------------<CacheStore interface specific implementation>
+    @Override
+    public void put(CacheKey key, CacheContent content) throws HttpCacheDataStreamException {
+        upperTier.put(key, content);
+    }
+
+    @Override
+    public void put(CacheKey key, CacheContent content, HttpCacheConfig cacheConfig) throws HttpCacheDataStreamException {
+        upperTier.put(key, content, cacheConfig);
+    }
+
+    @Override
+    public boolean contains(CacheKey key) {
+        return upperTier.contains(key) || (!isExpiredInLowerTier(key) && lowerTier.contains(key));
+    }
+
+    @Override
+    public CacheContent getIfPresent(CacheKey key) {
+        return getIfPresent(key, null);
+    }
+
+    @Override
+    public CacheContent getIfPresent(CacheKey key, HttpCacheConfig cacheConfig) {
+        final CacheContent content = upperTier.getIfPresent(key);
+        if (content != null) {
+            return content;
+        }
+
+        if (isExpiredInLowerTier(key)) {
+            return null;
+        }
+        final CacheContent lowerTierContent = lowerTier.getIfPresent(key);
+        if (lowerTierContent != null) {
+            lowerTierHits.incrementAndGet();
+            promote(key, cacheConfig);
+        }
+        return lowerTierContent;
+    }
+
+    @Override
+    public boolean supportsStaleness() {
+        return true;
+    }
+
+    @Override
+    public long getStaleness(CacheKey key) {
+        if (upperTier.contains(key)) {
+            return upperTier.getStaleness(key);
+        }
+        final Expiry expiry = lowerTierExpiries.get(key);
+        return expiry == null ? lowerTier.getStaleness(key) : expiry.getStaleness(System.currentTimeMillis());
+    }
+
+    /**
+     * Number of entries of both tiers; entries held by both tiers are counted twice.
+     */
+    @Override
+    public long size() {
+        return upperTier.size() + lowerTier.size();
+    }
+
+    @Override
+    public void invalidate(CacheKey key) {
+        flagTransfers(transferKey -> transferKey.isInvalidatedBy(key));
+        upperTier.invalidate(key);
+        lowerTier.invalidate(key);
+    }
+
+    @Override
+    public void invalidate(Collection<CacheKey> keys) {
+        flagTransfers(transferKey -> keys.stream().anyMatch(transferKey::isInvalidatedBy));
+        upperTier.invalidate(keys);
+        lowerTier.invalidate(keys);
+    }
+
+    @Override
+    public void invalidate(HttpCacheConfig cacheConfig) {
+        flagTransfers(transferKey -> {
+            try {
+                return cacheConfig.knows(transferKey);
+            } catch (HttpCacheKeyCreationException e) {
+                return true;
+            }
+        });
+        upperTier.invalidate(cacheConfig);
+        lowerTier.invalidate(cacheConfig);
+    }
+
+    @Override
+    public void invalidateAll() {
+        flagTransfers(transferKey -> true);
+        upperTier.invalidateAll();
+        lowerTier.invalidateAll();
+    }
+
+    @Override
+    public void remove(CacheKey key) {
+        flagTransfers(key::equals);
+        upperTier.remove(key);
+        lowerTier.remove(key);
+        lowerTierExpiries.remove(key);
+    }
+
+    @Override
+    public TempSink createTempSink() {
+        return upperTier.createTempSink();
+    }
+
+    @Override
+    public String getStoreType() {
+        return HttpCacheStore.VALUE_TIERED_CACHE_STORE_TYPE;
+    }
+
+    /** @return number of entries demoted from L1 to L2. */
+    public long getDemotedCount() {
+        return demoted.get();
+    }
+
+    /** @return number of entries promoted from L2 to L1. */
+    public long getPromotedCount() {
+        return promoted.get();
+    }
+
+    /** @return number of lookups missing L1 and served from L2. */
+    public long getLowerTierHitCount() {
+        return lowerTierHits.get();
+    }
+
+    private void demote(CacheKey key, MemCachePersistenceObject value, HttpCacheConfig owner) {
+        final Transfer transfer = new Transfer(key);
+        submit(transfer, () -> {
+            if (transfer.invalidated) {
+                // The evicted entry has been invalidated since.
+                return;
+            }
+            final CacheContent content = new CacheContent(value.getStatus(), value.getCharEncoding(),
+                    value.getContentType(), value.getHeaders(), new ByteArrayInputStream(value.getBytes()),
+                    value.getWriteMethod());
+            try {
+                lowerTier.put(key, content, owner);
+            } catch (HttpCacheDataStreamException e) {
+                log.debug("Unable to demote the entry for key {} to the lower tier", key, e);
+                return;
+            }
+            if (value.getExpiresOn() > 0) {
+                lowerTierExpiries.put(key, new Expiry(value.getExpiresOn(), value.getStaleGracePeriod()));
+            } else {
+                lowerTierExpiries.remove(key);
+            }
+            if (transfer.invalidated) {
+                lowerTier.remove(key);
+            }
+            if (demoted.incrementAndGet() % EXPIRY_SWEEP_INTERVAL == 0) {
+                final long now = System.currentTimeMillis();
+                lowerTierExpiries.forEach((expiredKey, expiry) -> {
+                    if (expiry.isExpired(now)) {
+                        removeExpired(expiredKey, expiry);
+                    }
+                });
+            }
+        });
+    }
+
+    private void promote(CacheKey key, HttpCacheConfig owner) {
+        if (!promotions.add(key)) {
+            return;
+        }
+        final Transfer transfer = new Transfer(key);
+        final boolean submitted = submit(transfer, () -> {
+            try {
+                final CacheContent content = lowerTier.getIfPresent(key);
+                if (content == null) {
+                    return;
+                }
+                try (InputStream in = content.getInputDataStream()) {
+                    final Expiry expiry = lowerTierExpiries.get(key);
+                    if (transfer.invalidated || (expiry != null && expiry.isExpired(System.currentTimeMillis()))) {
+                        return;
+                    }
+                    upperTier.put(key, content, owner, expiry == null ? 0L : expiry.expiresOn);
+                }
+                promoted.incrementAndGet();
+                if (transfer.invalidated) {
+                    upperTier.remove(key);
+                }
+            } catch (HttpCacheDataStreamException | IOException e) {
+                log.debug("Unable to promote the entry for key {} from the lower tier", key, e);
+            } finally {
+                promotions.remove(key);
+            }
+        });
+        if (!submitted) {
+            promotions.remove(key);
+        }
+    }
+
+    /**
+     * Check whether the L2 copy of the key is past the expiry it got in L1, scheduling its removal if so.
+     */
+    private boolean isExpiredInLowerTier(CacheKey key) {
+        final Expiry expiry = lowerTierExpiries.get(key);
+        if (expiry == null || !expiry.isExpired(System.currentTimeMillis())) {
+            return false;
+        }
+        if (expiry.removing.compareAndSet(false, true) && !submit(() -> removeExpired(key, expiry))) {
+            expiry.removing.set(false);
+        }
+        return true;
+    }
+
+    /**
+     * Remove an expired L2 copy. Its expiry is kept until then, so the copy is never served in the meantime.
+     */
+    private void removeExpired(CacheKey key, Expiry expiry) {
+        lowerTier.remove(key);
+        lowerTierExpiries.remove(key, expiry);
+    }
+
+    /**
+     * Flag the pending transfers of the keys matching an invalidation, so they don't bring back invalidated content.
+     */
+    private void flagTransfers(Predicate<CacheKey> invalidated) {
+        for (Transfer transfer : pendingTransfers) {
+            if (invalidated.test(transfer.key)) {
+                transfer.invalidated = true;
+            }
+        }
+    }
+
+    private boolean submit(Transfer transfer, Runnable task) {
+        pendingTransfers.add(transfer);
+        final boolean submitted = submit(() -> {
+            try {
+                task.run();
+            } finally {
+                pendingTransfers.remove(transfer);
+            }
+        });
+        if (!submitted) {
+            pendingTransfers.remove(transfer);
+        }
+        return submitted;
+    }
+
+    private boolean submit(Runnable transfer) {
+        try {
+            if (transfers.isShutdown()) {
+                return false;
+            }
+            transfers.execute(transfer);
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.debug("Transfer between the cache tiers dropped", e);
+            return false;
+        }
+    }
+
+    /**
+     * Expiry of an entry, and how long it may be served stale afterwards.
+     */
+    private static final class Expiry {
+        private final long expiresOn;
+        private final long staleGracePeriod;
+        private final AtomicBoolean removing = new AtomicBoolean();
+
+        Expiry(long expiresOn, long staleGracePeriod) {
+            this.expiresOn = expiresOn;
+            this.staleGracePeriod = staleGracePeriod;
+        }
+
+        boolean isExpired(long now) {
+            return now > expiresOn + staleGracePeriod;
+        }
+
+        long getStaleness(long now) {
+            return staleGracePeriod <= 0 || now <= expiresOn ? 0L : now - expiresOn;
+        }
+    }
+
+    /**
+     * A demotion or promotion of an entry, flagged when its key gets invalidated before it's done.
+     */
+    private static final class Transfer {
+        private final CacheKey key;
+        private volatile boolean invalidated;
+
+        Transfer(CacheKey key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.tiered.impl;
+
+import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.DynamicMBean;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+/**
+ * Registers the tiered cache store when Caffeine, which backs its in-memory tier, is available.
+ */
+@Component(configurationPolicy = ConfigurationPolicy.REQUIRE,
+        configurationPid = "com.adobe.acs.commons.httpcache.store.tiered.impl.TieredHttpCacheStoreImpl")
+@Designate(ocd = Config.class)
+public class TieredStoreRegisterer {
+
+    static final Logger log = LoggerFactory.getLogger(TieredStoreRegisterer.class);
+    static final String JMX_NAME = "Tiered HTTP Cache Store - In mem tier";
+
+    @Reference(target = Config.DEFAULT_LOWER_TIER_TARGET)
+    private HttpCacheStore lowerTier;
+
+    private ServiceRegistration<?> storeRegistration;
+    private ServiceRegistration<?> mbeanRegistration;
+    private TieredHttpCacheStoreImpl httpCacheStore;
+
+    @Activate
+    protected void activate(BundleContext bundleContext, Config config) {
+        try {
+            this.httpCacheStore = new TieredHttpCacheStoreImpl(config.httpcache_cachestore_tiered_ttl(),
+                    config.httpcache_cachestore_tiered_maxsize(), lowerTier,
+                    Math.max(1, config.httpcache_cachestore_tiered_workers()));
+
+            @SuppressWarnings("squid:S1149")
+            Dictionary<String, Object> serviceProps = new Hashtable<>();
+            serviceProps.put("httpcache.cachestore.tiered.maxsize", config.httpcache_cachestore_tiered_maxsize());
+            serviceProps.put("httpcache.cachestore.tiered.ttl", config.httpcache_cachestore_tiered_ttl());
+            serviceProps.put("httpcache.cachestore.tiered.lowertier", lowerTier.getStoreType());
+            serviceProps.put(HttpCacheStore.KEY_CACHE_STORE_TYPE, httpCacheStore.getStoreType());
+            storeRegistration = bundleContext.registerService(HttpCacheStore.class.getName(), httpCacheStore, serviceProps);
+
+            @SuppressWarnings("squid:S1149")
+            Dictionary<String, Object> mbeanProps = new Hashtable<>();
+            mbeanProps.put("jmx.objectname", "com.adobe.acs.httpcache:type=" + JMX_NAME);
+            mbeanRegistration = bundleContext.registerService(DynamicMBean.class.getName(),
+                    httpCacheStore.getUpperTier(), mbeanProps);
+
+            log.info("{} activated with lower tier {}.", JMX_NAME, lowerTier.getStoreType());
+        } catch (NoClassDefFoundError e) {
+            log.info("Library not for store {}. Store not registered.", JMX_NAME);
+            deactivate();
+        } catch (Exception e) {
+            log.error("Unknown exception occurred when registering {}. Store not registered.", JMX_NAME, e);
+            deactivate();
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (this.storeRegistration != null) {
+            this.storeRegistration.unregister();
+            this.storeRegistration = null;
+        }
+        if (this.mbeanRegistration != null) {
+            this.mbeanRegistration.unregister();
+            this.mbeanRegistration = null;
+        }
+        if (httpCacheStore != null) {
+            // The lower tier outlives this store, only the in-memory tier is dropped.
+            httpCacheStore.close();
+            httpCacheStore.getUpperTier().invalidateAll();
+            httpCacheStore = null;
+        }
+    }
+}
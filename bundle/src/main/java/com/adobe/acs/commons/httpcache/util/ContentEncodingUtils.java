@@ -0,0 +1,191 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.util;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Utilities for the pre-compressed variants of cached responses: encoding with the supported content codings and
+ * negotiating them against the Accept-Encoding request header.
+ */
+public class ContentEncodingUtils {
+
+    /** gzip content coding (RFC 1952). */
+    public static final String GZIP = "gzip";
+
+    /** deflate content coding, which is the zlib format (RFC 1950). */
+    public static final String DEFLATE = "deflate";
+
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    public static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    public static final String HEADER_VARY = "Vary";
+
+    private static final String IDENTITY = "identity";
+    private static final String ANY = "*";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private ContentEncodingUtils() {}
+
+    /**
+     * @param contentCoding a content coding, like gzip.
+     * @return true if the content coding can be produced.
+     */
+    public static boolean isSupported(String contentCoding) {
+        return GZIP.equals(contentCoding) || DEFLATE.equals(contentCoding);
+    }
+
+    /**
+     * @param headers response headers.
+     * @return true if the response isn't encoded yet, so pre-compressed variants can be produced for it.
+     */
+    public static boolean isEncodable(Map<String, List<String>> headers) {
+        if (headers == null) {
+            return true;
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (HEADER_CONTENT_ENCODING.equalsIgnoreCase(header.getKey())) {
+                for (String value : header.getValue()) {
+                    if (StringUtils.isNotBlank(value) && !IDENTITY.equalsIgnoreCase(value.trim())) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wrap the output stream so what is written to it gets encoded with the content coding.
+     *
+     * @param out           stream receiving the encoded bytes.
+     * @param contentCoding a supported content coding.
+     * @return the encoding stream, to be closed to complete the encoding.
+     */
+    public static OutputStream encodingStream(OutputStream out, String contentCoding) throws IOException {
+        if (GZIP.equals(contentCoding)) {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        } else if (DEFLATE.equals(contentCoding)) {
+            return new DeflaterOutputStream(out);
+        }
+        throw new IllegalArgumentException("Unsupported content coding: " + contentCoding);
+    }
+
+    /**
+     * Encode the bytes with the content coding.
+     *
+     * @return the encoded bytes, or null if encoding doesn't make them any smaller.
+     */
+    public static byte[] encode(byte[] bytes, String contentCoding) throws IOException {
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream(Math.max(64, bytes.length / 4));
+        try (OutputStream out = encodingStream(encoded, contentCoding)) {
+            out.write(bytes);
+        }
+        return encoded.size() < bytes.length ? encoded.toByteArray() : null;
+    }
+
+    /**
+     * Encode the stream with the content coding.
+     *
+     * @param length length of the stream, to tell if encoding makes it any smaller.
+     * @return the encoded bytes, or null if encoding doesn't make them any smaller.
+     */
+    public static byte[] encode(InputStream in, long length, String contentCoding) throws IOException {
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream(BUFFER_SIZE);
+        try (OutputStream out = encodingStream(encoded, contentCoding)) {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return encoded.size() < length ? encoded.toByteArray() : null;
+    }
+
+    /**
+     * Pick the content coding to deliver among the available ones, honoring the quality values of the Accept-Encoding
+     * request header.
+     *
+     * @param acceptEncoding value of the Accept-Encoding header, may be null.
+     * @param available      content codings available, in order of preference.
+     * @return the content coding to deliver, or null to deliver the identity encoded content.
+     */
+    public static String selectEncoding(String acceptEncoding, Collection<String> available) {
+        if (StringUtils.isBlank(acceptEncoding) || available == null || available.isEmpty()) {
+            return null;
+        }
+
+        final Map<String, Float> qualities = parseAcceptEncoding(acceptEncoding);
+        String best = null;
+        float bestQuality = 0f;
+        for (String contentCoding : available) {
+            Float quality = qualities.get(contentCoding);
+            if (quality == null) {
+                quality = qualities.get(ANY);
+            }
+            if (quality != null && quality > bestQuality) {
+                best = contentCoding;
+                bestQuality = quality;
+            }
+        }
+
+        final Float identityQuality = qualities.get(IDENTITY);
+        if (identityQuality != null && identityQuality > bestQuality) {
+            return null;
+        }
+        return best;
+    }
+
+    private static Map<String, Float> parseAcceptEncoding(String acceptEncoding) {
+        final Map<String, Float> qualities = new HashMap<>();
+        for (String element : StringUtils.split(acceptEncoding, ',')) {
+            final String[] parameters = StringUtils.split(element, ';');
+            if (parameters.length == 0 || StringUtils.isBlank(parameters[0])) {
+                continue;
+            }
+            float quality = 1f;
+            for (int i = 1; i < parameters.length; i++) {
+                final String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0f;
+                    }
+                }
+            }
+            qualities.put(parameters[0].trim().toLowerCase(Locale.ROOT), quality);
+        }
+        return qualities;
+    }
+}
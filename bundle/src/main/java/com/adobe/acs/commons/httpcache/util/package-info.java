@@ -18,7 +18,7 @@
  * #L%
  */
 
-@Version("1.0.0")
+@Version("1.1.0")
 package com.adobe.acs.commons.httpcache.util;
 
 import org.osgi.annotation.versioning.Version;
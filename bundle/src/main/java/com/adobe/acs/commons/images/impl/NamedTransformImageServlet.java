@@ -33,8 +33,10 @@ import com.day.cq.wcm.api.PageManager;
 import com.day.cq.wcm.foundation.Image;
 import com.day.image.Layer;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
@@ -45,7 +47,12 @@ import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.mime.MimeTypeService;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.annotations.*;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
@@ -53,12 +60,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.imageio.ImageIO;
+import javax.jcr.Node;
+import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -91,7 +107,7 @@ import java.util.regex.Pattern;
 @Designate(
         ocd=NamedTransformImageServlet.Config.class
 )
-public class NamedTransformImageServlet extends SlingSafeMethodsServlet implements OptingServlet {
+public class NamedTransformImageServlet extends SlingSafeMethodsServlet implements OptingServlet, EventHandler {
 
     private static final Logger log = LoggerFactory.getLogger(NamedTransformImageServlet.class);
 
@@ -116,8 +132,25 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
 
     private static final String TYPE_PROGRESSIVE = "progressive";
 
+    private static final String PROP_CACHE_SIZE = "cache.size";
+
+    private static final String PROP_CACHE_PATHS = "cache.paths";
+
+    private static final String[] DEFAULT_CACHE_PATHS = {"/content"};
+
+    private static final String CACHE_DIRECTORY = "named-transform-cache";
+
     private Pattern lastSuffixPattern = Pattern.compile(DEFAULT_FILENAME_PATTERN);
 
+    /* Transformed images kept on disk, null if disabled */
+    private volatile TransformedImageCache cache;
+
+    /* Paths whose changes drop the cached images, only images rendered from below them are cached */
+    private String[] cachePaths = DEFAULT_CACHE_PATHS;
+
+    /* Listener for the changes below the cache paths, registered while the cache is enabled */
+    private ServiceRegistration<EventHandler> eventHandlerRegistration;
+
     private Map<String, NamedImageTransformer> namedImageTransformers =
             new ConcurrentHashMap<String, NamedImageTransformer>();
 
@@ -161,6 +194,19 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
                         + " [ Default: cq5dam.web.(.*) ]",
                 defaultValue = DEFAULT_ASSET_RENDITION_PICKER_REGEX)
         String prop_asset$_$rendition$_$picker$_$regex();
+
+        @AttributeDefinition(name = "Cache Size",
+                description = "Local disk space used to keep transformed images, in MB. The least recently used images"
+                        + " are removed once it is full, and images are removed when the resources they were rendered"
+                        + " from change. 0 disables the cache. [ Default: 0 ]",
+                defaultValue = "0")
+        int cache_size();
+
+        @AttributeDefinition(name = "Cache Paths",
+                description = "Paths whose changes remove the cached images. Only images rendered from resources below"
+                        + " these paths are cached. [ Default: /content ]",
+                defaultValue = "/content")
+        String[] cache_paths();
     }
 
     private static final String PROP_ASSET_RENDITION_PICKER_REGEX = "prop.asset-rendition-picker-regex";
@@ -215,15 +261,6 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
 
         final Image image = this.resolveImage(request);
         final String mimeType = this.getMimeType(request, image);
-        Layer layer = this.getLayer(image);
-        
-        if (layer == null) {
-            response.setStatus(SlingHttpServletResponse.SC_NOT_FOUND);
-            return;
-        }
-        
-        // Transform the image
-        layer = this.transform(layer, imageTransformersWithParams);
 
         // Get the quality
         final double quality = this.getQuality(mimeType,
@@ -233,17 +270,165 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
         final boolean progressiveJpeg = isProgressiveJpeg(mimeType,
                 imageTransformersWithParams.get(TYPE_PROGRESSIVE, EMPTY_PARAMS));
 
-        response.setContentType(mimeType);
+        final TransformedImageCache transformedImageCache = this.cache;
+        final List<String> sourcePaths = transformedImageCache == null ? null : getSourcePaths(image);
+        final String cacheKey = sourcePaths == null || !isCached(sourcePaths) ? null
+                : getCacheKey(image, mimeType, imageTransformersWithParams, quality, progressiveJpeg);
 
-        if (progressiveJpeg) {
-            ProgressiveJpeg.write(layer, quality, response.getOutputStream());
+        if (cacheKey != null) {
+            try (InputStream cached = transformedImageCache.open(cacheKey, sourcePaths, out -> {
+                final Layer layer = this.createLayer(image, imageTransformersWithParams);
+                if (layer == null) {
+                    return false;
+                }
+                this.write(layer, mimeType, quality, progressiveJpeg, out);
+                return true;
+            })) {
+                if (cached == null) {
+                    response.setStatus(SlingHttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                response.setContentType(mimeType);
+                IOUtils.copy(cached, response.getOutputStream());
+            }
         } else {
-            layer.write(mimeType, quality, response.getOutputStream());
+            final Layer layer = this.createLayer(image, imageTransformersWithParams);
+
+            if (layer == null) {
+                response.setStatus(SlingHttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+
+            response.setContentType(mimeType);
+
+            this.write(layer, mimeType, quality, progressiveJpeg, response.getOutputStream());
         }
 
         response.flushBuffer();
     }
 
+    /**
+     * Get the Image layer and apply the transforms to it.
+     *
+     * @param image the Image to transform
+     * @param imageTransformersWithParams the transforms and their params
+     * @return the transformed Image layer, null if the image has no layer
+     * @throws IOException
+     */
+    private Layer createLayer(final Image image, final ValueMap imageTransformersWithParams) throws IOException {
+        final Layer layer = this.getLayer(image);
+
+        if (layer == null) {
+            return null;
+        }
+
+        // Transform the image
+        return this.transform(layer, imageTransformersWithParams);
+    }
+
+    private void write(final Layer layer, final String mimeType, final double quality, final boolean progressiveJpeg,
+                       final OutputStream out) throws IOException {
+        if (progressiveJpeg) {
+            ProgressiveJpeg.write(layer, quality, out);
+        } else {
+            layer.write(mimeType, quality, out);
+        }
+    }
+
+    /**
+     * Builds the key of the transformed image in the cache from everything the output depends on: the image and the
+     * last modified date of its binary, the mime type, the transforms in order and the encoding.
+     *
+     * @return the key, or null if the image can't be cached
+     */
+    String getCacheKey(final Image image, final String mimeType, final ValueMap imageTransformersWithParams,
+                       final double quality, final boolean progressiveJpeg) {
+        if (image instanceof SocialImageImpl || image instanceof SocialRemoteImageImpl) {
+            // Social images are not read from the repository the usual way
+            return null;
+        }
+        try {
+            final Property data = image.getData();
+            if (data == null) {
+                return null;
+            }
+            final StringBuilder key = new StringBuilder(image.getPath());
+            key.append('|').append(StringUtils.defaultString(image.getFileReference()));
+            key.append('|').append(toMillis(image.getLastModified()));
+            key.append('|').append(data.getPath());
+            final Node binary = data.getParent();
+            key.append('|').append(binary.hasProperty(JcrConstants.JCR_LASTMODIFIED)
+                    ? binary.getProperty(JcrConstants.JCR_LASTMODIFIED).getDate().getTimeInMillis() : data.getLength());
+            final ValueMap properties = image.getValueMap();
+            key.append('|').append(properties.get(Image.PN_IMAGE_CROP, ""));
+            key.append('|').append(properties.get(Image.PN_IMAGE_ROTATE, ""));
+            key.append('|').append(mimeType);
+            appendTransforms(key, imageTransformersWithParams);
+            key.append('|').append(quality).append('|').append(progressiveJpeg);
+            return key.toString();
+        } catch (RepositoryException e) {
+            log.debug("Could not build the cache key of [ {} ], not caching it", image.getPath(), e);
+            return null;
+        }
+    }
+
+    private static long toMillis(final Calendar calendar) {
+        return calendar == null ? -1 : calendar.getTimeInMillis();
+    }
+
+    private static void appendTransforms(final StringBuilder key, final Map<String, Object> transforms) {
+        key.append('{');
+        for (final Map.Entry<String, Object> entry : transforms.entrySet()) {
+            key.append(entry.getKey()).append('=');
+            final Object value = entry.getValue();
+            if (value instanceof Map) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> params = (Map<String, Object>) value;
+                appendTransforms(key, params);
+            } else if (value instanceof Object[]) {
+                key.append(Arrays.deepToString((Object[]) value));
+            } else {
+                key.append(value);
+            }
+            key.append(';');
+        }
+        key.append('}');
+    }
+
+    private static List<String> getSourcePaths(final Image image) {
+        final List<String> paths = new ArrayList<>();
+        paths.add(image.getPath());
+        if (StringUtils.isNotBlank(image.getFileReference())) {
+            paths.add(image.getFileReference());
+        }
+        try {
+            final Property data = image.getData();
+            if (data != null) {
+                paths.add(data.getParent().getPath());
+            }
+        } catch (RepositoryException e) {
+            log.debug("Could not get the binary of [ {} ]", image.getPath(), e);
+        }
+        return paths;
+    }
+
+    /**
+     * Images are only cached when the changes to every resource they are rendered from are listened to.
+     */
+    private boolean isCached(final List<String> sourcePaths) {
+        return sourcePaths.stream().allMatch(path -> Arrays.stream(cachePaths)
+                .anyMatch(cachePath -> path.equals(cachePath) || path.startsWith(cachePath + "/")));
+    }
+
+    @Override
+    public void handleEvent(final Event event) {
+        final TransformedImageCache transformedImageCache = this.cache;
+        final String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+        if (transformedImageCache != null && path != null) {
+            transformedImageCache.invalidate(path);
+        }
+    }
+
     /**
      * Execute the ImageTransformers as specified by the Request's suffix segments against the Image layer.
      *
@@ -499,7 +684,8 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
     }
 
     @Activate
-    protected final void activate(final Map<String, String> properties) throws Exception {
+    protected final void activate(final BundleContext bundleContext, final Map<String, Object> properties)
+            throws Exception {
         final String regex = PropertiesUtil.toString(properties.get(PROP_ASSET_RENDITION_PICKER_REGEX),
                 DEFAULT_ASSET_RENDITION_PICKER_REGEX);
         final String fileNameRegex = PropertiesUtil.toString(properties.get(NAMED_IMAGE_FILENAME_PATTERN),
@@ -515,6 +701,50 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
                     DEFAULT_ASSET_RENDITION_PICKER_REGEX);
             renditionPatternPicker = new RenditionPatternPicker(DEFAULT_ASSET_RENDITION_PICKER_REGEX);
         }
+
+        final long cacheSize = PropertiesUtil.toLong(properties.get(PROP_CACHE_SIZE), 0);
+        final File cacheDirectory = bundleContext.getDataFile(CACHE_DIRECTORY);
+        if (cacheSize > 0 && cacheDirectory != null) {
+            cachePaths = PropertiesUtil.toStringArray(properties.get(PROP_CACHE_PATHS), DEFAULT_CACHE_PATHS);
+            cache = new TransformedImageCache(cacheDirectory, cacheSize * 1024 * 1024);
+            registerAsEventHandler(bundleContext);
+            log.info("Caching up to {} MB of transformed images in {}", cacheSize, cacheDirectory);
+        } else if (cacheSize > 0) {
+            log.warn("No file system support for the bundle, not caching transformed images");
+        }
+    }
+
+    /**
+     * Listen to the changes below the cache paths only, so that other changes are not bridged to OSGi events for it.
+     */
+    @SuppressWarnings("squid:S1149")
+    private void registerAsEventHandler(final BundleContext bundleContext) {
+        final StringBuilder filter = new StringBuilder("(|");
+        for (final String cachePath : cachePaths) {
+            filter.append('(').append(SlingConstants.PROPERTY_PATH).append('=').append(cachePath).append(')')
+                    .append('(').append(SlingConstants.PROPERTY_PATH).append('=').append(cachePath).append("/*)");
+        }
+        filter.append(')');
+
+        final Dictionary<String, Object> eventHandlerProps = new Hashtable<>();
+        eventHandlerProps.put(EventConstants.EVENT_TOPIC, new String[]{
+                SlingConstants.TOPIC_RESOURCE_CHANGED,
+                SlingConstants.TOPIC_RESOURCE_REMOVED});
+        eventHandlerProps.put(EventConstants.EVENT_FILTER, filter.toString());
+        eventHandlerRegistration = bundleContext.registerService(EventHandler.class, this, eventHandlerProps);
+    }
+
+    @Deactivate
+    protected final void deactivate() {
+        if (eventHandlerRegistration != null) {
+            eventHandlerRegistration.unregister();
+            eventHandlerRegistration = null;
+        }
+        final TransformedImageCache transformedImageCache = this.cache;
+        this.cache = null;
+        if (transformedImageCache != null) {
+            transformedImageCache.clear();
+        }
     }
 
     protected final void bindNamedImageTransformers(final NamedImageTransformer service,
@@ -0,0 +1,377 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.images.impl;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps transformed images in files on local disk, evicting the least recently used ones once the configured size is
+ * exceeded. Entries are keyed by everything the output depends on, and are also dropped when one of the repository
+ * paths they were rendered from changes. Concurrent requests for the same key wait for a single rendering, up to a
+ * timeout after which they render the image themselves without caching it.
+ * <p>
+ * The index only lives in memory, so the directory is emptied when the cache is created.
+ */
+class TransformedImageCache {
+
+    private static final Logger log = LoggerFactory.getLogger(TransformedImageCache.class);
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Default time to wait for the rendering of another request, in miliseconds. */
+    static final long DEFAULT_RENDER_TIMEOUT = 30000L;
+
+    /**
+     * Writes the transformed image.
+     */
+    @FunctionalInterface
+    interface Renderer {
+        /**
+         * @param out stream to write the image to
+         * @return false if there is no image to render
+         */
+        boolean render(OutputStream out) throws IOException;
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final File file;
+        private final long size;
+        private final Collection<String> sourcePaths;
+
+        Entry(String key, File file, long size, Collection<String> sourcePaths) {
+            this.key = key;
+            this.file = file;
+            this.size = size;
+            this.sourcePaths = sourcePaths;
+        }
+    }
+
+    /** Result of a rendering, shared with the requests which waited for it. */
+    private static final class Rendition {
+        private static final Rendition EMPTY = new Rendition(null, null);
+
+        private final Entry entry;
+        // images larger than the whole cache are handed out from memory instead
+        private final byte[] data;
+
+        Rendition(Entry entry, byte[] data) {
+            this.entry = entry;
+            this.data = data;
+        }
+    }
+
+    private final File directory;
+
+    private final long maxSize;
+
+    private final long renderTimeout;
+
+    // access ordered, guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // keys by source path, guarded by this
+    private final TreeMap<String, Set<String>> keysByPath = new TreeMap<>();
+
+    // guarded by this
+    private long size;
+
+    private final ConcurrentMap<String, CompletableFuture<Rendition>> renderings = new ConcurrentHashMap<>();
+
+    // makes file names unique, a key can be rendered again while its previous file is still in use
+    private final AtomicLong renderCount = new AtomicLong();
+
+    /**
+     * @param directory directory to keep the files in, emptied first
+     * @param maxSize   maximum size of all files in bytes
+     */
+    TransformedImageCache(File directory, long maxSize) throws IOException {
+        this(directory, maxSize, DEFAULT_RENDER_TIMEOUT);
+    }
+
+    /**
+     * @param directory     directory to keep the files in, emptied first
+     * @param maxSize       maximum size of all files in bytes
+     * @param renderTimeout time to wait for the rendering of another request in miliseconds
+     */
+    TransformedImageCache(File directory, long maxSize, long renderTimeout) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.renderTimeout = renderTimeout;
+        if (directory.exists()) {
+            FileUtils.cleanDirectory(directory);
+        } else {
+            Files.createDirectories(directory.toPath());
+        }
+    }
+
+    /**
+     * Open the cached image for the key, rendering it first if it is not cached yet. If another request is already
+     * rendering the same key, this waits for it instead of rendering again, and renders the image without the cache
+     * if that takes longer than the render timeout.
+     *
+     * @param key         identifies the output, must change whenever the output would
+     * @param sourcePaths repository paths the image is rendered from, a change to them or their descendants drops it
+     * @param renderer    renders the image if it is not cached
+     * @return the image, or null if the renderer had nothing to render
+     */
+    @Nullable
+    InputStream open(String key, Collection<String> sourcePaths, Renderer renderer) throws IOException {
+        while (true) {
+            final InputStream cached = openCached(key);
+            if (cached != null) {
+                return cached;
+            }
+
+            final CompletableFuture<Rendition> rendering = new CompletableFuture<>();
+            final CompletableFuture<Rendition> running = renderings.putIfAbsent(key, rendering);
+            if (running == null) {
+                return render(key, sourcePaths, renderer, rendering);
+            }
+            final Rendition rendition = await(running);
+            if (rendition == null) {
+                log.warn("Rendering of {} takes longer than {} ms, rendering it without the cache", key, renderTimeout);
+                return renderUncached(renderer);
+            }
+            if (rendition == Rendition.EMPTY) {
+                return null;
+            }
+            final InputStream rendered = open(rendition);
+            if (rendered != null) {
+                return rendered;
+            }
+            // evicted before it could be read, look again
+        }
+    }
+
+    /**
+     * Drop the images rendered from the path, from one of its descendants or from one of its ancestors.
+     */
+    synchronized void invalidate(String path) {
+        final Set<String> keys = new HashSet<>();
+        // the path and its descendants
+        for (Map.Entry<String, Set<String>> entry : keysByPath.tailMap(path, true).entrySet()) {
+            if (!entry.getKey().equals(path) && !entry.getKey().startsWith(path + "/")) {
+                break;
+            }
+            keys.addAll(entry.getValue());
+        }
+        // its ancestors, e.g. the asset when one of its renditions changed
+        String parent = StringUtils.substringBeforeLast(path, "/");
+        while (!parent.isEmpty()) {
+            final Set<String> parentKeys = keysByPath.get(parent);
+            if (parentKeys != null) {
+                keys.addAll(parentKeys);
+            }
+            parent = StringUtils.substringBeforeLast(parent, "/");
+        }
+        for (String key : keys) {
+            remove(entries.get(key));
+        }
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Drop all entries and delete their files.
+     */
+    synchronized void clear() {
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            remove(entry);
+        }
+    }
+
+    private synchronized InputStream openCached(String key) throws IOException {
+        final Entry entry = entries.get(key);
+        // opened while holding the lock, so the file can't be evicted in between
+        return entry == null ? null : new FileInputStream(entry.file);
+    }
+
+    @Nullable
+    private synchronized InputStream open(Rendition rendition) throws IOException {
+        if (rendition.data != null) {
+            return new ByteArrayInputStream(rendition.data);
+        }
+        return rendition.entry.file.isFile() ? new FileInputStream(rendition.entry.file) : null;
+    }
+
+    /**
+     * @return the rendition, or null if the rendering did not complete within the render timeout
+     */
+    @Nullable
+    private Rendition await(CompletableFuture<Rendition> running) throws IOException {
+        try {
+            return running.get(renderTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the transformed image", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not render the transformed image", e.getCause());
+        }
+    }
+
+    @Nullable
+    private static InputStream renderUncached(Renderer renderer) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        return renderer.render(out) ? new ByteArrayInputStream(out.toByteArray()) : null;
+    }
+
+    private InputStream render(String key, Collection<String> sourcePaths, Renderer renderer,
+                               CompletableFuture<Rendition> rendering) throws IOException {
+        try {
+            final String name = DigestUtils.sha1Hex(key) + "-" + renderCount.incrementAndGet();
+            final File temp = new File(directory, name + TEMP_SUFFIX);
+            final File file = new File(directory, name);
+            try {
+                final boolean rendered;
+                try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+                    rendered = renderer.render(out);
+                }
+                if (!rendered) {
+                    rendering.complete(Rendition.EMPTY);
+                    return null;
+                }
+                if (temp.length() > maxSize) {
+                    final Rendition rendition = new Rendition(null, Files.readAllBytes(temp.toPath()));
+                    rendering.complete(rendition);
+                    return open(rendition);
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+
+            final Entry entry = new Entry(key, file, file.length(), new ArrayList<>(sourcePaths));
+            final Rendition rendition = new Rendition(entry, null);
+            final InputStream result;
+            synchronized (this) {
+                remove(entries.get(key));
+                entries.put(key, entry);
+                for (String path : entry.sourcePaths) {
+                    keysByPath.computeIfAbsent(path, p -> new HashSet<>()).add(key);
+                }
+                size += entry.size;
+                evict(entry);
+                // opened before anything else can evict it
+                result = new FileInputStream(file);
+            }
+            rendering.complete(rendition);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            rendering.completeExceptionally(e);
+            throw e;
+        } finally {
+            // errors are not caught above, the requests waiting for this rendering must not be left blocked
+            if (!rendering.isDone()) {
+                rendering.completeExceptionally(new IOException("Rendering of " + key + " did not complete"));
+            }
+            renderings.remove(key, rendering);
+        }
+    }
+
+    /**
+     * Remove the least recently used entries until the cache fits, except for the one just added.
+     */
+    private void evict(Entry added) {
+        int evicted = 0;
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            final Entry eldest = iterator.next();
+            if (eldest != added) {
+                iterator.remove();
+                discard(eldest);
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            log.debug("Evicted {} transformed images, cache size is {} bytes", evicted, size);
+        }
+    }
+
+    private void remove(@Nullable Entry entry) {
+        if (entry != null && entries.remove(entry.key) != null) {
+            discard(entry);
+        }
+    }
+
+    /**
+     * Release what an entry no longer in the index holds.
+     */
+    private void discard(Entry entry) {
+        unindex(entry);
+        size -= entry.size;
+        try {
+            Files.deleteIfExists(entry.file.toPath());
+        } catch (IOException e) {
+            log.debug("Could not delete {}", entry.file, e);
+            entry.file.deleteOnExit();
+        }
+    }
+
+    private void unindex(Entry entry) {
+        for (String path : entry.sourcePaths) {
+            final Set<String> keys = keysByPath.get(path);
+            if (keys != null) {
+                keys.remove(entry.key);
+                if (keys.isEmpty()) {
+                    keysByPath.remove(path);
+                }
+            }
+        }
+    }
+}
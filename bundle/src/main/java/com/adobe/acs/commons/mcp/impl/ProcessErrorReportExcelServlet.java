@@ -23,29 +23,16 @@ import static org.apache.sling.api.servlets.ServletResolverConstants.SLING_SERVL
 import static org.apache.sling.api.servlets.ServletResolverConstants.SLING_SERVLET_RESOURCE_TYPES;
 import static org.apache.sling.api.servlets.ServletResolverConstants.SLING_SERVLET_SELECTORS;
 
-import java.awt.Color;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 
-import org.apache.commons.lang3.StringUtils;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.CreationHelper;
-import org.apache.poi.ss.usermodel.FillPatternType;
-import org.apache.poi.ss.usermodel.IndexedColors;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.xssf.usermodel.XSSFCellStyle;
-import org.apache.poi.xssf.usermodel.XSSFColor;
-import org.apache.poi.xssf.usermodel.XSSFFont;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
@@ -54,15 +41,14 @@ import org.slf4j.LoggerFactory;
 
 import com.adobe.acs.commons.mcp.ProcessInstance;
 import com.adobe.acs.commons.mcp.model.ManagedProcess;
-import com.adobe.acs.commons.mcp.model.impl.ArchivedProcessFailure;
 import com.day.cq.commons.jcr.JcrUtil;
 
 /**
- * Export a generic report as an excel spreadsheet
+ * Export the errors of a process as an excel spreadsheet, or as csv
  */
 @Component(service=Servlet.class,
 property= {
-SLING_SERVLET_EXTENSIONS+"=xlsx,xls",
+SLING_SERVLET_EXTENSIONS+"=xlsx,xls,csv",
 SLING_SERVLET_SELECTORS+"=errors",
 SLING_SERVLET_RESOURCE_TYPES+"="+ProcessInstance.RESOURCE_TYPE
 })
@@ -71,22 +57,27 @@ public class ProcessErrorReportExcelServlet extends SlingSafeMethodsServlet {
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ProcessErrorReportExcelServlet.class);
 
+    private static final List<String> COLUMN_NAMES = Arrays.asList("Time", "Path", "Error", "Stack trace");
+
     @Override
     protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
         ManagedProcess report = request.getResource().adaptTo(ManagedProcess.class);
         if (report != null) {
             String title = report.getName();
-            String fileName = JcrUtil.createValidName(title) + ".xlsx";
+            boolean csv = ReportExport.isCsv(request);
+            String fileName = JcrUtil.createValidName(title) + (csv ? ".csv" : ".xlsx");
 
-            Workbook workbook = createSpreadsheet(report);
-            response.setContentType("application/vnd.ms-excel");
-            response.setHeader("Expires", "0");
-            response.setHeader("Cache-Control", "must-revalidate, post-check=0, pre-check=0");
-            response.setHeader("Pragma", "public");
-            response.setHeader("Content-Disposition", "attachment; filename=" + fileName);
-            try (ServletOutputStream out = response.getOutputStream()) {
-                workbook.write(out);
-                out.flush();
+            try {
+                if (csv) {
+                    ReportExport.setDownloadHeaders(response, fileName, true);
+                    ReportExport.writeCsv(response.getWriter(), COLUMN_NAMES, getRowValues(report));
+                } else {
+                    Workbook workbook = createSpreadsheet(report);
+                    ReportExport.setDownloadHeaders(response, fileName, false);
+                    try (ServletOutputStream out = response.getOutputStream()) {
+                        ReportExport.write(workbook, out);
+                    }
+                }
             } catch (Exception ex) {
                 LOG.error("Error generating excel export for " + request.getResource().getPath(), ex);
                 throw ex;
@@ -97,76 +88,12 @@ public class ProcessErrorReportExcelServlet extends SlingSafeMethodsServlet {
         }
     }
 
-    @SuppressWarnings("squid:S3776")
     protected Workbook createSpreadsheet(ManagedProcess report) {
-        Workbook wb = new XSSFWorkbook();
-
-        String name = report.getName();
-        for (char ch : new char[]{'\\', '/', '*', '[', ']', ':', '?'}) {
-            name = StringUtils.remove(name, ch);
-        }
-        Sheet sheet = wb.createSheet(name);
-        sheet.createFreezePane(0, 1, 0, 1);
-
-        Row headerRow = sheet.createRow(0);
-        CellStyle headerStyle = createHeaderStyle(wb);
-        CellStyle dateStyle = wb.createCellStyle();
-        CreationHelper createHelper = wb.getCreationHelper();
-        dateStyle.setDataFormat(createHelper.createDataFormat().getFormat("yyy/mm/dd h:mm:ss"));
-        
-        for (String columnName : Arrays.asList("Time", "Path", "Error", "Stack trace")) {
-            Cell headerCell = headerRow.createCell(headerRow.getPhysicalNumberOfCells());
-            headerCell.setCellValue(columnName);
-            headerCell.setCellStyle(headerStyle);
-        }
-
-        Collection<ArchivedProcessFailure> rows = report.getReportedErrorsList();
-        //make rows, don't forget the header row
-        for (ArchivedProcessFailure error : rows) {
-            Row row = sheet.createRow(sheet.getPhysicalNumberOfRows());
-            Cell c;
-
-            c = row.createCell(0);
-            c.setCellValue(error.time);
-            c.setCellStyle(dateStyle);
-            c = row.createCell(1);
-            c.setCellValue(error.nodePath);
-            c = row.createCell(2);
-            c.setCellValue(error.error);
-            c = row.createCell(3);
-            c.setCellValue(error.stackTrace);
-        }
-        autosize(sheet, 4);
-        sheet.setAutoFilter(new CellRangeAddress(0, 1 + rows.size(), 0, 3));
-        return wb;
-    }
-
-    CellStyle createHeaderStyle(Workbook wb) {
-        XSSFCellStyle xstyle = (XSSFCellStyle) wb.createCellStyle();
-        XSSFColor header = new XSSFColor(new Color(79, 129, 189));
-        xstyle.setFillForegroundColor(header);
-        xstyle.setFillPattern(FillPatternType.SOLID_FOREGROUND);
-        XSSFFont font = (XSSFFont) wb.createFont();
-        font.setColor(IndexedColors.WHITE.index);
-        xstyle.setFont(font);
-        return xstyle;
+        return ReportExport.createWorkbook(report.getName(), COLUMN_NAMES, getRowValues(report), false);
     }
 
-    void autosize(Sheet sheet, int lastColumnIndex) {
-        for (int i = 0; i <= lastColumnIndex; i++) {
-            try {
-                sheet.autoSizeColumn(i);
-            } catch (Exception e) {
-                // autosize depends on AWT stuff and can fail, but it should not be fatal
-                LOG.warn("autoSizeColumn(" + i + ") failed: " + e.getMessage());
-            }
-            int cw = sheet.getColumnWidth(i);
-            // increase width to accommodate drop-down arrow in the header
-            if (cw / 256 < 20) {
-                sheet.setColumnWidth(i, 256 * 12);
-            } else if (cw / 256 > 120) {
-                sheet.setColumnWidth(i, 256 * 120);
-            }
-        }
+    private Stream<List<Object>> getRowValues(ManagedProcess report) {
+        return report.getReportedErrorsList().stream()
+                .map(error -> Arrays.<Object>asList(error.time, error.nodePath, error.error, error.stackTrace));
     }
 }
@@ -0,0 +1,223 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.impl;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.FastDateFormat;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+
+import com.day.text.csv.Csv;
+
+/**
+ * Writes report downloads as rows are produced. Spreadsheets only keep a window of rows in memory, older rows are
+ * flushed to a compressed temporary file and the final file is streamed from there. CSV downloads are written
+ * straight to the response.
+ */
+final class ReportExport {
+
+    static final String CSV_EXTENSION = "csv";
+
+    /** Number of rows kept in memory, the rest is flushed to a temporary file. */
+    static final int ROW_ACCESS_WINDOW = 100;
+
+    static final String DATE_FORMAT = "yyy/mm/dd h:mm:ss";
+
+    private static final FastDateFormat CSV_DATE_FORMAT = FastDateFormat.getInstance("yyyy/MM/dd H:mm:ss");
+
+    private ReportExport() {
+        // Utility class
+    }
+
+    static boolean isCsv(SlingHttpServletRequest request) {
+        return CSV_EXTENSION.equals(request.getRequestPathInfo().getExtension());
+    }
+
+    static void setDownloadHeaders(SlingHttpServletResponse response, String fileName, boolean csv) {
+        if (csv) {
+            response.setContentType("text/csv");
+            response.setCharacterEncoding("UTF-8");
+        } else {
+            response.setContentType("application/vnd.ms-excel");
+        }
+        response.setHeader("Expires", "0");
+        response.setHeader("Cache-Control", "must-revalidate, post-check=0, pre-check=0");
+        response.setHeader("Pragma", "public");
+        response.setHeader("Content-Disposition", "attachment; filename=" + fileName);
+    }
+
+    /**
+     * Build a single sheet workbook with a header row, frozen and filtered.
+     *
+     * @param name        sheet name
+     * @param columnNames header row
+     * @param rows        cell values of every row, read once
+     * @param formulas    if true, strings starting with = are written as formulas
+     * @return workbook to be written with {@link #write(Workbook, OutputStream)}
+     */
+    static Workbook createWorkbook(String name, List<String> columnNames, Stream<List<Object>> rows, boolean formulas) {
+        SXSSFWorkbook wb = new SXSSFWorkbook(ROW_ACCESS_WINDOW);
+        boolean built = false;
+        try {
+            fillWorkbook(wb, name, columnNames, rows, formulas);
+            built = true;
+            return wb;
+        } finally {
+            // Rows already flushed to temporary files are otherwise only released by write()
+            if (!built) {
+                wb.dispose();
+            }
+        }
+    }
+
+    @SuppressWarnings("squid:S3776")
+    private static void fillWorkbook(SXSSFWorkbook wb, String name, List<String> columnNames, Stream<List<Object>> rows, boolean formulas) {
+        wb.setCompressTempFiles(true);
+
+        String sheetName = name;
+        for (char ch : new char[]{'\\', '/', '*', '[', ']', ':', '?'}) {
+            sheetName = StringUtils.remove(sheetName, ch);
+        }
+        Sheet sheet = wb.createSheet(sheetName);
+        sheet.createFreezePane(0, 1, 0, 1);
+
+        // Flushed rows can't be measured anymore, so widths are tracked as the rows go
+        int[] widths = new int[columnNames.size()];
+        Row headerRow = sheet.createRow(0);
+        CellStyle headerStyle = createHeaderStyle(wb);
+        for (int c = 0; c < columnNames.size(); c++) {
+            Cell headerCell = headerRow.createCell(c);
+            headerCell.setCellValue(columnNames.get(c));
+            headerCell.setCellStyle(headerStyle);
+            widths[c] = StringUtils.length(columnNames.get(c));
+        }
+
+        CellStyle dateStyle = wb.createCellStyle();
+        dateStyle.setDataFormat(wb.getCreationHelper().createDataFormat().getFormat(DATE_FORMAT));
+        Iterator<List<Object>> rowIterator = rows.iterator();
+        int rowNum = 0;
+        while (rowIterator.hasNext()) {
+            List<Object> values = rowIterator.next();
+            Row row = sheet.createRow(++rowNum);
+            for (int c = 0; c < values.size() && c < widths.length; c++) {
+                Object val = values.get(c);
+                if (val == null) {
+                    continue;
+                }
+                Cell cell = row.createCell(c);
+                if (val instanceof Number) {
+                    cell.setCellValue(((Number) val).doubleValue());
+                    widths[c] = Math.max(widths[c], val.toString().length());
+                } else if (val instanceof Date || val instanceof Calendar) {
+                    cell.setCellValue(val instanceof Date ? (Date) val : ((Calendar) val).getTime());
+                    cell.setCellStyle(dateStyle);
+                    widths[c] = Math.max(widths[c], DATE_FORMAT.length() + 2);
+                } else {
+                    String sval = String.valueOf(val);
+                    if (formulas && sval.startsWith("=")) {
+                        cell.setCellFormula(sval.substring(1));
+                    } else {
+                        cell.setCellValue(sval);
+                        widths[c] = Math.max(widths[c], sval.length());
+                    }
+                }
+            }
+        }
+        for (int c = 0; c < widths.length; c++) {
+            // Leave room for the drop-down arrow in the header
+            if (widths[c] < 20) {
+                sheet.setColumnWidth(c, 256 * 12);
+            } else {
+                sheet.setColumnWidth(c, 256 * Math.min(widths[c] + 2, 120));
+            }
+        }
+        sheet.setAutoFilter(new CellRangeAddress(0, Math.max(1, rowNum), 0, Math.max(0, widths.length - 1)));
+    }
+
+    /**
+     * Write the workbook and release the temporary files of streamed workbooks.
+     */
+    static void write(Workbook workbook, OutputStream out) throws IOException {
+        try {
+            workbook.write(out);
+            out.flush();
+        } finally {
+            if (workbook instanceof SXSSFWorkbook) {
+                ((SXSSFWorkbook) workbook).dispose();
+            }
+        }
+    }
+
+    static void writeCsv(Writer writer, List<String> columnNames, Stream<List<Object>> rows) throws IOException {
+        final Csv csv = new Csv();
+        csv.writeInit(writer);
+        csv.writeRow(columnNames.toArray(new String[0]));
+        Iterator<List<Object>> rowIterator = rows.iterator();
+        while (rowIterator.hasNext()) {
+            csv.writeRow(rowIterator.next().stream().map(ReportExport::toCsvValue).toArray(String[]::new));
+        }
+        csv.close();
+    }
+
+    private static String toCsvValue(Object val) {
+        if (val == null) {
+            return "";
+        } else if (val instanceof Date) {
+            return CSV_DATE_FORMAT.format((Date) val);
+        } else if (val instanceof Calendar) {
+            return CSV_DATE_FORMAT.format((Calendar) val);
+        } else {
+            return String.valueOf(val);
+        }
+    }
+
+    static CellStyle createHeaderStyle(Workbook wb) {
+        XSSFCellStyle xstyle = (XSSFCellStyle) wb.createCellStyle();
+        XSSFColor header = new XSSFColor(new Color(79, 129, 189));
+        xstyle.setFillForegroundColor(header);
+        xstyle.setFillPattern(FillPatternType.SOLID_FOREGROUND);
+        XSSFFont font = (XSSFFont) wb.createFont();
+        font.setColor(IndexedColors.WHITE.index);
+        xstyle.setFont(font);
+        return xstyle;
+    }
+}
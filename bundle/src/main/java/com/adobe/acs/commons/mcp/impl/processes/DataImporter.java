@@ -36,6 +36,8 @@ import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 import javax.jcr.RepositoryException;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.request.RequestParameter;
@@ -57,6 +59,7 @@ public class DataImporter extends ProcessDefinition {
 
     private static final Logger LOG = LoggerFactory.getLogger(DataImporter.class);
     private static final String PATH = "path";
+    private static final int MAX_ROWS_IN_FLIGHT = 1000;
 
     public enum MergeMode {
         CREATE_AND_OVERWRITE_PROPERTIES(true, true, true),
@@ -146,6 +149,7 @@ public class DataImporter extends ProcessDefinition {
     }
 
     Spreadsheet data;
+    private final transient Map<String, Map<String, CompositeVariant>> queuedRows = new ConcurrentHashMap<>();
     List<EnumMap<ReportColumns, Object>> reportRows;
 
     protected synchronized EnumMap<ReportColumns, Object> trackActivity(String item, String action, Integer count) {
@@ -175,9 +179,12 @@ public class DataImporter extends ProcessDefinition {
     @Override
     public void buildProcess(ProcessInstance instance, ResourceResolver rr) throws LoginException, RepositoryException {
         try {
-            data = new Spreadsheet(enableHeaderNameConversion, importFile, PATH);
             if (presortData) {
+                data = new Spreadsheet(enableHeaderNameConversion, importFile, PATH);
                 Collections.sort(data.getDataRowsAsCompositeVariants(), (a, b) -> b.get(PATH).toString().compareTo(a.get(PATH).toString()));
+            } else {
+                // Without sorting, rows are read as they are imported instead of being loaded up front
+                data = Spreadsheet.streaming(enableHeaderNameConversion, importFile, 0, PATH);
             }
             instance.getInfo().setDescription("Import " + data.getFileName() + " (" + data.getRowCount() + " rows)");
         } catch (IOException ex) {
@@ -185,34 +192,56 @@ public class DataImporter extends ProcessDefinition {
             instance.getInfo().setDescription("Import " + data.getFileName() + " (failed)");
             throw new RepositoryException("Unable to parse input file", ex);
         }
-        instance.defineCriticalAction("Import Data", rr, this::importData);
+        ActionManager manager = instance.defineCriticalAction("Import Data", rr, this::importData);
+        manager.onFinish(this::releaseRows);
     }
 
     private transient GenericReport report = new GenericReport();
 
     @Override
     public void storeReport(ProcessInstance instance, ResourceResolver rr) throws RepositoryException, PersistenceException {
+        // Also covers a process halted before its rows were all read
+        releaseRows();
         report.setRows(reportRows, ReportColumns.class);
         report.persist(rr, instance.getPath() + "/jcr:content/report");
     }
 
+    /**
+     * Rows are queued a bounded number at a time, so that neither the rows nor their tasks are all held in memory.
+     */
     private void importData(ActionManager manager) {
-        data.getDataRowsAsCompositeVariants().forEach((row) -> {
-            manager.deferredWithResolver(rr -> {
-                String path = row.get(PATH).toString();
-                Resource r = rr.getResource(path);
-                if (r == null) {
-                    handleMissingNode(path, rr, row);
-                } else if (mergeMode.update) {
-                    updateMetadata(rr, row);
-                } else {
-                    incrementCount(skippedNodes, 1);
-                    if (detailedReport) {
-                        trackActivity(path, "Skipped", null);
-                    }
-                }
-            });
-        });
+        manager.setMaxInFlight(MAX_ROWS_IN_FLIGHT);
+        try (Stream<Map<String, CompositeVariant>> rows = data.getDataRowStream()) {
+            manager.deferredWithBatches(rows.map(this::queueRow), 1, (rr, item) -> importRow(rr, queuedRows.remove(item)));
+        }
+    }
+
+    private String queueRow(Map<String, CompositeVariant> row) {
+        String item = String.format("%s (line %s)", row.get(PATH), data.getRowNum(row));
+        queuedRows.put(item, row);
+        return item;
+    }
+
+    private void releaseRows() {
+        queuedRows.clear();
+        if (data != null) {
+            data.close();
+        }
+    }
+
+    private void importRow(ResourceResolver rr, Map<String, CompositeVariant> row) throws PersistenceException {
+        String path = row.get(PATH).toString();
+        Resource r = rr.getResource(path);
+        if (r == null) {
+            handleMissingNode(path, rr, row);
+        } else if (mergeMode.update) {
+            updateMetadata(rr, row);
+        } else {
+            incrementCount(skippedNodes, 1);
+            if (detailedReport) {
+                trackActivity(path, "Skipped", null);
+            }
+        }
     }
 
     public void handleMissingNode(String path, ResourceResolver rr, Map<String, CompositeVariant> row) throws PersistenceException {
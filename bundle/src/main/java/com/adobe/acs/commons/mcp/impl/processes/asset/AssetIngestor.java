@@ -33,6 +33,8 @@ import com.adobe.acs.commons.mcp.model.ValueFormat;
 import com.day.cq.commons.jcr.JcrConstants;
 import com.day.cq.dam.api.Asset;
 import com.day.cq.dam.api.AssetManager;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.resource.ModifiableValueMap;
 import org.apache.sling.api.resource.PersistenceException;
@@ -45,13 +47,24 @@ import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import java.io.IOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -68,6 +81,9 @@ public abstract class AssetIngestor extends ProcessDefinition {
             "dam-administrators"
     };
     public static final String PN_MIGRATED_FROM = "migratedFrom";
+    public static final String PN_MIGRATED_SIZE = "migratedSize";
+    public static final String PN_MIGRATED_VERSION = "migratedVersion";
+    public static final String PN_MIGRATED_SHA256 = "migratedSha256";
 
     protected final transient MimeTypeService mimetypeService;
 
@@ -168,6 +184,12 @@ public abstract class AssetIngestor extends ProcessDefinition {
             options = {"default=skip", "vertical"}
     )
     protected transient AssetAction existingAssetAction = AssetAction.skip;
+    @FormField(
+            name = "Skip unchanged",
+            description = "If checked, existing assets imported from the same source with the same size and modification time (or ETag) are not downloaded again",
+            component = CheckboxComponent.class
+    )
+    boolean skipUnchanged = false;
     @FormField(
             name = "Minimum size",
             description = "Min size to import (in bytes), 0=none",
@@ -194,6 +216,11 @@ public abstract class AssetIngestor extends ProcessDefinition {
             = trackActivity(ALL_ASSETS, "Skipped", "Count of skipped files", 0L);
     EnumMap<ReportColumns, Object> importedData
             = trackActivity(ALL_ASSETS, "Data imported", "Count of bytes imported", 0L);
+    EnumMap<ReportColumns, Object> duplicateFiles
+            = trackActivity(ALL_ASSETS, "Duplicates", "Count of imported files with the same content as another imported file", 0L);
+
+    /** SHA-256 of the content imported in this run, mapped to the first asset it was imported to. */
+    final Map<String, String> importedChecksums = new ConcurrentHashMap<>();
 
     @SuppressWarnings("squid:S00115")
     public enum ReportColumns {
@@ -293,14 +320,17 @@ public abstract class AssetIngestor extends ProcessDefinition {
                     r.refresh();
                     //once version is committed we are safe to create, which only replaces the original version
                 }
-                Asset asset = assetManager.createAsset(assetPath, source.getStream(), type, false);
+                MessageDigest digest = DigestUtils.getSha256Digest();
+                Asset asset = assetManager.createAsset(assetPath, new DigestInputStream(source.getStream(), digest), type, false);
 
                 if (asset == null) {
                     AssetIngestorException ex = new AssetIngestorException("Cannot create asset: asset is null on path  " + assetPath);
                     Logger.getLogger(AssetIngestor.class.getName()).log(Level.SEVERE, null, ex);
                     throw ex;
                 }
-                saveMigrationInfo(source, asset);
+                String checksum = Hex.encodeHexString(digest.digest());
+                saveMigrationInfo(source, asset, checksum);
+                trackDuplicate(assetPath, checksum);
 
                 r.commit();
                 r.refresh();
@@ -317,7 +347,11 @@ public abstract class AssetIngestor extends ProcessDefinition {
         }
     }
 
-    void saveMigrationInfo(final Source source, final Asset asset) {
+    /**
+     * Record where the asset comes from, along with the fingerprint of the source used to skip it on later runs while
+     * it does not change.
+     */
+    void saveMigrationInfo(final Source source, final Asset asset, final String checksum) throws IOException {
         Resource assetResource = asset.adaptTo(Resource.class);
 
         if (assetResource != null) {
@@ -333,11 +367,53 @@ public abstract class AssetIngestor extends ProcessDefinition {
                 }
 
                 assetProperties.put(PN_MIGRATED_FROM, source.getElement().getItemName());
+                assetProperties.put(PN_MIGRATED_SIZE, source.getLength());
+                String version = source.getVersion();
+                if (version != null) {
+                    assetProperties.put(PN_MIGRATED_VERSION, version);
+                } else {
+                    assetProperties.remove(PN_MIGRATED_VERSION);
+                }
+                if (checksum != null) {
+                    assetProperties.put(PN_MIGRATED_SHA256, checksum);
+                }
             }
         }
     }
 
+    /**
+     * Compare the fingerprint recorded on the existing asset with the source, without reading the content.
+     *
+     * @return true if the asset was imported from this source, and its size and version have not changed since
+     */
+    boolean isUnchanged(Source source, String assetPath, ResourceResolver r) throws IOException {
+        Resource content = r.getResource(assetPath + "/" + JcrConstants.JCR_CONTENT);
+        String version = source.getVersion();
+        if (content == null || version == null) {
+            return false;
+        }
+        ValueMap properties = content.getValueMap();
+        return source.getElement().getItemName().equals(properties.get(PN_MIGRATED_FROM, String.class))
+                && version.equals(properties.get(PN_MIGRATED_VERSION, String.class))
+                && source.getLength() == properties.get(PN_MIGRATED_SIZE, -1L);
+    }
+
+    private void trackDuplicate(String assetPath, String checksum) {
+        String original = importedChecksums.putIfAbsent(checksum, assetPath);
+        if (original != null && !original.equals(assetPath)) {
+            incrementCount(duplicateFiles, 1L);
+            trackDetailedActivity(assetPath, "Duplicate", "Same content as " + original, 0L);
+        }
+    }
+
     protected void handleExistingAsset(Source source, String assetPath, ResourceResolver r) throws Exception {
+        if (skipUnchanged && existingAssetAction != AssetAction.skip && isUnchanged(source, assetPath, r)) {
+            incrementCount(skippedFiles, 1L);
+            trackDetailedActivity(source.getElement().getSourcePath() + " -> " + assetPath,
+                                  "Skip", "Skipped unchanged asset", 0L);
+            source.close();
+            return;
+        }
         switch (existingAssetAction) {
             case skip:
                 //if skip then we only create asset if it doesn't exist
@@ -500,11 +576,62 @@ public abstract class AssetIngestor extends ProcessDefinition {
 
     private transient GenericReport report = new GenericReport();
 
+    private transient List<ExecutorService> importPools = new CopyOnWriteArrayList<>();
+
+    /**
+     * Create a pool of daemon threads for work done next to the action managers, like downloads. The pool is shut
+     * down once the process is over, whether it completed or was halted.
+     *
+     * @param threads number of threads of the pool
+     * @param name    what the threads do, used to name them
+     * @return the pool
+     */
+    protected ExecutorService createImportPool(int threads, String name) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new ImportThreadFactory(getClass().getSimpleName() + " " + name));
+        // Idle threads go away even before the pool is shut down
+        pool.allowCoreThreadTimeOut(true);
+        importPools.add(pool);
+        return pool;
+    }
+
+    /**
+     * Shut down a pool created by {@link #createImportPool(int, String)} ahead of the end of the process, interrupting
+     * the work still running.
+     *
+     * @param pool the pool, may be null
+     */
+    protected void shutdownImportPool(ExecutorService pool) {
+        if (pool != null) {
+            pool.shutdownNow();
+            importPools.remove(pool);
+        }
+    }
+
     @Override
     public void storeReport(ProcessInstance instance, ResourceResolver rr) throws RepositoryException, PersistenceException {
+        // The report is stored once the process is over
+        importPools.forEach(this::shutdownImportPool);
         report.setRows(reportRows, ReportColumns.class);
         report.persist(rr, instance.getPath() + "/jcr:content/report");
     }
 
+    /**
+     * Names the daemon threads of an import pool, numbering them.
+     */
+    private static class ImportThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        ImportThreadFactory(String name) {
+            this.name = name;
+        }
 
-}
\ No newline at end of file
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ACS AEM Commons - " + name + " #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
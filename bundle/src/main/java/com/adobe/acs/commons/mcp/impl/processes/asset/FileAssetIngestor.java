@@ -32,6 +32,7 @@ import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.SftpATTRS;
 import com.jcraft.jsch.SftpException;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -41,15 +42,24 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.List;
 import java.util.Objects;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static com.adobe.acs.commons.mcp.impl.processes.asset.HierarchicalElement.UriHelper.decodeUriParts;
@@ -95,8 +105,22 @@ public class FileAssetIngestor extends AssetIngestor {
     )
     String password = null;
 
+    @FormField(
+            name = "SFTP connections",
+            description = "Maximum number of SFTP connections, shared by the folder listings and the file transfers",
+            required = false,
+            options = ("default=4")
+    )
+    int sftpConnections = 4;
+
     HierarchicalElement baseFolder;
 
+    transient SftpConnectionPool sftpPool;
+
+    private transient ExecutorService sftpListingPool;
+
+    private transient Semaphore sftpListingPermits;
+
     @Override
     public void buildProcess(ProcessInstance instance, ResourceResolver rr) throws LoginException, RepositoryException {
         baseFolder = getBaseFolder(fileBasePath);
@@ -131,6 +155,7 @@ public class FileAssetIngestor extends AssetIngestor {
     }
 
     void createFolders(ActionManager manager) throws IOException {
+        manager.onFinish(this::closeSftpConnections);
         manager.deferredWithResolver(r -> {
             JcrUtil.createPath(jcrBasePath, DEFAULT_FOLDER_TYPE, DEFAULT_FOLDER_TYPE, r.adaptTo(Session.class), true);
             manager.setCurrentItem(fileBasePath);
@@ -146,6 +171,7 @@ public class FileAssetIngestor extends AssetIngestor {
     }
 
     void importAssets(ActionManager manager) throws IOException {
+        manager.onFinish(this::closeSftpConnections);
         manager.deferredWithResolver(rr -> {
             JcrUtil.createPath(jcrBasePath, DEFAULT_FOLDER_TYPE, DEFAULT_FOLDER_TYPE, rr.adaptTo(Session.class), true);
             manager.setCurrentItem(fileBasePath);
@@ -185,6 +211,52 @@ public class FileAssetIngestor extends AssetIngestor {
         }
     }
 
+    synchronized SftpConnectionPool getSftpPool(URI uri) {
+        if (sftpPool == null) {
+            sftpPool = new SftpConnectionPool(() -> connectSftp(uri), sftpConnections);
+        }
+        return sftpPool;
+    }
+
+    private ChannelSftp connectSftp(URI uri) throws JSchException {
+        JSch jsch = new JSch();
+        int port = uri.getPort() <= 0 ? 22 : uri.getPort();
+
+        com.jcraft.jsch.Session session = jsch.getSession(username, uri.getHost(), port);
+        session.setConfig("StrictHostKeyChecking", "no");
+        session.setTimeout(timeout);
+        session.setPassword(password);
+        session.connect();
+        ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+        channel.connect();
+        return channel;
+    }
+
+    /**
+     * Start listing a folder in the background, unless too many listings are already waiting to be picked up by
+     * the walk of the tree.
+     */
+    synchronized void prefetchChildren(SftpHierarchicalElement folder) {
+        if (sftpListingPool == null) {
+            int threads = Math.max(1, sftpConnections);
+            sftpListingPool = createImportPool(threads, "SFTP listing");
+            sftpListingPermits = new Semaphore(threads * 2);
+        }
+        if (folder.prefetchedChildren == null && folder.channel == null && sftpListingPermits.tryAcquire()) {
+            folder.prefetchPermits = sftpListingPermits;
+            folder.prefetchedChildren = sftpListingPool.submit(folder::listChildren);
+        }
+    }
+
+    synchronized void closeSftpConnections() {
+        shutdownImportPool(sftpListingPool);
+        sftpListingPool = null;
+        if (sftpPool != null) {
+            sftpPool.close();
+            sftpPool = null;
+        }
+    }
+
     private class FileSource implements Source {
 
         final File file;
@@ -213,6 +285,11 @@ public class FileAssetIngestor extends AssetIngestor {
             return file.length();
         }
 
+        @Override
+        public String getVersion() {
+            return String.valueOf(file.lastModified());
+        }
+
         @Override
         public HierarchicalElement getElement() {
             return element;
@@ -300,8 +377,11 @@ public class FileAssetIngestor extends AssetIngestor {
         URI uri;
         String sourcePath;
         long size;
+        int mtime;
         Source source;
         boolean keepChannelOpen = false;
+        Future<List<HierarchicalElement>> prefetchedChildren;
+        Semaphore prefetchPermits;
 
         SftpHierarchicalElement(String uri) throws URISyntaxException, UnsupportedEncodingException {
             this.sourcePath = uri;
@@ -325,50 +405,46 @@ public class FileAssetIngestor extends AssetIngestor {
             return getParent() == null && isFolder();
         }
 
-        private ChannelSftp openChannel() throws JSchException {
-            if (channel == null || !channel.isConnected()) {
-                JSch jsch = new JSch();
-                int port = uri.getPort() <= 0 ? 22 : uri.getPort();
-
-                com.jcraft.jsch.Session session = jsch.getSession(username, uri.getHost(), port);
-                session.setConfig("StrictHostKeyChecking", "no");
-                session.setTimeout(timeout);
-                session.setPassword(password);
-                session.connect();
-                channel = (ChannelSftp) session.openChannel("sftp");
-                channel.connect();
-                // If this object opened the channel it should probably be the one closing it too
-                keepChannelOpen = false;
+        /**
+         * Run a call on the channel handed over to this element if there is one, otherwise on a channel borrowed
+         * from the connection pool of the ingestion.
+         */
+        private <T> T callSftp(SftpCall<T> call) throws JSchException, SftpException {
+            if (channel != null && channel.isConnected()) {
+                try {
+                    return call.apply(channel);
+                } finally {
+                    if (!keepChannelOpen) {
+                        closeChannel();
+                    }
+                }
+            }
+            SftpConnectionPool pool = getSftpPool(uri);
+            ChannelSftp pooledChannel = pool.borrow();
+            try {
+                return call.apply(pooledChannel);
+            } finally {
+                pool.release(pooledChannel);
             }
-            return channel;
         }
 
         private void closeChannel() {
             if (channel != null) {
-                channel.disconnect();
-                try {
-                    channel.getSession().disconnect();
-                } catch (JSchException ex) {
-                    // Ignore possible exception thrown by getSession()
-                }
+                SftpConnectionPool.disconnect(channel);
             }
             channel = null;
         }
 
         private void retrieveDetails() throws JSchException, SftpException {
             if (!retrieved) {
-                openChannel();
-                SftpATTRS attributes = channel.lstat(path);
-                processAttrs(attributes);
-                if (!keepChannelOpen) {
-                    closeChannel();
-                }
+                processAttrs(callSftp(c -> c.lstat(path)));
             }
         }
 
         private void processAttrs(SftpATTRS attrs) {
             isFile = !attrs.isDir();
             size = attrs.getSize();
+            mtime = attrs.getMTime();
             retrieved = true;
         }
 
@@ -394,26 +470,53 @@ public class FileAssetIngestor extends AssetIngestor {
             return parent;
         }
 
-        @SuppressWarnings("squid:S1149")
+        /**
+         * Lists the children, and starts listing the child folders in the background: the tree is walked breadth
+         * first, so their listings are ready by the time the walk gets to them.
+         */
         @Override
         public Stream<HierarchicalElement> getChildren() {
             try {
-                openChannel();
-                Vector<ChannelSftp.LsEntry> children = channel.ls(path);
-                return children.stream()
-                        .filter(this::isNotDotFolder)
-                        .map(this::getChildFromEntry)
-                        .filter(Objects::nonNull);
+                List<HierarchicalElement> children = takeChildren();
+                children.stream()
+                        .filter(HierarchicalElement::isFolder)
+                        .forEach(child -> prefetchChildren((SftpHierarchicalElement) child));
+                return children.stream();
             } catch (JSchException | SftpException ex) {
                 Logger.getLogger(FileAssetIngestor.class.getName()).log(Level.SEVERE, null, ex);
                 return Stream.empty();
+            }
+        }
+
+        private List<HierarchicalElement> takeChildren() throws JSchException, SftpException {
+            Future<List<HierarchicalElement>> prefetched = prefetchedChildren;
+            if (prefetched == null) {
+                return listChildren();
+            }
+            prefetchedChildren = null;
+            try {
+                return prefetched.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new JSchException("Interrupted while listing " + path, ex);
+            } catch (ExecutionException ex) {
+                Logger.getLogger(FileAssetIngestor.class.getName()).log(Level.WARNING, "Retrying listing of " + path, ex.getCause());
+                return listChildren();
             } finally {
-                if (!keepChannelOpen) {
-                    closeChannel();
-                }
+                prefetchPermits.release();
             }
         }
 
+        @SuppressWarnings("squid:S1149")
+        private List<HierarchicalElement> listChildren() throws JSchException, SftpException {
+            Vector<ChannelSftp.LsEntry> entries = callSftp(c -> c.ls(path));
+            return entries.stream()
+                    .filter(this::isNotDotFolder)
+                    .map(this::getChildFromEntry)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+        }
+
         private boolean isNotDotFolder(ChannelSftp.LsEntry entry) {
             return !(".".equals(entry.getFilename()) || "..".equals(entry.getFilename()));
         }
@@ -421,7 +524,7 @@ public class FileAssetIngestor extends AssetIngestor {
         private HierarchicalElement getChildFromEntry(ChannelSftp.LsEntry entry) {
             try {
                 String childPath = getSourcePath() + "/" + entry.getFilename();
-                SftpHierarchicalElement child = new SftpHierarchicalElement(childPath, channel, true);
+                SftpHierarchicalElement child = new SftpHierarchicalElement(childPath);
                 child.processAttrs(entry.getAttrs());
                 return child;
             } catch (URISyntaxException | UnsupportedEncodingException ex) {
@@ -445,7 +548,9 @@ public class FileAssetIngestor extends AssetIngestor {
             if (source == null) {
                 try {
                     retrieveDetails();
-                    source = new SftpSource(size, this::openChannel, this);
+                    SftpSource sftpSource = new SftpSource(size, getSftpPool(uri), this);
+                    sftpSource.version = String.valueOf(mtime);
+                    source = sftpSource;
                 } catch (JSchException | SftpException ex) {
                     Logger.getLogger(FileAssetIngestor.class.getName()).log(Level.SEVERE, null, ex);
                 }
@@ -459,16 +564,46 @@ public class FileAssetIngestor extends AssetIngestor {
         }
     }
 
+    @FunctionalInterface
+    private interface SftpCall<T> {
+        T apply(ChannelSftp channel) throws SftpException;
+    }
+
+    /**
+     * Reads a file over SFTP into a local spool file, so that the connection goes back to the pool as soon as the
+     * transfer is over instead of being held while the asset is written to the repository.
+     */
     public static class SftpSource implements Source {
 
         Long length;
         CheckedSupplier<ChannelSftp> channel;
+        Consumer<ChannelSftp> release;
         InputStream lastStream;
-        ChannelSftp lastChannel;
+        File spool;
+        String version;
         HierarchicalElement element;
 
+        /**
+         * @param length  file size
+         * @param channel opens a new channel, which is disconnected once the file is transferred
+         * @param elem    file element
+         */
         public SftpSource(long length, CheckedSupplier<ChannelSftp> channel, HierarchicalElement elem) {
+            this(length, channel, SftpConnectionPool::disconnect, elem);
+        }
+
+        /**
+         * @param length file size
+         * @param pool   pool to borrow the channel from for the transfer
+         * @param elem   file element
+         */
+        public SftpSource(long length, SftpConnectionPool pool, HierarchicalElement elem) {
+            this(length, pool::borrow, pool::release, elem);
+        }
+
+        private SftpSource(long length, CheckedSupplier<ChannelSftp> channel, Consumer<ChannelSftp> release, HierarchicalElement elem) {
             this.channel = channel;
+            this.release = release;
             this.length = length;
             this.element = elem;
         }
@@ -480,13 +615,23 @@ public class FileAssetIngestor extends AssetIngestor {
 
         @Override
         public InputStream getStream() throws IOException {
+            close();
+            ChannelSftp transferChannel = null;
             try {
-                lastChannel = channel.get();
-                lastStream = lastChannel.get(element.getItemName());
+                transferChannel = channel.get();
+                spool = File.createTempFile("sftp-asset-", ".tmp");
+                try (OutputStream out = new FileOutputStream(spool)) {
+                    transferChannel.get(element.getItemName(), out);
+                }
+                lastStream = new FileInputStream(spool);
             } catch (Exception ex) {
                 Logger.getLogger(FileAssetIngestor.class.getName()).log(Level.SEVERE, null, ex);
                 close();
                 throw new IOException("Error in retrieving file " + element.getItemName(), ex);
+            } finally {
+                if (transferChannel != null) {
+                    release.accept(transferChannel);
+                }
             }
             return lastStream;
         }
@@ -496,6 +641,11 @@ public class FileAssetIngestor extends AssetIngestor {
             return length;
         }
 
+        @Override
+        public String getVersion() {
+            return version;
+        }
+
         @Override
         public HierarchicalElement getElement() {
             return element;
@@ -508,14 +658,9 @@ public class FileAssetIngestor extends AssetIngestor {
                 lastStream = null;
             }
 
-            if (lastChannel != null) {
-                lastChannel.disconnect();
-                try {
-                    lastChannel.getSession().disconnect();
-                } catch (JSchException ex) {
-                    // Ignore possible exception thrown by getSession()
-                }
-                lastChannel = null;
+            if (spool != null) {
+                FileUtils.deleteQuietly(spool);
+                spool = null;
             }
         }
     }
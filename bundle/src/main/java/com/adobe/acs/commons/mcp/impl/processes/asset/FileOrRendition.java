@@ -27,8 +27,12 @@ import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 import com.jcraft.jsch.SftpATTRS;
 import com.jcraft.jsch.SftpException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -41,7 +45,12 @@ import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
 
 import static com.adobe.acs.commons.mcp.impl.processes.asset.HierarchicalElement.UriHelper.decodeUriParts;
@@ -211,6 +220,16 @@ public class FileOrRendition implements HierarchicalElement {
             return size;
         }
 
+        @Override
+        public String getVersion() throws IOException {
+            URLConnection c = getConnection();
+            String etag = c.getHeaderField(HttpHeaders.ETAG);
+            if (etag != null) {
+                return etag;
+            }
+            return c.getLastModified() > 0 ? String.valueOf(c.getLastModified()) : null;
+        }
+
         @Override
         public HierarchicalElement getElement() {
             return thizz;
@@ -231,6 +250,11 @@ public class FileOrRendition implements HierarchicalElement {
         private HttpGet lastRequest;
         private Long size = null;
         private HttpResponse connection = null;
+        private String previousVersion;
+        private long previousSize;
+        private boolean notModified;
+        private File spool;
+        private InputStream spoolStream;
 
         public HttpConnectionSource(FileOrRendition thizz) {
             this.thizz = thizz;
@@ -241,12 +265,37 @@ public class FileOrRendition implements HierarchicalElement {
             return name;
         }
 
+        /**
+         * Make the download conditional: the server answers 304 without the content if it has not changed since it
+         * was imported with the given version, in which case the previous version and size are reported instead.
+         *
+         * @param version ETag or Last-Modified date of the previous import
+         * @param size    size of the previous import
+         */
+        public void setPreviousImport(String version, long size) {
+            previousVersion = version;
+            previousSize = size;
+        }
+
+        public boolean isNotModified() throws IOException {
+            initiateDownload();
+            return notModified;
+        }
+
         private HttpResponse initiateDownload() throws IOException {
             if (connection == null) {
                 try {
                     lastRequest = new HttpGet(url);
+                    if (previousVersion != null) {
+                        if (previousVersion.startsWith("\"") || previousVersion.startsWith("W/")) {
+                            lastRequest.setHeader(HttpHeaders.IF_NONE_MATCH, previousVersion);
+                        } else {
+                            lastRequest.setHeader(HttpHeaders.IF_MODIFIED_SINCE, previousVersion);
+                        }
+                    }
                     connection = clientProvider.getHttpClientSupplier().get().execute(lastRequest);
-                    size = connection.getEntity().getContentLength();
+                    notModified = connection.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED;
+                    size = notModified ? previousSize : connection.getEntity().getContentLength();
                 } catch (IOException | IllegalArgumentException ex) {
                     Logger.getLogger(FileOrRendition.class.getName()).log(Level.SEVERE, null, ex);
                     size = -1L;
@@ -256,9 +305,37 @@ public class FileOrRendition implements HierarchicalElement {
             return connection;
         }
 
+        /**
+         * Download the content into a temporary file ahead of the import. Reading the response to the end hands the
+         * connection back to the pool of the client, ready for the next download to the same host.
+         *
+         * @throws IOException if the download failed
+         */
+        public void spool() throws IOException {
+            HttpResponse response = initiateDownload();
+            if (notModified || spool != null) {
+                return;
+            }
+            File file = File.createTempFile("url-asset-", ".tmp");
+            try (InputStream in = response.getEntity().getContent(); OutputStream out = new FileOutputStream(file)) {
+                IOUtils.copy(in, out);
+            } catch (IOException ex) {
+                FileUtils.deleteQuietly(file);
+                throw ex;
+            }
+            spool = file;
+        }
+
         @Override
         public InputStream getStream() throws IOException {
             HttpResponse c = initiateDownload();
+            if (notModified) {
+                throw new IOException("Content of " + url + " has not changed since it was imported");
+            }
+            if (spool != null) {
+                spoolStream = new FileInputStream(spool);
+                return spoolStream;
+            }
             return c.getEntity().getContent();
         }
 
@@ -270,6 +347,19 @@ public class FileOrRendition implements HierarchicalElement {
             return size;
         }
 
+        @Override
+        public String getVersion() throws IOException {
+            HttpResponse response = initiateDownload();
+            if (notModified) {
+                return previousVersion;
+            }
+            Header header = response.getFirstHeader(HttpHeaders.ETAG);
+            if (header == null) {
+                header = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+            }
+            return header == null ? null : header.getValue();
+        }
+
         @Override
         public HierarchicalElement getElement() {
             return thizz;
@@ -285,6 +375,14 @@ public class FileOrRendition implements HierarchicalElement {
                 connection.getEntity().getContent().close();
                 connection = null;
             }
+            if (spoolStream != null) {
+                spoolStream.close();
+                spoolStream = null;
+            }
+            if (spool != null) {
+                FileUtils.deleteQuietly(spool);
+                spool = null;
+            }
         }
     }
 
@@ -295,6 +393,7 @@ public class FileOrRendition implements HierarchicalElement {
         private Session session;
         private InputStream currentStream;
         private Channel channel;
+        private SftpATTRS stats;
 
         public SftpConnectionSource(FileOrRendition thizz) {
             this.thizz = thizz;
@@ -353,6 +452,18 @@ public class FileOrRendition implements HierarchicalElement {
 
         @Override
         public long getLength() throws IOException {
+            return getStats().getSize();
+        }
+
+        @Override
+        public String getVersion() throws IOException {
+            return String.valueOf(getStats().getMTime());
+        }
+
+        private SftpATTRS getStats() throws IOException {
+            if (stats != null) {
+                return stats;
+            }
             try {
                 URI uri = new URI(encodeUriParts(getSourcePath()));
 
@@ -362,8 +473,8 @@ public class FileOrRendition implements HierarchicalElement {
                 }
 
                 ChannelSftp sftpChannel = (ChannelSftp) channel;
-                SftpATTRS stats = sftpChannel.lstat(decodeUriParts(uri.getRawPath()));
-                return stats.getSize();
+                stats = sftpChannel.lstat(decodeUriParts(uri.getRawPath()));
+                return stats;
             } catch (URISyntaxException ex) {
                 Logger.getLogger(FileOrRendition.class.getName()).log(Level.SEVERE, null, ex);
                 throw new IOException("Error parsing URL", ex);
@@ -27,7 +27,9 @@ import org.apache.commons.lang3.StringUtils;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -137,7 +139,23 @@ public interface HierarchicalElement {
 
     @SuppressWarnings("squid:S00112")
     default void visitAllFiles(CheckedConsumer<HierarchicalElement> visitor) throws Exception {
-        visitAllFiles(visitor, HierarchicalElement::getFolderChildren, HierarchicalElement::getFileChildren);
+        // List every folder once, and split its children into folders and files
+        LinkedList<HierarchicalElement> nodes = new LinkedList<>();
+        nodes.add(this);
+        while (!nodes.isEmpty()) {
+            HierarchicalElement node = nodes.pop();
+            List<HierarchicalElement> files = new ArrayList<>();
+            node.getChildren().forEach(child -> {
+                if (child.isFile()) {
+                    files.add(child);
+                } else if (child.isFolder()) {
+                    nodes.add(child);
+                }
+            });
+            for (HierarchicalElement child : files) {
+                visitor.accept(child);
+            }
+        }
     }
 
 
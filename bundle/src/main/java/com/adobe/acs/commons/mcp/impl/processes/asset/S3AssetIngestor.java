@@ -28,8 +28,9 @@ import com.adobe.acs.commons.mcp.form.PasswordComponent;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.day.cq.commons.jcr.JcrUtil;
 import org.apache.commons.lang3.StringUtils;
@@ -39,8 +40,19 @@ import org.apache.sling.commons.mime.MimeTypeService;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 public class S3AssetIngestor extends AssetIngestor {
@@ -82,8 +94,38 @@ public class S3AssetIngestor extends AssetIngestor {
     )
     String endpointUrl;
 
+    @FormField(
+            name = "Parallel download threshold",
+            description = "Objects larger than this (in bytes) are downloaded in parallel ranged parts to a temporary file before import, 0=never",
+            hint = "64mb = 67108864",
+            required = false,
+            options = {"default=67108864"}
+    )
+    long parallelDownloadThreshold = 67108864;
+
+    @FormField(
+            name = "Download part size",
+            description = "Size (in bytes) of the ranged parts of parallel downloads",
+            hint = "16mb = 16777216",
+            required = false,
+            options = {"default=16777216"}
+    )
+    long downloadPartSize = 16777216;
+
+    @FormField(
+            name = "Download threads",
+            description = "Number of ranged parts downloaded at the same time, shared by all imported objects",
+            required = false,
+            options = {"default=4"}
+    )
+    int downloadThreads = 4;
+
     transient AmazonS3 s3Client;
 
+    transient int listingPageSize = 1000;
+
+    private transient ExecutorService downloadPool;
+
     transient String baseItemName;
 
     @Override
@@ -118,11 +160,23 @@ public class S3AssetIngestor extends AssetIngestor {
             JcrUtil.createPath(jcrBasePath, DEFAULT_FOLDER_TYPE, DEFAULT_FOLDER_TYPE, r.adaptTo(Session.class), true);
             manager.setCurrentItem(baseItemName);
 
-            ObjectListing listing = s3Client.listObjects(bucket, s3BasePath);
-            createFolders(manager, listing);
+            forEachListing(listing -> createFolders(manager, listing));
         });
     }
 
+    /**
+     * Read the listing of the base path one page at a time, following the continuation markers, and hand every
+     * page over as soon as it arrives.
+     */
+    void forEachListing(Consumer<ObjectListing> pageConsumer) {
+        ObjectListing listing = s3Client.listObjects(new ListObjectsRequest().withBucketName(bucket).withPrefix(s3BasePath).withMaxKeys(listingPageSize));
+        pageConsumer.accept(listing);
+        while (listing.isTruncated()) {
+            listing = s3Client.listNextBatchOfObjects(listing);
+            pageConsumer.accept(listing);
+        }
+    }
+
     private void createFolders(ActionManager manager, ObjectListing listing) {
         listing.getObjectSummaries().stream().filter(sum -> !sum.getKey().equals(s3BasePath)).map(S3HierarchicalElement::new)
                 .filter(S3HierarchicalElement::isFolder).filter(this::canImportFolder).forEach(el -> {
@@ -131,17 +185,14 @@ public class S3AssetIngestor extends AssetIngestor {
                 createFolderNode(el, rr);
             }));
         });
-        if (listing.isTruncated()) {
-            createFolders(manager, s3Client.listNextBatchOfObjects(listing));
-        }
     }
 
     void importAssets(ActionManager manager) {
+        manager.onFinish(this::closeDownloadPool);
         manager.deferredWithResolver(rr -> {
             JcrUtil.createPath(jcrBasePath, DEFAULT_FOLDER_TYPE, DEFAULT_FOLDER_TYPE, rr.adaptTo(Session.class), true);
             manager.setCurrentItem(baseItemName);
-            ObjectListing listing = s3Client.listObjects(bucket, s3BasePath);
-            importAssets(manager, listing);
+            forEachListing(listing -> importAssets(manager, listing));
         });
     }
 
@@ -172,15 +223,85 @@ public class S3AssetIngestor extends AssetIngestor {
                 }
             }
         });
-        if (listing.isTruncated()) {
-            importAssets(manager, s3Client.listNextBatchOfObjects(listing));
+    }
+
+    private synchronized ExecutorService getDownloadPool() {
+        if (downloadPool == null) {
+            downloadPool = createImportPool(Math.max(1, downloadThreads), "download");
+        }
+        return downloadPool;
+    }
+
+    private synchronized void closeDownloadPool() {
+        shutdownImportPool(downloadPool);
+        downloadPool = null;
+    }
+
+    /**
+     * Download an object in parallel ranged parts, each written at its offset of a temporary file.
+     *
+     * @return the temporary file, to be deleted by the caller
+     */
+    File downloadInParts(String key, long length) throws IOException {
+        File spool = File.createTempFile("s3-asset-ingestor", ".tmp");
+        boolean complete = false;
+        try (RandomAccessFile file = new RandomAccessFile(spool, "rw")) {
+            file.setLength(length);
+            FileChannel channel = file.getChannel();
+            long partSize = Math.max(1, downloadPartSize);
+            List<Future<Void>> parts = new ArrayList<>();
+            for (long start = 0; start < length; start += partSize) {
+                final long partStart = start;
+                final long partEnd = Math.min(length, start + partSize) - 1;
+                parts.add(getDownloadPool().submit(() -> {
+                    downloadPart(key, partStart, partEnd, channel);
+                    return null;
+                }));
+            }
+            try {
+                for (Future<Void> part : parts) {
+                    part.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading " + key, ex);
+            } catch (ExecutionException ex) {
+                throw new IOException("Unable to download " + key, ex.getCause());
+            } finally {
+                parts.forEach(part -> part.cancel(true));
+            }
+            complete = true;
+            return spool;
+        } finally {
+            if (!complete && !spool.delete()) {
+                spool.deleteOnExit();
+            }
+        }
+    }
+
+    private void downloadPart(String key, long start, long end, FileChannel channel) throws IOException {
+        GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(start, end);
+        try (InputStream in = s3Client.getObject(request).getObjectContent()) {
+            byte[] buffer = new byte[64 * 1024];
+            long position = start;
+            int read;
+            while (position <= end && (read = in.read(buffer)) > 0) {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, (int) Math.min(read, end - position + 1));
+                while (bytes.hasRemaining()) {
+                    position += channel.write(bytes, position);
+                }
+            }
+            if (position <= end) {
+                throw new IOException("Incomplete part " + start + "-" + end + " of " + key);
+            }
         }
     }
 
     private class S3Source implements Source {
 
         final S3ObjectSummary s3ObjectSummary;
-        private S3ObjectInputStream lastOpenStream;
+        private InputStream lastOpenStream;
+        private File spool;
         final HierarchicalElement element;
 
         private S3Source(S3ObjectSummary s3ObjectSummary, S3HierarchicalElement element) {
@@ -193,10 +314,20 @@ public class S3AssetIngestor extends AssetIngestor {
             return s3ObjectSummary.getSize();
         }
 
+        @Override
+        public String getVersion() {
+            return s3ObjectSummary.getETag();
+        }
+
         @Override
         public InputStream getStream() throws IOException {
             close();
-            lastOpenStream = s3Client.getObject(bucket, s3ObjectSummary.getKey()).getObjectContent();
+            if (parallelDownloadThreshold > 0 && getLength() > parallelDownloadThreshold) {
+                spool = downloadInParts(s3ObjectSummary.getKey(), getLength());
+                lastOpenStream = new FileInputStream(spool);
+            } else {
+                lastOpenStream = s3Client.getObject(bucket, s3ObjectSummary.getKey()).getObjectContent();
+            }
             return lastOpenStream;
         }
 
@@ -212,10 +343,17 @@ public class S3AssetIngestor extends AssetIngestor {
 
         @Override
         public void close() throws IOException {
-            if (lastOpenStream != null) {
-                lastOpenStream.close();
+            try {
+                if (lastOpenStream != null) {
+                    lastOpenStream.close();
+                }
+            } finally {
+                lastOpenStream = null;
+                if (spool != null && !spool.delete()) {
+                    spool.deleteOnExit();
+                }
+                spool = null;
             }
-            lastOpenStream = null;
         }
     }
 
@@ -0,0 +1,139 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.impl.processes.asset;
+
+import com.adobe.acs.commons.functions.CheckedSupplier;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Bounded pool of connected SFTP channels, shared by all threads of an ingestion so that the SSH handshake happens
+ * once per connection instead of once per folder or file.
+ * Borrowed channels must be released once the caller is done with them; callers wait while all connections are
+ * borrowed.
+ */
+public class SftpConnectionPool {
+
+    private final CheckedSupplier<ChannelSftp> connector;
+    private final int maxConnections;
+    private final Deque<ChannelSftp> idle = new ArrayDeque<>();
+    private int openConnections;
+    private boolean closed;
+
+    /**
+     * @param connector      opens a new connected channel
+     * @param maxConnections maximum number of channels open at the same time
+     */
+    public SftpConnectionPool(CheckedSupplier<ChannelSftp> connector, int maxConnections) {
+        this.connector = connector;
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Get an idle connected channel, open a new one if the pool is not full yet, or wait for one to be released.
+     *
+     * @return a connected channel, to be released after use
+     * @throws JSchException if a new channel could not be opened, or the wait was interrupted
+     */
+    @SuppressWarnings("squid:S2142")
+    public ChannelSftp borrow() throws JSchException {
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new JSchException("SFTP connection pool is closed");
+                }
+                ChannelSftp channel = idle.poll();
+                if (channel != null) {
+                    if (channel.isConnected()) {
+                        return channel;
+                    }
+                    disconnect(channel);
+                    openConnections--;
+                } else if (openConnections < maxConnections) {
+                    openConnections++;
+                    break;
+                } else {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new JSchException("Interrupted while waiting for an SFTP connection", ex);
+                    }
+                }
+            }
+        }
+
+        // Connect outside of the lock, handshakes are slow
+        try {
+            return connector.get();
+        } catch (Exception ex) {
+            synchronized (this) {
+                openConnections--;
+                notifyAll();
+            }
+            if (ex instanceof JSchException) {
+                throw (JSchException) ex;
+            }
+            throw new JSchException("Unable to open SFTP connection", ex);
+        }
+    }
+
+    /**
+     * Give a borrowed channel back. Channels which are no longer connected are dropped.
+     *
+     * @param channel the borrowed channel
+     */
+    public synchronized void release(ChannelSftp channel) {
+        if (closed || !channel.isConnected()) {
+            disconnect(channel);
+            openConnections--;
+        } else {
+            idle.push(channel);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Disconnect the idle channels; borrowed channels are disconnected when they are released.
+     */
+    public synchronized void close() {
+        closed = true;
+        idle.forEach(SftpConnectionPool::disconnect);
+        openConnections -= idle.size();
+        idle.clear();
+        notifyAll();
+    }
+
+    synchronized int getOpenConnections() {
+        return openConnections;
+    }
+
+    static void disconnect(ChannelSftp channel) {
+        channel.disconnect();
+        try {
+            channel.getSession().disconnect();
+        } catch (JSchException ex) {
+            // Ignore possible exception thrown by getSession()
+        }
+    }
+}
@@ -33,6 +33,17 @@ public interface Source {
 
     long getLength() throws IOException;
 
+    /**
+     * Token which changes whenever the content changes, such as a modification time or an ETag. Along with the length
+     * it tells whether an asset imported earlier from this source is still up to date, without reading the content.
+     *
+     * @return the token, or null if the source has none
+     * @throws IOException if the source cannot be reached
+     */
+    default String getVersion() throws IOException {
+        return null;
+    }
+
     HierarchicalElement getElement();
 
     void close() throws IOException;
@@ -28,6 +28,7 @@ import com.adobe.acs.commons.mcp.form.FormField;
 import com.adobe.acs.commons.data.Spreadsheet;
 import com.adobe.acs.commons.data.CompositeVariant;
 import com.adobe.acs.commons.mcp.form.PasswordComponent;
+import com.day.cq.commons.jcr.JcrConstants;
 import com.day.cq.commons.jcr.JcrUtil;
 import com.day.cq.dam.api.Asset;
 import java.io.IOException;
@@ -39,6 +40,11 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import javax.jcr.RepositoryException;
@@ -56,6 +62,7 @@ import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceNotFoundException;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.mime.MimeTypeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -76,6 +83,7 @@ public class UrlAssetImport extends AssetIngestor {
     public static String UNKNOWN_TARGET_FOLDER = "/content/dam/unsorted";
 
     private static final Logger LOG = LoggerFactory.getLogger(UrlAssetImport.class);
+    private static final long SPOOL_PERMIT_TIMEOUT = 60000;
     private HttpClientBuilderFactory httpFactory;
     private HttpClient httpClient = null;
 
@@ -122,10 +130,30 @@ public class UrlAssetImport extends AssetIngestor {
     )
     private String password = null;
 
+    @FormField(
+            name = "Connections per host",
+            description = "Maximum number of HTTP connections kept open to the same host",
+            required = false,
+            options = ("default=6")
+    )
+    int connectionsPerHost = 6;
+
+    @FormField(
+            name = "Parallel downloads",
+            description = "Number of HTTP downloads spooled to disk ahead of the import into the repository, 0 to download within the import tasks",
+            required = false,
+            options = ("default=16")
+    )
+    int parallelDownloads = 16;
+
+    private transient ExecutorService fetchPool;
+
+    private transient Semaphore spoolPermits;
+
     transient Set<FileOrRendition> files;
     transient Map<String, Folder> folders = new TreeMap<>((a, b) -> b.compareTo(a));
     
-    private ClientProvider clientProvider = new ClientProvider();
+    ClientProvider clientProvider = new ClientProvider();
 
     Spreadsheet fileData;
 
@@ -146,6 +174,8 @@ public class UrlAssetImport extends AssetIngestor {
                             .setConnectTimeout(timeout)
                             .build()
             );
+            clientBuilder.setMaxConnPerRoute(Math.max(1, connectionsPerHost));
+            clientBuilder.setMaxConnTotal(Math.max(1, Math.max(connectionsPerHost, parallelDownloads)));
             httpClient = clientBuilder.build();
             clientProvider.setHttpClientSupplier(this::getHttpClient);
             clientProvider.setUsername(username);
@@ -230,29 +260,165 @@ public class UrlAssetImport extends AssetIngestor {
 
     protected void importAssets(ActionManager manager) throws IOException {
         manager.setCurrentItem(jcrBasePath);
-        files.stream().filter(this::canImportContainingFolder).forEach(file -> {
+        List<FileOrRendition> importedFiles = files.stream().filter(this::canImportContainingFolder).collect(Collectors.toList());
+        // Counted up front, so that the action is not over before every download is handed to its import task
+        CountDownLatch fetches = new CountDownLatch((int) importedFiles.stream().filter(this::isFetchedAhead).count());
+        importedFiles.forEach(file -> {
+            if (isFetchedAhead(file)) {
+                fetchAhead(file, manager, fetches);
+                return;
+            }
             // Check the file using the deferral method so that any failures at retrieving file size can be retried.
             manager.deferredWithResolver(rr -> {
                 long lineNumber = fileData.getRowNum(file.getProperties());
                 manager.setCurrentItem(String.format("Asset %s (line %s)", file.getItemName(), lineNumber));
+                prepareConditionalDownload(file, rr);
+                importOrSkip(file, manager, rr, false);
+            });
+        });
+        if (fetches.getCount() > 0) {
+            manager.onFinish(this::closeFetchPool);
+            awaitFetches(manager, fetches);
+        }
+    }
+
+    private boolean isFetchedAhead(FileOrRendition file) {
+        return parallelDownloads > 0 && file.getSource() instanceof FileOrRendition.HttpConnectionSource;
+    }
+
+    private void importOrSkip(FileOrRendition file, ActionManager manager, ResourceResolver rr, boolean inline) throws Exception {
+        try {
+            if (canImportFile(file.getSource())) {
+                CheckedConsumer<ResourceResolver> importTask = Actions.retry(retries, retryPause, importAsset(file.getSource(), manager));
+                if (inline) {
+                    importTask.accept(rr);
+                } else {
+                    manager.deferredWithResolver(importTask);
+                }
+            } else if (file.getSource().getLength() < 0) {
+                incrementCount(skippedFiles, 1);
+                throw new IOException("Unable to download " + file.getSourcePath());
+            } else {
+                incrementBytes(
+                        trackDetailedActivity(file.getNodePath(preserveFileName), ACTION_SKIPPED, "Skipped file of either file size or extension", 0L),
+                        file.getSource().getLength()
+                );
+                incrementCount(skippedFiles, 1);
+            }
+        } finally {
+            file.getSource().close();
+        }
+    }
+
+    /**
+     * Send the validators of the previous import along with the download, so that content which has not changed
+     * is not downloaded again.
+     */
+    private void prepareConditionalDownload(FileOrRendition file, ResourceResolver rr) {
+        if (!skipUnchanged || !(file.getSource() instanceof FileOrRendition.HttpConnectionSource)) {
+            return;
+        }
+        Resource content = rr.getResource(file.getNodePath(preserveFileName) + "/" + JcrConstants.JCR_CONTENT);
+        if (content != null) {
+            ValueMap properties = content.getValueMap();
+            String version = properties.get(PN_MIGRATED_VERSION, String.class);
+            if (version != null && file.getItemName().equals(properties.get(PN_MIGRATED_FROM, String.class))) {
+                ((FileOrRendition.HttpConnectionSource) file.getSource()).setPreviousImport(version, properties.get(PN_MIGRATED_SIZE, -1L));
+            }
+        }
+    }
+
+    /**
+     * Download the file to disk on the fetch pool, then hand it over to a task importing it into the repository,
+     * so that slow hosts do not hold on to the workers writing to the repository. The number of downloaded files
+     * waiting to be imported is bounded, which holds the downloads back when the repository is slower. A file which
+     * gets no spool permit in time is not downloaded ahead but by its import task.
+     */
+    private void fetchAhead(FileOrRendition file, ActionManager manager, CountDownLatch fetches) {
+        try {
+            getFetchPool().execute(() -> {
+                boolean permitAcquired = false;
                 try {
-                    if (canImportFile(file.getSource())) {
-                        manager.deferredWithResolver(Actions.retry(retries, retryPause, importAsset(file.getSource(), manager)));
-                    } else if (file.getSource().getLength() < 0) {
-                        incrementCount(skippedFiles, 1);
-                        throw new IOException("Unable to download " + file.getSourcePath());
+                    try {
+                        manager.withResolver(rr -> prepareConditionalDownload(file, rr));
+                    } catch (Exception ex) {
+                        // The file is then downloaded unconditionally
+                        LOG.warn("Unable to look up the previous import of {}", file.getSourcePath(), ex);
+                    }
+                    // Permits of import tasks that never ran are not given back, so the wait is bounded
+                    permitAcquired = spoolPermits.tryAcquire(SPOOL_PERMIT_TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (permitAcquired) {
+                        try {
+                            ((FileOrRendition.HttpConnectionSource) file.getSource()).spool();
+                        } catch (IOException ex) {
+                            // The import task downloads the file again, and reports the error if it keeps failing
+                            LOG.warn("Unable to download {} ahead of the import", file.getSourcePath(), ex);
+                            file.getSource().close();
+                        }
                     } else {
-                        incrementBytes(
-                                trackDetailedActivity(file.getNodePath(preserveFileName), ACTION_SKIPPED, "Skipped file of either file size or extension", 0L),
-                                file.getSource().getLength()
-                        );
-                        incrementCount(skippedFiles, 1);
+                        LOG.debug("Too many downloads waiting to be imported, {} is downloaded by its import task", file.getSourcePath());
                     }
+                    boolean releasePermit = permitAcquired;
+                    manager.deferredWithResolver(rr -> {
+                        try {
+                            long lineNumber = fileData.getRowNum(file.getProperties());
+                            manager.setCurrentItem(String.format("Asset %s (line %s)", file.getItemName(), lineNumber));
+                            importOrSkip(file, manager, rr, true);
+                        } finally {
+                            if (releasePermit) {
+                                spoolPermits.release();
+                            }
+                        }
+                    });
+                    permitAcquired = false;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    LOG.error("Interrupted while downloading {}", file.getSourcePath());
+                    closeQuietly(file);
+                } catch (IOException ex) {
+                    LOG.error("Unable to close {}", file.getSourcePath(), ex);
                 } finally {
-                    file.getSource().close();
+                    if (permitAcquired) {
+                        spoolPermits.release();
+                    }
+                    fetches.countDown();
                 }
             });
-        });
+        } catch (RejectedExecutionException ex) {
+            // The process is over
+            closeQuietly(file);
+            fetches.countDown();
+        }
+    }
+
+    private void closeQuietly(FileOrRendition file) {
+        try {
+            file.getSource().close();
+        } catch (IOException ex) {
+            LOG.error("Unable to close {}", file.getSourcePath(), ex);
+        }
+    }
+
+    /**
+     * Keep the action open until every download has been handed over to its import task. Downloads count down once
+     * their import task is queued, whether or not it ran, so the wait never depends on the worker it holds.
+     */
+    private void awaitFetches(ActionManager manager, CountDownLatch fetches) {
+        manager.deferredWithResolver(rr -> fetches.await());
+    }
+
+    private synchronized ExecutorService getFetchPool() {
+        if (fetchPool == null) {
+            int threads = Math.max(1, parallelDownloads);
+            fetchPool = createImportPool(threads, "download");
+            spoolPermits = new Semaphore(threads * 2);
+        }
+        return fetchPool;
+    }
+
+    private synchronized void closeFetchPool() {
+        shutdownImportPool(fetchPool);
+        fetchPool = null;
     }
 
     protected void importRenditions(ActionManager manager) throws IOException {
@@ -0,0 +1,278 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.rewriter.impl;
+
+import com.adobe.granite.ui.clientlibs.ClientLibrary;
+import com.adobe.granite.ui.clientlibs.HtmlLibrary;
+import com.adobe.granite.ui.clientlibs.HtmlLibraryManager;
+import com.adobe.granite.ui.clientlibs.LibraryType;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the md5 of every client library, computed in the background when the component starts and whenever the
+ * library manager reports a change. Lookups are served from an immutable snapshot which is replaced as a whole once a
+ * refresh is done, so request threads never wait for a library to be read. Hashes are written to a file so that the
+ * snapshot is warm right after a restart; a stored hash is only used while the last modified date of the library
+ * still matches the one it was computed for.
+ */
+class ClientLibraryHashRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(ClientLibraryHashRegistry.class);
+
+    private static final String PROP_MINIFIED = "minified";
+
+    private static final char SEPARATOR = ':';
+
+    static final class Entry {
+        private final long lastModified;
+        private final String md5;
+
+        Entry(long lastModified, String md5) {
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        String getMd5() {
+            return md5;
+        }
+    }
+
+    private static final class Snapshot {
+        private final boolean minified;
+        private final Map<VersionedClientLibraryMd5CacheKey, Entry> hashes;
+        private final Map<String, ClientLibrary> libraries;
+
+        Snapshot(boolean minified, Map<VersionedClientLibraryMd5CacheKey, Entry> hashes, Map<String, ClientLibrary> libraries) {
+            this.minified = minified;
+            this.hashes = Collections.unmodifiableMap(hashes);
+            this.libraries = libraries == null ? null : Collections.unmodifiableMap(libraries);
+        }
+    }
+
+    private final HtmlLibraryManager htmlLibraryManager;
+
+    private final File storeFile;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ACS AEM Commons - Versioned Clientlibs md5 registry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * @param htmlLibraryManager library manager to read the libraries from
+     * @param storeFile          file the hashes are kept in between restarts, null to keep them in memory only
+     */
+    ClientLibraryHashRegistry(@Nonnull HtmlLibraryManager htmlLibraryManager, @Nullable File storeFile) {
+        this.htmlLibraryManager = htmlLibraryManager;
+        this.storeFile = storeFile;
+        this.snapshot = load();
+    }
+
+    /**
+     * @return md5 of the library if it is known and the library did not change since, otherwise null
+     */
+    @Nullable
+    String getMd5(@Nonnull HtmlLibrary htmlLibrary, boolean minified) {
+        Snapshot current = snapshot;
+        if (current.minified != minified) {
+            return null;
+        }
+        Entry entry = current.hashes.get(new VersionedClientLibraryMd5CacheKey(htmlLibrary));
+        if (entry != null && entry.getLastModified() == htmlLibrary.getLastModified(minified)) {
+            return entry.getMd5();
+        }
+        return null;
+    }
+
+    /**
+     * @return all client libraries as of the last refresh, null if no refresh completed yet
+     */
+    @Nullable
+    Map<String, ClientLibrary> getLibraries() {
+        return snapshot.libraries;
+    }
+
+    /**
+     * Queue a refresh of all libraries. Requests made while one is already waiting are folded into it.
+     */
+    void scheduleRefresh() {
+        if (refreshPending.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> {
+                    refreshPending.set(false);
+                    refresh();
+                });
+            } catch (RejectedExecutionException e) {
+                refreshPending.set(false);
+                log.debug("Registry is shut down, skipping refresh");
+            }
+        }
+    }
+
+    void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Read every library and publish the new hashes. Libraries whose last modified date did not change keep their
+     * previous hash without being read again.
+     */
+    void refresh() {
+        final long start = System.currentTimeMillis();
+        final boolean minified = htmlLibraryManager.isMinifyEnabled();
+        final Snapshot previous = snapshot;
+        final Map<String, ClientLibrary> libraries = new HashMap<>(htmlLibraryManager.getLibraries());
+        final Map<VersionedClientLibraryMd5CacheKey, Entry> hashes = new HashMap<>();
+        int computed = 0;
+        for (Map.Entry<String, ClientLibrary> library : libraries.entrySet()) {
+            for (LibraryType type : library.getValue().getTypes()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                HtmlLibrary htmlLibrary = htmlLibraryManager.getLibrary(type, library.getKey());
+                if (htmlLibrary == null) {
+                    continue;
+                }
+                VersionedClientLibraryMd5CacheKey key = new VersionedClientLibraryMd5CacheKey(htmlLibrary);
+                long lastModified = htmlLibrary.getLastModified(minified);
+                Entry entry = previous.minified == minified ? previous.hashes.get(key) : null;
+                if (entry == null || entry.getLastModified() != lastModified) {
+                    try (InputStream input = htmlLibrary.getInputStream(minified)) {
+                        // Read the date again, building the library may have updated it
+                        entry = new Entry(htmlLibrary.getLastModified(minified), DigestUtils.md5Hex(input));
+                        computed++;
+                    } catch (IOException | RuntimeException e) {
+                        log.warn("Unable to compute md5 of client library {}", key, e);
+                        continue;
+                    }
+                }
+                hashes.put(key, entry);
+            }
+        }
+        snapshot = new Snapshot(minified, hashes, libraries);
+        log.info("Refreshed md5 of {} client libraries ({} computed) in {}ms", hashes.size(), computed,
+                System.currentTimeMillis() - start);
+        if (computed > 0 || hashes.size() != previous.hashes.size()) {
+            store(snapshot);
+        }
+    }
+
+    private Snapshot load() {
+        Map<VersionedClientLibraryMd5CacheKey, Entry> hashes = new HashMap<>();
+        boolean minified = false;
+        if (storeFile != null && storeFile.isFile()) {
+            Properties props = new Properties();
+            try (InputStream in = Files.newInputStream(storeFile.toPath())) {
+                props.load(in);
+                minified = Boolean.parseBoolean(props.getProperty(PROP_MINIFIED));
+                for (String name : props.stringPropertyNames()) {
+                    VersionedClientLibraryMd5CacheKey key = parseKey(name);
+                    String value = props.getProperty(name);
+                    String md5 = StringUtils.substringAfter(value, String.valueOf(SEPARATOR));
+                    long lastModified = NumberUtils.toLong(StringUtils.substringBefore(value, String.valueOf(SEPARATOR)), -1L);
+                    if (key != null && lastModified >= 0 && StringUtils.isNotEmpty(md5)) {
+                        hashes.put(key, new Entry(lastModified, md5));
+                    }
+                }
+                log.debug("Loaded md5 of {} client libraries from {}", hashes.size(), storeFile);
+            } catch (IOException | IllegalArgumentException e) {
+                log.warn("Unable to read stored client library hashes from {}, starting empty", storeFile, e);
+                hashes.clear();
+            }
+        }
+        return new Snapshot(minified, hashes, null);
+    }
+
+    private void store(Snapshot toStore) {
+        if (storeFile == null) {
+            return;
+        }
+        Properties props = new Properties();
+        props.setProperty(PROP_MINIFIED, String.valueOf(toStore.minified));
+        for (Map.Entry<VersionedClientLibraryMd5CacheKey, Entry> hash : toStore.hashes.entrySet()) {
+            props.setProperty(hash.getKey().toString(), hash.getValue().getLastModified() + String.valueOf(SEPARATOR)
+                    + hash.getValue().getMd5());
+        }
+        try {
+            File parent = storeFile.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                Files.createDirectories(parent.toPath());
+            }
+            // Write next to the file and move it in place, so a restart never sees half a file
+            File temp = new File(storeFile.getPath() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+                props.store(out, "Versioned client library hashes");
+            }
+            Files.move(temp.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Unable to store client library hashes in {}", storeFile, e);
+        }
+    }
+
+    /**
+     * Inverse of {@link VersionedClientLibraryMd5CacheKey#toString()}.
+     */
+    @Nullable
+    private static VersionedClientLibraryMd5CacheKey parseKey(String name) {
+        String type = StringUtils.substringAfterLast(name, ".");
+        for (LibraryType libraryType : LibraryType.values()) {
+            if (libraryType.name().equalsIgnoreCase(type)) {
+                return new VersionedClientLibraryMd5CacheKey(StringUtils.substringBeforeLast(name, "."), libraryType);
+            }
+        }
+        return null;
+    }
+}
@@ -19,6 +19,7 @@
  */
 package com.adobe.acs.commons.rewriter.impl;
 
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -26,7 +27,6 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.rewriter.Transformer;
@@ -115,111 +115,85 @@ String pipeline_type();
 
     private static final String PROP_PREFIXES = "prefixes";
 
-    private Map<String, String[]> attributes;
-
-    private Map<String, Pattern> matchingPatterns;
+    /** Rules by element name, then by attribute name; built once on activation and never modified. */
+    private Map<String, Map<String, AttributeRule>> rules = Collections.emptyMap();
 
     private String[] prefixes;
 
-    private int staticHostCount;
+    private int shardCount;
 
-    private String[] staticHostPattern;
+    /** Host name of each shard, by shard number - 1. Null if no static host is configured. */
+    private String[] shardHosts;
 
     public Transformer createTransformer() {
         return new StaticReferenceRewriteTransformer();
     }
 
-    private static String getShardValue(final String filePath, final int shardCount, final ShardNameProvider sharder) {
+    private static int getShardNumber(final String filePath, final int shardCount) {
         int result = 1;
         if (shardCount > 1) {
             final int fileHash = ((filePath.hashCode() & Integer.MAX_VALUE) % shardCount) + 1;
-            String hostNumberString = Integer.toString(fileHash);
-            if (hostNumberString.length() >= 2) {
+            if (fileHash >= 10) {
                 // get the 2nd digit as the 1st digit will not contain "0"
-                Character c = hostNumberString.charAt(1);
-                hostNumberString = c.toString();
-                // If there are more than 10 hosts, convert it back to base10
-                // so we do not have alpha
-                hostNumberString = Integer.toString(Integer.parseInt(hostNumberString, shardCount));
-
-                result = Integer.parseInt(hostNumberString) + 1;
+                result = Integer.toString(fileHash).charAt(1) - '0' + 1;
             } else {
                 result = fileHash;
             }
         }
-
-        return sharder.lookup(result);
+        return result;
     }
 
     private String prependHostName(String value) {
-        if (staticHostPattern != null && staticHostPattern.length > 0) {
-            final String host;
-            if (staticHostPattern.length == 1) {
-                final String hostNum = getShardValue(value, staticHostCount, toStringShardNameProvider);
-                host = staticHostPattern[0].replace("{}", hostNum);
-            } else {
-                host = getShardValue(value, staticHostPattern.length, lookupShardNameProvider);
-            }
-            return String.format("//%s%s", host, value);
+        if (shardHosts != null) {
+            return "//" + shardHosts[getShardNumber(value, shardCount) - 1] + value;
         } else {
             return value;
         }
     }
 
     private Attributes rebuildAttributes(final String elementName, final Attributes attrs) {
-        if (attributes.containsKey(elementName)) {
-            final String[] modifyableAttributes = attributes.get(elementName);
-
-            // first - check for the nostatic class
-            boolean rewriteStatic = true;
-            for (int i = 0; i < attrs.getLength(); i++) {
-                final String attrName = attrs.getLocalName(i);
-                if (ATTR_CLASS.equals(attrName)) {
-                    String attrValue = attrs.getValue(i);
-                    if (attrValue.contains(CLASS_NOSTATIC)) {
-                        rewriteStatic = false;
-                    }
+        final Map<String, AttributeRule> elementRules = rules.get(elementName);
+        if (elementRules == null) {
+            return attrs;
+        }
+
+        // first - check for the nostatic class
+        final int length = attrs.getLength();
+        for (int i = 0; i < length; i++) {
+            if (ATTR_CLASS.equals(attrs.getLocalName(i))) {
+                final String attrValue = attrs.getValue(i);
+                if (attrValue != null && attrValue.contains(CLASS_NOSTATIC)) {
+                    return attrs;
                 }
             }
+        }
 
-            if (rewriteStatic) {
-                return rebuildAttributes(elementName, attrs, modifyableAttributes);
+        // the attributes are only copied once a value actually changes
+        AttributesImpl newAttrs = null;
+        for (int i = 0; i < length; i++) {
+            final AttributeRule rule = elementRules.get(attrs.getLocalName(i));
+            if (rule == null) {
+                continue;
+            }
+            final String attrValue = attrs.getValue(i);
+            final String rewritten = rule.rewrite(attrValue);
+            if (rewritten != null && !rewritten.equals(attrValue)) {
+                if (newAttrs == null) {
+                    newAttrs = new AttributesImpl(attrs);
+                }
+                newAttrs.setValue(i, rewritten);
             }
         }
-
-        return attrs;
+        return newAttrs == null ? attrs : newAttrs;
     }
 
-    @SuppressWarnings("squid:S3776")
-    private Attributes rebuildAttributes(String elementName, Attributes attrs, String[] modifyableAttributes) {
-        // clone the attributes
-        final AttributesImpl newAttrs = new AttributesImpl(attrs);
-
-        for (int i = 0; i < newAttrs.getLength(); i++) {
-            final String attrName = newAttrs.getLocalName(i);
-            if (ArrayUtils.contains(modifyableAttributes, attrName)) {
-                final String attrValue = newAttrs.getValue(i);
-
-                String key = elementName + ":" + attrName;
-                if (matchingPatterns.containsKey(key)) {
-                    // Find value based on matching pattern
-                    Pattern matchingPattern = matchingPatterns.get(key);
-                    try {
-                        newAttrs.setValue(i, handleMatchingPatternAttribute(matchingPattern, attrValue));
-                    } catch (Exception e) {
-                        log.error("Could not perform replacement based on matching pattern", e);
-                    }
-                } else {
-                    for (String prefix : prefixes) {
-                        if (attrValue.startsWith(prefix)) {
-                            newAttrs.setValue(i, prependHostName(attrValue));
-                        }
-                    }
-                }
+    private String rewritePrefixedValue(final String attrValue) {
+        for (String prefix : prefixes) {
+            if (attrValue.startsWith(prefix)) {
+                return prependHostName(attrValue);
             }
         }
-
-        return newAttrs;
+        return attrValue;
     }
 
     private String handleMatchingPatternAttribute(Pattern pattern, String attrValue) {
@@ -251,14 +225,59 @@ String pipeline_type();
 
         final String[] attrProp = PropertiesUtil
                 .toStringArray(properties.get(PROP_ATTRIBUTES), DEFAULT_ATTRIBUTES);
-        this.attributes = ParameterUtil.toMap(attrProp, ":", ",");
+        final Map<String, String[]> attributes = ParameterUtil.toMap(attrProp, ":", ",");
 
         final String[] matchingPatternsProp = PropertiesUtil.toStringArray(properties.get(PROP_MATCHING_PATTERNS));
-        this.matchingPatterns = initializeMatchingPatterns(matchingPatternsProp);
+        final Map<String, Pattern> matchingPatterns = initializeMatchingPatterns(matchingPatternsProp);
 
         this.prefixes = PropertiesUtil.toStringArray(properties.get(PROP_PREFIXES), new String[0]);
-        this.staticHostPattern = PropertiesUtil.toStringArray(properties.get(PROP_HOST_NAME_PATTERN), null);
-        this.staticHostCount = PropertiesUtil.toInteger(properties.get(PROP_HOST_COUNT), DEFAULT_HOST_COUNT);
+        final String[] staticHostPattern = PropertiesUtil.toStringArray(properties.get(PROP_HOST_NAME_PATTERN), null);
+        final int staticHostCount = PropertiesUtil.toInteger(properties.get(PROP_HOST_COUNT), DEFAULT_HOST_COUNT);
+        initializeShardHosts(staticHostPattern, staticHostCount);
+        this.rules = initializeRules(attributes, matchingPatterns);
+    }
+
+    private void initializeShardHosts(final String[] staticHostPattern, final int staticHostCount) {
+        if (staticHostPattern == null || staticHostPattern.length == 0) {
+            this.shardCount = 0;
+            this.shardHosts = null;
+        } else if (staticHostPattern.length == 1) {
+            // the host names only depend on the shard number, so they are generated up front
+            final String[] hosts = new String[Math.max(1, staticHostCount)];
+            for (int i = 0; i < hosts.length; i++) {
+                hosts[i] = staticHostPattern[0].replace("{}", Integer.toString(i + 1));
+            }
+            this.shardCount = staticHostCount;
+            this.shardHosts = hosts;
+        } else {
+            this.shardCount = staticHostPattern.length;
+            this.shardHosts = staticHostPattern.clone();
+        }
+    }
+
+    private Map<String, Map<String, AttributeRule>> initializeRules(final Map<String, String[]> attributes,
+                                                                    final Map<String, Pattern> matchingPatterns) {
+        final Map<String, Map<String, AttributeRule>> result = new HashMap<>();
+        for (Map.Entry<String, String[]> element : attributes.entrySet()) {
+            final Map<String, AttributeRule> elementRules = new HashMap<>();
+            for (String attrName : element.getValue()) {
+                final Pattern matchingPattern = matchingPatterns.get(element.getKey() + ":" + attrName);
+                if (matchingPattern != null) {
+                    elementRules.put(attrName, value -> {
+                        try {
+                            return handleMatchingPatternAttribute(matchingPattern, value);
+                        } catch (Exception e) {
+                            log.error("Could not perform replacement based on matching pattern", e);
+                            return value;
+                        }
+                    });
+                } else {
+                    elementRules.put(attrName, this::rewritePrefixedValue);
+                }
+            }
+            result.put(element.getKey(), elementRules);
+        }
+        return result;
     }
 
     private static Map<String, Pattern> initializeMatchingPatterns(String[] matchingPatternsProp) {
@@ -280,25 +299,11 @@ String pipeline_type();
         return result;
     }
 
-    private interface ShardNameProvider {
-        String lookup(int idx);
+    /**
+     * Rewrites the value of one element attribute.
+     */
+    @FunctionalInterface
+    private interface AttributeRule {
+        String rewrite(String value);
     }
-
-    @SuppressWarnings("squid:S1604")
-    private static final ShardNameProvider toStringShardNameProvider = new ShardNameProvider() {
-
-        @Override
-        public String lookup(int idx) {
-            return Integer.toString(idx);
-        }
-    };
-
-    @SuppressWarnings("squid:S1604")
-    private ShardNameProvider lookupShardNameProvider = new ShardNameProvider() {
-
-        @Override
-        public String lookup(int idx) {
-            return staticHostPattern[idx - 1];
-        }
-    };
 }
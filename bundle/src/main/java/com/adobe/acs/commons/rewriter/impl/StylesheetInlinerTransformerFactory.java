@@ -23,50 +23,192 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.Nullable;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceMetadata;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.rewriter.ProcessingComponentConfiguration;
 import org.apache.sling.rewriter.ProcessingContext;
 import org.apache.sling.rewriter.Transformer;
 import org.apache.sling.rewriter.TransformerFactory;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
+import com.adobe.acs.commons.functions.CheckedSupplier;
 import com.adobe.acs.commons.rewriter.AbstractTransformer;
 import com.adobe.granite.ui.clientlibs.HtmlLibrary;
 import com.adobe.granite.ui.clientlibs.HtmlLibraryManager;
 import com.adobe.granite.ui.clientlibs.LibraryType;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * ACS AEM Commons - Stylesheet inliner removes stylesheet links the output adds
  * them as <style> elements. Links found in <head> are added to the beginning of
  * <body>, whereas those in <body> are included where they're found.
+ * The contents of inlined stylesheets are cached until their last modified date changes or a change event is
+ * received for their path.
  */
-@Component(service = {TransformerFactory.class}, property= {
-      "pipeline.type" + "=" + "inline-css"
+@Component(service = {TransformerFactory.class, EventHandler.class}, property= {
+      "pipeline.type" + "=" + "inline-css",
+      EventConstants.EVENT_TOPIC + "=" + StylesheetInlinerTransformerFactory.TOPIC_LIBRARY_INVALIDATED,
+      EventConstants.EVENT_TOPIC + "=" + SlingConstants.TOPIC_RESOURCE_CHANGED,
+      EventConstants.EVENT_TOPIC + "=" + SlingConstants.TOPIC_RESOURCE_REMOVED,
+      EventConstants.EVENT_FILTER + "=" + "(|(" + EventConstants.EVENT_TOPIC + "=" + StylesheetInlinerTransformerFactory.TOPIC_LIBRARY_INVALIDATED
+              + ")(" + SlingConstants.PROPERTY_PATH + "=*.css*))"
 })
-public final class StylesheetInlinerTransformerFactory implements TransformerFactory {
+@Designate(ocd=StylesheetInlinerTransformerFactory.Config.class)
+public final class StylesheetInlinerTransformerFactory implements TransformerFactory, EventHandler {
+
+    static final String TOPIC_LIBRARY_INVALIDATED = "com/adobe/granite/ui/librarymanager/INVALIDATED";
 
     private static final char[] NEWLINE = new char[]{'\n'};
     private static final String STYLE = "style";
     private static final String HEAD = "head";
 
+    private static final int DEFAULT_CACHE_SIZE = 10240;
+
+    private static final String PROP_CACHE_SIZE = "cache.size";
+
+    private static final String PROP_PRELOAD_PATHS = "preload.paths";
+
     private static final Logger log = LoggerFactory.getLogger(StylesheetInlinerTransformerFactory.class);
 
+    @ObjectClassDefinition(name = "ACS AEM Commons - Stylesheet Inliner Transformer Factory",
+        description = "Sling Rewriter Transformer Factory which inlines referenced stylesheets")
+    public @interface Config {
+        @AttributeDefinition(name = "Cache Size", description = "Approximate memory used to cache the contents of inlined stylesheets, in KB. "
+            + "0 disables the cache.", defaultValue = ""+DEFAULT_CACHE_SIZE)
+        int cache_size();
+
+        @AttributeDefinition(name = "Preload Client Libraries", description = "Paths of CSS client libraries read into the cache when the "
+            + "component starts, e.g. /apps/mysite/clientlibs/email")
+        String[] preload_paths();
+    }
+
     @Reference
     private HtmlLibraryManager htmlLibraryManager;
 
+    private volatile Cache<String, InlineStylesheet> stylesheetCache = buildCache(DEFAULT_CACHE_SIZE);
+
     public Transformer createTransformer() {
         return new CssInlinerTransformer();
     }
 
+    @Activate
+    protected void activate(final Map<String, Object> config) {
+        stylesheetCache = buildCache(PropertiesUtil.toInteger(config.get(PROP_CACHE_SIZE), DEFAULT_CACHE_SIZE));
+        final String[] preloadPaths = PropertiesUtil.toStringArray(config.get(PROP_PRELOAD_PATHS), new String[0]);
+        if (preloadPaths.length > 0 && stylesheetCache != null) {
+            CompletableFuture.runAsync(() -> preload(preloadPaths));
+        }
+    }
+
+    private static Cache<String, InlineStylesheet> buildCache(int sizeInKb) {
+        if (sizeInKb <= 0) {
+            return null;
+        }
+        return CacheBuilder.newBuilder()
+                .maximumWeight(sizeInKb * 1024L)
+                .weigher((String key, InlineStylesheet value) -> value.chars.length * 2)
+                .build();
+    }
+
+    private void preload(final String[] paths) {
+        for (String path : paths) {
+            final String libraryPath = StringUtils.removeEnd(path, LibraryType.CSS.extension);
+            final HtmlLibrary library = htmlLibraryManager.getLibrary(LibraryType.CSS, libraryPath);
+            if (library == null) {
+                log.warn("Could not preload stylesheet, no CSS client library at {}", libraryPath);
+                continue;
+            }
+            try {
+                getStylesheet(libraryPath + LibraryType.CSS.extension, library.getLastModified(), library::getInputStream);
+            } catch (IOException e) {
+                log.warn("Could not preload stylesheet {}", libraryPath, e);
+            }
+        }
+    }
+
+    @Override
+    public void handleEvent(final Event event) {
+        final Cache<String, InlineStylesheet> cache = stylesheetCache;
+        final String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+        if (cache == null || path == null) {
+            return;
+        }
+        // the change can be to the stylesheet, to something below it (jcr:content, files of a library) or to a parent
+        cache.asMap().keySet().removeIf(key -> {
+            final String keyPath = StringUtils.removeEnd(key, LibraryType.CSS.extension);
+            return key.equals(path) || keyPath.equals(path) || key.startsWith(path + "/")
+                    || path.startsWith(key + "/") || path.startsWith(keyPath + "/");
+        });
+    }
+
+    /**
+     * Contents of the stylesheet, from the cache if it was read before and did not change since.
+     *
+     * @param key          path of the stylesheet
+     * @param lastModified last modified date of the stylesheet, 0 or less if unknown
+     * @param source       opens the stylesheet, may supply null
+     * @return contents of the stylesheet, null if it could not be opened
+     */
+    @Nullable
+    char[] getStylesheet(final String key, final long lastModified, final CheckedSupplier<InputStream> source) throws IOException {
+        final Cache<String, InlineStylesheet> cache = stylesheetCache;
+        if (cache != null) {
+            final InlineStylesheet cached = cache.getIfPresent(key);
+            if (cached != null && cached.lastModified == lastModified) {
+                return cached.chars;
+            }
+        }
+        final char[] chars;
+        try (InputStream inputStream = source.get()) {
+            if (inputStream == null) {
+                return null;
+            }
+            chars = IOUtils.toCharArray(inputStream, "UTF-8");
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to read stylesheet " + key, e);
+        }
+        if (cache != null) {
+            cache.put(key, new InlineStylesheet(lastModified, chars));
+        }
+        return chars;
+    }
+
+    private static final class InlineStylesheet {
+        private final long lastModified;
+        private final char[] chars;
+
+        InlineStylesheet(long lastModified, char[] chars) {
+            this.lastModified = lastModified;
+            this.chars = chars;
+        }
+    }
+
     private class CssInlinerTransformer extends AbstractTransformer {
 
         protected boolean afterHeadElement = false;
@@ -119,22 +261,24 @@ public final class StylesheetInlinerTransformerFactory implements TransformerFac
         }
 
         private void inlineSheet(final String namespaceURI, String s) throws IOException, SAXException {
-            InputStream inputStream = null;
+            char[] chars = null;
 
             String withoutExtension = s.substring(0, s.indexOf(LibraryType.CSS.extension));
             HtmlLibrary library = htmlLibraryManager.getLibrary(LibraryType.CSS, withoutExtension);
             if (library != null) {
-                inputStream = library.getInputStream();
+                chars = getStylesheet(withoutExtension + LibraryType.CSS.extension, library.getLastModified(), library::getInputStream);
             } else {
-                Resource resource = slingRequest.getResourceResolver().getResource(s);
+                // looked up with the request's resource resolver first, so the cache never hands out what the user can't read
+                final Resource resource = slingRequest.getResourceResolver().getResource(s);
 
                 if (resource != null) {
-                    inputStream = resource.adaptTo(InputStream.class);
+                    final ResourceMetadata metadata = resource.getResourceMetadata();
+                    final long lastModified = metadata == null ? -1 : metadata.getModificationTime();
+                    chars = getStylesheet(s, lastModified, () -> resource.adaptTo(InputStream.class));
                 }
             }
 
-            if (inputStream != null) {
-                char[] chars = IOUtils.toCharArray(inputStream, "UTF-8");
+            if (chars != null) {
 
                 getContentHandler().startElement(namespaceURI, STYLE, null, new AttributesImpl());
                 getContentHandler().characters(NEWLINE, 0, 1);
@@ -105,6 +105,8 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
     private static final boolean DEFAULT_DISABLE_VERSIONING = false;
 
     private static final boolean DEFAULT_ENFORCE_MD5 = false;
+
+    private static final boolean DEFAULT_PRECOMPUTE_MD5 = false;
     
     @ObjectClassDefinition(name = "ACS AEM Commons - Versioned Clientlibs Transformer Factory",
     description = "Sling Rewriter Transformer Factory to add auto-generated checksums to client library references")
@@ -115,9 +117,15 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
         @AttributeDefinition(name="Disable Versioning", description="Should versioning of clientlibs be disabled", defaultValue = ""+DEFAULT_DISABLE_VERSIONING)
         boolean disable_versioning();
 
-        @AttributeDefinition(name="Enforce MD5", description="Enables a filter which returns a 404 error if the MD5 in the request does not match the expected value",
+        @AttributeDefinition(name="Enforce MD5", description="Enables a filter which returns a 404 error if the MD5 in the request does not match the expected value. "
+            + "Matching requests get an ETag and long lived cache headers, and revalidations are answered with 304 Not Modified",
             defaultValue = ""+DEFAULT_ENFORCE_MD5)
         boolean enforce_md5();
+
+        @AttributeDefinition(name="Precompute MD5", description="Computes the md5 of all client libraries in the background at startup and "
+            + "whenever they change, and keeps them across restarts, instead of computing them when a page first references them",
+            defaultValue = ""+DEFAULT_PRECOMPUTE_MD5)
+        boolean md5_precompute();
     
     }
 
@@ -127,6 +135,10 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
 
     private static final String PROP_ENFORCE_MD5 = "enforce.md5";
 
+    private static final String PROP_PRECOMPUTE_MD5 = "md5.precompute";
+
+    private static final String MD5_STORE_FILE = "versioned-clientlibs-md5.properties";
+
     private static final String ATTR_JS_PATH = "src";
     private static final String ATTR_CSS_PATH = "href";
 
@@ -139,6 +151,12 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
 
     private static final String PROXY_PREFIX = "/etc.clientlibs/";
 
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    // the md5 is part of the path, so the content behind a path never changes
+    private static final String CACHE_CONTROL_IMMUTABLE = "public, max-age=31536000, immutable";
+
     private Cache<VersionedClientLibraryMd5CacheKey, String> md5Cache;
 
     private volatile Map<String, ClientLibrary> clientLibrariesCache;
@@ -152,6 +170,8 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
 
     private ServiceRegistration filterReg;
 
+    private volatile ClientLibraryHashRegistry hashRegistry;
+
     public VersionedClientlibsTransformerFactory() throws NotCompliantMBeanException {
         super(CacheMBean.class);
     }
@@ -165,6 +185,10 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
         this.md5Cache = CacheBuilder.newBuilder().recordStats().maximumSize(size).build();
         this.disableVersioning = PropertiesUtil.toBoolean(props.get(PROP_DISABLE_VERSIONING), DEFAULT_DISABLE_VERSIONING);
         this.enforceMd5 = PropertiesUtil.toBoolean(props.get(PROP_ENFORCE_MD5), DEFAULT_ENFORCE_MD5);
+        if (PropertiesUtil.toBoolean(props.get(PROP_PRECOMPUTE_MD5), DEFAULT_PRECOMPUTE_MD5)) {
+            hashRegistry = new ClientLibraryHashRegistry(htmlLibraryManager, bundleContext.getDataFile(MD5_STORE_FILE));
+            hashRegistry.scheduleRefresh();
+        }
         if (enforceMd5) {
             Dictionary<String, Object> filterProps = new Hashtable<String, Object>();
             filterProps.put("sling.filter.scope", "REQUEST");
@@ -181,6 +205,10 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
             filterReg.unregister();;
             filterReg = null;
         }
+        if (hashRegistry != null) {
+            hashRegistry.close();
+            hashRegistry = null;
+        }
         this.md5Cache = null;
         this.clientLibrariesCache = null;
     }
@@ -287,7 +315,8 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
             }
         }
 
-        if (refreshCacheIfNotFound) {
+        final ClientLibraryHashRegistry registry = hashRegistry;
+        if (refreshCacheIfNotFound && (registry == null || registry.getLibraries() == null)) {
             // maybe the library has appeared and our copy of the cache is stale
             log.info("Refreshing client libraries cache, because {} could not be found", proxiedPath);
             clientLibrariesCache = null;
@@ -302,6 +331,12 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
     }
 
     private ClientLibrary getClientLibrary(String path) {
+        final ClientLibraryHashRegistry registry = hashRegistry;
+        final Map<String, ClientLibrary> precomputedLibraries = registry == null ? null : registry.getLibraries();
+        if (precomputedLibraries != null) {
+            // kept up to date by the change events, a miss does not need a refresh
+            return precomputedLibraries.get(path);
+        }
         if (clientLibrariesCache == null) {
             clientLibrariesCache = Collections.unmodifiableMap(htmlLibraryManager.getLibraries());
         }
@@ -309,6 +344,10 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
     }
 
     @Nonnull private String getMd5(@Nonnull final HtmlLibrary htmlLibrary) throws IOException, ExecutionException {
+        final String precomputed = getPrecomputedMd5(htmlLibrary);
+        if (precomputed != null) {
+            return precomputed;
+        }
         return md5Cache.get(new VersionedClientLibraryMd5CacheKey(htmlLibrary), new Callable<String>() {
 
             @Override
@@ -318,6 +357,11 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
         });
     }
 
+    @Nullable private String getPrecomputedMd5(@Nonnull final HtmlLibrary htmlLibrary) {
+        final ClientLibraryHashRegistry registry = hashRegistry;
+        return registry == null ? null : registry.getMd5(htmlLibrary, htmlLibraryManager.isMinifyEnabled());
+    }
+
     @Nonnull private String calculateMd5(@Nonnull final HtmlLibrary htmlLibrary, boolean isMinified) throws IOException {
         // make sure that the minified version is being request in case minification is globally enabled
         // as this will reset the dirty flag on the clientlib
@@ -355,6 +399,10 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
         md5Cache.invalidate(new VersionedClientLibraryMd5CacheKey(path, LibraryType.JS));
         md5Cache.invalidate(new VersionedClientLibraryMd5CacheKey(path, LibraryType.CSS));
         clientLibrariesCache = null;
+        final ClientLibraryHashRegistry registry = hashRegistry;
+        if (registry != null) {
+            registry.scheduleRefresh();
+        }
     }
 
     @Override
@@ -422,6 +470,9 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
                 final SlingHttpServletRequest slingRequest = (SlingHttpServletRequest) request;
                 final SlingHttpServletResponse slingResponse = (SlingHttpServletResponse) response;
                 String uri = slingRequest.getRequestURI();
+                if (handleKnownMd5(uri, slingRequest, slingResponse, filterChain)) {
+                    return;
+                }
                 UriInfo uriInfo = getUriInfo(uri, slingRequest.getResourceResolver());
                 if (uriInfo.cacheKey != null) {
                     if ("".equals(uriInfo.md5)) {
@@ -430,11 +481,13 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
                         return;
                     }
 
-                    String md5FromCache = null;
-                    try {
-                        md5FromCache = getCacheEntry(uriInfo.cacheKey);
-                    } catch (Exception e) {
-                        md5FromCache = null;
+                    String md5FromCache = getPrecomputedMd5(uriInfo.htmlLibrary);
+                    if (md5FromCache == null) {
+                        try {
+                            md5FromCache = getCacheEntry(uriInfo.cacheKey);
+                        } catch (Exception e) {
+                            md5FromCache = null;
+                        }
                     }
 
                     // this static value "Invalid cache key parameter." happens when the cache key can't be
@@ -451,7 +504,7 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
                         // the file is in the cache, compare the md5 from cache with the one in the request
                         if (md5FromCache.equals(uriInfo.md5)) {
                             log.debug("MD5 equals for '{}' in Versioned ClientLibs cache, allowing {} to pass", uriInfo.cleanedUri, uri);
-                            filterChain.doFilter(request, response);
+                            sendWithCacheHeaders(uriInfo.md5, slingRequest, slingResponse, filterChain);
                         } else {
                             log.info("MD5 differs for '{}' in Versioned ClientLibs cache. Expected {}. Sending 404 for '{}'",
                                     uriInfo.cleanedUri, md5FromCache, uri);
@@ -466,6 +519,65 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
             }
         }
 
+        /**
+         * Answers requests for hashes which are in the precomputed snapshot without reading the library.
+         *
+         * @return true if the request was handled, false if it needs the full check
+         */
+        private boolean handleKnownMd5(final String uri, final SlingHttpServletRequest request,
+                                       final SlingHttpServletResponse response, final FilterChain filterChain)
+                throws IOException, ServletException {
+            final ClientLibraryHashRegistry registry = hashRegistry;
+            if (uri == null || registry == null || registry.getLibraries() == null) {
+                return false;
+            }
+            final Matcher matcher = FILTER_PATTERN.matcher(uri);
+            if (!matcher.matches()) {
+                return false;
+            }
+            final LibraryType libraryType = LibraryType.CSS.extension.substring(1).equals(matcher.group(3))
+                    ? LibraryType.CSS : LibraryType.JS;
+            final String libraryPath = resolvePathIfProxied(libraryType, matcher.group(1), request.getResourceResolver());
+            final HtmlLibrary htmlLibrary = libraryPath == null ? null : htmlLibraryManager.getLibrary(libraryType, libraryPath);
+            final String md5 = matcher.group(2);
+            // the hash only counts while the library has not been modified since it was computed
+            if (htmlLibrary == null || !md5.equals(registry.getMd5(htmlLibrary, htmlLibraryManager.isMinifyEnabled()))) {
+                // unknown, stale or different, leave the verdict to the full check
+                return false;
+            }
+            log.debug("MD5 equals for '{}' in precomputed Versioned ClientLibs hashes, allowing {} to pass", libraryPath, uri);
+            sendWithCacheHeaders(md5, request, response, filterChain);
+            return true;
+        }
+
+        private void sendWithCacheHeaders(final String md5, final SlingHttpServletRequest request,
+                                          final SlingHttpServletResponse response, final FilterChain filterChain)
+                throws IOException, ServletException {
+            final String etag = "\"" + md5 + "\"";
+            response.setHeader(HEADER_ETAG, etag);
+            response.setHeader(HEADER_CACHE_CONTROL, CACHE_CONTROL_IMMUTABLE);
+            final boolean safeMethod = "GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod());
+            if (safeMethod && matchesEtag(request.getHeader(HEADER_IF_NONE_MATCH), etag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            } else {
+                filterChain.doFilter(request, response);
+            }
+        }
+
+        private boolean matchesEtag(final String ifNoneMatch, final String etag) {
+            if (StringUtils.isBlank(ifNoneMatch)) {
+                return false;
+            }
+            for (String candidate : StringUtils.split(ifNoneMatch, ',')) {
+                // If-None-Match uses the weak comparison, W/ prefixes are ignored
+                final String tag = StringUtils.removeStart(candidate.trim(), "W/");
+                if ("*".equals(tag) || etag.equals(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         @Override
         public void init(final FilterConfig filterConfig) throws ServletException {
             // no-op
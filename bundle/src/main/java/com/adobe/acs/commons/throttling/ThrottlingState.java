@@ -7,9 +7,9 @@
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *      http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -20,180 +20,192 @@
 package com.adobe.acs.commons.throttling;
 
 import java.time.Clock;
-import java.time.Instant;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /*
  * This class does the decision if a requests needs to be throttled or not, and holds all
- * relevant data.
- * 
- * The basic unit is "requests per minute".
- * 
- * Internally it holds an array of "slots", and the value in the slot designates when the
- * next request can be scheduled. The size of the array is determined dynamically by the
- * LoadEstimator, the adjustment is made on every request evaluated by this class.
- * 
- * 
+ * relevant data. It is lock-free, so the request threads are not serialized.
+ *
+ * The basic unit is "requests per minute", with the capacity determined by the LoadEstimator
+ * on every request evaluated by this class.
+ *
+ * Every request let through gets a sequence number and is recorded as an admission, a single
+ * long packing that sequence number with its timestamp (in milliseconds since the state was
+ * created). A request may pass if the request let through "capacity" requests before it is older
+ * than one minute; this is a sliding window, which needs no purge or resize of slots when the
+ * capacity changes. The last admission is replaced with a single CAS, so the sequence number and
+ * the timestamp of a request are taken together and concurrent requests never let more than
+ * "capacity" requests through per minute. Nothing is allocated for the requests let through.
+ *
+ * Older admissions are kept in a ring, indexed by sequence number modulo the ring size. Each
+ * request stores the last admission in the ring before trying to replace it, so all admissions but
+ * the last one are in the ring. The ring only grows, when the capacity exceeds its size. Admissions
+ * stored while the ring is replaced may not be in the new ring, which lets a few more requests
+ * through at most once per resize.
+ *
  * It works best if the LoadEstimator returns streamlined values which do not jump too much, otherwise
  * you might get a stop-and-go behavior.
- * 
- * 
- * 
  */
 public class ThrottlingState {
 
     private static final Logger LOG = LoggerFactory.getLogger(ThrottlingState.class);
 
-    /**
-     * This array holds the timestamps when requests have reached the system; in
-     * case the timestamp has already expired, Instant.EPOCH is stored. Access
-     * to this array should be guarded by the lock.
-     */
-    protected Instant[] timestamps;
+    private static final long ONE_MINUTE = 1000 * 60;
+
+    private static final ThrottlingDecision NO_THROTTLE = new ThrottlingDecision(ThrottlingDecision.State.NOTHROTTLE);
+
+    /** Number of low bits of an admission holding its sequence number, which wraps around. */
+    private static final int SEQUENCE_BITS = 24;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    /** Upper bound of the capacity, so that sequence numbers in the ring can be told apart despite wrapping. */
+    private static final int MAX_CAPACITY = 1 << (SEQUENCE_BITS - 2);
+
+    /** No admission, before the first request and in the empty slots of the ring. */
+    private static final long NONE = -1L;
 
     /**
      * The clock to get the current timestamps from.
      */
-    private Clock clock;
+    private final Clock clock;
+
+    /** Time the timestamps of the admissions are relative to. */
+    private final long origin;
 
     protected LoadEstimator loadEstimator;
 
-    private static final long ONE_MINUTE = 1000 * 60;
+    /** The last request let through. */
+    private final AtomicLong last = new AtomicLong(NONE);
 
-    protected AtomicInteger currentIndex = new AtomicInteger();
+    /** The requests let through before the last one, indexed by sequence number modulo the ring size. */
+    private final AtomicReference<AtomicLongArray> ring;
 
     protected ThrottlingState(Clock clock, LoadEstimator le) {
-        int queueLen = le.getMaxRequestPerMinute();
         this.clock = clock;
+        this.origin = clock.millis();
         this.loadEstimator = le;
-        timestamps = new Instant[queueLen];
-        for (int i = 0; i < queueLen; i++) {
-            timestamps[i] = Instant.EPOCH;
-        }
-        currentIndex.set(0);
+        this.ring = new AtomicReference<>(newRing(capacity(le)));
     }
 
     /**
-     * @return
+     * @return the decision for the current request; the decision to let it through is shared by all
+     *         requests and must not be modified.
      */
-    protected synchronized ThrottlingDecision evaluateThrottling() {
-
-        ThrottlingDecision result = null;
-        purgeExpiredEntries();
-        resize(loadEstimator.getMaxRequestPerMinute());
-
-        int idx = currentIndex.get();
-        if (isSlotEmpty(idx)) {
-            // 1 minute already passed, reuse that slot
+    protected ThrottlingDecision evaluateThrottling() {
+        final int capacity = capacity(loadEstimator);
+        final long now = clock.millis();
+        if (capacity <= 0) {
+            return throttle(ONE_MINUTE);
+        }
 
-            timestamps[idx] = clock.instant();
-            currentIndex.updateAndGet(index -> (index == this.timestamps.length - 1) ? 0 : index+1);
-            result = new ThrottlingDecision(ThrottlingDecision.State.NOTHROTTLE);
+        final AtomicLongArray admissions = ringFor(capacity);
+        while (true) {
+            final long previous = last.get();
+            store(admissions, previous);
+            final long sequence = previous == NONE ? 0 : (sequenceOf(previous) + 1) & SEQUENCE_MASK;
+            final long windowStart = find(admissions, previous, (sequence - capacity) & SEQUENCE_MASK);
+            if (windowStart != NONE) {
+                final long diff = origin + timestampOf(windowStart) + ONE_MINUTE - now;
+                if (diff >= 0) {
+                    return throttle(diff);
+                }
+            }
+            if (last.compareAndSet(previous, (Math.max(0, now - origin) << SEQUENCE_BITS) | sequence)) {
+                return NO_THROTTLE;
+            }
+        }
+    }
 
-        } else {
-            // time has not yet passed, we need some throttling
+    private static ThrottlingDecision throttle(long delay) {
+        return new ThrottlingDecision(ThrottlingDecision.State.THROTTLE).withDelay(delay)
+                .withMessage("throttling required (at least " + delay + " ms)");
+    }
 
-            long diff = timestamps[idx].toEpochMilli() + ONE_MINUTE - clock.instant().toEpochMilli();
-            result = new ThrottlingDecision(ThrottlingDecision.State.THROTTLE).withDelay(diff)
-                    .withMessage("throttling required (at least " + diff + " ms)");
+    private static int capacity(LoadEstimator le) {
+        return Math.min(le.getMaxRequestPerMinute(), MAX_CAPACITY);
+    }
 
-        }
-        return result;
+    private static long sequenceOf(long admission) {
+        return admission & SEQUENCE_MASK;
+    }
 
+    private static long timestampOf(long admission) {
+        return admission >>> SEQUENCE_BITS;
     }
 
     /**
-     * cleanup the timestamps array and replace all expired entries with
-     * Instant.EPOCH;
-     *
-     * @return the number of emptied slots
+     * Store the admission in the ring, unless a later one took its slot already.
      */
-    private int purgeExpiredEntries() {
-        int result = 0;
-
-        // the array is expected to be small; therefor we can iterate through all
-        // entries without a huge performance impact (although it would be possible
-        // to reduce the number of array accesses by a more efficient and complex
-        // algorithm
-        for (int i = 0; i < timestamps.length; i++) {
-            long now = clock.instant().toEpochMilli();
-            if (now - timestamps[i].toEpochMilli() > ONE_MINUTE) {
-                timestamps[i] = Instant.EPOCH;
-                result++;
+    private static void store(AtomicLongArray admissions, long admission) {
+        if (admission == NONE) {
+            return;
+        }
+        final int slot = (int) (sequenceOf(admission) & (admissions.length() - 1));
+        long current = admissions.get(slot);
+        while (current == NONE || isBefore(current, admission)) {
+            if (admissions.compareAndSet(slot, current, admission)) {
+                return;
             }
+            current = admissions.get(slot);
         }
-        return result;
     }
 
     /**
-     * resize the queue
-     *
-     * @param newSize new size of queue
-     * @return the number of free entries in the array
+     * @return whether the first admission got its sequence number before the second one, allowing for the wrapping
+     *         of the sequence numbers.
      */
-    protected int resize(int newSize) {
-
-        if (newSize != timestamps.length) {
-
-            LOG.debug("Resizing throttling queue from {} to {}", timestamps.length, newSize);
-            Instant[] newQueue = new Instant[newSize];
-            int result = 0;
-
-            if (timestamps.length - newSize > 0) { // queue got smaller
-                result = reduceSize(newQueue);
-
-            } else { // queue got larger, just resize the timestamps array and ignore the purge till
-                // next cycle
-                result = increaseSize(newQueue);
-            }
-
-            timestamps = newQueue;
-
-            return result;
-
-        } else {
-            // Do not resize
-            LOG.debug("No resizing required");
+    private static boolean isBefore(long first, long second) {
+        final long distance = (sequenceOf(second) - sequenceOf(first)) & SEQUENCE_MASK;
+        return distance != 0 && distance < (1L << (SEQUENCE_BITS - 1));
+    }
 
+    /**
+     * @return the admission with the given sequence number, NONE if there is none or it got lost in a resize of
+     *         the ring.
+     */
+    private static long find(AtomicLongArray admissions, long last, long sequence) {
+        if (last != NONE && sequenceOf(last) == sequence) {
+            return last;
         }
-
-        return 0;
+        final long admission = admissions.get((int) (sequence & (admissions.length() - 1)));
+        return admission != NONE && sequenceOf(admission) == sequence ? admission : NONE;
     }
 
-    private int increaseSize(Instant[] newQueue) {
-        // copy all data and fill the rest with default value
-        for (int i = 0; i < timestamps.length; i++) {
-            newQueue[i] = timestamps[i];
-        }
-        for (int i = timestamps.length; i < newQueue.length; i++) {
-            newQueue[i] = Instant.EPOCH;
+    /**
+     * Get the ring, growing it if it is too small for the capacity.
+     */
+    private AtomicLongArray ringFor(int capacity) {
+        AtomicLongArray current = ring.get();
+        while (current.length() < capacity) {
+            final AtomicLongArray grown = newRing(capacity);
+            // Copy the last admissions to their position in the larger ring.
+            for (int i = 0; i < current.length(); i++) {
+                store(grown, current.get(i));
+            }
+            if (ring.compareAndSet(current, grown)) {
+                LOG.debug("Resized throttling ring from {} to {}", current.length(), grown.length());
+                return grown;
+            }
+            current = ring.get();
         }
-        // we just got some free slots, so let's put currentIndex there
-        currentIndex.set(timestamps.length);
-        return newQueue.length - timestamps.length; // we have some free slots now        
+        return current;
     }
 
-    private int reduceSize(Instant[] newQueue) {
-        int newIndex = 0;
-        // step 1: first copy all entries with a smaller index than currentIndex
-        for (int i = currentIndex.get() - 1; i >= 0 && newIndex < newQueue.length; i--, newIndex++) {
-            newQueue[newIndex] = timestamps[i];
+    private static AtomicLongArray newRing(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
         }
-        // step 2: and then copy from the highest index down to currentIndex
-        for (int i = timestamps.length - 1; i > currentIndex.get() && newIndex < newQueue.length; i--, newIndex++) {
-            newQueue[newIndex] = timestamps[i];
+        final AtomicLongArray admissions = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            admissions.set(i, NONE);
         }
-        // step 3: reset currentIndex, as we start again from 0
-        currentIndex.set(0);
-
-        return 0; // no free slot
+        return admissions;
     }
-
-    private boolean isSlotEmpty(int index) {
-        return (timestamps[index] == Instant.EPOCH);
-    }
-
 }
@@ -20,7 +20,7 @@
 /**
  * HTTP Request Throttling
  */
-@Version("3.19.0")
+@Version("4.0.0")
 package com.adobe.acs.commons.throttling;
 
 import org.osgi.annotation.versioning.Version;
@@ -23,30 +23,50 @@ package com.adobe.acs.commons.analysis.jcrchecksum.impl;
 import com.adobe.acs.commons.analysis.jcrchecksum.ChecksumGeneratorOptions;
 import com.adobe.acs.commons.analysis.jcrchecksum.impl.options.CustomChecksumGeneratorOptions;
 import com.adobe.acs.commons.analysis.jcrchecksum.impl.options.DefaultChecksumGeneratorOptions;
+import junitx.util.PrivateAccessor;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.jackrabbit.value.ValueFactoryImpl;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.testing.mock.jcr.MockJcr;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.framework.BundleContext;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ChecksumGeneratorImplTest {
@@ -606,4 +626,212 @@ public class ChecksumGeneratorImplTest {
         assertFalse(checksumGenerator.isExcludedSubTree(session.getNode("/content/parent1/child"), opts));
         assertTrue(checksumGenerator.isExcludedSubTree(session.getNode("/content/parent2/child"), opts));
     }
+
+    @Test
+    public void testParallelChecksumsMatchSequential() throws RepositoryException, IOException {
+        Node content = session.getRootNode().addNode("content");
+        for (int i = 0; i < 25; i++) {
+            Node page = content.addNode("page-" + i, "cq:Page").addNode("jcr:content", "cq:PageContent");
+            page.setProperty("jcr:title", "title " + i);
+            page.addNode("par").addNode("text").setProperty("text", "text " + i);
+        }
+        session.save();
+
+        final AtomicInteger workerSessions = new AtomicInteger();
+        ChecksumGeneratorImpl parallelGenerator = new ChecksumGeneratorImpl() {
+            @Override
+            protected Session openWorkerSession(Session caller) {
+                workerSessions.incrementAndGet();
+                return nonClosingSession();
+            }
+        };
+        CustomChecksumGeneratorOptions opts = new CustomChecksumGeneratorOptions();
+        opts.addIncludedNodeTypes(new String[]{ "cq:PageContent" });
+        Map<String, String> expected = checksumGenerator.generateChecksums(session, "/content", opts);
+
+        opts.setParallelism(4);
+        Map<String, String> actual = parallelGenerator.generateChecksums(session, "/content", opts);
+
+        assertEquals(25, actual.size());
+        assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(actual.entrySet()));
+        assertEquals(Math.min(4, ChecksumGeneratorImpl.MAX_PARALLELISM), workerSessions.get());
+    }
+
+    @Test
+    public void testParallelChecksumsWithoutWorkerSessions() throws RepositoryException, IOException {
+        setupPage1();
+        session.getNode("/content").addNode("other-page", "cq:Page").addNode("jcr:content", "cq:PageContent")
+                .setProperty("jcr:title", "other title");
+        session.save();
+
+        CustomChecksumGeneratorOptions opts = new CustomChecksumGeneratorOptions();
+        opts.addIncludedNodeTypes(new String[]{ "cq:PageContent" });
+        opts.setParallelism(2);
+
+        // The mock session can't be impersonated, so this falls back to the caller's session
+        Map<String, String> actual = checksumGenerator.generateChecksums(session, "/content", opts);
+        assertEquals("0362210a336ba79c6cab30bf09deaf2f1a749e6f",
+                actual.get("/content/test-page/jcr:content"));
+        assertEquals(2, actual.size());
+    }
+
+    @Test
+    public void testParallelChecksumsWithServiceUserSessions() throws Exception {
+        setupPage1();
+        session.getNode("/content").addNode("other-page", "cq:Page").addNode("jcr:content", "cq:PageContent")
+                .setProperty("jcr:title", "other title");
+        session.save();
+
+        ResourceResolverFactory resolverFactory = mock(ResourceResolverFactory.class);
+        ResourceResolver workerResolver = mock(ResourceResolver.class);
+        when(workerResolver.adaptTo(Session.class)).thenReturn(nonClosingSession());
+        when(resolverFactory.getServiceResourceResolver(anyMap())).thenReturn(workerResolver);
+        PrivateAccessor.setField(checksumGenerator, "resourceResolverFactory", resolverFactory);
+
+        CustomChecksumGeneratorOptions opts = new CustomChecksumGeneratorOptions();
+        opts.addIncludedNodeTypes(new String[]{ "cq:PageContent" });
+        opts.setParallelism(2);
+
+        Map<String, String> actual = checksumGenerator.generateChecksums(session, "/content", opts);
+        assertEquals("0362210a336ba79c6cab30bf09deaf2f1a749e6f",
+                actual.get("/content/test-page/jcr:content"));
+        assertEquals(2, actual.size());
+
+        ArgumentCaptor<Map> authInfo = ArgumentCaptor.forClass(Map.class);
+        verify(resolverFactory, times(2)).getServiceResourceResolver(authInfo.capture());
+        assertEquals(ChecksumGeneratorImpl.SUBSERVICE_NAME, authInfo.getValue().get(ResourceResolverFactory.SUBSERVICE));
+        assertEquals(session.getUserID(), authInfo.getValue().get(ResourceResolverFactory.USER_IMPERSONATION));
+        verify(workerResolver, times(2)).close();
+    }
+
+    @Test
+    public void testParallelChecksumsFallBackWhenServiceUserIsRefused() throws Exception {
+        setupPage1();
+        session.getNode("/content").addNode("other-page", "cq:Page").addNode("jcr:content", "cq:PageContent")
+                .setProperty("jcr:title", "other title");
+        session.save();
+
+        ResourceResolverFactory resolverFactory = mock(ResourceResolverFactory.class);
+        when(resolverFactory.getServiceResourceResolver(anyMap())).thenThrow(new LoginException("not mapped"));
+        PrivateAccessor.setField(checksumGenerator, "resourceResolverFactory", resolverFactory);
+
+        CustomChecksumGeneratorOptions opts = new CustomChecksumGeneratorOptions();
+        opts.addIncludedNodeTypes(new String[]{ "cq:PageContent" });
+        opts.setParallelism(2);
+
+        // Neither the service user nor the mock session can open worker sessions, so this runs on the caller's session
+        Map<String, String> actual = checksumGenerator.generateChecksums(session, "/content", opts);
+        assertEquals("0362210a336ba79c6cab30bf09deaf2f1a749e6f",
+                actual.get("/content/test-page/jcr:content"));
+        assertEquals(2, actual.size());
+        verify(resolverFactory).getServiceResourceResolver(anyMap());
+    }
+
+    @Test
+    public void testCachedBinaryDigestIsReused() throws RepositoryException, IOException {
+        Node page = setupPage1();
+        page.addNode("image").setProperty("jcr:data",
+                ValueFactoryImpl.getInstance().createBinary(new ByteArrayInputStream("image data".getBytes())));
+        session.save();
+
+        final AtomicInteger binaryReads = new AtomicInteger();
+        ChecksumGeneratorImpl cachingGenerator = new CountingChecksumGenerator(binaryReads);
+        CustomChecksumGeneratorOptions opts = new CustomChecksumGeneratorOptions();
+        opts.addIncludedNodeTypes(new String[]{ "cq:PageContent" });
+
+        String expected = checksumGenerator.generateChecksums(session, "/content", opts).get("/content/test-page/jcr:content");
+
+        opts.setCacheEnabled(true);
+        assertEquals(expected, cachingGenerator.generateChecksums(session, "/content", opts).get("/content/test-page/jcr:content"));
+        assertEquals(expected, cachingGenerator.generateChecksums(session, "/content", opts).get("/content/test-page/jcr:content"));
+        assertEquals(1, binaryReads.get());
+    }
+
+    @Test
+    public void testCacheDoesNotHideChangesBelowTheAggregateNode() throws RepositoryException, IOException {
+        Node page = setupPage1();
+        page.setProperty("jcr:lastModified", Calendar.getInstance());
+        page.addNode("par").setProperty("text", "original");
+        session.save();
+
+        CustomChecksumGeneratorOptions opts = new CustomChecksumGeneratorOptions();
+        opts.addIncludedNodeTypes(new String[]{ "cq:PageContent" });
+        opts.setCacheEnabled(true);
+
+        String first = checksumGenerator.generateChecksums(session, "/content", opts).get("/content/test-page/jcr:content");
+
+        // Neither jcr:lastModified nor cq:lastModified of the aggregate node changes
+        session.getNode("/content/test-page/jcr:content/par").setProperty("text", "changed");
+        session.save();
+
+        String second = checksumGenerator.generateChecksums(session, "/content", opts).get("/content/test-page/jcr:content");
+        assertFalse(first.equals(second));
+    }
+
+    @Test
+    public void testBinaryDigestsAreKeptAcrossRestarts() throws Exception {
+        Node page = setupPage1();
+        page.addNode("image").setProperty("jcr:data",
+                ValueFactoryImpl.getInstance().createBinary(new ByteArrayInputStream("image data".getBytes())));
+        session.save();
+
+        File dataDirectory = Files.createTempDirectory("checksums").toFile();
+        try {
+            BundleContext bundleContext = mock(BundleContext.class);
+            when(bundleContext.getDataFile(anyString())).thenAnswer(invocation ->
+                    new File(dataDirectory, (String) invocation.getArguments()[0]));
+            CustomChecksumGeneratorOptions opts = new CustomChecksumGeneratorOptions();
+            opts.addIncludedNodeTypes(new String[]{ "cq:PageContent" });
+            opts.setCacheEnabled(true);
+
+            final AtomicInteger binaryReads = new AtomicInteger();
+            ChecksumGeneratorImpl before = new CountingChecksumGenerator(binaryReads);
+            before.activate(bundleContext);
+            String expected = before.generateChecksums(session, "/content", opts).get("/content/test-page/jcr:content");
+            before.deactivate();
+
+            ChecksumGeneratorImpl after = new CountingChecksumGenerator(binaryReads);
+            after.activate(bundleContext);
+            assertEquals(expected, after.generateChecksums(session, "/content", opts).get("/content/test-page/jcr:content"));
+            assertEquals(1, binaryReads.get());
+        } finally {
+            FileUtils.deleteDirectory(dataDirectory);
+        }
+    }
+
+    /**
+     * Gives every binary the same content identity, as the mock repository has none, and counts the binaries read.
+     */
+    private static class CountingChecksumGenerator extends ChecksumGeneratorImpl {
+        private final AtomicInteger binaryReads;
+
+        CountingChecksumGenerator(AtomicInteger binaryReads) {
+            this.binaryReads = binaryReads;
+        }
+
+        @Override
+        protected String getContentIdentity(Value value) {
+            return "image-data-identity";
+        }
+
+        @Override
+        protected String getBinaryChecksum(Value value) throws RepositoryException, IOException {
+            binaryReads.incrementAndGet();
+            return super.getBinaryChecksum(value);
+        }
+    }
+
+    private Session nonClosingSession() {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[]{ Session.class },
+                (proxy, method, args) -> {
+                    if ("logout".equals(method.getName())) {
+                        return null;
+                    }
+                    try {
+                        return method.invoke(session, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
 }
@@ -30,6 +30,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.xssf.usermodel.XSSFCell;
 import org.apache.poi.xssf.usermodel.XSSFRow;
@@ -216,6 +217,94 @@ public class SpreadsheetTest {
         }
     }
 
+    @Test
+    public void testStreamingMatchesUserModel() throws IOException {
+        assertSameRows(new Spreadsheet(true, new ByteArrayInputStream(workbookData.toByteArray())),
+                Spreadsheet.streaming(true, new ByteArrayInputStream(workbookData.toByteArray()), 0));
+        assertSameRows(dataTypesSheet, Spreadsheet.streaming(false,
+                SpreadsheetTest.class.getResourceAsStream("/com/adobe/acs/commons/data/spreadsheet-data-types.xlsx"), 0));
+    }
+
+    @Test
+    public void testStreamingRequiredColumns() throws IOException {
+        Spreadsheet instance = Spreadsheet.streaming(true, new ByteArrayInputStream(workbookData.toByteArray()), 0, "someOtherCol");
+        List<Map<String, CompositeVariant>> result = instance.getDataRowsAsCompositeVariants();
+        assertEquals(5, instance.getRowCount());
+        assertEquals(4, result.size());
+        assertEquals("/test/a2", result.get(0).get("path").toString());
+        assertEquals(2L, (long) instance.getRowNum(result.get(0)));
+    }
+
+    @Test
+    public void testStreamingTypeDetectionFromSample() throws IOException {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        XSSFSheet sheet = workbook.createSheet("sheet 1");
+        createRow(sheet, "count", "price", "flag", "when", "name", "mixed", "hinted@string");
+        CellStyle dateStyle = workbook.createCellStyle();
+        dateStyle.setDataFormat(workbook.createDataFormat().getFormat("YYYY-mm-dd"));
+        for (int i = 1; i <= 2; i++) {
+            XSSFRow row = sheet.createRow(i);
+            row.createCell(0).setCellValue(i);
+            row.createCell(1).setCellValue(i == 1 ? 1.5 : 2);
+            row.createCell(2).setCellValue(i == 1);
+            XSSFCell dateCell = row.createCell(3);
+            dateCell.setCellValue(testDate);
+            dateCell.setCellStyle(dateStyle);
+            row.createCell(4).setCellValue("name " + i);
+            if (i == 1) {
+                row.createCell(5).setCellValue(i);
+            } else {
+                row.createCell(5).setCellValue("text");
+            }
+            row.createCell(6).setCellValue(i);
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        workbook.write(data);
+
+        Spreadsheet sampled = Spreadsheet.streaming(true, new ByteArrayInputStream(data.toByteArray()), 10);
+        List<Map<String, CompositeVariant>> rows = sampled.getDataRowsAsCompositeVariants();
+        assertEquals(2, rows.size());
+        assertEquals(1L, rows.get(0).get("count").toPropertyValue());
+        assertEquals(1.5, (Double) rows.get(0).get("price").toPropertyValue(), 0.000001);
+        assertEquals(2.0, (Double) rows.get(1).get("price").toPropertyValue(), 0.000001);
+        assertEquals(Boolean.TRUE, rows.get(0).get("flag").toPropertyValue());
+        assertEquals(testDate, rows.get(0).get("when").toPropertyValue());
+        assertEquals("name 1", rows.get(0).get("name").toPropertyValue());
+        assertEquals("1", rows.get(0).get("mixed").toPropertyValue());
+        assertEquals("1", rows.get(0).get("hinted").toPropertyValue());
+
+        Spreadsheet unsampled = Spreadsheet.streaming(true, new ByteArrayInputStream(data.toByteArray()), 0);
+        assertEquals("1", unsampled.getDataRowsAsCompositeVariants().get(0).get("count").toPropertyValue());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStreamingRowsCanOnlyBeReadOnce() throws IOException {
+        Spreadsheet instance = Spreadsheet.streaming(true, new ByteArrayInputStream(workbookData.toByteArray()), 2);
+        try (Stream<Map<String, CompositeVariant>> rows = instance.getDataRowStream()) {
+            assertEquals(5, rows.count());
+        }
+        instance.getDataRowStream();
+    }
+
+    private static void assertSameRows(Spreadsheet expected, Spreadsheet actual) {
+        assertEquals(expected.getHeaderRow(), actual.getHeaderRow());
+        List<Map<String, CompositeVariant>> expectedRows = expected.getDataRowsAsCompositeVariants();
+        List<Map<String, CompositeVariant>> actualRows = actual.getDataRowsAsCompositeVariants();
+        assertEquals(expectedRows.size(), actualRows.size());
+        for (int i = 0; i < expectedRows.size(); i++) {
+            assertEquals(expectedRows.get(i).keySet(), actualRows.get(i).keySet());
+            for (String column : expectedRows.get(i).keySet()) {
+                Object expectedValue = expectedRows.get(i).get(column).toPropertyValue();
+                Object actualValue = actualRows.get(i).get(column).toPropertyValue();
+                if (expectedValue instanceof Object[]) {
+                    assertArrayEquals((Object[]) expectedValue, (Object[]) actualValue);
+                } else {
+                    assertEquals(column, expectedValue, actualValue);
+                }
+            }
+        }
+    }
+
     private static XSSFRow createRow(XSSFSheet sheet, String... values) {
         int rowNum = sheet.getPhysicalNumberOfRows();
         XSSFRow row = sheet.createRow(rowNum);
@@ -22,8 +22,28 @@ package com.adobe.acs.commons.fam.impl;
 import com.adobe.acs.commons.fam.ActionManager;
 import com.adobe.acs.commons.fam.CancelHandler;
 import com.adobe.acs.commons.fam.ThrottledTaskRunner;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.ValueFactory;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -177,4 +197,258 @@ public class ActionManagerTest {
         manager.closeAllResolvers();
         verify(rr, atLeast(5)).close();
     }
+
+    @Test
+    public void pagedQueryByKeysetTest() throws LoginException, Exception {
+        Query query = mockQuery(getFreshMockResolver());
+        when(query.getBindVariableNames()).thenReturn(new String[]{ActionManager.LAST_PATH_VARIABLE});
+        QueryResult page1 = mockQueryResult("/a", "/b");
+        QueryResult page2 = mockQueryResult("/c", "/d");
+        QueryResult page3 = mockQueryResult("/e");
+        when(query.execute()).thenReturn(page1, page2, page3);
+        ValueFactory valueFactory = getMockResolver().adaptTo(Session.class).getValueFactory();
+
+        List<String> processed = new ArrayList<>();
+        ActionManager manager = getActionManager();
+        manager.withQueryResults("query", Query.JCR_SQL2, 2, (r, path) -> processed.add(path));
+
+        assertEquals(Arrays.asList("/a", "/b", "/c", "/d", "/e"), processed);
+        verify(valueFactory).createValue("");
+        verify(valueFactory).createValue("/b");
+        verify(valueFactory).createValue("/d");
+        verify(query, times(3)).setLimit(2);
+        verify(query, never()).setOffset(anyLong());
+    }
+
+    @Test
+    public void pagedQueryByOffsetTest() throws LoginException, Exception {
+        Query query = mockQuery(getFreshMockResolver());
+        when(query.getBindVariableNames()).thenReturn(new String[0]);
+        QueryResult page1 = mockQueryResult("/a", "/b");
+        QueryResult page2 = mockQueryResult("/c", "/d");
+        QueryResult page3 = mockQueryResult();
+        when(query.execute()).thenReturn(page1, page2, page3);
+
+        ActionManager manager = getActionManager();
+        assertEquals(4, manager.withQueryResults("query", Query.JCR_SQL2, 2, (r, path) -> { }));
+
+        verify(query).setOffset(0);
+        verify(query).setOffset(2);
+        verify(query).setOffset(4);
+        assertEquals(4, manager.getSuccessCount());
+    }
+
+    @Test
+    public void maxInFlightTest() throws LoginException, Exception {
+        Query query = mockQuery(getFreshMockResolver());
+        String[] paths = new String[20];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "/content/" + i;
+        }
+        QueryResult result = mockQueryResult(paths);
+        when(query.execute()).thenReturn(result);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ThrottledTaskRunner taskRunner = mock(ThrottledTaskRunner.class);
+        AtomicInteger maxPending = new AtomicInteger();
+        ActionManager manager = new ActionManagerImpl("test", taskRunner, getMockResolver(), 1);
+        doAnswer(i -> {
+            maxPending.accumulateAndGet(manager.getAddedCount() - manager.getCompletedCount(), Math::max);
+            executor.execute((Runnable) i.getArguments()[0]);
+            return null;
+        }).when(taskRunner).scheduleWork(any(Runnable.class), any(CancelHandler.class), anyInt());
+
+        manager.setMaxInFlight(2);
+        manager.withQueryResults("query", Query.JCR_SQL2, (r, path) -> Thread.sleep(10));
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+
+        assertEquals(20, manager.getAddedCount());
+        assertEquals(20, manager.getSuccessCount());
+        assertTrue("too many pending results: " + maxPending.get(), maxPending.get() <= 2);
+    }
+
+    @Test
+    public void batchesTest() throws LoginException, Exception {
+        ThrottledTaskRunner taskRunner = getTaskRunner();
+        ActionManager manager = new ActionManagerImpl("test", taskRunner, getFreshMockResolver(), 1);
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+
+        assertEquals(10, manager.deferredWithBatches(paths(10), 4, (r, path) -> processed.add(path)));
+
+        verify(taskRunner, times(3)).scheduleWork(any(Runnable.class), any(CancelHandler.class), anyInt());
+        assertEquals(paths(10).collect(Collectors.toList()), processed);
+        assertEquals(10, manager.getAddedCount());
+        assertEquals(10, manager.getSuccessCount());
+        assertEquals(0, manager.getErrorCount());
+        assertTrue(manager.isComplete());
+    }
+
+    @Test
+    public void batchActionFailureTest() throws LoginException, Exception {
+        ResourceResolver rr = getFreshMockResolver();
+        ActionManager manager = getActionManager();
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+
+        manager.deferredWithBatches(paths(8), 8, (r, path) -> {
+            if (path.equals("/content/2")) {
+                throw new IllegalStateException("Bad item");
+            }
+            processed.add(path);
+        });
+
+        assertEquals(1, manager.getFailureList().size());
+        assertEquals("/content/2", manager.getFailureList().get(0).getNodePath());
+        assertEquals(7, manager.getSuccessCount());
+        assertEquals(8, manager.getCompletedCount());
+        // items before the failing one ran again after the revert
+        assertEquals(9, processed.size());
+        verify(rr).revert();
+    }
+
+    @Test
+    public void batchCommitFailureTest() throws LoginException, Exception {
+        ResourceResolver rr = getFreshMockResolver();
+        List<String> uncommitted = Collections.synchronizedList(new ArrayList<>());
+        when(rr.hasChanges()).thenAnswer(i -> !uncommitted.isEmpty());
+        doAnswer(i -> {
+            if (uncommitted.contains("/content/5")) {
+                throw new PersistenceException("Bad item");
+            }
+            uncommitted.clear();
+            return null;
+        }).when(rr).commit();
+        doAnswer(i -> {
+            uncommitted.clear();
+            return null;
+        }).when(rr).revert();
+        ActionManager manager = getActionManager();
+
+        manager.deferredWithBatches(paths(8), 8, (r, path) -> uncommitted.add(path));
+
+        assertEquals(1, manager.getFailureList().size());
+        assertEquals("/content/5", manager.getFailureList().get(0).getNodePath());
+        assertEquals(7, manager.getSuccessCount());
+        assertEquals(1, manager.getErrorCount());
+        assertEquals(0, manager.getRemainingCount());
+    }
+
+    @Test
+    public void finishAfterLastPageWithMaxInFlightTest() throws LoginException, Exception {
+        Query query = mockQuery(getFreshMockResolver());
+        when(query.getBindVariableNames()).thenReturn(new String[0]);
+        QueryResult page1 = mockQueryResult("/a", "/b");
+        QueryResult page2 = mockQueryResult("/c", "/d");
+        QueryResult page3 = mockQueryResult("/e");
+        when(query.execute()).thenReturn(page1, page2, page3);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ThrottledTaskRunner taskRunner = mock(ThrottledTaskRunner.class);
+        doAnswer(i -> {
+            executor.execute((Runnable) i.getArguments()[0]);
+            return null;
+        }).when(taskRunner).scheduleWork(any(Runnable.class), any(CancelHandler.class), anyInt());
+        doAnswer(i -> {
+            executor.execute((Runnable) i.getArguments()[0]);
+            return null;
+        }).when(taskRunner).scheduleWork(any(Runnable.class), anyInt());
+        ActionManager manager = new ActionManagerImpl("test", taskRunner, getMockResolver(), 1);
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch finished = new CountDownLatch(1);
+        manager.onFinish(() -> {
+            events.add("finish");
+            finished.countDown();
+        });
+
+        manager.setMaxInFlight(1);
+        manager.withQueryResults("query", Query.JCR_SQL2, 2, (r, path) -> events.add(path));
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("/a", "/b", "/c", "/d", "/e", "finish"), events);
+    }
+
+    @Test
+    public void queryWithMaxInFlightFromOwnTaskTest() throws LoginException, Exception {
+        Query query = mockQuery(getFreshMockResolver());
+        when(query.getBindVariableNames()).thenReturn(new String[0]);
+        QueryResult page1 = mockQueryResult("/a", "/b");
+        QueryResult page2 = mockQueryResult("/c");
+        when(query.execute()).thenReturn(page1, page2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ThrottledTaskRunner taskRunner = mock(ThrottledTaskRunner.class);
+        doAnswer(i -> {
+            executor.execute((Runnable) i.getArguments()[0]);
+            return null;
+        }).when(taskRunner).scheduleWork(any(Runnable.class), any(CancelHandler.class), anyInt());
+        doAnswer(i -> {
+            executor.execute((Runnable) i.getArguments()[0]);
+            return null;
+        }).when(taskRunner).scheduleWork(any(Runnable.class), anyInt());
+        ActionManager manager = new ActionManagerImpl("test", taskRunner, getMockResolver(), 1);
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch finished = new CountDownLatch(1);
+        manager.onFinish(() -> {
+            events.add("finish");
+            finished.countDown();
+        });
+
+        manager.setMaxInFlight(1);
+        // The query runs from a task of the same manager, like the steps of a managed process
+        manager.deferredWithResolver(rr -> manager.withQueryResults("query", Query.JCR_SQL2, 2, (r, path) -> events.add(path)));
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("/a", "/b", "/c", "finish"), events);
+    }
+
+    @Test
+    public void batchResolverLoginFailureTest() throws LoginException, Exception {
+        ResourceResolver rr = getFreshMockResolver();
+        ActionManager manager = getActionManager();
+        when(rr.clone(any())).thenThrow(new LoginException("No login"));
+
+        manager.deferredWithBatches(paths(4), 4, (r, path) -> { });
+
+        assertEquals(4, manager.getCompletedCount());
+        assertEquals(4, manager.getErrorCount());
+        assertEquals(0, manager.getRemainingCount());
+        assertTrue(manager.isComplete());
+    }
+
+    private static Stream<String> paths(int count) {
+        return Stream.iterate(0, i -> i + 1).limit(count).map(i -> "/content/" + i);
+    }
+
+    private static Query mockQuery(ResourceResolver rr) throws Exception {
+        Session session = mock(Session.class);
+        Workspace workspace = mock(Workspace.class);
+        QueryManager queryManager = mock(QueryManager.class);
+        Query query = mock(Query.class);
+        when(rr.adaptTo(Session.class)).thenReturn(session);
+        when(session.getWorkspace()).thenReturn(workspace);
+        when(session.getValueFactory()).thenReturn(mock(ValueFactory.class));
+        when(workspace.getQueryManager()).thenReturn(queryManager);
+        when(queryManager.createQuery(anyString(), anyString())).thenReturn(query);
+        return query;
+    }
+
+    private static QueryResult mockQueryResult(String... paths) throws Exception {
+        List<Node> nodes = new ArrayList<>();
+        for (String path : paths) {
+            Node node = mock(Node.class);
+            when(node.getPath()).thenReturn(path);
+            nodes.add(node);
+        }
+        Iterator<Node> iterator = nodes.iterator();
+        NodeIterator nodeIterator = mock(NodeIterator.class);
+        when(nodeIterator.hasNext()).thenAnswer(i -> iterator.hasNext());
+        when(nodeIterator.nextNode()).thenAnswer(i -> iterator.next());
+        QueryResult result = mock(QueryResult.class);
+        when(result.getNodes()).thenReturn(nodeIterator);
+        return result;
+    }
 }
@@ -0,0 +1,75 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.fam.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimitTest {
+
+    @Test
+    public void testIncreaseWhenSaturated() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 6, 4);
+        assertEquals(5, limit.update(100, true, false));
+        assertEquals(6, limit.update(100, true, false));
+        // never above the highest limit
+        assertEquals(6, limit.update(100, true, false));
+    }
+
+    @Test
+    public void testUnchangedWhenNotSaturated() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 6, 4);
+        assertEquals(4, limit.update(100, false, false));
+        assertEquals(4, limit.update(100, false, false));
+    }
+
+    @Test
+    public void testDecreaseWhenOverloaded() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 16, 16);
+        assertEquals(12, limit.update(100, true, true));
+        assertEquals(9, limit.update(100, true, true));
+        assertEquals(6, limit.update(100, false, true));
+        assertEquals(4, limit.update(100, false, true));
+        assertEquals(3, limit.update(100, false, true));
+        assertEquals(2, limit.update(100, false, true));
+        assertEquals(1, limit.update(100, false, true));
+        // never below the lowest limit
+        assertEquals(1, limit.update(100, false, true));
+    }
+
+    @Test
+    public void testDecreaseWhenLatencyIncreases() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 16, 8);
+        assertEquals(9, limit.update(100, true, false));
+        assertEquals(10, limit.update(150, true, false));
+        assertEquals(7, limit.update(500, true, false));
+    }
+
+    @Test
+    public void testLimitSetByHandIsBound() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 8, 20);
+        assertEquals(8, limit.getLimit());
+        limit.setLimit(0);
+        assertEquals(2, limit.getLimit());
+        limit.setLimit(5);
+        assertEquals(5, limit.getLimit());
+    }
+}
@@ -21,6 +21,7 @@
 package com.adobe.acs.commons.fam.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -35,6 +36,7 @@ import org.slf4j.LoggerFactory;
 
 import com.adobe.acs.commons.fam.ThrottledTaskRunner;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ThrottledTaskRunnerTest {
 
@@ -133,4 +135,40 @@ public class ThrottledTaskRunnerTest {
 
     }
 
+    @Test
+    public void testAdaptiveConcurrencyGrowsWhenSaturated() throws NotCompliantMBeanException, InterruptedException {
+        ThrottledTaskRunnerImpl ttr = osgiContext.registerInjectActivateService(new ThrottledTaskRunnerImpl(),
+                "max.threads", 2,
+                "max.cpu", -1d,
+                "max.heap", -1d,
+                "adaptive.concurrency", true,
+                "adaptive.max.threads", 6,
+                "adaptive.max.gc", -1d,
+                "adaptive.sample.interval", 10);
+        assertEquals(2, ttr.getMaxThreads());
+
+        AtomicInteger completed = new AtomicInteger();
+        for (int i = 0; i < 60; i++) {
+            ttr.scheduleWork(() -> {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    log.error("", e);
+                }
+                completed.incrementAndGet();
+            });
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (completed.get() < 60 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(60, completed.get());
+        assertTrue("thread pool did not grow: " + ttr.getMaxThreads(), ttr.getMaxThreads() > 2);
+        assertTrue(ttr.getMaxThreads() <= 6);
+
+        // a size set by hand is kept within the adaptive bounds
+        ttr.setThreadPoolSize(20);
+        assertEquals(6, ttr.getMaxThreads());
+    }
 }
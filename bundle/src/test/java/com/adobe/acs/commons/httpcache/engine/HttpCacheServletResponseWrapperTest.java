@@ -22,6 +22,7 @@ package com.adobe.acs.commons.httpcache.engine;
 import com.adobe.acs.commons.httpcache.store.TempSink;
 import com.adobe.acs.commons.httpcache.store.mem.impl.MemTempSinkImpl;
 import com.day.cq.commons.feed.StringResponseWrapper;
+import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.commons.testing.sling.MockSlingHttpServletResponse;
 import org.junit.Before;
@@ -33,6 +34,7 @@ import org.mockito.runners.MockitoJUnitRunner;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.when;
@@ -99,4 +101,40 @@ public class HttpCacheServletResponseWrapperTest {
         systemUnderTest.getWriter();
 
     }
+
+    @Test
+    public void test_capture_within_limit() throws Exception {
+        TempSink tempSink = new MemTempSinkImpl();
+
+        HttpCacheServletResponseWrapper systemUnderTest = new HttpCacheServletResponseWrapper(response, tempSink, 16L);
+        systemUnderTest.getWriter().write("captured");
+
+        assertFalse(systemUnderTest.isCaptureAborted());
+        assertEquals("captured", IOUtils.toString(tempSink.createInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test_capture_over_limit() throws Exception {
+        TempSink tempSink = new MemTempSinkImpl();
+
+        HttpCacheServletResponseWrapper systemUnderTest = new HttpCacheServletResponseWrapper(new StringResponseWrapper(response), tempSink, 4L);
+        OutputStream outputStream = systemUnderTest.getOutputStream();
+        outputStream.write("abc".getBytes(StandardCharsets.UTF_8));
+        outputStream.write("def".getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(systemUnderTest.isCaptureAborted());
+        assertEquals("captured bytes are dropped", "", IOUtils.toString(tempSink.createInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test_abort_capture() throws Exception {
+        TempSink tempSink = new MemTempSinkImpl();
+
+        HttpCacheServletResponseWrapper systemUnderTest = new HttpCacheServletResponseWrapper(response, tempSink);
+        systemUnderTest.getWriter().write("partial");
+        systemUnderTest.abortCapture();
+
+        assertTrue(systemUnderTest.isCaptureAborted());
+        assertEquals("", IOUtils.toString(tempSink.createInputStream(), StandardCharsets.UTF_8));
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CacheConfigMatcherTest {
+
+    @Test
+    public void test_literal_prefix() {
+        assertEquals("/content/site/", CacheConfigMatcher.literalPrefix(Pattern.compile("/content/site/.*")));
+        assertEquals("/content/site.html", CacheConfigMatcher.literalPrefix(Pattern.compile("^/content/site\\.html")));
+        assertEquals("/content/sit", CacheConfigMatcher.literalPrefix(Pattern.compile("/content/site?")));
+        assertEquals("/content", CacheConfigMatcher.literalPrefix(Pattern.compile("/content(/.*)?")));
+        assertEquals("", CacheConfigMatcher.literalPrefix(Pattern.compile("\\w+\\.html")));
+        assertNull(CacheConfigMatcher.literalPrefix(Pattern.compile("/content/a|/content/b")));
+        assertNull(CacheConfigMatcher.literalPrefix(Pattern.compile("/content/.*", Pattern.CASE_INSENSITIVE)));
+    }
+
+    @Test
+    public void test_request_candidates() {
+        HttpCacheConfig site = config(Arrays.asList("/content/site/.*", "/content/other\\.html"), null);
+        HttpCacheConfig dam = config(Collections.singletonList("/content/dam/.*"), null);
+        HttpCacheConfig anyHtml = config(Collections.singletonList(".*\\.html"), null);
+        HttpCacheConfig unindexed = config(Collections.emptyList(), null);
+
+        CacheConfigMatcher systemUnderTest = new CacheConfigMatcher(Arrays.asList(site, dam, anyHtml, unindexed));
+
+        assertEquals(Arrays.asList(site, anyHtml, unindexed),
+                systemUnderTest.getRequestCandidates("/content/site/page.html"));
+        assertEquals(Arrays.asList(site, anyHtml, unindexed),
+                systemUnderTest.getRequestCandidates("/content/other.html"));
+        assertEquals(Arrays.asList(dam, anyHtml, unindexed),
+                systemUnderTest.getRequestCandidates("/content/dam/asset.jpg"));
+        assertEquals(Arrays.asList(anyHtml, unindexed), systemUnderTest.getRequestCandidates("/content/sit"));
+        assertEquals(systemUnderTest.getConfigs(), systemUnderTest.getRequestCandidates(null));
+    }
+
+    @Test
+    public void test_invalidation_candidates() {
+        HttpCacheConfig site = config(null, Collections.singletonList("/content/site(/.*)?"));
+        HttpCacheConfig conf = config(null, Collections.singletonList("/conf/site/.*"));
+
+        CacheConfigMatcher systemUnderTest = new CacheConfigMatcher(Arrays.asList(site, conf));
+
+        assertEquals(Collections.singletonList(site), systemUnderTest.getInvalidationCandidates("/content/site"));
+        assertEquals(Collections.singletonList(conf), systemUnderTest.getInvalidationCandidates("/conf/site/x"));
+        assertEquals(Collections.emptyList(), systemUnderTest.getInvalidationCandidates("/apps/site"));
+    }
+
+    private static HttpCacheConfig config(List<String> requestUriRegexes, List<String> invalidationRegexes) {
+        HttpCacheConfig config = mock(HttpCacheConfig.class);
+        when(config.getRequestUriPatterns()).thenReturn(compile(requestUriRegexes));
+        when(config.getJCRInvalidationPathPatterns()).thenReturn(compile(invalidationRegexes));
+        return config;
+    }
+
+    private static List<Pattern> compile(List<String> regexes) {
+        if (regexes == null) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(regexes.stream().map(Pattern::compile).toArray(Pattern[]::new));
+    }
+}
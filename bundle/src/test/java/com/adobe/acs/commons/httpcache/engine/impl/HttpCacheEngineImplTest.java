@@ -24,6 +24,7 @@ import com.adobe.acs.commons.httpcache.engine.CacheContent;
 import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheConfigConflictException;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
+import com.adobe.acs.commons.httpcache.exception.HttpCacheException;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheKeyCreationException;
 import com.adobe.acs.commons.httpcache.exception.HttpCachePersistenceException;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheRepositoryAccessException;
@@ -32,8 +33,10 @@ import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
 import com.adobe.acs.commons.httpcache.store.mem.impl.MemTempSinkImpl;
 import com.day.cq.commons.feed.StringResponseWrapper;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.wrappers.SlingHttpServletRequestWrapper;
 import org.apache.sling.commons.testing.sling.MockSlingHttpServletRequest;
 import org.apache.sling.commons.testing.sling.MockSlingHttpServletResponse;
 import org.junit.After;
@@ -46,22 +49,35 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import javax.management.NotCompliantMBeanException;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static com.adobe.acs.commons.httpcache.store.HttpCacheStore.VALUE_JCR_CACHE_STORE_TYPE;
 import static com.adobe.acs.commons.httpcache.store.HttpCacheStore.VALUE_MEM_CACHE_STORE_TYPE;
 import static java.util.Collections.emptyMap;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -164,7 +180,7 @@ public class HttpCacheEngineImplTest {
         //cacheConfig.buildCacheKey(request)
         when(jcrCacheConfig.buildCacheKey(request)).thenReturn(mockedCacheKey);
         when(jcrCacheStore.contains(mockedCacheKey)).thenReturn(true);
-        when(jcrCacheStore.getIfPresent(mockedCacheKey)).thenReturn(mockedCacheContent);
+        when(jcrCacheStore.getIfPresent(mockedCacheKey, jcrCacheConfig)).thenReturn(mockedCacheContent);
         MockSlingHttpServletResponse response = new MockSlingHttpServletResponse();
 
         boolean delivered = systemUnderTest.deliverCacheContent(request,response, jcrCacheConfig );
@@ -174,6 +190,62 @@ public class HttpCacheEngineImplTest {
         assertEquals(IOUtils.toString(getClass().getResourceAsStream("cachecontent.html"), StandardCharsets.UTF_8), response.getOutput().toString());
     }
 
+    @Test
+    public void test_deliver_precompressed_cache_content() throws Exception {
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getHeader("Accept-Encoding")).thenReturn("deflate;q=0.5, gzip");
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+        when(jcrCacheConfig.buildCacheKey(request)).thenReturn(mockedCacheKey);
+        byte[] body = IOUtils.toByteArray(getClass().getResourceAsStream("cachecontent.html"));
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put("Content-Length", Arrays.asList(String.valueOf(body.length)));
+        CacheContent cacheContent = new CacheContent(200, "utf-8", "text/html", headers, new ByteArrayInputStream(body),
+                HttpCacheServletResponseWrapper.ResponseWriteMethod.PRINTWRITER)
+                .addEncodedVariant("deflate", () -> new ByteArrayInputStream(new byte[0]))
+                .addEncodedVariant("gzip", () -> new ByteArrayInputStream(gzip(body)));
+        when(jcrCacheStore.getIfPresent(mockedCacheKey, jcrCacheConfig)).thenReturn(cacheContent);
+        org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse response =
+                new org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse();
+
+        assertTrue(systemUnderTest.deliverCacheContent(request, response, jcrCacheConfig));
+
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertFalse("identity length is not sent", response.containsHeader("Content-Length"));
+        assertTrue(Arrays.equals(body, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(response.getOutput())))));
+    }
+
+    @Test
+    public void test_deliver_identity_cache_content_when_not_accepted() throws Exception {
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getHeader("Accept-Encoding")).thenReturn("br");
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+        when(jcrCacheConfig.buildCacheKey(request)).thenReturn(mockedCacheKey);
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put("Vary", Arrays.asList("Cookie"));
+        CacheContent cacheContent = new CacheContent(200, "utf-8", "text/plain", headers,
+                new ByteArrayInputStream("plain".getBytes(StandardCharsets.UTF_8)),
+                HttpCacheServletResponseWrapper.ResponseWriteMethod.OUTPUTSTREAM)
+                .addEncodedVariant("gzip", () -> new ByteArrayInputStream(new byte[0]));
+        when(jcrCacheStore.getIfPresent(mockedCacheKey, jcrCacheConfig)).thenReturn(cacheContent);
+        org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse response =
+                new org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse();
+
+        assertTrue(systemUnderTest.deliverCacheContent(request, response, jcrCacheConfig));
+
+        assertFalse(response.containsHeader("Content-Encoding"));
+        assertEquals("Cookie, Accept-Encoding", response.getHeader("Vary"));
+        assertEquals("plain", response.getOutputAsString());
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
     @Test
     public void test_deliver_cache_content_outputstream() throws HttpCacheRepositoryAccessException, HttpCacheConfigConflictException, HttpCacheKeyCreationException, HttpCachePersistenceException, HttpCacheDataStreamException, IOException {
         SlingHttpServletRequest request = new MockSlingHttpServletRequest("/content/acs-commons/home", "my-selector", "html", "", "");
@@ -191,7 +263,7 @@ public class HttpCacheEngineImplTest {
         //cacheConfig.buildCacheKey(request)
         when(jcrCacheConfig.buildCacheKey(request)).thenReturn(mockedCacheKey);
         when(jcrCacheStore.contains(mockedCacheKey)).thenReturn(true);
-        when(jcrCacheStore.getIfPresent(mockedCacheKey)).thenReturn(mockedCacheContent);
+        when(jcrCacheStore.getIfPresent(mockedCacheKey, jcrCacheConfig)).thenReturn(mockedCacheContent);
         StringResponseWrapper response = new StringResponseWrapper(new MockSlingHttpServletResponse());
 
 
@@ -229,7 +301,7 @@ public class HttpCacheEngineImplTest {
         //cacheConfig.buildCacheKey(request)
         when(jcrCacheConfig.buildCacheKey(request)).thenReturn(mockedCacheKey);
         when(jcrCacheStore.contains(mockedCacheKey)).thenReturn(true);
-        when(jcrCacheStore.getIfPresent(mockedCacheKey)).thenReturn(mockedCacheContent);
+        when(jcrCacheStore.getIfPresent(mockedCacheKey, jcrCacheConfig)).thenReturn(mockedCacheContent);
         when(jcrCacheStore.createTempSink()).thenReturn(new MemTempSinkImpl());
         HttpCacheServletResponseWrapper wrappedResponse = systemUnderTest.wrapResponse(request,response,jcrCacheConfig);
 
@@ -237,7 +309,7 @@ public class HttpCacheEngineImplTest {
 
         systemUnderTest.cacheResponse(request, wrappedResponse, jcrCacheConfig);
 
-        verify(jcrCacheStore,atLeastOnce()).put(eq(mockedCacheKey), cacheContentCaptor.capture());
+        verify(jcrCacheStore,atLeastOnce()).put(eq(mockedCacheKey), cacheContentCaptor.capture(), eq(jcrCacheConfig));
 
         assertEquals("utf-8",cacheContentCaptor.getValue().getCharEncoding());
         assertEquals("text/html",cacheContentCaptor.getValue().getContentType());
@@ -248,4 +320,255 @@ public class HttpCacheEngineImplTest {
         assertEquals("rendered-html", cachedHTML);
     }
 
+    @Test
+    public void test_cache_response_captured_offheap() throws Exception {
+        when(config.httpcache_engine_capture_offheap()).thenReturn(true);
+        when(config.httpcache_engine_capture_maxsize()).thenReturn(1L);
+        when(config.httpcache_engine_capture_budget()).thenReturn(1);
+        systemUnderTest.activate(config);
+
+        SlingHttpServletRequest request = new MockSlingHttpServletRequest("/content/acs-commons/home", "my-selector", "html", "", "");
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        when(response.getStatus()).thenReturn(200);
+        when(response.getCharacterEncoding()).thenReturn("utf-8");
+        when(response.getWriter()).thenReturn(new PrintWriter(new ByteArrayOutputStream()));
+
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+        when(jcrCacheConfig.buildCacheKey(request)).thenReturn(mockedCacheKey);
+
+        // The captured body is only readable while the store is being handed the content.
+        final StringBuilder cached = new StringBuilder();
+        doAnswer(invocation -> cached.append(IOUtils.toString(
+                ((CacheContent) invocation.getArguments()[1]).getInputDataStream(), StandardCharsets.UTF_8)))
+                .when(jcrCacheStore).put(eq(mockedCacheKey), any(CacheContent.class), eq(jcrCacheConfig));
+
+        HttpCacheServletResponseWrapper wrappedResponse = systemUnderTest.wrapResponse(request, response, jcrCacheConfig);
+        assertTrue(wrappedResponse.getTempSink() instanceof OffHeapTempSink);
+        wrappedResponse.getWriter().write("rendered-html");
+        systemUnderTest.cacheResponse(request, wrappedResponse, jcrCacheConfig);
+
+        verify(jcrCacheStore, never()).createTempSink();
+        assertEquals("rendered-html", cached.toString());
+    }
+
+    @Test
+    public void test_cache_response_over_capture_limit() throws Exception {
+        when(config.httpcache_engine_capture_offheap()).thenReturn(true);
+        when(config.httpcache_engine_capture_maxsize()).thenReturn(1L);
+        systemUnderTest.activate(config);
+
+        SlingHttpServletRequest request = new MockSlingHttpServletRequest("/content/acs-commons/home", "my-selector", "html", "", "");
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        ByteArrayOutputStream delivered = new ByteArrayOutputStream();
+        when(response.getStatus()).thenReturn(200);
+        when(response.getCharacterEncoding()).thenReturn("utf-8");
+        when(response.getWriter()).thenReturn(new PrintWriter(delivered));
+
+        HttpCacheServletResponseWrapper wrappedResponse = systemUnderTest.wrapResponse(request, response, jcrCacheConfig);
+        String body = StringUtils.repeat("x", 2048);
+        wrappedResponse.getWriter().write(body);
+        systemUnderTest.cacheResponse(request, wrappedResponse, jcrCacheConfig);
+
+        assertTrue(wrappedResponse.isCaptureAborted());
+        assertEquals("response is still delivered", body, delivered.toString("UTF-8"));
+        verify(jcrCacheStore, never()).put(any(CacheKey.class), any(CacheContent.class), any(HttpCacheConfig.class));
+    }
+
+    @Test
+    public void test_cache_response_over_capture_budget() throws Exception {
+        when(config.httpcache_engine_capture_offheap()).thenReturn(true);
+        when(config.httpcache_engine_capture_poolsize()).thenReturn(0);
+        when(config.httpcache_engine_capture_budget()).thenReturn(0);
+        systemUnderTest.activate(config);
+
+        SlingHttpServletRequest request = new MockSlingHttpServletRequest("/content/acs-commons/home", "my-selector", "html", "", "");
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        ByteArrayOutputStream delivered = new ByteArrayOutputStream();
+        when(response.getStatus()).thenReturn(200);
+        when(response.getCharacterEncoding()).thenReturn("utf-8");
+        when(response.getWriter()).thenReturn(new PrintWriter(delivered));
+
+        HttpCacheServletResponseWrapper wrappedResponse = systemUnderTest.wrapResponse(request, response, jcrCacheConfig);
+        wrappedResponse.getWriter().write("rendered-html");
+        systemUnderTest.cacheResponse(request, wrappedResponse, jcrCacheConfig);
+
+        assertTrue(wrappedResponse.isCaptureAborted());
+        assertEquals("response is still delivered", "rendered-html", delivered.toString("UTF-8"));
+        verify(jcrCacheStore, never()).put(any(CacheKey.class), any(CacheContent.class), any(HttpCacheConfig.class));
+    }
+
+    @Test
+    public void test_single_flight() throws Exception {
+        when(jcrCacheConfig.isSingleFlightEnabled()).thenReturn(true);
+        when(jcrCacheConfig.getSingleFlightTimeout()).thenReturn(5000L);
+        SlingHttpServletRequest leaderRequest = newRequest();
+        SlingHttpServletRequest followerRequest = newRequest();
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+        when(jcrCacheConfig.buildCacheKey(any(SlingHttpServletRequest.class))).thenReturn(mockedCacheKey);
+        AtomicBoolean cached = new AtomicBoolean();
+        when(jcrCacheStore.contains(mockedCacheKey)).thenAnswer(invocation -> cached.get());
+
+        assertFalse(systemUnderTest.isCacheHit(leaderRequest, jcrCacheConfig));
+        assertEquals(1, systemUnderTest.getInFlightRenderCount());
+
+        CompletableFuture<Boolean> follower = CompletableFuture.supplyAsync(() -> {
+            try {
+                return systemUnderTest.isCacheHit(followerRequest, jcrCacheConfig);
+            } catch (HttpCacheException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (systemUnderTest.getCoalescedRequestCount() == 0) {
+            Thread.sleep(1L);
+        }
+
+        // The leader fills the cache, then gives way.
+        cached.set(true);
+        systemUnderTest.abortResponse(leaderRequest, mock(SlingHttpServletResponse.class), jcrCacheConfig);
+
+        assertTrue("follower is served from the cache", follower.get(5, TimeUnit.SECONDS));
+        assertEquals(1, systemUnderTest.getCoalescedHitCount());
+        assertEquals(0, systemUnderTest.getCoalescedTimeoutCount());
+        assertEquals(0, systemUnderTest.getInFlightRenderCount());
+    }
+
+    @Test
+    public void test_single_flight_released_without_building_the_key_again() throws Exception {
+        when(jcrCacheConfig.isSingleFlightEnabled()).thenReturn(true);
+        when(jcrCacheConfig.getSingleFlightTimeout()).thenReturn(5000L);
+        SlingHttpServletRequest request = newRequest();
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+        when(jcrCacheConfig.buildCacheKey(any(SlingHttpServletRequest.class))).thenReturn(mockedCacheKey);
+
+        assertFalse(systemUnderTest.isCacheHit(request, jcrCacheConfig));
+        assertEquals(1, systemUnderTest.getInFlightRenderCount());
+
+        when(jcrCacheConfig.buildCacheKey(any(SlingHttpServletRequest.class))).thenThrow(new HttpCacheKeyCreationException());
+        systemUnderTest.abortResponse(request, mock(SlingHttpServletResponse.class), jcrCacheConfig);
+        assertEquals(0, systemUnderTest.getInFlightRenderCount());
+    }
+
+    @Test
+    public void test_single_flight_released_when_response_was_not_wrapped() throws Exception {
+        when(jcrCacheConfig.isSingleFlightEnabled()).thenReturn(true);
+        when(jcrCacheConfig.getSingleFlightTimeout()).thenReturn(5000L);
+        SlingHttpServletRequest request = newRequest();
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+        when(jcrCacheConfig.buildCacheKey(any(SlingHttpServletRequest.class))).thenReturn(mockedCacheKey);
+
+        assertFalse(systemUnderTest.isCacheHit(request, jcrCacheConfig));
+        try {
+            systemUnderTest.cacheResponse(request, mock(SlingHttpServletResponse.class), jcrCacheConfig);
+            fail("an unwrapped response can't be cached");
+        } catch (HttpCacheDataStreamException e) {
+            assertEquals(0, systemUnderTest.getInFlightRenderCount());
+        }
+    }
+
+    @Test
+    public void test_single_flight_of_include_within_request() throws Exception {
+        when(jcrCacheConfig.isSingleFlightEnabled()).thenReturn(true);
+        when(jcrCacheConfig.getSingleFlightTimeout()).thenReturn(5000L);
+        // includes share the attributes of the request
+        SlingHttpServletRequest request = newRequest();
+        CacheKey pageKey = mock(CacheKey.class);
+        CacheKey includeKey = mock(CacheKey.class);
+        when(jcrCacheConfig.buildCacheKey(any(SlingHttpServletRequest.class))).thenReturn(pageKey, includeKey);
+
+        assertFalse(systemUnderTest.isCacheHit(request, jcrCacheConfig));
+        assertFalse(systemUnderTest.isCacheHit(request, jcrCacheConfig));
+        assertEquals(2, systemUnderTest.getInFlightRenderCount());
+
+        systemUnderTest.abortResponse(request, mock(SlingHttpServletResponse.class), jcrCacheConfig);
+        assertEquals("the include released its own flight", 1, systemUnderTest.getInFlightRenderCount());
+        systemUnderTest.abortResponse(request, mock(SlingHttpServletResponse.class), jcrCacheConfig);
+        assertEquals("the request released its own flight", 0, systemUnderTest.getInFlightRenderCount());
+    }
+
+    @Test
+    public void test_stale_while_revalidate() throws Exception {
+        when(jcrCacheConfig.getStaleWhileRevalidate()).thenReturn(60000L);
+        SlingHttpServletRequest request = newRequest();
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+        when(jcrCacheConfig.buildCacheKey(any(SlingHttpServletRequest.class))).thenReturn(mockedCacheKey);
+        when(jcrCacheStore.contains(mockedCacheKey)).thenReturn(true);
+        when(jcrCacheStore.supportsStaleness()).thenReturn(true);
+        when(jcrCacheStore.getStaleness(mockedCacheKey)).thenReturn(1000L);
+
+        assertFalse("first request re-renders the entry", systemUnderTest.isCacheHit(request, jcrCacheConfig));
+        assertTrue("concurrent request is served stale", isCacheHitFromAnotherThread(request));
+        assertEquals(1, systemUnderTest.getStaleRevalidationCount());
+        assertEquals(1, systemUnderTest.getStaleHitCount());
+    }
+
+    @Test
+    public void test_stale_if_error() throws Exception {
+        when(jcrCacheConfig.getStaleWhileRevalidate()).thenReturn(60000L);
+        when(jcrCacheConfig.getStaleIfError()).thenReturn(600000L);
+        SlingHttpServletRequest request = newRequest();
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+        when(jcrCacheConfig.buildCacheKey(any(SlingHttpServletRequest.class))).thenReturn(mockedCacheKey);
+        when(jcrCacheStore.contains(mockedCacheKey)).thenReturn(true);
+        when(jcrCacheStore.supportsStaleness()).thenReturn(true);
+        when(jcrCacheStore.getStaleness(mockedCacheKey)).thenReturn(120000L);
+
+        // Beyond the stale-while-revalidate window, the entry is not served until re-rendering it failed.
+        assertFalse(systemUnderTest.isCacheHit(request, jcrCacheConfig));
+        systemUnderTest.abortResponse(request, mock(SlingHttpServletResponse.class), jcrCacheConfig);
+        assertEquals(1, systemUnderTest.getFailedStaleRevalidationCount());
+
+        assertTrue("served stale once re-rendering failed", isCacheHitFromAnotherThread(request));
+
+        // Beyond the stale-if-error window, it's a miss.
+        when(jcrCacheStore.getStaleness(mockedCacheKey)).thenReturn(700000L);
+        assertFalse(isCacheHitFromAnotherThread(request));
+    }
+
+    @Test
+    public void test_stale_serving_ignored_by_store_not_supporting_it() throws Exception {
+        when(jcrCacheConfig.getStaleWhileRevalidate()).thenReturn(60000L);
+        SlingHttpServletRequest request = newRequest();
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+        when(jcrCacheConfig.buildCacheKey(any(SlingHttpServletRequest.class))).thenReturn(mockedCacheKey);
+        when(jcrCacheStore.contains(mockedCacheKey)).thenReturn(true);
+
+        assertTrue(systemUnderTest.isCacheHit(request, jcrCacheConfig));
+        assertTrue(systemUnderTest.isCacheHit(request, jcrCacheConfig));
+        verify(jcrCacheStore, never()).getStaleness(mockedCacheKey);
+        assertEquals(0, systemUnderTest.getStaleRevalidationCount());
+    }
+
+    /**
+     * Request keeping its attributes, where the engine leaves what it holds for the request.
+     */
+    private static SlingHttpServletRequest newRequest() {
+        final Map<String, Object> attributes = new HashMap<>();
+        return new SlingHttpServletRequestWrapper(
+                new MockSlingHttpServletRequest("/content/acs-commons/home", "", "html", "", "")) {
+            @Override
+            public Object getAttribute(String name) {
+                return attributes.get(name);
+            }
+
+            @Override
+            public void setAttribute(String name, Object value) {
+                attributes.put(name, value);
+            }
+
+            @Override
+            public void removeAttribute(String name) {
+                attributes.remove(name);
+            }
+        };
+    }
+
+    private boolean isCacheHitFromAnotherThread(SlingHttpServletRequest request) throws Exception {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return systemUnderTest.isCacheHit(request, jcrCacheConfig);
+            } catch (HttpCacheException e) {
+                throw new IllegalStateException(e);
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl;
+
+import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OffHeapTempSinkTest {
+
+    private CaptureBufferPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new CaptureBufferPool(8, 16);
+    }
+
+    @Test
+    public void test_write_and_read_across_chunks() throws Exception {
+        String body = StringUtils.repeat("0123456789", CaptureBufferPool.CHUNK_SIZE / 4);
+        OffHeapTempSink systemUnderTest = new OffHeapTempSink(pool);
+
+        try (OutputStream out = systemUnderTest.createOutputStream()) {
+            out.write('<');
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals(body.length() + 1, systemUnderTest.length());
+        try (InputStream in = systemUnderTest.createInputStream()) {
+            assertEquals("<" + body, IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void test_chunks_returned_to_pool_on_close() throws Exception {
+        OffHeapTempSink systemUnderTest = new OffHeapTempSink(pool);
+        systemUnderTest.createOutputStream().write(new byte[CaptureBufferPool.CHUNK_SIZE * 2 + 1]);
+
+        systemUnderTest.createInputStream().close();
+
+        assertEquals(3, pool.getPooledCount());
+        assertEquals(-1, systemUnderTest.length());
+
+        // Reused by the next capture.
+        new OffHeapTempSink(pool).createOutputStream().write(1);
+        assertEquals(2, pool.getPooledCount());
+    }
+
+    @Test
+    public void test_discard() throws Exception {
+        OffHeapTempSink systemUnderTest = new OffHeapTempSink(pool);
+        systemUnderTest.createOutputStream().write(new byte[10]);
+
+        systemUnderTest.discard();
+
+        assertEquals(1, pool.getPooledCount());
+    }
+
+    @Test(expected = HttpCacheDataStreamException.class)
+    public void test_read_after_discard() throws Exception {
+        OffHeapTempSink systemUnderTest = new OffHeapTempSink(pool);
+        systemUnderTest.createOutputStream().write(new byte[10]);
+        systemUnderTest.discard();
+
+        systemUnderTest.createInputStream();
+    }
+
+    @Test
+    public void test_pool_is_bounded() throws IOException, HttpCacheDataStreamException {
+        CaptureBufferPool smallPool = new CaptureBufferPool(1, 3);
+        OffHeapTempSink systemUnderTest = new OffHeapTempSink(smallPool);
+        systemUnderTest.createOutputStream().write(new byte[CaptureBufferPool.CHUNK_SIZE * 3]);
+
+        systemUnderTest.discard();
+
+        assertEquals(1, smallPool.getPooledCount());
+    }
+
+    @Test
+    public void test_budget_is_enforced() throws IOException, HttpCacheDataStreamException {
+        CaptureBufferPool smallPool = new CaptureBufferPool(1, 2);
+        OffHeapTempSink systemUnderTest = new OffHeapTempSink(smallPool);
+        OutputStream out = systemUnderTest.createOutputStream();
+        out.write(new byte[CaptureBufferPool.CHUNK_SIZE * 2]);
+
+        try {
+            out.write(1);
+            fail("the budget allows two chunks only");
+        } catch (IOException e) {
+            assertEquals(2, smallPool.getAllocatedCount());
+        }
+
+        systemUnderTest.discard();
+        assertEquals(1, smallPool.getPooledCount());
+        assertEquals(1, smallPool.getAllocatedCount());
+    }
+
+    @Test
+    public void test_capture_is_given_up_when_budget_is_used_up() throws Exception {
+        CaptureBufferPool smallPool = new CaptureBufferPool(0, 1);
+        OffHeapTempSink sink = new OffHeapTempSink(smallPool);
+        BoundedCaptureOutputStream systemUnderTest = new BoundedCaptureOutputStream(sink.createOutputStream(), sink, -1L);
+
+        systemUnderTest.write(new byte[CaptureBufferPool.CHUNK_SIZE + 1]);
+        systemUnderTest.write(1);
+
+        assertTrue(systemUnderTest.isAborted());
+        assertEquals(0, smallPool.getAllocatedCount());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl;
+
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class RequestCoalescerTest {
+
+    private final RequestCoalescer systemUnderTest = new RequestCoalescer();
+
+    @Test
+    public void test_first_request_leads() {
+        RequestCoalescer.Flight flight = systemUnderTest.join(mock(CacheKey.class), 1000L);
+
+        assertTrue(flight.isLeader());
+        assertEquals(1, systemUnderTest.getInFlight());
+    }
+
+    @Test
+    public void test_concurrent_request_waits_for_leader() throws Exception {
+        CacheKey key = mock(CacheKey.class);
+        RequestCoalescer.Flight leading = systemUnderTest.join(key, 1000L);
+
+        CompletableFuture<Boolean> waiter = CompletableFuture.supplyAsync(() -> {
+            RequestCoalescer.Flight flight = systemUnderTest.join(key, 1000L);
+            return !flight.isLeader() && systemUnderTest.await(flight, 5000L);
+        });
+
+        while (systemUnderTest.getCoalescedRequests() == 0) {
+            Thread.sleep(1L);
+        }
+        assertFalse(waiter.isDone());
+        systemUnderTest.release(leading);
+
+        assertTrue(waiter.get(5, TimeUnit.SECONDS));
+        assertEquals(0, systemUnderTest.getInFlight());
+        assertEquals(1, systemUnderTest.getCoalescedRequests());
+        assertEquals(0, systemUnderTest.getTimeouts());
+    }
+
+    @Test
+    public void test_wait_times_out() throws Exception {
+        CacheKey key = mock(CacheKey.class);
+        systemUnderTest.join(key, 1000L);
+
+        boolean released = CompletableFuture.supplyAsync(() ->
+                systemUnderTest.await(systemUnderTest.join(key, 1000L), 10L)).get(5, TimeUnit.SECONDS);
+
+        assertFalse(released);
+        assertEquals(1, systemUnderTest.getTimeouts());
+    }
+
+    @Test
+    public void test_abandoned_flight_taken_over() throws Exception {
+        CacheKey key = mock(CacheKey.class);
+        RequestCoalescer.Flight abandoned = systemUnderTest.join(key, 1L);
+        Thread.sleep(5L);
+
+        RequestCoalescer.Flight flight = CompletableFuture.supplyAsync(() -> systemUnderTest.join(key, 1L))
+                .get(5, TimeUnit.SECONDS);
+
+        assertNotSame(abandoned, flight);
+        // A late release of the abandoned flight leaves the new one in place.
+        systemUnderTest.release(abandoned);
+        assertEquals(1, systemUnderTest.getInFlight());
+    }
+
+    @Test
+    public void test_same_thread_leads_existing_flight() {
+        CacheKey key = mock(CacheKey.class);
+        RequestCoalescer.Flight flight = systemUnderTest.join(key, 1000L);
+
+        assertSame(flight, systemUnderTest.join(key, 1000L));
+        assertTrue(flight.isLeader());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl;
+
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class StaleRevalidationTrackerTest {
+
+    private static final long SERVABLE_FOR = 60000L;
+
+    private final StaleRevalidationTracker systemUnderTest = new StaleRevalidationTracker(1000L);
+
+    private final CacheKey key = mock(CacheKey.class);
+
+    @Test
+    public void test_single_revalidation() throws Exception {
+        assertTrue(systemUnderTest.tryRevalidate(key, SERVABLE_FOR));
+        assertTrue("owner keeps revalidating", systemUnderTest.tryRevalidate(key, SERVABLE_FOR));
+        assertFalse("others are served stale", tryRevalidateFromAnotherThread(key));
+        assertEquals(1, systemUnderTest.getRevalidations());
+    }
+
+    @Test
+    public void test_refreshed() throws Exception {
+        systemUnderTest.tryRevalidate(key, SERVABLE_FOR);
+
+        systemUnderTest.complete(key, true);
+
+        assertFalse(systemUnderTest.hasFailed(key));
+        assertTrue(tryRevalidateFromAnotherThread(key));
+    }
+
+    @Test
+    public void test_failed_revalidation_retried_after_interval() throws Exception {
+        StaleRevalidationTracker tracker = new StaleRevalidationTracker(5L);
+        tracker.tryRevalidate(key, SERVABLE_FOR);
+
+        tracker.complete(key, false);
+
+        assertTrue(tracker.hasFailed(key));
+        assertEquals(1, tracker.getFailedRevalidations());
+        assertFalse("no retry right away", tracker.tryRevalidate(key, SERVABLE_FOR));
+        Thread.sleep(10L);
+        assertTrue(tracker.tryRevalidate(key, SERVABLE_FOR));
+        assertFalse("not known to have failed while retrying", tracker.hasFailed(key));
+    }
+
+    @Test
+    public void test_revalidations_past_the_stale_window_swept() throws Exception {
+        systemUnderTest.tryRevalidate(key, -1L);
+        systemUnderTest.complete(key, false);
+        assertTrue(systemUnderTest.hasFailed(key));
+
+        for (int i = 1; i < StaleRevalidationTracker.SWEEP_INTERVAL; i++) {
+            CacheKey other = mock(CacheKey.class);
+            systemUnderTest.tryRevalidate(other, SERVABLE_FOR);
+            systemUnderTest.complete(other, true);
+        }
+
+        assertFalse(systemUnderTest.hasFailed(key));
+        assertEquals(0, systemUnderTest.size());
+    }
+
+    @Test
+    public void test_complete_ignored_for_other_thread() throws Exception {
+        systemUnderTest.tryRevalidate(key, SERVABLE_FOR);
+
+        CompletableFuture.runAsync(() -> systemUnderTest.complete(key, false)).get(5, TimeUnit.SECONDS);
+
+        assertFalse(systemUnderTest.hasFailed(key));
+        assertEquals(0, systemUnderTest.getFailedRevalidations());
+    }
+
+    @Test
+    public void test_forget() throws Exception {
+        systemUnderTest.tryRevalidate(key, SERVABLE_FOR);
+        systemUnderTest.complete(key, false);
+
+        systemUnderTest.forget(key);
+
+        assertFalse(systemUnderTest.hasFailed(key));
+        assertTrue(tryRevalidateFromAnotherThread(key));
+    }
+
+    private boolean tryRevalidateFromAnotherThread(CacheKey cacheKey) throws Exception {
+        return CompletableFuture.supplyAsync(() -> systemUnderTest.tryRevalidate(cacheKey, SERVABLE_FOR)).get(5, TimeUnit.SECONDS);
+    }
+}
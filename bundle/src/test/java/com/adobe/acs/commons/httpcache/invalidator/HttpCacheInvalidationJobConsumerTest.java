@@ -0,0 +1,188 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.invalidator;
+
+import com.adobe.acs.commons.httpcache.engine.HttpCacheEngine;
+import com.adobe.acs.commons.httpcache.exception.HttpCachePersistenceException;
+import junitx.util.PrivateAccessor;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.consumer.JobConsumer;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HttpCacheInvalidationJobConsumerTest {
+
+    @Mock
+    private HttpCacheEngine httpCacheEngine;
+
+    @Mock
+    private ResourceResolverFactory resolverFactory;
+
+    @InjectMocks
+    private HttpCacheInvalidationJobConsumer systemUnderTest;
+
+    @After
+    public void tearDown() {
+        systemUnderTest.deactivate();
+    }
+
+    @Test
+    public void test_invalidate_each_job_without_batch_window() throws Exception {
+        systemUnderTest.activate(config(0L, 1000));
+        when(httpCacheEngine.isPathPotentialToInvalidate("/content/a")).thenReturn(true);
+
+        assertEquals(JobConsumer.JobResult.OK, systemUnderTest.process(job("/content/a")));
+
+        verify(httpCacheEngine).invalidateCache("/content/a");
+    }
+
+    @Test
+    public void test_batch_invalidated_at_end_of_window() throws Exception {
+        systemUnderTest.activate(config(50L, 1000));
+        final JobConsumer.AsyncHandler a = mock(JobConsumer.AsyncHandler.class);
+        final JobConsumer.AsyncHandler b = mock(JobConsumer.AsyncHandler.class);
+        final JobConsumer.AsyncHandler c = mock(JobConsumer.AsyncHandler.class);
+
+        assertEquals(JobConsumer.JobResult.ASYNC, systemUnderTest.process(job("/content/a/jcr:content", a)));
+        assertEquals(JobConsumer.JobResult.ASYNC, systemUnderTest.process(job("/content/b/jcr:content", b)));
+        assertEquals(JobConsumer.JobResult.ASYNC, systemUnderTest.process(job("/content/a/jcr:content", c)));
+
+        verify(httpCacheEngine, never()).invalidateCache(anyString());
+        verify(httpCacheEngine, timeout(5000)).invalidateCache(
+                (Collection<String>) Arrays.asList("/content/a/jcr:content", "/content/b/jcr:content"));
+        verify(a, timeout(5000)).ok();
+        verify(b, timeout(5000)).ok();
+        verify(c, timeout(5000)).ok();
+    }
+
+    @Test
+    public void test_jobs_not_done_before_their_batch_is_invalidated() throws Exception {
+        systemUnderTest.activate(config(60000L, 1000));
+        final JobConsumer.AsyncHandler handler = mock(JobConsumer.AsyncHandler.class);
+
+        assertEquals(JobConsumer.JobResult.ASYNC, systemUnderTest.process(job("/content/a", handler)));
+
+        verify(httpCacheEngine, never()).invalidateCache(anyCollectionOf(String.class));
+        verify(handler, never()).ok();
+        verify(handler, never()).failed();
+    }
+
+    @Test
+    public void test_full_batch_invalidated_right_away() throws Exception {
+        systemUnderTest.activate(config(60000L, 2));
+        final JobConsumer.AsyncHandler a = mock(JobConsumer.AsyncHandler.class);
+        final JobConsumer.AsyncHandler b = mock(JobConsumer.AsyncHandler.class);
+
+        systemUnderTest.process(job("/content/a", a));
+        verify(httpCacheEngine, never()).invalidateCache(anyCollectionOf(String.class));
+
+        systemUnderTest.process(job("/content/b", b));
+        verify(httpCacheEngine, timeout(5000)).invalidateCache(
+                (Collection<String>) Arrays.asList("/content/a", "/content/b"));
+        verify(a, timeout(5000)).ok();
+        verify(b, timeout(5000)).ok();
+    }
+
+    @Test
+    public void test_failed_batch_is_retried() throws Exception {
+        systemUnderTest.activate(config(60000L, 1));
+        doThrow(new HttpCachePersistenceException("unavailable"))
+                .when(httpCacheEngine).invalidateCache(anyCollectionOf(String.class));
+        final JobConsumer.AsyncHandler handler = mock(JobConsumer.AsyncHandler.class);
+
+        systemUnderTest.process(job("/content/a", handler));
+
+        verify(handler, timeout(5000)).failed();
+        verify(handler, never()).ok();
+    }
+
+    @Test
+    public void test_pending_batch_invalidated_on_deactivate() throws Exception {
+        systemUnderTest.activate(config(60000L, 1000));
+        final JobConsumer.AsyncHandler handler = mock(JobConsumer.AsyncHandler.class);
+
+        systemUnderTest.process(job("/content/a", handler));
+        systemUnderTest.deactivate();
+
+        verify(httpCacheEngine).invalidateCache((Collection<String>) Arrays.asList("/content/a"));
+        verify(handler).ok();
+    }
+
+    @Test
+    public void test_pending_batch_retried_when_engine_is_gone_on_deactivate() throws Exception {
+        systemUnderTest.activate(config(60000L, 1000));
+        final JobConsumer.AsyncHandler handler = mock(JobConsumer.AsyncHandler.class);
+
+        systemUnderTest.process(job("/content/a", handler));
+        PrivateAccessor.setField(systemUnderTest, "httpCacheEngine", null);
+        systemUnderTest.deactivate();
+
+        verify(handler).failed();
+        verify(handler, never()).ok();
+    }
+
+    @Test
+    public void test_invalidate_right_away_without_async_support() throws Exception {
+        systemUnderTest.activate(config(60000L, 1000));
+        when(httpCacheEngine.isPathPotentialToInvalidate("/content/a")).thenReturn(true);
+
+        assertEquals(JobConsumer.JobResult.OK, systemUnderTest.process(job("/content/a")));
+
+        verify(httpCacheEngine).invalidateCache("/content/a");
+    }
+
+    private static HttpCacheInvalidationJobConsumer.Config config(long batchWindow, int batchSize) {
+        HttpCacheInvalidationJobConsumer.Config config = mock(HttpCacheInvalidationJobConsumer.Config.class);
+        when(config.httpcache_config_invalidation_batch_window()).thenReturn(batchWindow);
+        when(config.httpcache_config_invalidation_batch_size()).thenReturn(batchSize);
+        return config;
+    }
+
+    private static Job job(String path) {
+        Job job = mock(Job.class);
+        when(job.getProperty(CacheInvalidationJobConstants.PAYLOAD_KEY_DATA_CHANGE_PATH)).thenReturn(path);
+        return job;
+    }
+
+    private static Job job(String path, JobConsumer.AsyncHandler asyncHandler) {
+        Job job = job(path);
+        when(job.getProperty(JobConsumer.PROPERTY_JOB_ASYNC_HANDLER)).thenReturn(asyncHandler);
+        return job;
+    }
+}
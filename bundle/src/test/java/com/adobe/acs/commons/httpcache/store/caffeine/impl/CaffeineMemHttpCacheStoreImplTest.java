@@ -20,6 +20,7 @@
 package com.adobe.acs.commons.httpcache.store.caffeine.impl;
 
 import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.config.impl.keys.ResourcePathCacheKey;
 import com.adobe.acs.commons.httpcache.engine.CacheContent;
 import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
@@ -46,7 +47,10 @@ import java.util.Map;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -163,4 +167,77 @@ public class CaffeineMemHttpCacheStoreImplTest {
         assertEquals(12, data.size());
     }
 
+    @Test
+    public void test_remove_by_path_only_touches_matching_entries() throws HttpCacheDataStreamException, HttpCacheKeyCreationException {
+        HttpCacheConfig config = mock(HttpCacheConfig.class);
+        CacheKey page = new ResourcePathCacheKey("/content/a.html", config);
+        CacheKey other = new ResourcePathCacheKey("/content/b.html", config);
+        systemUnderTest.put(page, content());
+        systemUnderTest.put(other, content());
+
+        systemUnderTest.invalidate(new ResourcePathCacheKey("/content/a/jcr:content.html", config));
+
+        assertFalse("doesn't contain entry we just removed", systemUnderTest.contains(page));
+        assertTrue("keeps entry of another page", systemUnderTest.contains(other));
+    }
+
+    @Test
+    public void test_expired_entry_kept_for_stale_grace_period() throws Exception {
+        HttpCacheConfig config = mock(HttpCacheConfig.class);
+        when(config.getStaleWhileRevalidate()).thenReturn(60000L);
+        CacheKey key = mock(CacheKey.class);
+        when(key.getExpiryForCreation()).thenReturn(1L);
+        systemUnderTest.put(key, content(), config);
+
+        Thread.sleep(10L);
+
+        assertTrue("expired entry is kept", systemUnderTest.contains(key));
+        assertTrue("expired entry is stale", systemUnderTest.getStaleness(key) > 0);
+    }
+
+    @Test
+    public void test_expired_entry_dropped_without_stale_grace_period() throws Exception {
+        HttpCacheConfig config = mock(HttpCacheConfig.class);
+        CacheKey key = mock(CacheKey.class);
+        when(key.getExpiryForCreation()).thenReturn(1L);
+        systemUnderTest.put(key, content(), config);
+
+        Thread.sleep(10L);
+
+        assertFalse("expired entry is dropped", systemUnderTest.contains(key));
+        assertEquals(0L, systemUnderTest.getStaleness(key));
+    }
+
+    @Test
+    public void test_fresh_entry_is_not_stale() throws Exception {
+        HttpCacheConfig config = mock(HttpCacheConfig.class);
+        when(config.getStaleIfError()).thenReturn(60000L);
+        CacheKey key = mock(CacheKey.class);
+        systemUnderTest.put(key, content(), config);
+
+        assertEquals(0L, systemUnderTest.getStaleness(key));
+    }
+
+    @Test
+    public void test_remove_by_cacheconfig_leaves_other_configs_untouched() throws HttpCacheDataStreamException, HttpCacheKeyCreationException {
+        HttpCacheConfig config = mock(HttpCacheConfig.class);
+        HttpCacheConfig otherConfig = mock(HttpCacheConfig.class);
+        CacheKey page = new ResourcePathCacheKey("/content/a.html", config);
+        CacheKey other = new ResourcePathCacheKey("/content/b.html", otherConfig);
+        when(config.knows(any(CacheKey.class))).thenReturn(true);
+        systemUnderTest.put(page, content(), config);
+        systemUnderTest.put(other, content(), otherConfig);
+
+        systemUnderTest.invalidate(config);
+
+        assertFalse("doesn't contain entry of the invalidated config", systemUnderTest.contains(page));
+        assertTrue("keeps entry of the other config", systemUnderTest.contains(other));
+        verify(config, never()).knows(other);
+    }
+
+    private CacheContent content() {
+        CacheContent content = mock(CacheContent.class);
+        when(content.getInputDataStream()).thenReturn(getClass().getResourceAsStream("cachecontent.html"));
+        return content;
+    }
 }
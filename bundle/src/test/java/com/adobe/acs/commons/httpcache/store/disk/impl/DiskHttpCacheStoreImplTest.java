@@ -0,0 +1,344 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.disk.impl;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.engine.CacheContent;
+import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
+import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import com.adobe.acs.commons.httpcache.store.TempSink;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.commons.classloader.DynamicClassLoaderManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.framework.BundleContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DiskHttpCacheStoreImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private DynamicClassLoaderManager dynamicClassLoaderManager;
+
+    @Mock
+    private BundleContext bundleContext;
+
+    @InjectMocks
+    private DiskHttpCacheStoreImpl systemUnderTest = new DiskHttpCacheStoreImpl();
+
+    private File directory;
+    private long ttl = -1L;
+    private long maxSizeInMb = 4L;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("httpcache");
+        when(dynamicClassLoaderManager.getDynamicClassLoader()).thenReturn(getClass().getClassLoader());
+        systemUnderTest.activate(bundleContext, config());
+    }
+
+    @After
+    public void tearDown() {
+        systemUnderTest.deactivate();
+    }
+
+    private DiskHttpCacheStoreImpl.Config config() {
+        return new DiskHttpCacheStoreImpl.Config() {
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return null;
+            }
+
+            @Override
+            public String httpcache_cachestore_diskcache_path() {
+                return directory.getAbsolutePath();
+            }
+
+            @Override
+            public long httpcache_cachestore_diskcache_ttl() {
+                return ttl;
+            }
+
+            @Override
+            public long httpcache_cachestore_diskcache_maxsize() {
+                return maxSizeInMb;
+            }
+
+            @Override
+            public int httpcache_cachestore_diskcache_segmentsize() {
+                return 1;
+            }
+        };
+    }
+
+    private DiskHttpCacheStoreImpl restart() throws IOException {
+        systemUnderTest.deactivate();
+        DiskHttpCacheStoreImpl restarted = new DiskHttpCacheStoreImpl();
+        systemUnderTest = restarted;
+        MockitoAnnotations.initMocks(this);
+        when(dynamicClassLoaderManager.getDynamicClassLoader()).thenReturn(getClass().getClassLoader());
+        restarted.activate(bundleContext, config());
+        return restarted;
+    }
+
+    private static CacheContent content(String body) {
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put("Cache-Control", Arrays.asList("max-age=60"));
+        headers.put("Sling-Tracer-Request-Id", Collections.singletonList("123"));
+        return new CacheContent(200, "utf-8", "text/html", headers,
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+                HttpCacheServletResponseWrapper.ResponseWriteMethod.OUTPUTSTREAM);
+    }
+
+    private static String body(CacheContent content) throws IOException {
+        return IOUtils.toString(content.getInputDataStream(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void test_put() throws HttpCacheDataStreamException, IOException {
+        CacheKey key = new TestCacheKey("/content/a");
+        systemUnderTest.put(key, content("<html>a</html>"));
+
+        assertTrue("contains entry we just put in", systemUnderTest.contains(key));
+        assertEquals(1, systemUnderTest.size());
+
+        CacheContent retrieved = systemUnderTest.getIfPresent(key);
+        assertEquals("<html>a</html>", body(retrieved));
+        assertEquals(200, retrieved.getStatus());
+        assertEquals("text/html", retrieved.getContentType());
+        assertEquals("utf-8", retrieved.getCharEncoding());
+        assertEquals(HttpCacheServletResponseWrapper.ResponseWriteMethod.OUTPUTSTREAM, retrieved.getWriteMethod());
+        assertEquals(Arrays.asList("max-age=60"), retrieved.getHeaders().get("Cache-Control"));
+        assertFalse(retrieved.getHeaders().containsKey("Sling-Tracer-Request-Id"));
+    }
+
+    @Test
+    public void test_put_replaces_existing_entry() throws Exception {
+        CacheKey key = new TestCacheKey("/content/a");
+        systemUnderTest.put(key, content("first"));
+        systemUnderTest.put(key, content("second"));
+
+        assertEquals(1, systemUnderTest.size());
+        assertEquals("second", body(systemUnderTest.getIfPresent(key)));
+
+        assertEquals("second", body(restart().getIfPresent(key)));
+    }
+
+    @Test
+    public void test_remove() throws HttpCacheDataStreamException {
+        CacheKey key = new TestCacheKey("/content/a");
+        CacheKey other = new TestCacheKey("/content/b");
+        systemUnderTest.put(key, content("a"));
+        systemUnderTest.put(other, content("b"));
+
+        systemUnderTest.invalidate(new TestCacheKey("/content/a"));
+
+        assertFalse("doesn't contain entry we just removed", systemUnderTest.contains(key));
+        assertTrue(systemUnderTest.contains(other));
+    }
+
+    @Test
+    public void test_remove_by_cacheconfig() throws Exception {
+        HttpCacheConfig config = mock(HttpCacheConfig.class);
+        CacheKey key = new TestCacheKey("/content/a");
+        systemUnderTest.put(key, content("a"));
+        when(config.knows(any(CacheKey.class))).thenReturn(true);
+
+        systemUnderTest.invalidate(config);
+
+        assertFalse("doesn't contain entry we just removed", systemUnderTest.contains(key));
+        assertEquals(0, systemUnderTest.size());
+    }
+
+    @Test
+    public void test_invalidateAll() throws HttpCacheDataStreamException {
+        systemUnderTest.put(new TestCacheKey("/content/a"), content("a"));
+        systemUnderTest.put(new TestCacheKey("/content/b"), content("b"));
+
+        systemUnderTest.invalidateAll();
+
+        assertEquals(0, systemUnderTest.size());
+        assertEquals(0, directory.list((d, name) -> name.endsWith(DiskCacheSegment.DATA_EXTENSION)).length);
+    }
+
+    @Test
+    public void test_entries_survive_restart() throws Exception {
+        CacheKey key = new TestCacheKey("/content/a");
+        CacheKey removed = new TestCacheKey("/content/b");
+        systemUnderTest.put(key, content("a"));
+        systemUnderTest.put(removed, content("b"));
+        systemUnderTest.invalidate(removed);
+
+        DiskHttpCacheStoreImpl restarted = restart();
+
+        assertEquals(1, restarted.size());
+        assertEquals("a", body(restarted.getIfPresent(key)));
+        assertFalse(restarted.contains(removed));
+
+        // Appending after a restart must not clobber the restored entries.
+        restarted.put(new TestCacheKey("/content/c"), content("c"));
+        assertEquals("a", body(restarted.getIfPresent(key)));
+    }
+
+    @Test
+    public void test_index_rebuilt_when_missing() throws Exception {
+        CacheKey key = new TestCacheKey("/content/a");
+        systemUnderTest.put(key, content("a"));
+        systemUnderTest.deactivate();
+
+        for (File index : directory.listFiles((d, name) -> name.endsWith(DiskCacheSegment.INDEX_EXTENSION))) {
+            assertTrue(index.delete());
+        }
+
+        DiskHttpCacheStoreImpl restarted = restart();
+        assertEquals("a", body(restarted.getIfPresent(key)));
+        assertEquals(1, directory.list((d, name) -> name.endsWith(DiskCacheSegment.INDEX_EXTENSION)).length);
+    }
+
+    @Test
+    public void test_rollover_and_eviction() throws Exception {
+        // 4 segments of 1MB; write 6MB of responses.
+        String body = StringUtils.repeat("x", 300 * 1024);
+        for (int i = 0; i < 20; i++) {
+            systemUnderTest.put(new TestCacheKey("/content/" + i), content(body + i));
+        }
+
+        assertTrue(directory.list((d, name) -> name.endsWith(DiskCacheSegment.DATA_EXTENSION)).length <= 4);
+        assertFalse("oldest entries are evicted", systemUnderTest.contains(new TestCacheKey("/content/0")));
+        assertEquals(body + 19, body(systemUnderTest.getIfPresent(new TestCacheKey("/content/19"))));
+        assertTrue(systemUnderTest.size() < 20);
+    }
+
+    @Test
+    public void test_response_larger_than_segment_not_cached() throws Exception {
+        CacheKey key = new TestCacheKey("/content/huge");
+        systemUnderTest.put(new TestCacheKey("/content/a"), content("a"));
+        systemUnderTest.put(key, content(StringUtils.repeat("x", 2 * 1024 * 1024)));
+
+        assertFalse(systemUnderTest.contains(key));
+        assertEquals("a", body(systemUnderTest.getIfPresent(new TestCacheKey("/content/a"))));
+    }
+
+    @Test
+    public void test_expired_entry_not_served() throws Exception {
+        CacheKey key = new TestCacheKey("/content/a", 1L);
+        systemUnderTest.put(key, content("a"));
+        Thread.sleep(5L);
+
+        assertFalse(systemUnderTest.contains(key));
+        assertNull(systemUnderTest.getIfPresent(key));
+    }
+
+    @Test
+    public void test_temp_sink() throws Exception {
+        TempSink sink = systemUnderTest.createTempSink();
+        try (OutputStream out = sink.createOutputStream()) {
+            out.write("sink".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals(4, sink.length());
+        try (InputStream in = sink.createInputStream()) {
+            assertEquals("sink", IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+        assertEquals(-1, sink.length());
+    }
+
+    private static class TestCacheKey implements CacheKey {
+        private final String uri;
+        private final long expiry;
+
+        TestCacheKey(String uri) {
+            this(uri, -1L);
+        }
+
+        TestCacheKey(String uri, long expiry) {
+            this.uri = uri;
+            this.expiry = expiry;
+        }
+
+        @Override
+        public String getUri() {
+            return uri;
+        }
+
+        @Override
+        public String getHierarchyResourcePath() {
+            return uri;
+        }
+
+        @Override
+        public long getExpiryForCreation() {
+            return expiry;
+        }
+
+        @Override
+        public boolean isInvalidatedBy(CacheKey cacheKey) {
+            return StringUtils.equals(uri, cacheKey.getHierarchyResourcePath());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TestCacheKey && StringUtils.equals(uri, ((TestCacheKey) o).uri);
+        }
+
+        @Override
+        public int hashCode() {
+            return uri.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return uri;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.jcr.impl.handler;
+
+import com.adobe.acs.commons.httpcache.engine.CacheContent;
+import com.adobe.acs.commons.httpcache.store.jcr.impl.JCRHttpCacheStoreConstants;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EntryNodeToCacheContentHandlerTest {
+
+    @Test
+    public void test_only_the_served_variant_is_opened() throws Exception {
+        final Binary gzip = binary("gzipped");
+        final Binary br = binary("brotli");
+        final Node encodedContents = mock(Node.class);
+        final PropertyIterator encodedProperties = properties(property("gzip", gzip), property("br", br));
+        when(encodedContents.getProperties()).thenReturn(encodedProperties);
+
+        final Node entryNode = mock(Node.class);
+        final PropertyIterator entryProperties = properties();
+        when(entryNode.getProperties()).thenReturn(entryProperties);
+        when(entryNode.hasNode(JCRHttpCacheStoreConstants.PATH_ENCODED_CONTENTS)).thenReturn(true);
+        when(entryNode.getNode(JCRHttpCacheStoreConstants.PATH_ENCODED_CONTENTS)).thenReturn(encodedContents);
+
+        final CacheContent content = new EntryNodeToCacheContentHandler(entryNode).get();
+
+        assertEquals(Arrays.asList("gzip", "br"), Arrays.asList(content.getEncodings().toArray()));
+        verify(gzip, never()).getStream();
+        verify(br, never()).getStream();
+
+        try (InputStream in = content.getEncodedInputDataStream("gzip")) {
+            assertEquals("gzipped", IOUtils.toString(in, "UTF-8"));
+        }
+        verify(gzip, times(1)).getStream();
+        verify(br, never()).getStream();
+    }
+
+    private static Binary binary(String content) throws Exception {
+        final Binary binary = mock(Binary.class);
+        when(binary.getStream()).thenReturn(new ByteArrayInputStream(content.getBytes("UTF-8")));
+        return binary;
+    }
+
+    private static Property property(String name, Binary binary) throws Exception {
+        final Property property = mock(Property.class);
+        when(property.getName()).thenReturn(name);
+        when(property.getBinary()).thenReturn(binary);
+        return property;
+    }
+
+    private static PropertyIterator properties(Property... properties) {
+        final PropertyIterator iterator = mock(PropertyIterator.class);
+        final int[] next = {0};
+        when(iterator.hasNext()).thenAnswer(invocation -> next[0] < properties.length);
+        when(iterator.nextProperty()).thenAnswer(invocation -> properties[next[0]++]);
+        return iterator;
+    }
+}
@@ -21,6 +21,7 @@ package com.adobe.acs.commons.httpcache.store.jcr.impl.mock;
 
 import com.adobe.acs.commons.functions.CheckedConsumer;
 import com.adobe.acs.commons.functions.CheckedFunction;
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
 import com.adobe.acs.commons.httpcache.engine.CacheContent;
 import com.adobe.acs.commons.httpcache.keys.CacheKey;
 import com.adobe.acs.commons.httpcache.store.jcr.impl.CacheKeyMock;
@@ -46,6 +47,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.powermock.api.mockito.PowerMockito.*;
 
 public class JCRHttpCacheStoreMocks {
@@ -121,6 +123,7 @@ public class JCRHttpCacheStoreMocks {
         store.activate(mockedConfig);
 
         doCallRealMethod().when(store).put(cacheKey, cacheContent);
+        doCallRealMethod().when(store).put(eq(cacheKey), eq(cacheContent), any(HttpCacheConfig.class));
         doCallRealMethod().when(store).contains(cacheKey);
         doCallRealMethod().when(store).invalidate(cacheKey);
         doCallRealMethod().when(store).clearCache();
@@ -142,8 +145,8 @@ public class JCRHttpCacheStoreMocks {
 
     private void mockEntryNodeWriter() throws Exception {
         whenNew(EntryNodeWriter.class)
-                .withParameterTypes(Session.class, Node.class, CacheKey.class, CacheContent.class, long.class)
-                .withArguments(any(Session.class), any(Node.class), any(CacheKey.class), any(CacheContent.class), any(long.class))
+                .withParameterTypes(Session.class, Node.class, CacheKey.class, CacheContent.class, long.class, List.class)
+                .withArguments(any(Session.class), any(Node.class), any(CacheKey.class), any(CacheContent.class), any(long.class), any(List.class))
                 .thenReturn(entryNodeWriter);
     }
 
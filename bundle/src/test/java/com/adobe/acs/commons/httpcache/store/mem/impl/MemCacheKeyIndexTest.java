@@ -0,0 +1,166 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.mem.impl;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.config.impl.keys.ResourcePathCacheKey;
+import com.adobe.acs.commons.httpcache.exception.HttpCacheKeyCreationException;
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MemCacheKeyIndexTest {
+
+    @Mock
+    private HttpCacheConfig config;
+
+    @Mock
+    private HttpCacheConfig otherConfig;
+
+    private MemCacheKeyIndex<Object> index;
+
+    @Before
+    public void setUp() {
+        index = new MemCacheKeyIndex<>();
+    }
+
+    private CacheKey key(String uri) throws HttpCacheKeyCreationException {
+        return new ResourcePathCacheKey(uri, config);
+    }
+
+    @Test
+    public void test_invalidation_candidates_by_path() throws HttpCacheKeyCreationException {
+        CacheKey page = key("/content/a.html");
+        CacheKey component = key("/content/a/jcr:content/par.html");
+        CacheKey other = key("/content/b.html");
+        index.add(page, new Object(), config);
+        index.add(component, new Object(), config);
+        index.add(other, new Object(), config);
+
+        Collection<CacheKey> candidates = index.getInvalidationCandidates(key("/content/a/jcr:content.html"));
+
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.contains(page));
+        assertTrue(candidates.contains(component));
+    }
+
+    @Test
+    public void test_invalidated_keys_of_a_batch() throws HttpCacheKeyCreationException {
+        CacheKey page = key("/content/a.html");
+        CacheKey component = key("/content/a/jcr:content/par.html");
+        CacheKey other = key("/content/b.html");
+        CacheKey untouched = key("/content/c.html");
+        CacheKey custom = mock(CacheKey.class);
+        CacheKey invalidationKey = key("/content/b/jcr:content.html");
+        when(custom.isInvalidatedBy(invalidationKey)).thenReturn(true);
+        index.add(page, new Object(), config);
+        index.add(component, new Object(), config);
+        index.add(other, new Object(), config);
+        index.add(untouched, new Object(), config);
+        index.add(custom, new Object(), null);
+
+        Set<CacheKey> invalidated = index.getInvalidatedKeys(Arrays.asList(key("/content/a/jcr:content.html"),
+                key("/content/a/jcr:content/par.html"), invalidationKey));
+
+        assertEquals(new HashSet<>(Arrays.asList(page, component, other, custom)), invalidated);
+    }
+
+    @Test
+    public void test_unindexable_keys_always_candidates() throws HttpCacheKeyCreationException {
+        CacheKey custom = mock(CacheKey.class);
+        index.add(custom, new Object(), null);
+
+        assertTrue(index.getInvalidationCandidates(key("/content/a.html")).contains(custom));
+        assertNull(index.getOwner(custom));
+    }
+
+    @Test
+    public void test_keys_by_config() throws HttpCacheKeyCreationException {
+        CacheKey page = key("/content/a.html");
+        CacheKey other = key("/content/b.html");
+        index.add(page, new Object(), config);
+        index.add(other, new Object(), otherConfig);
+
+        assertEquals(config, index.getOwner(page));
+        assertEquals(otherConfig, index.getOwner(other));
+    }
+
+    @Test
+    public void test_keys_owned_by_config() throws HttpCacheKeyCreationException {
+        CacheKey page = key("/content/a.html");
+        CacheKey other = key("/content/b.html");
+        CacheKey custom = mock(CacheKey.class);
+        Object value = new Object();
+        index.add(page, value, config);
+        index.add(other, new Object(), otherConfig);
+        index.add(custom, new Object(), null);
+
+        assertEquals(Collections.singleton(page), index.getKeysOwnedBy(config));
+        assertEquals(Collections.singleton(other), index.getKeysOwnedBy(otherConfig));
+        assertEquals(Collections.singleton(custom), index.getKeysWithoutOwner());
+
+        index.remove(page, value);
+        assertTrue(index.getKeysOwnedBy(config).isEmpty());
+    }
+
+    @Test
+    public void test_remove() throws HttpCacheKeyCreationException {
+        CacheKey page = key("/content/a.html");
+        Object value = new Object();
+        index.add(page, value, config);
+
+        index.remove(page, value);
+
+        assertEquals(0, index.size());
+        assertTrue(index.getInvalidationCandidates(page).isEmpty());
+        assertNull(index.getOwner(page));
+    }
+
+    @Test
+    public void test_stale_remove_keeps_replaced_key() throws HttpCacheKeyCreationException {
+        CacheKey page = key("/content/a.html");
+        Object first = new Object();
+        index.add(page, first, config);
+        index.add(page, new Object(), otherConfig);
+
+        // Removal notification for the replaced value arriving late.
+        index.remove(page, first);
+
+        assertEquals(1, index.size());
+        assertTrue(index.getInvalidationCandidates(page).contains(page));
+        assertEquals(otherConfig, index.getOwner(page));
+    }
+}
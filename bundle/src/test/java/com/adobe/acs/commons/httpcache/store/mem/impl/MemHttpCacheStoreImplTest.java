@@ -20,12 +20,14 @@
 package com.adobe.acs.commons.httpcache.store.mem.impl;
 
 import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.config.impl.keys.ResourcePathCacheKey;
 import com.adobe.acs.commons.httpcache.engine.CacheContent;
 import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheKeyCreationException;
 import com.adobe.acs.commons.httpcache.keys.CacheKey;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -39,14 +41,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.annotation.Annotation;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -166,4 +174,84 @@ public class MemHttpCacheStoreImplTest {
         TabularData data = systemUnderTest.getCacheStats();
         assertEquals(12, data.size());
     }
+
+    @Test
+    public void test_remove_by_path_only_touches_matching_entries() throws HttpCacheDataStreamException, HttpCacheKeyCreationException {
+        HttpCacheConfig config = mock(HttpCacheConfig.class);
+        CacheKey page = new ResourcePathCacheKey("/content/a.html", config);
+        CacheKey other = new ResourcePathCacheKey("/content/b.html", config);
+        systemUnderTest.put(page, content());
+        systemUnderTest.put(other, content());
+
+        systemUnderTest.invalidate(new ResourcePathCacheKey("/content/a/jcr:content.html", config));
+
+        assertFalse("doesn't contain entry we just removed", systemUnderTest.contains(page));
+        assertTrue("keeps entry of another page", systemUnderTest.contains(other));
+    }
+
+    @Test
+    public void test_remove_batch_of_keys() throws HttpCacheDataStreamException, HttpCacheKeyCreationException {
+        HttpCacheConfig config = mock(HttpCacheConfig.class);
+        CacheKey page = new ResourcePathCacheKey("/content/a.html", config);
+        CacheKey other = new ResourcePathCacheKey("/content/b.html", config);
+        CacheKey untouched = new ResourcePathCacheKey("/content/c.html", config);
+        systemUnderTest.put(page, content());
+        systemUnderTest.put(other, content());
+        systemUnderTest.put(untouched, content());
+
+        systemUnderTest.invalidate(Arrays.asList(new ResourcePathCacheKey("/content/a/jcr:content.html", config),
+                new ResourcePathCacheKey("/content/b/jcr:content/par.html", config)));
+
+        assertFalse("doesn't contain first entry of the batch", systemUnderTest.contains(page));
+        assertFalse("doesn't contain second entry of the batch", systemUnderTest.contains(other));
+        assertTrue("keeps entry outside of the batch", systemUnderTest.contains(untouched));
+    }
+
+    @Test
+    public void test_remove_by_cacheconfig_leaves_other_configs_untouched() throws HttpCacheDataStreamException, HttpCacheKeyCreationException {
+        HttpCacheConfig config = mock(HttpCacheConfig.class);
+        HttpCacheConfig otherConfig = mock(HttpCacheConfig.class);
+        CacheKey page = new ResourcePathCacheKey("/content/a.html", config);
+        CacheKey other = new ResourcePathCacheKey("/content/b.html", otherConfig);
+        when(config.knows(any(CacheKey.class))).thenReturn(true);
+        systemUnderTest.put(page, content(), config);
+        systemUnderTest.put(other, content(), otherConfig);
+
+        systemUnderTest.invalidate(config);
+
+        assertFalse("doesn't contain entry of the invalidated config", systemUnderTest.contains(page));
+        assertTrue("keeps entry of the other config", systemUnderTest.contains(other));
+        verify(config, never()).knows(other);
+    }
+
+    @Test
+    public void test_put_with_precompressed_variants() throws Exception {
+        HttpCacheConfig config = mock(HttpCacheConfig.class);
+        when(config.getPrecompressedEncodings()).thenReturn(Arrays.asList("gzip", "deflate"));
+        CacheKey key = mock(CacheKey.class);
+        String expectedContentString = StringUtils.repeat("<p>cached content</p>", 100);
+        CacheContent content = mock(CacheContent.class);
+        when(content.getInputDataStream()).thenReturn(IOUtils.toInputStream(expectedContentString, StandardCharsets.UTF_8));
+        systemUnderTest.put(key, content, config);
+
+        CacheContent retrievedContent = systemUnderTest.getIfPresent(key);
+
+        assertEquals(Arrays.asList("gzip", "deflate"), new ArrayList<>(retrievedContent.getEncodings()));
+        assertEquals(expectedContentString, IOUtils.toString(
+                new GZIPInputStream(retrievedContent.getEncodedInputDataStream("gzip")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test_put_without_precompressed_variants() throws Exception {
+        CacheKey key = mock(CacheKey.class);
+        systemUnderTest.put(key, content(), mock(HttpCacheConfig.class));
+
+        assertTrue(systemUnderTest.getIfPresent(key).getEncodings().isEmpty());
+    }
+
+    private CacheContent content() {
+        CacheContent content = mock(CacheContent.class);
+        when(content.getInputDataStream()).thenReturn(getClass().getResourceAsStream("cachecontent.html"));
+        return content;
+    }
 }
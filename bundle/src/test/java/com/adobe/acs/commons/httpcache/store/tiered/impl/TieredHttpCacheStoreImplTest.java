@@ -0,0 +1,270 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.tiered.impl;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.engine.CacheContent;
+import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TieredHttpCacheStoreImplTest {
+
+    private static final int ENTRY_SIZE = 400 * 1024;
+
+    @Mock
+    private HttpCacheStore lowerTier;
+
+    @Mock
+    private HttpCacheConfig config;
+
+    private TieredHttpCacheStoreImpl systemUnderTest;
+
+    @Before
+    public void setUp() throws Exception {
+        systemUnderTest = new TieredHttpCacheStoreImpl(-1L, 1L, lowerTier, 1);
+    }
+
+    @After
+    public void tearDown() {
+        systemUnderTest.close();
+    }
+
+    @Test
+    public void test_upper_tier_hit() throws Exception {
+        CacheKey key = mock(CacheKey.class);
+        systemUnderTest.put(key, content("hello"), config);
+
+        assertTrue(systemUnderTest.contains(key));
+        assertEquals("hello", read(systemUnderTest.getIfPresent(key)));
+        verify(lowerTier, never()).getIfPresent(key);
+    }
+
+    @Test
+    public void test_evicted_entries_demoted() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            systemUnderTest.put(mock(CacheKey.class), content(new String(new char[ENTRY_SIZE])), config);
+        }
+
+        verify(lowerTier, timeout(5000).atLeastOnce())
+                .put(any(CacheKey.class), any(CacheContent.class), any(HttpCacheConfig.class));
+    }
+
+    @Test
+    public void test_lower_tier_hit_promoted() throws Exception {
+        CacheKey key = mock(CacheKey.class);
+        when(lowerTier.contains(key)).thenReturn(true);
+        when(lowerTier.getIfPresent(key)).thenAnswer(invocation -> content("from lower tier"));
+
+        assertTrue(systemUnderTest.contains(key));
+        assertEquals("from lower tier", read(systemUnderTest.getIfPresent(key)));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (systemUnderTest.getPromotedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5L);
+        }
+        assertTrue(systemUnderTest.getUpperTier().contains(key));
+        assertEquals(1, systemUnderTest.getLowerTierHitCount());
+        assertEquals(1, systemUnderTest.getPromotedCount());
+    }
+
+    @Test
+    public void test_invalidation_reaches_both_tiers() throws Exception {
+        CacheKey key = mock(CacheKey.class);
+        CacheKey invalidationKey = mock(CacheKey.class);
+        when(key.isInvalidatedBy(invalidationKey)).thenReturn(true);
+        systemUnderTest.put(key, content("hello"), config);
+
+        systemUnderTest.invalidate(invalidationKey);
+
+        assertFalse(systemUnderTest.getUpperTier().contains(key));
+        verify(lowerTier).invalidate(invalidationKey);
+
+        systemUnderTest.invalidate(config);
+        verify(lowerTier).invalidate(config);
+        systemUnderTest.invalidateAll();
+        verify(lowerTier).invalidateAll();
+    }
+
+    @Test
+    public void test_demotion_rolled_back_by_invalidation_of_its_key() throws Exception {
+        final CacheKey invalidationKey = mock(CacheKey.class);
+        final List<CacheKey> demotedKeys = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            final CacheKey demotedKey = (CacheKey) invocation.getArguments()[0];
+            demotedKeys.add(demotedKey);
+            when(demotedKey.isInvalidatedBy(invalidationKey)).thenReturn(true);
+            systemUnderTest.invalidate(invalidationKey);
+            return null;
+        }).when(lowerTier).put(any(CacheKey.class), any(CacheContent.class), any(HttpCacheConfig.class));
+
+        for (int i = 0; i < 4; i++) {
+            systemUnderTest.put(mock(CacheKey.class), content(new String(new char[ENTRY_SIZE])), config);
+        }
+
+        verify(lowerTier, timeout(5000).atLeastOnce()).remove(any(CacheKey.class));
+        verify(lowerTier).remove(demotedKeys.get(0));
+    }
+
+    @Test
+    public void test_demotion_kept_on_unrelated_invalidation() throws Exception {
+        final CacheKey unrelatedKey = mock(CacheKey.class);
+        // Stubbed upfront, as stubbing the mock while the transfer worker calls it is not thread-safe.
+        final CacheKey promotedKey = mock(CacheKey.class);
+        when(lowerTier.getIfPresent(promotedKey)).thenAnswer(invocation -> content("from lower tier"));
+        final CountDownLatch demoted = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            systemUnderTest.invalidate(unrelatedKey);
+            demoted.countDown();
+            return null;
+        }).when(lowerTier).put(any(CacheKey.class), any(CacheContent.class), any(HttpCacheConfig.class));
+
+        for (int i = 0; i < 4; i++) {
+            systemUnderTest.put(mock(CacheKey.class), content(new String(new char[ENTRY_SIZE])), config);
+        }
+
+        assertTrue(demoted.await(5, TimeUnit.SECONDS));
+        // The single transfer worker promotes this key once the demotions are done.
+        systemUnderTest.getIfPresent(promotedKey);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (systemUnderTest.getPromotedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5L);
+        }
+        assertEquals(1, systemUnderTest.getPromotedCount());
+        verify(lowerTier, never()).remove(any(CacheKey.class));
+    }
+
+    @Test
+    public void test_entries_keep_their_expiry_across_tiers() throws Exception {
+        // The lower tier holds what got demoted to it, until removed.
+        final List<CacheKey> demotedKeys = new CopyOnWriteArrayList<>();
+        final Set<CacheKey> removedKeys = ConcurrentHashMap.newKeySet();
+        final Predicate<Object> held = key -> demotedKeys.contains(key) && !removedKeys.contains(key);
+        doAnswer(invocation -> demotedKeys.add((CacheKey) invocation.getArguments()[0]))
+                .when(lowerTier).put(any(CacheKey.class), any(CacheContent.class), any(HttpCacheConfig.class));
+        doAnswer(invocation -> removedKeys.add((CacheKey) invocation.getArguments()[0]))
+                .when(lowerTier).remove(any(CacheKey.class));
+        when(lowerTier.contains(any(CacheKey.class))).thenAnswer(invocation -> held.test(invocation.getArguments()[0]));
+        when(lowerTier.getIfPresent(any(CacheKey.class))).thenAnswer(invocation ->
+                held.test(invocation.getArguments()[0]) ? content("from lower tier") : null);
+
+        final long expiresOn = System.currentTimeMillis() + 1500L;
+        for (int i = 0; i < 4; i++) {
+            CacheKey key = mock(CacheKey.class);
+            when(key.getExpiryForCreation()).thenReturn(1500L);
+            systemUnderTest.put(key, content(new String(new char[ENTRY_SIZE])), config);
+        }
+        verify(lowerTier, timeout(5000).atLeastOnce())
+                .put(any(CacheKey.class), any(CacheContent.class), any(HttpCacheConfig.class));
+
+        final CacheKey key = demotedKeys.get(0);
+        assertEquals("from lower tier", read(systemUnderTest.getIfPresent(key, config)));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (systemUnderTest.getPromotedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5L);
+        }
+        assertTrue(systemUnderTest.getUpperTier().contains(key));
+
+        Thread.sleep(Math.max(0L, expiresOn + 100L - System.currentTimeMillis()));
+
+        assertFalse("promoted entry expires with its original expiry", systemUnderTest.getUpperTier().contains(key));
+        assertFalse("expired copy of the lower tier is skipped", systemUnderTest.contains(key));
+        assertNull(systemUnderTest.getIfPresent(key, config));
+        verify(lowerTier, timeout(5000)).remove(key);
+    }
+
+    @Test
+    public void test_promoted_content_stream_closed() throws Exception {
+        CacheKey key = mock(CacheKey.class);
+        final AtomicBoolean closed = new AtomicBoolean();
+        when(lowerTier.getIfPresent(key)).thenAnswer(invocation -> content("from lower tier", closed));
+
+        read(systemUnderTest.getIfPresent(key, config));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (systemUnderTest.getPromotedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5L);
+        }
+        assertEquals(1, systemUnderTest.getPromotedCount());
+        assertTrue(closed.get());
+    }
+
+    @Test
+    public void test_store_type() {
+        assertEquals(HttpCacheStore.VALUE_TIERED_CACHE_STORE_TYPE, systemUnderTest.getStoreType());
+        assertNotNull(systemUnderTest.createTempSink());
+    }
+
+    private static CacheContent content(String body) {
+        return new CacheContent(200, "UTF-8", "text/html", new HashMap<>(),
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+                HttpCacheServletResponseWrapper.ResponseWriteMethod.PRINTWRITER);
+    }
+
+    private static CacheContent content(String body, AtomicBoolean closed) {
+        return new CacheContent(200, "UTF-8", "text/html", new HashMap<>(),
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)) {
+                    @Override
+                    public void close() throws IOException {
+                        closed.set(true);
+                        super.close();
+                    }
+                },
+                HttpCacheServletResponseWrapper.ResponseWriteMethod.PRINTWRITER);
+    }
+
+    private static String read(CacheContent content) throws Exception {
+        return IOUtils.toString(content.getInputDataStream(), StandardCharsets.UTF_8);
+    }
+}
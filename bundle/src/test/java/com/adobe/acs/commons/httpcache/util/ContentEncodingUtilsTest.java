@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.util;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentEncodingUtilsTest {
+
+    private static final List<String> AVAILABLE = Arrays.asList(ContentEncodingUtils.GZIP, ContentEncodingUtils.DEFLATE);
+
+    @Test
+    public void test_encode_roundtrip() throws Exception {
+        byte[] bytes = StringUtils.repeat("<p>Lorem ipsum</p>", 100).getBytes(StandardCharsets.UTF_8);
+
+        byte[] gzip = ContentEncodingUtils.encode(bytes, ContentEncodingUtils.GZIP);
+        byte[] deflate = ContentEncodingUtils.encode(new ByteArrayInputStream(bytes), bytes.length, ContentEncodingUtils.DEFLATE);
+
+        assertArrayEquals(bytes, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gzip))));
+        assertArrayEquals(bytes, IOUtils.toByteArray(new InflaterInputStream(new ByteArrayInputStream(deflate))));
+    }
+
+    @Test
+    public void test_encode_skipped_when_not_smaller() throws Exception {
+        assertNull(ContentEncodingUtils.encode("a".getBytes(StandardCharsets.UTF_8), ContentEncodingUtils.GZIP));
+    }
+
+    @Test
+    public void test_select_encoding() {
+        assertEquals("gzip", ContentEncodingUtils.selectEncoding("gzip, deflate, br", AVAILABLE));
+        assertEquals("deflate", ContentEncodingUtils.selectEncoding("gzip;q=0.5, deflate", AVAILABLE));
+        assertEquals("deflate", ContentEncodingUtils.selectEncoding("DEFLATE", AVAILABLE));
+        assertEquals("gzip", ContentEncodingUtils.selectEncoding("*", AVAILABLE));
+        assertEquals("deflate", ContentEncodingUtils.selectEncoding("*;q=0.1, gzip;q=0", AVAILABLE));
+    }
+
+    @Test
+    public void test_select_identity() {
+        assertNull(ContentEncodingUtils.selectEncoding(null, AVAILABLE));
+        assertNull(ContentEncodingUtils.selectEncoding("br", AVAILABLE));
+        assertNull(ContentEncodingUtils.selectEncoding("gzip;q=0", AVAILABLE));
+        assertNull(ContentEncodingUtils.selectEncoding("gzip;q=0.5, identity", AVAILABLE));
+        assertNull(ContentEncodingUtils.selectEncoding("gzip", Collections.emptyList()));
+        assertNull(ContentEncodingUtils.selectEncoding("gzip;q=abc", AVAILABLE));
+    }
+
+    @Test
+    public void test_is_encodable() {
+        Map<String, List<String>> headers = new HashMap<>();
+        assertTrue(ContentEncodingUtils.isEncodable(headers));
+
+        headers.put("content-encoding", Collections.singletonList("identity"));
+        assertTrue(ContentEncodingUtils.isEncodable(headers));
+
+        headers.put("content-encoding", Collections.singletonList("gzip"));
+        assertFalse(ContentEncodingUtils.isEncodable(headers));
+    }
+}
@@ -22,19 +22,31 @@ package com.adobe.acs.commons.images.impl;
 
 import com.adobe.acs.commons.images.ImageTransformer;
 import com.adobe.acs.commons.images.NamedImageTransformer;
+import com.day.cq.wcm.foundation.Image;
 import com.day.image.Layer;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.testing.sling.MockSlingHttpServletRequest;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
 
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +54,7 @@ import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
@@ -78,6 +91,9 @@ public class NamedTransformImageServletTest {
 
     private MockSlingHttpServletRequest mockRequest;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setUp() throws Exception {
         servlet = new NamedTransformImageServlet();
@@ -259,5 +275,59 @@ public class NamedTransformImageServletTest {
 
     }
 
+    @Test
+    public void test_getCacheKey() throws Exception {
+        final Calendar lastModified = Calendar.getInstance();
+        final Image image = mock(Image.class);
+        final Property data = mock(Property.class);
+        final Node binary = mock(Node.class);
+        when(image.getPath()).thenReturn("/content/page/jcr:content/image");
+        when(image.getLastModified()).thenReturn(lastModified);
+        when(image.getValueMap()).thenReturn(new ValueMapDecorator(new HashMap<String, Object>()));
+        when(image.getData()).thenReturn(data);
+        when(data.getPath()).thenReturn("/content/page/jcr:content/image/file/jcr:content/jcr:data");
+        when(data.getParent()).thenReturn(binary);
+        when(data.getLength()).thenReturn(100L);
+
+        List<NamedImageTransformer> selectedNamedImageTransformers = new ArrayList<NamedImageTransformer>();
+        selectedNamedImageTransformers.add(featureImageTransformer);
+        selectedNamedImageTransformers.add(smallImageTransformer);
+        final ValueMap transforms = servlet.getImageTransformersWithParams(selectedNamedImageTransformers);
+
+        final String key = servlet.getCacheKey(image, "image/png", transforms, .82D, false);
+        assertEquals(key, servlet.getCacheKey(image, "image/png",
+                servlet.getImageTransformersWithParams(selectedNamedImageTransformers), .82D, false));
+        assertNotEquals(key, servlet.getCacheKey(image, "image/jpeg", transforms, .82D, false));
+        assertNotEquals(key, servlet.getCacheKey(image, "image/png", transforms, .5D, false));
+
+        final ValueMap resize = new ValueMapDecorator(new HashMap<String, Object>());
+        resize.put("width", "20");
+        transforms.put(IMAGE_TRANSFORM_RESIZE, resize);
+        assertNotEquals(key, servlet.getCacheKey(image, "image/png", transforms, .82D, false));
+
+        when(data.getLength()).thenReturn(200L);
+        assertNotEquals(key, servlet.getCacheKey(image, "image/png",
+                servlet.getImageTransformersWithParams(selectedNamedImageTransformers), .82D, false));
+    }
+
+    @Test
+    public void testEventHandlerOnlyRegisteredWithCache() throws Exception {
+        BundleContext bundleContext = mock(BundleContext.class);
+        when(bundleContext.getDataFile(any(String.class))).thenReturn(folder.getRoot());
+        Map<String, Object> properties = new HashMap<>();
+
+        servlet.activate(bundleContext, properties);
+        servlet.deactivate();
+        verify(bundleContext, never()).registerService(eq(EventHandler.class), any(EventHandler.class), any(Dictionary.class));
+
+        properties.put("cache.size", 10);
+        properties.put("cache.paths", new String[]{"/content/dam"});
+        servlet.activate(bundleContext, properties);
+        ArgumentCaptor<Dictionary> eventHandlerProps = ArgumentCaptor.forClass(Dictionary.class);
+        verify(bundleContext).registerService(eq(EventHandler.class), eq(servlet), eventHandlerProps.capture());
+        assertEquals("(|(path=/content/dam)(path=/content/dam/*))", eventHandlerProps.getValue().get(EventConstants.EVENT_FILTER));
+        servlet.deactivate();
+    }
+
     /* Testing for resolveImage requires too much orchestration/mocking to be useful */
 }
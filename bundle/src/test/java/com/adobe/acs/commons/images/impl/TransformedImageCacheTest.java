@@ -0,0 +1,276 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.images.impl;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransformedImageCacheTest {
+
+    private static final String ASSET = "/content/dam/image.jpg";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    private TransformedImageCache cache;
+
+    private final AtomicInteger renders = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(folder.getRoot(), "cache");
+        cache = new TransformedImageCache(directory, 10);
+    }
+
+    private String open(String key, String path, String content) throws IOException {
+        try (InputStream in = cache.open(key, Collections.singletonList(path), out -> {
+            renders.incrementAndGet();
+            out.write(content.getBytes("UTF-8"));
+            return true;
+        })) {
+            return in == null ? null : IOUtils.toString(in, "UTF-8");
+        }
+    }
+
+    @Test
+    public void testRendersOnce() throws Exception {
+        assertEquals("abc", open("small", ASSET, "abc"));
+        assertEquals("abc", open("small", ASSET, "xyz"));
+        assertEquals(1, renders.get());
+        assertEquals(3, cache.getSize());
+        assertEquals(1, cache.getEntryCount());
+    }
+
+    @Test
+    public void testNothingRendered() throws Exception {
+        try (InputStream in = cache.open("small", Collections.singletonList(ASSET), out -> false)) {
+            assertNull(in);
+        }
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        open("a", ASSET, "1234");
+        open("b", ASSET, "1234");
+        // a is now used more recently than b
+        open("a", ASSET, "1234");
+        open("c", ASSET, "1234");
+
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(8, cache.getSize());
+        assertEquals(2, directory.list().length);
+        open("a", ASSET, "1234");
+        open("c", ASSET, "1234");
+        assertEquals(3, renders.get());
+        open("b", ASSET, "1234");
+        assertEquals(4, renders.get());
+    }
+
+    @Test
+    public void testLargerThanCache() throws Exception {
+        assertEquals("0123456789abc", open("large", ASSET, "0123456789abc"));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        open("asset", ASSET, "1");
+        open("rendition", ASSET + "/jcr:content/renditions/original/jcr:content", "2");
+        open("other", "/content/dam/image.jpg2", "3");
+
+        // a change below the asset drops what was rendered from the asset itself
+        cache.invalidate(ASSET + "/jcr:content/metadata");
+        assertEquals(2, cache.getEntryCount());
+
+        // a change to the asset drops what was rendered from below it
+        cache.invalidate(ASSET);
+        assertEquals(1, cache.getEntryCount());
+
+        open("other", "/content/dam/image.jpg2", "3");
+        assertEquals(3, renders.get());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        open("a", ASSET, "1");
+        open("b", ASSET, "2");
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void testDirectoryIsEmptiedOnStart() throws Exception {
+        open("a", ASSET, "1");
+        cache = new TransformedImageCache(directory, 10);
+        assertEquals(0, directory.list().length);
+        open("a", ASSET, "1");
+        assertEquals(2, renders.get());
+    }
+
+    @Test
+    public void testConcurrentRequestsAreCoalesced() throws Exception {
+        final CountDownLatch rendering = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<String> first = executor.submit(() -> {
+                try (InputStream in = cache.open("small", Collections.singletonList(ASSET), out -> {
+                    renders.incrementAndGet();
+                    rendering.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    out.write("abc".getBytes("UTF-8"));
+                    return true;
+                })) {
+                    return IOUtils.toString(in, "UTF-8");
+                }
+            });
+            assertTrue(rendering.await(5, TimeUnit.SECONDS));
+            final Future<String> second = executor.submit(() -> open("small", ASSET, "xyz"));
+            Thread.sleep(50);
+            assertFalse(second.isDone());
+            release.countDown();
+
+            assertEquals("abc", first.get(5, TimeUnit.SECONDS));
+            assertEquals("abc", second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, renders.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testHangingRenderingIsBypassed() throws Exception {
+        cache = new TransformedImageCache(directory, 10, 100);
+        final CountDownLatch rendering = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<String> first = executor.submit(() -> {
+                try (InputStream in = cache.open("small", Collections.singletonList(ASSET), out -> {
+                    rendering.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    out.write("abc".getBytes("UTF-8"));
+                    return true;
+                })) {
+                    return IOUtils.toString(in, "UTF-8");
+                }
+            });
+            assertTrue(rendering.await(5, TimeUnit.SECONDS));
+
+            assertEquals("rendered without waiting any longer", "xyz", open("small", ASSET, "xyz"));
+            assertFalse(first.isDone());
+            release.countDown();
+            assertEquals("abc", first.get(5, TimeUnit.SECONDS));
+            assertEquals("only the first rendering is cached", "abc", open("small", ASSET, "123"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedRenderingIsNotCached() throws Exception {
+        try (InputStream in = cache.open("small", Collections.singletonList(ASSET), out -> {
+            throw new IOException("broken image");
+        })) {
+            throw new AssertionError("expected the rendering to fail");
+        } catch (IOException e) {
+            assertEquals("broken image", e.getMessage());
+        }
+        assertEquals(0, directory.list().length);
+        assertEquals("abc", open("small", ASSET, "abc"));
+    }
+
+    @Test
+    public void testWaitersAreReleasedWhenRenderingFailsWithAnError() throws Exception {
+        final CountDownLatch rendering = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<String> first = executor.submit(() -> {
+                try (InputStream in = cache.open("small", Collections.singletonList(ASSET), out -> {
+                    rendering.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    throw new OutOfMemoryError("decoding");
+                })) {
+                    return IOUtils.toString(in, "UTF-8");
+                }
+            });
+            assertTrue(rendering.await(5, TimeUnit.SECONDS));
+            final Future<String> second = executor.submit(() -> open("small", ASSET, "xyz"));
+            Thread.sleep(50);
+            release.countDown();
+
+            try {
+                second.get(5, TimeUnit.SECONDS);
+                throw new AssertionError("expected the waiting request to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            try {
+                first.get(5, TimeUnit.SECONDS);
+                throw new AssertionError("expected the rendering to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof OutOfMemoryError);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals("abc", open("small", ASSET, "abc"));
+    }
+}
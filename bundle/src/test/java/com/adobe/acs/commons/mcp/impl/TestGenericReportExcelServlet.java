@@ -27,6 +27,7 @@ import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.apache.sling.resourcebuilder.api.ResourceBuilder;
 import org.apache.sling.testing.mock.sling.ResourceResolverType;
 import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import org.apache.sling.testing.mock.sling.servlet.MockRequestPathInfo;
 import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
 import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse;
 import org.junit.Rule;
@@ -35,11 +36,14 @@ import org.junit.Test;
 import java.io.ByteArrayInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TestGenericReportExcelServlet {
     @Rule
     public final SlingContext slingContext = new SlingContext(ResourceResolverType.RESOURCERESOLVER_MOCK);
     
+    private static final String REPORT_PATH = "/var/acs-commons/mcp/instances/junit/jcr:content/report";
+
     @Test
     public void testReport() throws Exception {
         int numRows = 10;
@@ -80,4 +84,55 @@ public class TestGenericReportExcelServlet {
         }
 
     }
+
+    @Test
+    public void testReportLargerThanRowWindow() throws Exception {
+        int numRows = ReportExport.ROW_ACCESS_WINDOW * 3 + 7;
+        buildReport(numRows);
+        MockSlingHttpServletRequest request = slingContext.request();
+        request.setResource(slingContext.resourceResolver().getResource(REPORT_PATH));
+        MockSlingHttpServletResponse response = slingContext.response();
+
+        new GenericReportExcelServlet().doGet(request, response);
+
+        Workbook wb = WorkbookFactory.create(new ByteArrayInputStream(response.getOutput()));
+        Sheet sh = wb.getSheetAt(0);
+        assertEquals(numRows, sh.getLastRowNum());
+        for (int i = 1; i <= numRows; i++) {
+            assertEquals("abcdef-" + i, sh.getRow(i).getCell(0).getStringCellValue());
+            assertEquals(i, (int) sh.getRow(i).getCell(1).getNumericCellValue());
+        }
+    }
+
+    @Test
+    public void testCsvReport() throws Exception {
+        buildReport(3);
+        MockSlingHttpServletRequest request = slingContext.request();
+        request.setResource(slingContext.resourceResolver().getResource(REPORT_PATH));
+        ((MockRequestPathInfo) request.getRequestPathInfo()).setExtension("csv");
+        MockSlingHttpServletResponse response = slingContext.response();
+
+        new GenericReportExcelServlet().doGet(request, response);
+
+        assertTrue(response.getContentType().startsWith("text/csv"));
+        String[] lines = response.getOutputAsString().trim().split("\\r?\\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].contains("Column A"));
+        assertTrue(lines[3].contains("abcdef-3"));
+        assertTrue(lines[3].contains("3"));
+    }
+
+    private void buildReport(int numRows) {
+        ResourceBuilder rb = slingContext.build()
+                .resource(REPORT_PATH,
+                        "columns", new String[]{"ColumnA", "ColumnB"},
+                        "name", "report",
+                        "sling:resourceType", "acs-commons/components/utilities/process-instance/process-generic-report")
+                .resource("rows");
+        rb.siblingsMode();
+        for (int i = 1; i <= numRows; i++) {
+            rb.resource("row-" + i, "ColumnA", "abcdef-" + i, "ColumnB", i);
+        }
+        slingContext.addModelsForClasses(GenericReport.class);
+    }
 }
@@ -30,6 +30,7 @@ import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 import com.jcraft.jsch.SftpException;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.resource.PersistenceException;
@@ -52,11 +53,19 @@ import javax.annotation.Nullable;
 import javax.jcr.RepositoryException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static com.adobe.acs.commons.mcp.impl.processes.asset.AssetIngestorUtil.*;
@@ -167,6 +176,20 @@ public class FileAssetIngestorTest {
     }
 
 
+    @Test
+    public void testVisitAllFilesSkipsEntriesNeitherFileNorFolder() throws Exception {
+        File image = addFile(tempDirectory, "image.png", "/img/test.png");
+        File folder1 = mkdir(tempDirectory, "folder1");
+        File nested = addFile(folder1, "image.png", "/img/test.png");
+        java.nio.file.Files.createSymbolicLink(new File(tempDirectory, "broken").toPath(),
+                new File(tempDirectory, "missing").toPath());
+
+        List<String> files = new ArrayList<>();
+        ingestor.new FileHierarchicalElement(tempDirectory).visitAllFiles(file -> files.add(file.getSourcePath()));
+
+        assertThat(files, containsInAnyOrder(image.getAbsolutePath(), nested.getAbsolutePath()));
+    }
+
     @Test
     public void testImportAssetsWithEmptyDirectory() throws Exception {
         ingestor.baseFolder = ingestor.getBaseFolder(ingestor.fileBasePath);
@@ -281,6 +304,56 @@ public class FileAssetIngestorTest {
                 containsInAnyOrder(tempDirectory.getAbsolutePath(), rootImage.getAbsolutePath()));
     }
 
+    @Test
+    public void testReplaceSkipsUnchangedFilesAndReportsDuplicates() throws Exception {
+        ingestor.baseFolder = ingestor.getBaseFolder(ingestor.fileBasePath);
+        ingestor.existingAssetAction = AssetIngestor.AssetAction.replace;
+        ingestor.skipUnchanged = true;
+        final File unchanged = addFile(tempDirectory, "a.png", "/img/test.png");
+        final File changed = addFile(tempDirectory, "b.png", "/img/test.png");
+        addFile(tempDirectory, "c.png", "/img/test.png");
+        markAsImported(unchanged, String.valueOf(unchanged.lastModified()));
+        markAsImported(changed, String.valueOf(changed.lastModified() - 1000));
+        when(assetManager.createAsset(anyString(), any(), anyString(), any(Boolean.class))).thenAnswer(invocation -> {
+            IOUtils.toByteArray((InputStream) invocation.getArguments()[1]);
+            return createdAsset;
+        });
+
+        ingestor.importAssets(actionManager);
+
+        verify(assetManager, times(2)).createAsset(assetPathCaptor.capture(), any(), any(), eq(false));
+        assertThat(assetPathCaptor.getAllValues(), containsInAnyOrder("/content/dam/b.png", "/content/dam/c.png"));
+        assertEquals(1, ingestor.getCount(ingestor.skippedFiles));
+        assertEquals(1, ingestor.getCount(ingestor.duplicateFiles));
+        assertEquals(1, ingestor.importedChecksums.size());
+    }
+
+    @Test
+    public void testReplaceReplacesUnchangedFilesByDefault() throws Exception {
+        ingestor.baseFolder = ingestor.getBaseFolder(ingestor.fileBasePath);
+        ingestor.existingAssetAction = AssetIngestor.AssetAction.replace;
+        final File unchanged = addFile(tempDirectory, "a.png", "/img/test.png");
+        markAsImported(unchanged, String.valueOf(unchanged.lastModified()));
+        when(assetManager.createAsset(anyString(), any(), anyString(), any(Boolean.class))).thenAnswer(invocation -> {
+            IOUtils.toByteArray((InputStream) invocation.getArguments()[1]);
+            return createdAsset;
+        });
+
+        ingestor.importAssets(actionManager);
+
+        verify(assetManager).createAsset(eq("/content/dam/a.png"), any(), any(), eq(false));
+        assertEquals(0, ingestor.getCount(ingestor.skippedFiles));
+    }
+
+    private void markAsImported(File file, String version) throws PersistenceException {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(AssetIngestor.PN_MIGRATED_FROM, file.getPath());
+        properties.put(AssetIngestor.PN_MIGRATED_SIZE, file.length());
+        properties.put(AssetIngestor.PN_MIGRATED_VERSION, version);
+        context.create().resource("/content/dam/" + file.getName() + "/jcr:content", properties);
+        context.resourceResolver().commit();
+    }
+
     private File mkdir(File dir, String name) {
         File newDir = new File(dir, name);
         newDir.mkdir();
@@ -332,6 +405,72 @@ public class FileAssetIngestorTest {
         assertEquals("Expected only two files", 2, count);
     }
 
+    @Test
+    public void testSftpWalkSharesPooledConnections() throws Exception {
+        configureSftpFields();
+        AtomicInteger connections = new AtomicInteger();
+        AtomicInteger listings = new AtomicInteger();
+        ingestor.sftpPool = new SftpConnectionPool(() -> {
+            connections.incrementAndGet();
+            ChannelSftp channel = mock(ChannelSftp.class);
+            when(channel.isConnected()).thenReturn(true);
+            when(channel.getSession()).thenReturn(mock(Session.class));
+            when(channel.ls(anyString())).thenAnswer(invocation -> {
+                listings.incrementAndGet();
+                switch ((String) invocation.getArguments()[0]) {
+                    case "/test/path":
+                        return new MockDirectoryBuilder().addDirectory(".").addDirectory("..")
+                                .addDirectory("a").addDirectory("b").addFile("file1.png", 1L).asVector();
+                    case "/test/path/a":
+                        return new MockDirectoryBuilder().addDirectory("c").addFile("file2.png", 2L).asVector();
+                    case "/test/path/b":
+                        return new MockDirectoryBuilder().addFile("file3.png", 3L).asVector();
+                    default:
+                        return new MockDirectoryBuilder().addFile("file4.png", 4L).asVector();
+                }
+            });
+            return channel;
+        }, 2);
+
+        FileAssetIngestor.SftpHierarchicalElement base = ingestor.new SftpHierarchicalElement(SFTP_HOST_TEST_PATH);
+        base.isFile = false;
+        base.retrieved = true;
+        List<String> files = new ArrayList<>();
+        base.visitAllFiles(file -> files.add(file.getItemName()));
+
+        assertThat(files, containsInAnyOrder("/test/path/file1.png", "/test/path/a/file2.png",
+                "/test/path/b/file3.png", "/test/path/a/c/file4.png"));
+        assertEquals("Every folder should be listed once", 4, listings.get());
+        assertTrue("Connections should be reused", connections.get() <= 2);
+    }
+
+    @Test
+    public void testSftpSourceReleasesConnectionBeforeRead() throws Exception {
+        configureSftpFields();
+        byte[] content = "sftp content".getBytes(StandardCharsets.UTF_8);
+        ChannelSftp channel = mock(ChannelSftp.class);
+        when(channel.isConnected()).thenReturn(true);
+        doAnswer(invocation -> {
+            ((OutputStream) invocation.getArguments()[1]).write(content);
+            return null;
+        }).when(channel).get(eq("/test/path"), any(OutputStream.class));
+        SftpConnectionPool pool = new SftpConnectionPool(() -> channel, 1);
+
+        FileAssetIngestor.SftpHierarchicalElement elem = ingestor.new SftpHierarchicalElement(SFTP_HOST_TEST_PATH);
+        FileAssetIngestor.SftpSource source = new FileAssetIngestor.SftpSource(content.length, pool, elem);
+        InputStream stream = source.getStream();
+
+        // The connection is back in the pool while the file is being read
+        assertSame(channel, pool.borrow());
+        pool.release(channel);
+        assertArrayEquals(content, IOUtils.toByteArray(stream));
+        File spool = source.spool;
+        assertTrue(spool.exists());
+        source.close();
+        assertFalse(spool.exists());
+        verify(channel, never()).disconnect();
+    }
+
     @Test
     public void testSftpUrlSupportsSpecialCharacters() throws UnsupportedEncodingException, URISyntaxException {
         configureSftpFields();
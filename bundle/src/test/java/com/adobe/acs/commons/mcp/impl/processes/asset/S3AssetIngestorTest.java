@@ -26,7 +26,10 @@ import com.amazonaws.auth.AnonymousAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.day.cq.dam.api.Asset;
 import com.day.cq.dam.api.AssetManager;
 import com.google.common.base.Function;
@@ -52,8 +55,12 @@ import org.mockito.stubbing.Answer;
 
 import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
 
 import static org.mockito.Mockito.*;
 import static org.junit.Assert.*;
@@ -354,4 +361,56 @@ public class S3AssetIngestorTest {
         assertNotNull(context.resourceResolver().getResource("/content/dam/folder-with-hyphensafter16charsand/nested-folder-with-hyphens-after-16chars"));
     }
 
+    @Test
+    public void testListingFollowsContinuationMarkers() throws Exception {
+        ingestor.init();
+        // s3mock does not implement markers, so the pages are mocked
+        AmazonS3 pagedClient = mock(AmazonS3.class);
+        ObjectListing page1 = listing(true, "image0.png", "image1.png");
+        ObjectListing page2 = listing(true, "image2.png", "image3.png");
+        ObjectListing page3 = listing(false, "image4.png");
+        when(pagedClient.listObjects(any(ListObjectsRequest.class))).thenReturn(page1);
+        when(pagedClient.listNextBatchOfObjects(page1)).thenReturn(page2);
+        when(pagedClient.listNextBatchOfObjects(page2)).thenReturn(page3);
+        ingestor.s3Client = pagedClient;
+
+        List<ObjectListing> pages = new ArrayList<>();
+        ingestor.forEachListing(pages::add);
+
+        assertEquals(Arrays.asList(page1, page2, page3), pages);
+    }
+
+    private static ObjectListing listing(boolean truncated, String... keys) {
+        ObjectListing listing = new ObjectListing();
+        listing.setTruncated(truncated);
+        for (String key : keys) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey(key);
+            listing.getObjectSummaries().add(summary);
+        }
+        return listing;
+    }
+
+    @Test
+    public void testImportLargeAssetInParallelParts() throws Exception {
+        ingestor.parallelDownloadThreshold = 1000;
+        ingestor.downloadPartSize = 10000;
+        ingestor.init();
+        s3Client.putObject(TEST_BUCKET, "image.png", getClass().getResourceAsStream("/img/test.png"), new ObjectMetadata());
+        byte[] expected;
+        try (InputStream in = getClass().getResourceAsStream("/img/test.png")) {
+            expected = IOUtils.toByteArray(in);
+        }
+        List<byte[]> imported = new ArrayList<>();
+        when(assetManager.createAsset(anyString(), any(), anyString(), any(Boolean.class))).thenAnswer(invocation -> {
+            imported.add(IOUtils.toByteArray((InputStream) invocation.getArguments()[1]));
+            return createdAsset;
+        });
+
+        ingestor.importAssets(actionManager);
+
+        assertEquals(1, ingestor.getCount(ingestor.importedAssets));
+        assertEquals(1, imported.size());
+        assertArrayEquals(expected, imported.get(0));
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.impl.processes.asset;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SftpConnectionPoolTest {
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private ChannelSftp connect() throws JSchException {
+        connections.incrementAndGet();
+        ChannelSftp channel = mock(ChannelSftp.class);
+        when(channel.isConnected()).thenReturn(true);
+        when(channel.getSession()).thenReturn(mock(Session.class));
+        return channel;
+    }
+
+    @Test
+    public void testReleasedChannelIsReused() throws Exception {
+        SftpConnectionPool pool = new SftpConnectionPool(this::connect, 2);
+        ChannelSftp first = pool.borrow();
+        pool.release(first);
+        assertSame(first, pool.borrow());
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    public void testBorrowWaitsWhenPoolIsFull() throws Exception {
+        SftpConnectionPool pool = new SftpConnectionPool(this::connect, 1);
+        ChannelSftp first = pool.borrow();
+        CompletableFuture<ChannelSftp> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.borrow();
+            } catch (JSchException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+
+        try {
+            second.get(200, TimeUnit.MILLISECONDS);
+            fail("Pool should not open more connections than allowed");
+        } catch (TimeoutException ex) {
+            // Expected, waiting for the first channel
+        }
+        pool.release(first);
+        assertSame(first, second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    public void testDisconnectedChannelIsReplaced() throws Exception {
+        SftpConnectionPool pool = new SftpConnectionPool(this::connect, 1);
+        ChannelSftp first = pool.borrow();
+        when(first.isConnected()).thenReturn(false);
+        pool.release(first);
+        assertEquals(0, pool.getOpenConnections());
+
+        assertNotSame(first, pool.borrow());
+        assertEquals(2, connections.get());
+    }
+
+    @Test
+    public void testCloseDisconnectsChannels() throws Exception {
+        SftpConnectionPool pool = new SftpConnectionPool(this::connect, 2);
+        ChannelSftp idle = pool.borrow();
+        ChannelSftp borrowed = pool.borrow();
+        pool.release(idle);
+        pool.close();
+        verify(idle).disconnect();
+
+        pool.release(borrowed);
+        verify(borrowed).disconnect();
+        assertEquals(0, pool.getOpenConnections());
+        try {
+            pool.borrow();
+            fail("Closed pool should not hand out channels");
+        } catch (JSchException ex) {
+            assertFalse(ex.getMessage().isEmpty());
+        }
+    }
+}
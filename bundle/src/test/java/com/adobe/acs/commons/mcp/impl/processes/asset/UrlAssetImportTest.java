@@ -29,13 +29,27 @@ import com.google.common.base.Function;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import javax.jcr.RepositoryException;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
 import org.apache.jackrabbit.JcrConstants;
-import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.mime.MimeTypeService;
@@ -51,7 +65,11 @@ import org.mockito.runners.MockitoJUnitRunner;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * Provide code coverage for URL Asset Import
@@ -71,7 +89,7 @@ public class UrlAssetImportTest {
     private UrlAssetImport importProcess = null;
 
     @Before
-    public void setUp() throws PersistenceException {
+    public void setUp() throws Exception {
         context.registerAdapter(ResourceResolver.class, AssetManager.class, new Function<ResourceResolver, AssetManager>() {
             @Nullable
             @Override
@@ -106,6 +124,11 @@ public class UrlAssetImportTest {
             method.accept(context.resourceResolver());
             return null;
         }).when(actionManager).deferredWithResolver(any(CheckedConsumer.class));
+        doAnswer(invocation -> {
+            CheckedConsumer<ResourceResolver> method = (CheckedConsumer<ResourceResolver>) invocation.getArguments()[0];
+            method.accept(context.resourceResolver());
+            return null;
+        }).when(actionManager).withResolver(any(CheckedConsumer.class));
     }
 
     private void addImportRow(String... cols) {
@@ -146,4 +169,87 @@ public class UrlAssetImportTest {
         importProcess.updateMetadata(actionManager);
         importProcess.importRenditions(actionManager);
     }
+
+    @Test
+    public void testHttpImportIsSpooledAndConditional() throws Exception {
+        String url = "http://example.com/images/test.png";
+        byte[] content = new byte[2048];
+        HttpClient client = mock(HttpClient.class);
+        List<String> validators = new ArrayList<>();
+        when(client.execute(any(HttpUriRequest.class))).thenAnswer(invocation -> {
+            HttpUriRequest request = (HttpUriRequest) invocation.getArguments()[0];
+            Header validator = request.getFirstHeader(HttpHeaders.IF_NONE_MATCH);
+            validators.add(validator == null ? null : validator.getValue());
+            if (validator != null && "\"v1\"".equals(validator.getValue())) {
+                return new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+            }
+            BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            response.setHeader(HttpHeaders.ETAG, "\"v1\"");
+            response.setEntity(new ByteArrayEntity(content));
+            return response;
+        });
+        importProcess.clientProvider.setHttpClientSupplier(() -> client);
+        importProcess.parallelDownloads = 1;
+        importProcess.skipUnchanged = true;
+        importProcess.init();
+        // Run the tasks handed over by the download threads on this thread, like workers of the action manager would
+        BlockingQueue<CheckedConsumer<ResourceResolver>> tasks = new LinkedBlockingQueue<>();
+        doAnswer(invocation -> tasks.add((CheckedConsumer<ResourceResolver>) invocation.getArguments()[0]))
+                .when(actionManager).deferredWithResolver(any(CheckedConsumer.class));
+        addImportRow(url, "/content/dam/test");
+
+        importProcess.files = importProcess.extractFilesAndFolders(importProcess.fileData.getDataRowsAsCompositeVariants());
+        importProcess.createFolders(actionManager);
+        importProcess.importAssets(actionManager);
+        runTasks(tasks);
+        assertEquals(1, importProcess.getCount(importProcess.importedAssets));
+
+        // Second run, replacing the asset imported by the first one
+        Map<String, Object> migrationInfo = new HashMap<>();
+        migrationInfo.put(AssetIngestor.PN_MIGRATED_FROM, "/images/test.png");
+        migrationInfo.put(AssetIngestor.PN_MIGRATED_VERSION, "\"v1\"");
+        migrationInfo.put(AssetIngestor.PN_MIGRATED_SIZE, (long) content.length);
+        context.resourceResolver().getResource("/content/dam/test/test.png/jcr:content").adaptTo(ModifiableValueMap.class).putAll(migrationInfo);
+        importProcess.existingAssetAction = AssetIngestor.AssetAction.replace;
+        importProcess.files = importProcess.extractFilesAndFolders(importProcess.fileData.getDataRowsAsCompositeVariants());
+        importProcess.importAssets(actionManager);
+        runTasks(tasks);
+
+        assertEquals(1, importProcess.getCount(importProcess.importedAssets));
+        assertEquals(1, importProcess.getCount(importProcess.skippedFiles));
+        assertEquals("Downloads are requested once per run", Arrays.asList(null, "\"v1\""), validators);
+        verify(assetManager, times(1)).createAsset(any(String.class), any(InputStream.class), any(String.class), any(Boolean.class));
+    }
+
+    @Test
+    public void testHttpImportWithoutResolverForTheDownload() throws Exception {
+        HttpClient client = mock(HttpClient.class);
+        when(client.execute(any(HttpUriRequest.class))).thenAnswer(invocation -> {
+            BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            response.setEntity(new ByteArrayEntity(new byte[2048]));
+            return response;
+        });
+        importProcess.clientProvider.setHttpClientSupplier(() -> client);
+        importProcess.parallelDownloads = 1;
+        importProcess.init();
+        BlockingQueue<CheckedConsumer<ResourceResolver>> tasks = new LinkedBlockingQueue<>();
+        doAnswer(invocation -> tasks.add((CheckedConsumer<ResourceResolver>) invocation.getArguments()[0]))
+                .when(actionManager).deferredWithResolver(any(CheckedConsumer.class));
+        doThrow(new LoginException("no login")).when(actionManager).withResolver(any(CheckedConsumer.class));
+        addImportRow("http://example.com/images/test.png", "/content/dam/test");
+
+        importProcess.files = importProcess.extractFilesAndFolders(importProcess.fileData.getDataRowsAsCompositeVariants());
+        importProcess.createFolders(actionManager);
+        importProcess.importAssets(actionManager);
+        runTasks(tasks);
+
+        assertEquals(1, importProcess.getCount(importProcess.importedAssets));
+    }
+
+    private void runTasks(BlockingQueue<CheckedConsumer<ResourceResolver>> tasks) throws Exception {
+        CheckedConsumer<ResourceResolver> task;
+        while ((task = tasks.poll(1, TimeUnit.SECONDS)) != null) {
+            task.accept(context.resourceResolver());
+        }
+    }
 }
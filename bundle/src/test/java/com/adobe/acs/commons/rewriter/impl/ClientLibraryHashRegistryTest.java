@@ -0,0 +1,157 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.rewriter.impl;
+
+import com.adobe.granite.ui.clientlibs.ClientLibrary;
+import com.adobe.granite.ui.clientlibs.HtmlLibrary;
+import com.adobe.granite.ui.clientlibs.HtmlLibraryManager;
+import com.adobe.granite.ui.clientlibs.LibraryType;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClientLibraryHashRegistryTest {
+
+    private static final String PATH = "/apps/myco/clientlibs/site";
+    private static final String CONTENT = "I love strings";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private HtmlLibraryManager htmlLibraryManager;
+
+    @Mock
+    private ClientLibrary clientLibrary;
+
+    @Mock
+    private HtmlLibrary htmlLibrary;
+
+    private File storeFile;
+
+    private ClientLibraryHashRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        storeFile = new File(folder.getRoot(), "md5.properties");
+        when(clientLibrary.getTypes()).thenReturn(EnumSet.of(LibraryType.JS));
+        when(htmlLibraryManager.getLibraries()).thenReturn(Collections.singletonMap(PATH, clientLibrary));
+        when(htmlLibraryManager.getLibrary(LibraryType.JS, PATH)).thenReturn(htmlLibrary);
+        when(htmlLibrary.getLibraryPath()).thenReturn(PATH);
+        when(htmlLibrary.getType()).thenReturn(LibraryType.JS);
+        when(htmlLibrary.getLastModified(false)).thenReturn(1000L);
+        when(htmlLibrary.getInputStream(false)).thenAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) {
+                return new ByteArrayInputStream(CONTENT.getBytes());
+            }
+        });
+        registry = new ClientLibraryHashRegistry(htmlLibraryManager, storeFile);
+    }
+
+    @After
+    public void tearDown() {
+        registry.close();
+    }
+
+    @Test
+    public void testRefreshComputesHashes() throws Exception {
+        assertNull(registry.getMd5(htmlLibrary, false));
+        assertNull(registry.getLibraries());
+
+        registry.refresh();
+
+        assertEquals(DigestUtils.md5Hex(CONTENT), registry.getMd5(htmlLibrary, false));
+        assertEquals(clientLibrary, registry.getLibraries().get(PATH));
+        // hashes computed for another minification setting are not used
+        assertNull(registry.getMd5(htmlLibrary, true));
+    }
+
+    @Test
+    public void testUnchangedLibrariesAreNotReadAgain() throws Exception {
+        registry.refresh();
+        registry.refresh();
+        verify(htmlLibrary, times(1)).getInputStream(false);
+
+        when(htmlLibrary.getLastModified(false)).thenReturn(2000L);
+        // until the next refresh, the stale hash is not handed out
+        assertNull(registry.getMd5(htmlLibrary, false));
+
+        registry.refresh();
+        verify(htmlLibrary, times(2)).getInputStream(false);
+        assertEquals(DigestUtils.md5Hex(CONTENT), registry.getMd5(htmlLibrary, false));
+    }
+
+    @Test
+    public void testHashesSurviveRestart() throws Exception {
+        registry.refresh();
+        registry.close();
+        assertTrue(storeFile.isFile());
+
+        registry = new ClientLibraryHashRegistry(htmlLibraryManager, storeFile);
+        assertEquals(DigestUtils.md5Hex(CONTENT), registry.getMd5(htmlLibrary, false));
+        verify(htmlLibrary, times(1)).getInputStream(false);
+
+        registry.refresh();
+        verify(htmlLibrary, times(1)).getInputStream(false);
+    }
+
+    @Test
+    public void testScheduledRefresh() throws Exception {
+        registry.scheduleRefresh();
+        long timeout = System.currentTimeMillis() + 5000;
+        while (registry.getLibraries() == null && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertNotNull(registry.getLibraries());
+        assertEquals(DigestUtils.md5Hex(CONTENT), registry.getMd5(htmlLibrary, false));
+    }
+
+    @Test
+    public void testMissingStoreFile() throws Exception {
+        registry = new ClientLibraryHashRegistry(htmlLibraryManager, new File(folder.getRoot(), "missing/md5.properties"));
+        assertNull(registry.getMd5(htmlLibrary, false));
+        verify(htmlLibrary, never()).getInputStream(false);
+    }
+}
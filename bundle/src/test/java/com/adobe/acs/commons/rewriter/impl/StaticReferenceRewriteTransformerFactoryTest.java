@@ -26,6 +26,7 @@ import static org.mockito.Mockito.*;
 import org.apache.sling.commons.testing.osgi.MockBundle;
 import org.apache.sling.commons.testing.osgi.MockComponentContext;
 import org.apache.sling.rewriter.Transformer;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
@@ -35,12 +36,18 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.List;
 
 @RunWith(MockitoJUnitRunner.class)
 public class StaticReferenceRewriteTransformerFactoryTest {
 
+    private static final Logger LOG = LoggerFactory.getLogger(StaticReferenceRewriteTransformerFactoryTest.class);
+
     @Mock
     private ContentHandler handler;
 
@@ -265,4 +272,131 @@ public class StaticReferenceRewriteTransformerFactoryTest {
         assertEquals("/etc/clientlib/testABC.css", out.getValue(0));
     }
 
+    @Test
+    public void test_unchanged_attributes_are_not_copied() throws Exception {
+        MockBundle bundle = new MockBundle(-1);
+        MockComponentContext ctx = new MockComponentContext(bundle);
+        ctx.setProperty("prefixes", new String[] { "/etc/clientlib" });
+        ctx.setProperty("host.pattern", "static.host.com");
+
+        StaticReferenceRewriteTransformerFactory factory = new StaticReferenceRewriteTransformerFactory();
+        factory.activate(ctx);
+
+        Transformer transformer = factory.createTransformer();
+        transformer.setContentHandler(handler);
+
+        AttributesImpl notMatching = new AttributesImpl();
+        notMatching.addAttribute(null, "href", null, "CDATA", "/content/clientlib/test.css");
+        transformer.startElement(null, "link", null, notMatching);
+
+        AttributesImpl noStatic = new AttributesImpl();
+        noStatic.addAttribute(null, "href", null, "CDATA", "/etc/clientlib/test.css");
+        noStatic.addAttribute(null, "class", null, "CDATA", "nostatic");
+        transformer.startElement(null, "link", null, noStatic);
+
+        verify(handler, times(2)).startElement(isNull(String.class), eq("link"), isNull(String.class),
+                attributesCaptor.capture());
+        assertSame(notMatching, attributesCaptor.getAllValues().get(0));
+        assertSame(noStatic, attributesCaptor.getAllValues().get(1));
+    }
+
+    @Test
+    public void test_with_prefix_and_many_numbered_hosts() throws Exception {
+        MockBundle bundle = new MockBundle(-1);
+        MockComponentContext ctx = new MockComponentContext(bundle);
+        ctx.setProperty("prefixes", new String[] { "/etc/clientlib" });
+        ctx.setProperty("host.pattern", "static{}.host.com");
+        ctx.setProperty("host.count", 40);
+
+        StaticReferenceRewriteTransformerFactory factory = new StaticReferenceRewriteTransformerFactory();
+        factory.activate(ctx);
+
+        Transformer transformer = factory.createTransformer();
+        transformer.setContentHandler(handler);
+
+        for (int i = 0; i < 100; i++) {
+            AttributesImpl in = new AttributesImpl();
+            in.addAttribute(null, "href", null, "CDATA", "/etc/clientlib/test" + i + ".css");
+            transformer.startElement(null, "link", null, in);
+        }
+
+        verify(handler, times(100)).startElement(isNull(String.class), eq("link"), isNull(String.class),
+                attributesCaptor.capture());
+        for (Attributes out : attributesCaptor.getAllValues()) {
+            assertTrue(out.getValue(0), out.getValue(0).matches("//static([1-9]|[1-3][0-9]|40)\\.host\\.com/etc/clientlib/test\\d+\\.css"));
+        }
+    }
+
+    /**
+     * Measures the time to rewrite the elements of a page of about 200 KB. It takes a few seconds, so it only runs
+     * with -Drewriter.benchmark=true.
+     */
+    @Test
+    public void benchmarkPageRewrite() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("rewriter.benchmark"));
+        MockBundle bundle = new MockBundle(-1);
+        MockComponentContext ctx = new MockComponentContext(bundle);
+        ctx.setProperty("prefixes", new String[] { "/etc/clientlibs", "/content/dam" });
+        ctx.setProperty("attributes", new String[] { "img:src,srcset", "link:href", "script:src", "a:href" });
+        ctx.setProperty("matchingPatterns", "img:srcset;(\\/content\\/dam\\/.+?\\.(png|jpg))");
+        ctx.setProperty("host.pattern", "static{}.host.com");
+        ctx.setProperty("host.count", 4);
+
+        StaticReferenceRewriteTransformerFactory factory = new StaticReferenceRewriteTransformerFactory();
+        factory.activate(ctx);
+
+        List<String> elements = new ArrayList<>();
+        List<Attributes> attributes = new ArrayList<>();
+        int pageSize = 0;
+        for (int i = 0; pageSize < 200 * 1024; i++) {
+            AttributesImpl atts = new AttributesImpl();
+            String element;
+            switch (i % 8) {
+                case 0:
+                    element = "img";
+                    atts.addAttribute(null, "src", null, "CDATA", "/content/dam/site/image" + i + ".jpg");
+                    atts.addAttribute(null, "srcset", null, "CDATA",
+                            "/content/dam/site/image" + i + ".jpg 1280w,/content/dam/site/image" + i + ".png 480w");
+                    atts.addAttribute(null, "alt", null, "CDATA", "Image " + i);
+                    break;
+                case 1:
+                    element = "a";
+                    atts.addAttribute(null, "href", null, "CDATA", "/content/site/en/page" + i + ".html");
+                    atts.addAttribute(null, "class", null, "CDATA", "nav-link");
+                    break;
+                case 2:
+                    element = i % 16 == 2 ? "link" : "script";
+                    atts.addAttribute(null, "link".equals(element) ? "href" : "src", null, "CDATA",
+                            "/etc/clientlibs/site/lib" + i + ".min.js");
+                    break;
+                default:
+                    element = i % 2 == 0 ? "div" : "span";
+                    atts.addAttribute(null, "class", null, "CDATA", "component component-" + i);
+                    atts.addAttribute(null, "data-id", null, "CDATA", Integer.toString(i));
+                    pageSize += 120; // text content
+                    break;
+            }
+            elements.add(element);
+            attributes.add(atts);
+            pageSize += element.length() * 2 + 5;
+            for (int a = 0; a < atts.getLength(); a++) {
+                pageSize += atts.getLocalName(a).length() + atts.getValue(a).length() + 4;
+            }
+        }
+
+        DefaultHandler sink = new DefaultHandler();
+        long pages = 0;
+        long start = System.nanoTime();
+        long end = start + 5_000_000_000L;
+        while (System.nanoTime() < end) {
+            Transformer transformer = factory.createTransformer();
+            transformer.setContentHandler(sink);
+            for (int i = 0; i < elements.size(); i++) {
+                transformer.startElement(null, elements.get(i), null, attributes.get(i));
+            }
+            pages++;
+        }
+        LOG.info("Rewrote {} elements of a {} KB page in {} us", elements.size(), pageSize / 1024,
+                (System.nanoTime() - start) / 1000 / pages);
+    }
 }
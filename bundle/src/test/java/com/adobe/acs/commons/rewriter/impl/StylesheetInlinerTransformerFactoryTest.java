@@ -25,11 +25,15 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.Collections;
 
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -41,7 +45,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
@@ -231,6 +238,79 @@ public class StylesheetInlinerTransformerFactoryTest {
     }
 
 
+    @Test
+    public void testClientLibCachedBetweenRenders() throws Throwable {
+        useFreshStreams();
+
+        renderClientLibInHead();
+        renderClientLibInHead();
+
+        verify(htmlLibrary, times(1)).getInputStream();
+        verify(handler, times(2)).characters(CSS_CONTENTS.toCharArray(), 0, CSS_CONTENTS.length());
+    }
+
+    @Test
+    public void testClientLibReadAgainWhenModified() throws Throwable {
+        useFreshStreams();
+
+        renderClientLibInHead();
+        when(htmlLibrary.getLastModified()).thenReturn(System.currentTimeMillis());
+        renderClientLibInHead();
+
+        verify(htmlLibrary, times(2)).getInputStream();
+    }
+
+    @Test
+    public void testCacheInvalidatedByEvent() throws Throwable {
+        useFreshStreams();
+
+        renderClientLibInHead();
+        factory.handleEvent(new Event(StylesheetInlinerTransformerFactory.TOPIC_LIBRARY_INVALIDATED,
+                Collections.singletonMap(SlingConstants.PROPERTY_PATH, CLIENTLIB_PATH)));
+        renderClientLibInHead();
+        factory.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED,
+                Collections.singletonMap(SlingConstants.PROPERTY_PATH, CLIENTLIB_PATH + "/css/site.css")));
+        renderClientLibInHead();
+        factory.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED,
+                Collections.singletonMap(SlingConstants.PROPERTY_PATH, "/etc/clientlibs/other.css")));
+        renderClientLibInHead();
+
+        verify(htmlLibrary, times(3)).getInputStream();
+    }
+
+    @Test
+    public void testCacheDisabled() throws Throwable {
+        useFreshStreams();
+        factory.activate(Collections.<String, Object>singletonMap("cache.size", 0));
+
+        renderClientLibInHead();
+        renderClientLibInHead();
+
+        verify(htmlLibrary, times(2)).getInputStream();
+    }
+
+    private void useFreshStreams() throws Exception {
+        when(htmlLibrary.getInputStream()).thenAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) {
+                return new ByteArrayInputStream(CSS_CONTENTS.getBytes());
+            }
+        });
+    }
+
+    private void renderClientLibInHead() throws Throwable {
+        transformer = factory.createTransformer();
+        PrivateAccessor.invoke(transformer, "init",
+                new Class[] {ProcessingContext.class, ProcessingComponentConfiguration.class},
+                new Object[] {processingContext, null} );
+        transformer.setContentHandler(handler);
+
+        startHeadSection(empty);
+        addStylesheetLink(CLIENTLIB_PATH);
+        startBodySection(empty);
+        endBodySection();
+    }
+
     private void endBodySection() throws SAXException {
         transformer.endElement(null, "body", null);
         transformer.endElement(null, "html", null);
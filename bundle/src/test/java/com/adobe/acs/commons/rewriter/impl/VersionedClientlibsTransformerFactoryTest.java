@@ -404,6 +404,43 @@ public class VersionedClientlibsTransformerFactoryTest {
     }
 
 
+    @Test
+    public void testPrecomputedMd5() throws Exception {
+        ClientLibrary clientLibrary = mock(ClientLibrary.class);
+        when(clientLibrary.getTypes()).thenReturn(Collections.singleton(LibraryType.CSS));
+        when(htmlLibraryManager.getLibraries()).thenReturn(Collections.singletonMap(PATH, clientLibrary));
+        when(htmlLibraryManager.getLibrary(eq(LibraryType.CSS), eq(PATH))).thenReturn(htmlLibrary);
+        when(htmlLibrary.getType()).thenReturn(LibraryType.CSS);
+
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("md5.precompute", Boolean.TRUE);
+        when(componentContext.getProperties()).thenReturn(props);
+        factory.activate(componentContext);
+        verify(bundleContext).getDataFile(anyString());
+
+        ClientLibraryHashRegistry registry = (ClientLibraryHashRegistry) PrivateAccessor.getField(factory, "hashRegistry");
+        long timeout = System.currentTimeMillis() + 5000;
+        while (registry.getLibraries() == null && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+
+        final AttributesImpl in = new AttributesImpl();
+        in.addAttribute("", "href", "", "CDATA", PATH + ".css");
+        in.addAttribute("", "type", "", "CDATA", "text/css");
+        in.addAttribute("", "rel", "", "CDATA", "stylesheet");
+
+        transformer.startElement(null, "link", null, in);
+
+        ArgumentCaptor<Attributes> attributesCaptor = ArgumentCaptor.forClass(Attributes.class);
+        verify(handler, only()).startElement(isNull(String.class), eq("link"), isNull(String.class),
+                attributesCaptor.capture());
+
+        // the library was read once, in the background
+        verify(htmlLibrary, times(1)).getInputStream(false);
+        assertEquals(PATH + "."+ FAKE_STREAM_CHECKSUM +".css", attributesCaptor.getValue().getValue(0));
+        factory.deactivate();
+    }
+
     @Test
     public void testMinifiedJavaScriptClientLibrary() throws Exception {
 
@@ -695,6 +732,91 @@ public class VersionedClientlibsTransformerFactoryTest {
         verify404();
     }
 
+    @Test
+    public void doFilter_foundInCache_md5Match_sendsCacheHeaders() throws Exception {
+        when(slingRequest.getRequestURI()).thenReturn("/etc/clientlibs/some.min.ACSHASH" + INPUTSTREAM_MD5 + ".js");
+        factory.getCache().put(new VersionedClientLibraryMd5CacheKey("/etc/clientlibs/some", LibraryType.JS), INPUTSTREAM_MD5);
+
+        HtmlLibrary htmlLibrary = mock(HtmlLibrary.class);
+        when(htmlLibrary.getLibraryPath()).thenReturn("/etc/clientlibs/some");
+        when(htmlLibraryManager.getLibrary(LibraryType.JS, "/etc/clientlibs/some")).thenReturn(htmlLibrary);
+
+        filter.doFilter(slingRequest, slingResponse, filterChain);
+
+        verifyNo404();
+        verify(slingResponse).setHeader("ETag", "\"" + INPUTSTREAM_MD5 + "\"");
+        verify(slingResponse).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+    }
+
+    @Test
+    public void doFilter_foundInCache_ifNoneMatch() throws Exception {
+        when(slingRequest.getRequestURI()).thenReturn("/etc/clientlibs/some.min.ACSHASH" + INPUTSTREAM_MD5 + ".js");
+        when(slingRequest.getMethod()).thenReturn("GET");
+        when(slingRequest.getHeader("If-None-Match")).thenReturn("\"other\", W/\"" + INPUTSTREAM_MD5 + "\"");
+        factory.getCache().put(new VersionedClientLibraryMd5CacheKey("/etc/clientlibs/some", LibraryType.JS), INPUTSTREAM_MD5);
+
+        HtmlLibrary htmlLibrary = mock(HtmlLibrary.class);
+        when(htmlLibrary.getLibraryPath()).thenReturn("/etc/clientlibs/some");
+        when(htmlLibraryManager.getLibrary(LibraryType.JS, "/etc/clientlibs/some")).thenReturn(htmlLibrary);
+
+        filter.doFilter(slingRequest, slingResponse, filterChain);
+
+        verify(slingResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(filterChain, never()).doFilter(slingRequest, slingResponse);
+    }
+
+    @Test
+    public void doFilter_precomputed_ifNoneMatch() throws Exception {
+        ClientLibrary clientLibrary = mock(ClientLibrary.class);
+        when(clientLibrary.getTypes()).thenReturn(Collections.singleton(LibraryType.JS));
+        when(clientLibrary.allowProxy()).thenReturn(true);
+        when(htmlLibraryManager.getLibraries()).thenReturn(Collections.singletonMap(PROXIED_PATH, clientLibrary));
+        when(htmlLibraryManager.getLibrary(LibraryType.JS, PROXIED_PATH)).thenReturn(proxiedHtmlLibrary);
+        when(proxiedHtmlLibrary.getType()).thenReturn(LibraryType.JS);
+        ClientLibraryHashRegistry registry = new ClientLibraryHashRegistry(htmlLibraryManager, null);
+        registry.refresh();
+        PrivateAccessor.setField(factory, "hashRegistry", registry);
+
+        when(slingRequest.getRequestURI()).thenReturn(PROXY_PATH + ".min.ACSHASH" + PROXIED_FAKE_STREAM_CHECKSUM + ".js");
+        when(slingRequest.getMethod()).thenReturn("GET");
+        when(slingRequest.getHeader("If-None-Match")).thenReturn("\"" + PROXIED_FAKE_STREAM_CHECKSUM + "\"");
+
+        filter.doFilter(slingRequest, slingResponse, filterChain);
+        registry.close();
+
+        verify(slingResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(filterChain, never()).doFilter(slingRequest, slingResponse);
+        // only the refresh read the library, the request was answered from the snapshot
+        verify(proxiedHtmlLibrary, times(1)).getInputStream(false);
+    }
+
+    @Test
+    public void doFilter_precomputed_modifiedSinceSnapshot() throws Exception {
+        ClientLibrary clientLibrary = mock(ClientLibrary.class);
+        when(clientLibrary.getTypes()).thenReturn(Collections.singleton(LibraryType.JS));
+        when(clientLibrary.allowProxy()).thenReturn(true);
+        when(htmlLibraryManager.getLibraries()).thenReturn(Collections.singletonMap(PROXIED_PATH, clientLibrary));
+        when(htmlLibraryManager.getLibrary(LibraryType.JS, PROXIED_PATH)).thenReturn(proxiedHtmlLibrary);
+        when(proxiedHtmlLibrary.getType()).thenReturn(LibraryType.JS);
+        when(proxiedHtmlLibrary.getLastModified(false)).thenReturn(1000L);
+        ClientLibraryHashRegistry registry = new ClientLibraryHashRegistry(htmlLibraryManager, null);
+        registry.refresh();
+        PrivateAccessor.setField(factory, "hashRegistry", registry);
+        // changed before the snapshot caught up
+        when(proxiedHtmlLibrary.getLastModified(false)).thenReturn(2000L);
+
+        when(slingRequest.getRequestURI()).thenReturn(PROXY_PATH + ".min.ACSHASH" + PROXIED_FAKE_STREAM_CHECKSUM + ".js");
+        when(slingRequest.getMethod()).thenReturn("GET");
+        when(slingRequest.getHeader("If-None-Match")).thenReturn("\"" + PROXIED_FAKE_STREAM_CHECKSUM + "\"");
+
+        filter.doFilter(slingRequest, slingResponse, filterChain);
+        registry.close();
+
+        verify(slingResponse, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        // the library was read again to check the hash
+        verify(proxiedHtmlLibrary, times(2)).getInputStream(false);
+    }
+
     @Test
     public void doFilter_noMd5() throws Exception {
         when(slingRequest.getRequestURI()).thenReturn("/etc/clientlibs/some.min.js");
@@ -20,24 +20,21 @@
 package com.adobe.acs.commons.throttling;
 
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
 
 import java.time.Clock;
-import java.time.Instant;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 public class ThrottlingStateTest {
 
-    private static final Logger LOG = LoggerFactory.getLogger(ThrottlingStateTest.class);
-
     private static final int CONSTANT_LOAD_SIZE = 10;
 
     Clock clock;
@@ -47,216 +44,145 @@ public class ThrottlingStateTest {
         clock = Mockito.mock(Clock.class);
     }
 
-    private LoadEstimator getConstantLoad() {
-
-        LoadEstimator le = () -> CONSTANT_LOAD_SIZE;
-        return le;
-    }
-
-    private ThrottlingConfiguration tc = new ThrottlingConfiguration(10, 90);
-
     @Test
     public void simpleThrottlingTestWithConstantLoad() {
-
-        // send 10 requets initially at the same time
-        Instant startTime = Instant.now();
-        Mockito.when(clock.instant()).thenReturn(startTime);
-        ThrottlingState s = new ThrottlingState(clock, getConstantLoad());
+        long startTime = System.currentTimeMillis();
+        Mockito.when(clock.millis()).thenReturn(startTime);
+        ThrottlingState s = new ThrottlingState(clock, () -> CONSTANT_LOAD_SIZE);
         for (int i = 0; i < CONSTANT_LOAD_SIZE; i++) {
-            ThrottlingDecision decision = s.evaluateThrottling();
-            assertEquals(ThrottlingDecision.State.NOTHROTTLE, decision.getState());
+            assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
         }
         ThrottlingDecision decision = s.evaluateThrottling();
         assertEquals(ThrottlingDecision.State.THROTTLE, decision.getState());
         assertEquals(60 * 1000, decision.getDelay());
 
         // when the time iterates by 59 seconds throttling should still be active
-        Instant delay1 = startTime.plusSeconds(59);
-        Mockito.when(clock.instant()).thenReturn(delay1);
-        ThrottlingDecision decision1 = s.evaluateThrottling();
-        assertEquals(ThrottlingDecision.State.THROTTLE, decision1.getState());
-        assertEquals(1 * 1000, decision1.getDelay());
+        Mockito.when(clock.millis()).thenReturn(startTime + 59 * 1000);
+        decision = s.evaluateThrottling();
+        assertEquals(ThrottlingDecision.State.THROTTLE, decision.getState());
+        assertEquals(1000, decision.getDelay());
 
         // when another 2 seconds pass, 10 new requests should run un-throttled
-        Instant delay2 = delay1.plusSeconds(2);
-        Mockito.when(clock.instant()).thenReturn(delay2);
+        Mockito.when(clock.millis()).thenReturn(startTime + 61 * 1000);
         for (int i = 0; i < CONSTANT_LOAD_SIZE; i++) {
-            ThrottlingDecision decision2 = s.evaluateThrottling();
-            assertEquals(ThrottlingDecision.State.NOTHROTTLE, decision2.getState());
+            assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
         }
         // and the 11th should be throttled again
-        ThrottlingDecision decision2 = s.evaluateThrottling();
-        assertEquals(ThrottlingDecision.State.THROTTLE, decision2.getState());
+        assertEquals(ThrottlingDecision.State.THROTTLE, s.evaluateThrottling().getState());
     }
 
     @Test
     public void throttlingWith1Slot() {
-        // just to make sure that the case with 1 slot is covered correctly
-        int loadSize = 1;
-        LoadEstimator ld = () -> {
-            return loadSize;
-        };
-        Instant startTime = Instant.now();
-        Mockito.when(clock.instant()).thenReturn(startTime);
-        ThrottlingState s = new ThrottlingState(clock, ld);
-
-        ThrottlingDecision decision = s.evaluateThrottling();
-        assertEquals(ThrottlingDecision.State.NOTHROTTLE, decision.getState());
-
-        decision = s.evaluateThrottling();
-        assertEquals(ThrottlingDecision.State.THROTTLE, decision.getState());
-
-        Instant now = startTime.plusSeconds(61);
-        Mockito.when(clock.instant()).thenReturn(now);
-        decision = s.evaluateThrottling();
-        assertEquals(ThrottlingDecision.State.NOTHROTTLE, decision.getState());
-
-    }
-
-    @Test
-    public void throttlingWithMixedLoad() {
-        int loadSize = 10;
-        LoadEstimator ld = () -> {
-            return loadSize;
-        };
-        Instant startTime = Instant.now();
-        Mockito.when(clock.instant()).thenReturn(startTime);
-        ThrottlingState s = new ThrottlingState(clock, ld);
-
-        // FIXME
-
-    }
-
-    @Test
-    public void testResize_SimpleResize() {
-
-        Instant startTime = Instant.now();
-        Mockito.when(clock.instant()).thenReturn(startTime);
-        ThrottlingState s = new ThrottlingState(clock, getConstantLoad());
-        for (int i = 0; i < CONSTANT_LOAD_SIZE; i++) {
-            s.evaluateThrottling();
-        }
+        long startTime = System.currentTimeMillis();
+        Mockito.when(clock.millis()).thenReturn(startTime);
+        ThrottlingState s = new ThrottlingState(clock, () -> 1);
 
-        s.resize(8);
+        assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
+        assertEquals(ThrottlingDecision.State.THROTTLE, s.evaluateThrottling().getState());
 
-        // check that all timestamps are preserved
-        assertEquals(s.timestamps.length, 8);
-        for (int i = 0; i < s.timestamps.length; i++) {
-            assertEquals(startTime, s.timestamps[i]);
-        }
+        Mockito.when(clock.millis()).thenReturn(startTime + 61 * 1000);
+        assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
     }
 
     @Test
-    public void testResize_DecreaseSize() {
-
-        Instant startTime = Instant.now();
-        Mockito.when(clock.instant()).thenReturn(startTime);
-        ThrottlingState s = new ThrottlingState(clock, getConstantLoad());
+    public void throttlingWithChangingCapacity() {
+        long startTime = System.currentTimeMillis();
+        Mockito.when(clock.millis()).thenReturn(startTime);
+        ThrottlingState s = new ThrottlingState(clock, () -> 10);
         for (int i = 0; i < 5; i++) {
             s.evaluateThrottling();
         }
-        Instant time2 = startTime.plusSeconds(2);
-        Mockito.when(clock.instant()).thenReturn(time2);
-        for (int i = 5; i < CONSTANT_LOAD_SIZE; i++) {
+        Mockito.when(clock.millis()).thenReturn(startTime + 2000);
+        for (int i = 5; i < 10; i++) {
             s.evaluateThrottling();
         }
-        assertEquals(0, s.currentIndex.get());
-
-        s.resize(8);
-        assertEquals(s.timestamps.length, 8);
-
-        // check that first 5 entries are time2
-        for (int i = 0; i < 5; i++) {
-            assertEquals(time2, s.timestamps[i]);
-        }
-        // and the remaining 3 should be of startTime
-        for (int i = 5; i < 8; i++) {
-            assertEquals(startTime, s.timestamps[i]);
-        }
-        // and currentIndex should be 0
-        assertEquals(0, s.currentIndex.get());
-    }
 
-    @Test
-    public void testResize_DecreaseSize_2() {
+        // fewer requests permitted: the last 4 requests are all within the last minute
+        s.loadEstimator = () -> 4;
+        Mockito.when(clock.millis()).thenReturn(startTime + 61 * 1000);
+        ThrottlingDecision decision = s.evaluateThrottling();
+        assertEquals(ThrottlingDecision.State.THROTTLE, decision.getState());
+        assertEquals(1000, decision.getDelay());
 
-        Instant startTime = Instant.now();
-        Mockito.when(clock.instant()).thenReturn(startTime);
-        LoadEstimator le = () -> 10;
-        ThrottlingState s = new ThrottlingState(clock, le);
-        for (int i = 0; i < 5; i++) {
-            s.evaluateThrottling();
-        }
-        Instant time2 = startTime.plusSeconds(2);
-        Mockito.when(clock.instant()).thenReturn(time2);
-        for (int i = 5; i < CONSTANT_LOAD_SIZE; i++) {
-            s.evaluateThrottling();
+        // more requests permitted, beyond the size of the initial ring: 10 new slots, plus the 5 slots of the
+        // requests which are older than a minute
+        s.loadEstimator = () -> 20;
+        for (int i = 0; i < 15; i++) {
+            assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
         }
+        decision = s.evaluateThrottling();
+        assertEquals(ThrottlingDecision.State.THROTTLE, decision.getState());
+        assertEquals(1000, decision.getDelay());
 
-        // now all slots are full
-        Instant time3 = time2.plusSeconds(60); // should cause the first entries to get purged
-        Mockito.when(clock.instant()).thenReturn(time3);
-        assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
-        assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
-
-        assertEquals(2, s.currentIndex.get());
-
-        s.loadEstimator = () -> 8; // reduce the number of slots to 8
-
+        // no requests permitted at all
+        s.loadEstimator = () -> 0;
         assertEquals(ThrottlingDecision.State.THROTTLE, s.evaluateThrottling().getState());
-
-        // resize has happened
-        assertEquals(s.timestamps.length, 8);
-
-        // check that first 2 entries are time3
-        for (int i = 0; i < 2; i++) {
-            assertEquals(time3, s.timestamps[i]);
-        }
-        // and the next 5 should be of time2
-        for (int i = 2; i < 7; i++) {
-            assertEquals(time2, s.timestamps[i]);
-        }
-        // slot 8 should be empty
-        assertEquals(Instant.EPOCH, s.timestamps[7]);
-
-        // and currentIndex should be 0
-        assertEquals(0, s.currentIndex.get());
-
     }
 
     @Test
-    public void testResize_IncreaseSize() {
-
-        Instant startTime = Instant.now();
-        Mockito.when(clock.instant()).thenReturn(startTime);
-        ThrottlingState s = new ThrottlingState(clock, getConstantLoad());
-        for (int i = 0; i < 5; i++) {
-            s.evaluateThrottling();
-        }
-        Instant time2 = startTime.plusSeconds(2);
-        Mockito.when(clock.instant()).thenReturn(time2);
-        for (int i = 5; i < CONSTANT_LOAD_SIZE; i++) {
-            s.evaluateThrottling();
-        }
-        assertEquals(0, s.currentIndex.get());
-
-        s.resize(12);
-        assertEquals(s.timestamps.length, 12);
-
-        // check that first 5 entries are startTime
-        for (int i = 0; i < 5; i++) {
-            assertEquals(startTime, s.timestamps[i]);
-        }
-        // the next 5 should be of startTime
-        for (int i = 5; i < 10; i++) {
-            assertEquals(time2, s.timestamps[i]);
-        }
-        // 11 and 12 are still default
-        assertEquals(Instant.EPOCH, s.timestamps[10]);
-        assertEquals(Instant.EPOCH, s.timestamps[11]);
-
-        // and currentIndex should point to freshly added entries
-        assertEquals(10, s.currentIndex.get());
+    public void concurrentRequestsNeverExceedCapacity() throws Exception {
+        Mockito.when(clock.millis()).thenReturn(System.currentTimeMillis());
+        ThrottlingState s = new ThrottlingState(clock, () -> 100);
+
+        int threads = 64;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                int passed = 0;
+                for (int i = 0; i < 100; i++) {
+                    if (s.evaluateThrottling().getState() == ThrottlingDecision.State.NOTHROTTLE) {
+                        passed++;
+                    }
+                }
+                return passed;
+            }));
+        }
+        start.countDown();
+
+        int passed = 0;
+        for (Future<Integer> result : results) {
+            passed += result.get();
+        }
+        executor.shutdown();
+        assertEquals(100, passed);
     }
 
+    @Test
+    public void concurrentRequestsAtWindowBoundaryNeverExceedCapacity() throws Exception {
+        long startTime = System.currentTimeMillis();
+        Mockito.when(clock.millis()).thenReturn(startTime);
+        ThrottlingState s = new ThrottlingState(clock, () -> 100);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
+        }
+        Mockito.when(clock.millis()).thenReturn(startTime + 61 * 1000);
+
+        int threads = 64;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                int passed = 0;
+                for (int i = 0; i < 10; i++) {
+                    if (s.evaluateThrottling().getState() == ThrottlingDecision.State.NOTHROTTLE) {
+                        passed++;
+                    }
+                }
+                return passed;
+            }));
+        }
+        start.countDown();
+
+        int passed = 0;
+        for (Future<Integer> result : results) {
+            passed += result.get();
+        }
+        executor.shutdown();
+        assertEquals(100, passed);
+    }
 }